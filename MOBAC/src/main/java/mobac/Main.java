@@ -32,6 +32,7 @@ import mobac.program.Logging;
 import mobac.program.ProgramInfo;
 import mobac.program.commandline.CommandLineEmpty;
 import mobac.program.commandline.CreateAtlas;
+import mobac.program.commandline.MigrateTileStore;
 import mobac.program.interfaces.CommandLineAction;
 import mobac.program.model.Profile;
 import mobac.program.model.Settings;
@@ -86,6 +87,12 @@ public class Main {
 
 	protected void parseCommandLine() {
 		String[] args = StartMOBAC.ARGS;
+		if (args.length == 1) {
+			if ("migrate-tilestore".equalsIgnoreCase(args[0])) {
+				cmdAction = new MigrateTileStore();
+				return;
+			}
+		}
 		if (args.length == 2) {
 			if ("create".equalsIgnoreCase(args[0])) {
 				cmdAction = new CreateAtlas(args[1]);
@@ -99,6 +106,7 @@ public class Main {
 	 */
 	public static void main(String[] args) {
 		try {
+			StartMOBAC.setHttpKeepAlive();
 			UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
 			new Main();
 		} catch (Throwable t) {
@@ -33,11 +33,18 @@ public class StartMOBAC {
 
 	public static String[] ARGS;
 
+	/**
+	 * Number of idle connections per host kept by the keep-alive cache of the Java runtime (default 5). Matches the
+	 * default of <code>Settings.httpMaxConnectionsPerHost</code>.
+	 */
+	public static final String HTTP_KEEP_ALIVE_CONNECTIONS = "8";
+
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) {
 		ARGS = args;
+		setHttpKeepAlive();
 		setLookAndFeel();
 		checkVersion();
 		try {
@@ -58,6 +65,15 @@ public class StartMOBAC {
 		}
 	}
 
+	/**
+	 * The keep-alive settings are read once when the first HTTP connection is opened, therefore they have to be set
+	 * before. Values specified on the command line are not changed.
+	 */
+	public static void setHttpKeepAlive() {
+		if (System.getProperty("http.maxConnections") == null)
+			System.setProperty("http.maxConnections", HTTP_KEEP_ALIVE_CONNECTIONS);
+	}
+
 	protected static void checkVersion() {
 		String ver = System.getProperty("java.specification.version");
 		if (ver == null)
@@ -18,16 +18,20 @@ package mobac.exceptions;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.net.URL;
 
 public class DownloadFailedException extends IOException {
 
 	private final int httpResponseCode;
-	private HttpURLConnection connection;
+	private URL url;
 
-	public DownloadFailedException(HttpURLConnection connection, int httpResponseCode)
-			throws IOException {
+	public DownloadFailedException(HttpURLConnection connection, int httpResponseCode) {
+		this(connection.getURL(), httpResponseCode);
+	}
+
+	public DownloadFailedException(URL url, int httpResponseCode) {
 		super("Invaild HTTP response: " + httpResponseCode);
-		this.connection = connection;
+		this.url = url;
 		this.httpResponseCode = httpResponseCode;
 	}
 
@@ -37,7 +41,7 @@ public class DownloadFailedException extends IOException {
 
 	@Override
 	public String getMessage() {
-		return super.getMessage() + "\n" + connection.getURL();
+		return super.getMessage() + "\n" + url;
 	}
 
 }
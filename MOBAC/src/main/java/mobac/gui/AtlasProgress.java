@@ -79,8 +79,15 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 
 	private static class Data {
 		AtlasInterface atlasInterface;
+		/** the map currently created */
 		MapInterface map;
 		MapInfo mapInfo;
+		/** the map currently downloaded - differs from {@link #map} if maps are downloaded in advance */
+		MapInterface downloadMap;
+		MapInfo downloadMapInfo;
+		boolean mapDownloadFinished = false;
+		/** <code>false</code> if the atlas only consists of the download stage (tile store download) */
+		boolean mapCreationStage = true;
 		long numberOfDownloadedBytes = 0;
 		long numberOfBytesLoadedFromCache = 0;
 		int totalNumberOfTiles = 0;
@@ -90,6 +97,8 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 		int currentMapNumber = 0;
 		int mapDownloadProgress = 0;
 		int mapDownloadNumberOfTiles = 0;
+		int mapDownloadCachedTiles = 0;
+		int mapDownloadRemoteTiles = -1;
 		int mapCreationProgress = 0;
 		int mapCreationMax = 0;
 		int mapRetryErrors = 0;
@@ -324,10 +333,11 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 
 	public void initAtlas(AtlasInterface atlasInterface) {
 		data.atlasInterface = atlasInterface;
-		if (atlasInterface.getOutputFormat().equals(AtlasOutputFormat.TILESTORE))
-			data.totalNumberOfTiles = (int) atlasInterface.calculateTilesToDownload();
-		else
+		data.mapCreationStage = !atlasInterface.getOutputFormat().equals(AtlasOutputFormat.TILESTORE);
+		if (data.mapCreationStage)
 			data.totalNumberOfTiles = (int) atlasInterface.calculateTilesToDownload() * 2;
+		else
+			data.totalNumberOfTiles = (int) atlasInterface.calculateTilesToDownload();
 		int mapCount = 0;
 		int tileCount = 0;
 		mapInfos = new ArrayList<MapInfo>(100);
@@ -351,17 +361,83 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 	}
 
 	public void initMapDownload(MapInterface map) {
-		int index = mapInfos.indexOf(new MapInfo(map, 0, 0));
-		data.mapInfo = mapInfos.get(index);
-		data.totalProgress = data.mapInfo.tileCountOnStart;
-		data.map = map;
+		data.downloadMapInfo = getMapInfo(map);
+		data.downloadMap = map;
 		data.mapDownloadNumberOfTiles = (int) map.calculateTilesToDownload();
 		initialMapDownloadTime = System.currentTimeMillis();
 		data.prevMapsPermanentErrors += data.mapPermanentErrors;
 		data.prevMapsRetryErrors += data.mapRetryErrors;
-		data.mapCreationProgress = 0;
+		data.mapPermanentErrors = 0;
+		data.mapRetryErrors = 0;
 		data.mapDownloadProgress = 0;
-		data.currentMapNumber = index + 1;
+		data.mapDownloadCachedTiles = 0;
+		data.mapDownloadRemoteTiles = -1;
+		data.mapDownloadFinished = false;
+		updateTotalProgress();
+		updateGUI();
+	}
+
+	/**
+	 * Called after all tiles of the current download map have been downloaded
+	 */
+	public void mapDownloadFinished() {
+		data.mapDownloadFinished = true;
+		initialMapDownloadTime = -1;
+		updateTotalProgress();
+		updateGUI();
+	}
+
+	/**
+	 * Called before the creation of the specified map starts. If maps are downloaded in advance the tiles of following
+	 * maps are downloaded while this map is created.
+	 * 
+	 * @param map
+	 */
+	public void startMapCreation(MapInterface map) {
+		data.mapInfo = getMapInfo(map);
+		data.map = map;
+		data.mapCreationProgress = 0;
+		data.mapCreationMax = 0;
+		data.currentMapNumber = mapInfos.indexOf(data.mapInfo) + 1;
+		updateTotalProgress();
+		updateGUI();
+	}
+
+	private MapInfo getMapInfo(MapInterface map) {
+		return mapInfos.get(mapInfos.indexOf(new MapInfo(map, 0, 0)));
+	}
+
+	/**
+	 * The atlas progress is the sum of the download progress and the creation progress. Each map contributes its tile
+	 * count to both stages.
+	 */
+	private void updateTotalProgress() {
+		int progress = 0;
+		MapInfo info = data.downloadMapInfo;
+		if (info != null)
+			progress += info.tileCountOnStart / 2 + (data.mapDownloadFinished ? info.mapTiles : data.mapDownloadProgress);
+		info = data.mapInfo;
+		if (data.mapCreationStage && info != null) {
+			progress += info.tileCountOnStart / 2;
+			if (data.mapCreationMax > 0)
+				progress += (int) (((long) info.mapTiles) * data.mapCreationProgress / data.mapCreationMax);
+		}
+		data.totalProgress = progress;
+	}
+
+	/**
+	 * Called after the tile store has been checked for the tiles of the current map
+	 * 
+	 * @param cachedTiles
+	 *            number of tiles taken from the tile store
+	 * @param remoteTiles
+	 *            number of tiles that have to be downloaded
+	 */
+	public void setMapDownloadPreCheckResult(int cachedTiles, int remoteTiles) {
+		data.mapDownloadCachedTiles = cachedTiles;
+		data.mapDownloadRemoteTiles = remoteTiles;
+		// The remaining time is estimated based on the tiles downloaded from now on
+		initialMapDownloadTime = System.currentTimeMillis();
 		updateGUI();
 	}
 
@@ -373,7 +449,7 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 	public void initMapCreation(int maxTilesToProcess) {
 		data.mapCreationProgress = 0;
 		data.mapCreationMax = maxTilesToProcess;
-		initialMapDownloadTime = -1;
+		updateTotalProgress();
 		updateGUI();
 	}
 
@@ -385,7 +461,7 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 
 	public void incMapDownloadProgress() {
 		data.mapDownloadProgress++;
-		data.totalProgress++;
+		updateTotalProgress();
 		updateGUI();
 	}
 
@@ -399,8 +475,7 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 
 	public void setMapCreationProgress(int progress) {
 		data.mapCreationProgress = progress;
-		long creationProgressTiles = data.totalProgress = data.mapInfo.tileCountOnStart + data.mapInfo.mapTiles
-				+ (int) (((long) data.mapInfo.mapTiles) * data.mapCreationProgress / data.mapCreationMax);
+		updateTotalProgress();
 		updateGUI();
 	}
 
@@ -553,11 +628,15 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 				scheduledCounter--;
 			}
 
-			if (data.map != null) {
-				String text = "<html>Processing map <b>" + data.map.getName() + "</b> " + "of layer <b>"
-						+ data.map.getLayer().getName() + "</b> " + "from map source <b>" + data.map.getMapSource()
-						+ "</b></html>";
-				mapInfoLabel.setText(text);
+			MapInterface map = (data.map != null) ? data.map : data.downloadMap;
+			if (map != null) {
+				String text = "<html>Processing map <b>" + map.getName() + "</b> " + "of layer <b>"
+						+ map.getLayer().getName() + "</b> " + "from map source <b>" + map.getMapSource() + "</b>";
+				MapInterface downloadMap = data.downloadMap;
+				if (downloadMap != null && downloadMap != map && !data.mapDownloadFinished)
+					text += "<br>Downloading tiles of map <b>" + downloadMap.getName() + "</b> of layer <b>"
+							+ downloadMap.getLayer().getName() + "</b>";
+				mapInfoLabel.setText(text + "</html>");
 			}
 
 			// atlas progress
@@ -611,14 +690,18 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 			mapDownloadPercent.setText(String.format(TEXT_PERCENT,
 					(int) (mapDownloadProgressBar.getPercentComplete() * 100)));
 
-			mapDownloadElementsDone.setText(Integer.toString(data.mapDownloadProgress) + " of "
-					+ data.mapDownloadNumberOfTiles + " tiles done");
+			String elementsDone = Integer.toString(data.mapDownloadProgress) + " of " + data.mapDownloadNumberOfTiles
+					+ " tiles done";
+			if (data.mapDownloadRemoteTiles >= 0)
+				elementsDone += " (" + data.mapDownloadCachedTiles + " from tile store, " + data.mapDownloadRemoteTiles
+						+ " to download)";
+			mapDownloadElementsDone.setText(elementsDone);
 
 			seconds = -1;
-			int mapDlProgress = data.mapDownloadProgress;
-			if (mapDlProgress != 0 && initialMapDownloadTime > 0)
+			int mapDlProgress = data.mapDownloadProgress - data.mapDownloadCachedTiles;
+			if (mapDlProgress > 0 && initialMapDownloadTime > 0)
 				seconds = ((System.currentTimeMillis() - initialMapDownloadTime)
-						* (data.mapDownloadNumberOfTiles - mapDlProgress) / (1000L * mapDlProgress));
+						* (data.mapDownloadNumberOfTiles - data.mapDownloadProgress) / (1000L * mapDlProgress));
 			mapDownloadTimeLeft.setText("Time remaining: " + formatTime(seconds));
 
 			// map progress
@@ -630,7 +713,7 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 			// bytes per second
 			long rate = data.numberOfDownloadedBytes * 1000;
 			long time = System.currentTimeMillis() - initialMapDownloadTime;
-			if (data.mapCreationProgress == 0 && initialMapDownloadTime > 0) {
+			if (initialMapDownloadTime > 0) {
 				if (time == 0) {
 					nrOfDownloadedBytesPerSecondValue.setText(": ?? KiByte / second");
 				} else {
@@ -60,6 +60,7 @@ public class GpxEditor {
 				rte.getRtept().add(wpt);
 			}
 		}
+		entry.getLayer().invalidate();
 	}
 
 	/**
@@ -82,6 +83,7 @@ public class GpxEditor {
 				trkseg.getTrkpt().add(wpt);
 			}
 		}
+		entry.getLayer().invalidate();
 	}
 
 	/**
@@ -92,7 +94,13 @@ public class GpxEditor {
 	 * @return - true if wpt found and deleted, false otherwise
 	 */
 	public boolean findWptAndDelete(WptType wpt, GpxEntry gpxEntry) {
-		Gpx gpx = gpxEntry.getLayer().getGpx();
+		boolean deleted = deleteWpt(wpt, gpxEntry.getLayer().getGpx());
+		if (deleted)
+			gpxEntry.getLayer().invalidate();
+		return deleted;
+	}
+
+	private boolean deleteWpt(WptType wpt, Gpx gpx) {
 		// wpts
 		List<WptType> wpts = gpx.getWpt();
 		for (WptType currentWpt : wpts) {
@@ -74,6 +74,7 @@ public class GpxMapController extends JMapController implements MouseListener {
 			GpxEditor editor = GpxEditor.getInstance();
 			if (entry.getClass() == GpxRootEntry.class) {
 				gpx11.getWpt().add(wpt);
+				entry.getLayer().invalidate();
 			} else if (entry instanceof RteEntry) {
 				editor.findRteAndAdd((RteEntry) entry, wpt);
 			} else if (entry instanceof TrksegEntry) {
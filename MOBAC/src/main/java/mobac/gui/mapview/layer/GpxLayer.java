@@ -21,11 +21,10 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Stroke;
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import mobac.data.gpx.gpx11.Gpx;
-import mobac.data.gpx.gpx11.RteType;
-import mobac.data.gpx.gpx11.TrkType;
-import mobac.data.gpx.gpx11.TrksegType;
 import mobac.data.gpx.gpx11.WptType;
 import mobac.gui.mapview.JMapViewer;
 import mobac.gui.mapview.interfaces.MapLayer;
@@ -47,7 +46,9 @@ public class GpxLayer implements MapLayer {
 
 	private Stroke outlineStroke = new BasicStroke(1);
 
-	private Stroke lineStroke = new BasicStroke(2.0f);
+	private static final int LINE_WIDTH = 2;
+
+	private Stroke lineStroke = new BasicStroke(LINE_WIDTH);
 
 	// private Logger log = Logger.getLogger(GpxLayer.class);
 
@@ -63,53 +64,53 @@ public class GpxLayer implements MapLayer {
 	private boolean showTracks = true;
 	private boolean showRoutes = true;
 
-	private int lastTrackPointX = Integer.MIN_VALUE;
-	private int lastTrackPointY = Integer.MIN_VALUE;
+	/** number of zoom levels for that the projected gpx content is kept */
+	private static final int MAX_CACHED_PROJECTIONS = 4;
+
+	/** the map space all cached projections belong to */
+	private MapSpace projectionMapSpace = null;
+
+	/** projected gpx content per zoom level */
+	private final LinkedHashMap<Integer, GpxProjection> projections = new LinkedHashMap<Integer, GpxProjection>(8,
+			0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, GpxProjection> eldest) {
+			return size() > MAX_CACHED_PROJECTIONS;
+		}
+	};
+
+	/** reusable buffers for painting the polyline of one element */
+	private int[] xPoints = new int[64];
+	private int[] yPoints = new int[64];
 
 	public GpxLayer(Gpx gpx) {
 		this.gpx = gpx;
 	}
 
 	public void paint(JMapViewer map, Graphics2D g, int zoom, int minX, int minY, int maxX, int maxY) {
-		g.setColor(wptPointColor);
 		final MapSpace mapSpace = map.getMapSource().getMapSpace();
+		GpxProjection projection = getProjection(mapSpace, zoom);
 		if (showWaypoints) {
-			for (WptType pt : gpx.getWpt()) {
-				paintPoint(pt, wptPointColor, g, showWaypointName, mapSpace, zoom, minX, minY, maxX, maxY);
-			}
-		}
-		if (showTracks) {
-			for (TrkType trk : gpx.getTrk()) {
-				for (TrksegType seg : trk.getTrkseg()) {
-					lastTrackPointX = Integer.MIN_VALUE;
-					lastTrackPointY = Integer.MIN_VALUE;
-					for (WptType pt : seg.getTrkpt()) {
-						paintTrack(pt, trkPointColor, g, mapSpace, zoom, minX, minY, maxX, maxY);
-					}
-				}
-			}
-		}
-		if (showRoutes) {
-			for (RteType rte : gpx.getRte()) {
-				lastTrackPointX = Integer.MIN_VALUE;
-				lastTrackPointY = Integer.MIN_VALUE;
-				for (WptType pt : rte.getRtept()) {
-					paintTrack(pt, rtePointColor, g, mapSpace, zoom, minX, minY, maxX, maxY);
-				}
+			GpxProjection.Elements wpts = projection.getWaypoints();
+			int count = wpts.query(minX, minY, maxX, maxY);
+			int[] found = wpts.getQueryResult();
+			for (int i = 0; i < count; i++) {
+				int e = found[i];
+				int p = wpts.getFirstPoint(e);
+				paintPoint(projection.getWaypoint(e), wptPointColor, g, showWaypointName, wpts.getX(p) - minX,
+						wpts.getY(p) - minY);
 			}
 		}
+		if (showTracks)
+			paintLines(projection.getTracks(), trkPointColor, g, minX, minY, maxX, maxY);
+		if (showRoutes)
+			paintLines(projection.getRoutes(), rtePointColor, g, minX, minY, maxX, maxY);
 	}
 
-	private boolean paintPoint(final WptType point, Color color, final Graphics2D g, boolean paintPointName,
-			MapSpace mapSpace, int zoom, int minX, int minY, int maxX, int maxY) {
-		int x = mapSpace.cLonToX(point.getLon().doubleValue(), zoom);
-		if (x < minX || x > maxX)
-			return false; // Point outside of visible region
-		int y = mapSpace.cLatToY(point.getLat().doubleValue(), zoom);
-		if (y < minY || y > maxY)
-			return false; // Point outside of visible region
-		x -= minX;
-		y -= minY;
+	private void paintPoint(final WptType point, Color color, final Graphics2D g, boolean paintPointName, int x, int y) {
 		g.setColor(color);
 		g.fillOval(x - POINT_RADIUS, y - POINT_RADIUS, POINT_DIAMETER, POINT_DIAMETER);
 		g.setColor(Color.BLACK);
@@ -117,26 +118,57 @@ public class GpxLayer implements MapLayer {
 		g.drawOval(x - POINT_RADIUS, y - POINT_RADIUS, POINT_DIAMETER, POINT_DIAMETER);
 		if (paintPointName && point.getName() != null)
 			g.drawString(point.getName(), x + POINT_RADIUS + 5, y - POINT_RADIUS);
-
-		return true;
 	}
 
-	private boolean paintTrack(final WptType point, Color color, final Graphics2D g, MapSpace mapSpace, int zoom,
-			int minX, int minY, int maxX, int maxY) {
-		// Absolute map space coordinates
-		int xAbs = mapSpace.cLonToX(point.getLon().doubleValue(), zoom);
-		int yAbs = mapSpace.cLatToY(point.getLat().doubleValue(), zoom);
-		// Relative coordinates regarding the top left point on map
-		int x = xAbs - minX;
-		int y = yAbs - minY;
+	private void paintLines(GpxProjection.Elements lines, Color color, final Graphics2D g, int minX, int minY,
+			int maxX, int maxY) {
+		// extend the region by the line width so that lines just outside are painted completely
+		int count = lines.query(minX - LINE_WIDTH, minY - LINE_WIDTH, maxX + LINE_WIDTH, maxY + LINE_WIDTH);
+		if (count == 0)
+			return;
 		g.setColor(color);
-		if (lastTrackPointX != Integer.MIN_VALUE && lastTrackPointY != Integer.MIN_VALUE) {
-			g.setStroke(lineStroke);
-			g.drawLine(lastTrackPointX, lastTrackPointY, x, y);
+		g.setStroke(lineStroke);
+		int[] found = lines.getQueryResult();
+		for (int i = 0; i < count; i++) {
+			int e = found[i];
+			int first = lines.getFirstPoint(e);
+			int n = lines.getLastPoint(e) - first + 1;
+			if (n > xPoints.length) {
+				xPoints = new int[n];
+				yPoints = new int[n];
+			}
+			// Relative coordinates regarding the top left point on map
+			for (int j = 0; j < n; j++) {
+				xPoints[j] = lines.getX(first + j) - minX;
+				yPoints[j] = lines.getY(first + j) - minY;
+			}
+			g.drawPolyline(xPoints, yPoints, n);
 		}
-		lastTrackPointX = x;
-		lastTrackPointY = y;
-		return true;
+	}
+
+	/**
+	 * Returns the gpx content projected for the specified map space and zoom level. The projection is built on first
+	 * use and cached until the map space changes or {@link #invalidate()} is called.
+	 */
+	protected synchronized GpxProjection getProjection(MapSpace mapSpace, int zoom) {
+		if (mapSpace != projectionMapSpace) {
+			projections.clear();
+			projectionMapSpace = mapSpace;
+		}
+		GpxProjection projection = projections.get(zoom);
+		if (projection != null)
+			return projection;
+		projection = new GpxProjection(gpx, mapSpace, zoom);
+		projections.put(zoom, projection);
+		return projection;
+	}
+
+	/**
+	 * Discards the projected gpx content. Has to be called after the content of the associated {@link Gpx} object
+	 * has been modified.
+	 */
+	public synchronized void invalidate() {
+		projections.clear();
 	}
 
 	/**
@@ -0,0 +1,461 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.gui.mapview.layer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import mobac.data.gpx.gpx11.Gpx;
+import mobac.data.gpx.gpx11.RteType;
+import mobac.data.gpx.gpx11.TrkType;
+import mobac.data.gpx.gpx11.TrksegType;
+import mobac.data.gpx.gpx11.WptType;
+import mobac.program.interfaces.MapSpace;
+
+/**
+ * The content of a {@link Gpx} projected into the pixel coordinate space of one zoom level. Track segments and routes
+ * are simplified to the resolution of the zoom level (Douglas-Peucker with a tolerance of one pixel) and split into
+ * short chunks. Waypoints and chunks are registered in a uniform grid so that painting only has to visit the elements
+ * that intersect the visible region.
+ * <p>
+ * A projection is a snapshot - it has to be rebuilt if the {@link Gpx} changes.
+ * </p>
+ */
+public class GpxProjection {
+
+	/** Width and height of a grid cell: 2<sup>CELL_SHIFT</sup> pixels */
+	private static final int CELL_SHIFT = 9;
+
+	/** Maximum number of line segments per chunk */
+	private static final int CHUNK_SIZE = 64;
+
+	/** Elements covering more grid cells are not registered in the grid but checked on every query */
+	private static final int MAX_CELLS_PER_ELEMENT = 64;
+
+	private final MapSpace mapSpace;
+	private final int zoom;
+
+	private final WptType[] waypoints;
+	private final Elements waypointElements;
+	private final Elements trackElements;
+	private final Elements routeElements;
+
+	public GpxProjection(Gpx gpx, MapSpace mapSpace, int zoom) {
+		this.mapSpace = mapSpace;
+		this.zoom = zoom;
+		List<WptType> wpts = gpx.getWpt();
+		waypoints = wpts.toArray(new WptType[wpts.size()]);
+		ElementsBuilder builder = new ElementsBuilder();
+		for (WptType wpt : waypoints)
+			builder.addPoint(cLonToX(wpt), cLatToY(wpt));
+		waypointElements = builder.build();
+
+		builder = new ElementsBuilder();
+		for (TrkType trk : gpx.getTrk()) {
+			for (TrksegType seg : trk.getTrkseg())
+				addLine(builder, seg.getTrkpt());
+		}
+		trackElements = builder.build();
+
+		builder = new ElementsBuilder();
+		for (RteType rte : gpx.getRte())
+			addLine(builder, rte.getRtept());
+		routeElements = builder.build();
+	}
+
+	private void addLine(ElementsBuilder builder, List<WptType> points) {
+		int n = points.size();
+		if (n < 2)
+			return;
+		int[] x = new int[n];
+		int[] y = new int[n];
+		int count = 0;
+		for (WptType pt : points) {
+			int px = cLonToX(pt);
+			int py = cLatToY(pt);
+			// skip points that are projected onto the same pixel as their predecessor
+			if (count > 0 && x[count - 1] == px && y[count - 1] == py)
+				continue;
+			x[count] = px;
+			y[count] = py;
+			count++;
+		}
+		if (count == 1) {
+			// the whole line collapsed into one pixel - keep it as a line of length zero
+			x[1] = x[0];
+			y[1] = y[0];
+			count = 2;
+		}
+		count = simplify(x, y, count);
+		builder.addLine(x, y, count);
+	}
+
+	private int cLonToX(WptType pt) {
+		return mapSpace.cLonToX(pt.getLon().doubleValue(), zoom);
+	}
+
+	private int cLatToY(WptType pt) {
+		return mapSpace.cLatToY(pt.getLat().doubleValue(), zoom);
+	}
+
+	/**
+	 * Douglas-Peucker line simplification with a tolerance of one pixel. The retained points are moved to the start of
+	 * the arrays.
+	 *
+	 * @param x
+	 * @param y
+	 * @param n
+	 *            number of points
+	 * @return number of retained points
+	 */
+	static int simplify(int[] x, int[] y, int n) {
+		if (n < 3)
+			return n;
+		boolean[] keep = new boolean[n];
+		keep[0] = true;
+		keep[n - 1] = true;
+		int[] stack = new int[64];
+		int sp = 0;
+		stack[sp++] = 0;
+		stack[sp++] = n - 1;
+		while (sp > 0) {
+			int last = stack[--sp];
+			int first = stack[--sp];
+			double dx = x[last] - x[first];
+			double dy = y[last] - y[first];
+			double len2 = dx * dx + dy * dy;
+			double maxDist2 = 0;
+			int index = -1;
+			for (int i = first + 1; i < last; i++) {
+				double px = x[i] - x[first];
+				double py = y[i] - y[first];
+				double dist2;
+				if (len2 == 0) {
+					dist2 = px * px + py * py;
+				} else {
+					// squared distance to the line through first and last
+					double cross = px * dy - py * dx;
+					dist2 = cross * cross / len2;
+				}
+				if (dist2 > maxDist2) {
+					maxDist2 = dist2;
+					index = i;
+				}
+			}
+			if (maxDist2 <= 1.0)
+				continue;
+			keep[index] = true;
+			if (sp + 4 > stack.length) {
+				int[] newStack = new int[stack.length * 2];
+				System.arraycopy(stack, 0, newStack, 0, sp);
+				stack = newStack;
+			}
+			if (index - first > 1) {
+				stack[sp++] = first;
+				stack[sp++] = index;
+			}
+			if (last - index > 1) {
+				stack[sp++] = index;
+				stack[sp++] = last;
+			}
+		}
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (keep[i]) {
+				x[count] = x[i];
+				y[count] = y[i];
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public MapSpace getMapSpace() {
+		return mapSpace;
+	}
+
+	public int getZoom() {
+		return zoom;
+	}
+
+	/**
+	 * @param index
+	 *            waypoint element index as returned by {@link Elements#query(int, int, int, int)} on
+	 *            {@link #getWaypoints()}
+	 * @return
+	 */
+	public WptType getWaypoint(int index) {
+		return waypoints[index];
+	}
+
+	/**
+	 * Each waypoint is an element consisting of one point.
+	 */
+	public Elements getWaypoints() {
+		return waypointElements;
+	}
+
+	/**
+	 * Each element is a chunk of a simplified track segment.
+	 */
+	public Elements getTracks() {
+		return trackElements;
+	}
+
+	/**
+	 * Each element is a chunk of a simplified route.
+	 */
+	public Elements getRoutes() {
+		return routeElements;
+	}
+
+	/**
+	 * A set of spatially indexed elements. An element is a sequence of projected points - either a single point or a
+	 * chunk of a line. Consecutive chunks of the same line share their connecting point.
+	 */
+	public static class Elements {
+
+		private final int[] x;
+		private final int[] y;
+
+		/** index of the first and last point of each element */
+		private final int[] first;
+		private final int[] last;
+
+		/** bounding box of each element */
+		private final int[] minX;
+		private final int[] minY;
+		private final int[] maxX;
+		private final int[] maxY;
+
+		/** element indices per grid cell - the first entry of each array is the number of elements */
+		private final HashMap<Long, int[]> grid;
+
+		/** elements not present in the grid because they span too many cells */
+		private final int[] largeElements;
+
+		/** query stamp per element to avoid reporting an element present in multiple cells more than once */
+		private final int[] stamps;
+		private int stamp = 0;
+		private int[] result = new int[64];
+
+		private Elements(ElementsBuilder builder) {
+			int n = builder.elementCount;
+			x = builder.x;
+			y = builder.y;
+			first = builder.first;
+			last = builder.last;
+			minX = new int[n];
+			minY = new int[n];
+			maxX = new int[n];
+			maxY = new int[n];
+			stamps = new int[n];
+			grid = new HashMap<Long, int[]>();
+			int[] large = new int[16];
+			int largeCount = 0;
+			for (int e = 0; e < n; e++) {
+				int x1 = Integer.MAX_VALUE;
+				int y1 = Integer.MAX_VALUE;
+				int x2 = Integer.MIN_VALUE;
+				int y2 = Integer.MIN_VALUE;
+				for (int i = first[e]; i <= last[e]; i++) {
+					x1 = Math.min(x1, x[i]);
+					y1 = Math.min(y1, y[i]);
+					x2 = Math.max(x2, x[i]);
+					y2 = Math.max(y2, y[i]);
+				}
+				minX[e] = x1;
+				minY[e] = y1;
+				maxX[e] = x2;
+				maxY[e] = y2;
+				int cx1 = x1 >> CELL_SHIFT;
+				int cy1 = y1 >> CELL_SHIFT;
+				int cx2 = x2 >> CELL_SHIFT;
+				int cy2 = y2 >> CELL_SHIFT;
+				if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > MAX_CELLS_PER_ELEMENT) {
+					if (largeCount == large.length)
+						large = grow(large);
+					large[largeCount++] = e;
+					continue;
+				}
+				for (int cx = cx1; cx <= cx2; cx++) {
+					for (int cy = cy1; cy <= cy2; cy++) {
+						Long key = cellKey(cx, cy);
+						int[] cell = grid.get(key);
+						if (cell == null) {
+							cell = new int[4];
+							grid.put(key, cell);
+						} else if (cell[0] + 1 == cell.length) {
+							cell = grow(cell);
+							grid.put(key, cell);
+						}
+						cell[++cell[0]] = e;
+					}
+				}
+			}
+			largeElements = new int[largeCount];
+			System.arraycopy(large, 0, largeElements, 0, largeCount);
+		}
+
+		public int getElementCount() {
+			return first.length;
+		}
+
+		/**
+		 * Searches all elements whose bounding box intersects the specified region. The indices of the elements found
+		 * are available via {@link #getQueryResult()} until the next call of this method.
+		 *
+		 * @return number of elements found
+		 */
+		public int query(int x1, int y1, int x2, int y2) {
+			if (++stamp == 0) {
+				// stamp overflow
+				Arrays.fill(stamps, 0);
+				stamp = 1;
+			}
+			int count = 0;
+			for (int e : largeElements)
+				count = addIfIntersecting(e, count, x1, y1, x2, y2);
+			if (grid.isEmpty())
+				return count;
+			int cx1 = x1 >> CELL_SHIFT;
+			int cy1 = y1 >> CELL_SHIFT;
+			int cx2 = x2 >> CELL_SHIFT;
+			int cy2 = y2 >> CELL_SHIFT;
+			for (int cx = cx1; cx <= cx2; cx++) {
+				for (int cy = cy1; cy <= cy2; cy++) {
+					int[] cell = grid.get(cellKey(cx, cy));
+					if (cell == null)
+						continue;
+					for (int i = 1; i <= cell[0]; i++)
+						count = addIfIntersecting(cell[i], count, x1, y1, x2, y2);
+				}
+			}
+			return count;
+		}
+
+		private int addIfIntersecting(int e, int count, int x1, int y1, int x2, int y2) {
+			if (stamps[e] == stamp)
+				return count;
+			stamps[e] = stamp;
+			if (maxX[e] < x1 || minX[e] > x2 || maxY[e] < y1 || minY[e] > y2)
+				return count;
+			if (count == result.length)
+				result = grow(result);
+			result[count] = e;
+			return count + 1;
+		}
+
+		/**
+		 * @return element indices found by the last {@link #query(int, int, int, int)} call
+		 */
+		public int[] getQueryResult() {
+			return result;
+		}
+
+		public int getFirstPoint(int element) {
+			return first[element];
+		}
+
+		public int getLastPoint(int element) {
+			return last[element];
+		}
+
+		public int getX(int point) {
+			return x[point];
+		}
+
+		public int getY(int point) {
+			return y[point];
+		}
+
+		private static Long cellKey(int cx, int cy) {
+			return Long.valueOf(((long) cx << 32) | (cy & 0xFFFFFFFFL));
+		}
+	}
+
+	private static class ElementsBuilder {
+
+		private int[] x = new int[64];
+		private int[] y = new int[64];
+		private int pointCount = 0;
+
+		private int[] first = new int[16];
+		private int[] last = new int[16];
+		private int elementCount = 0;
+
+		public void addPoint(int px, int py) {
+			ensurePointCapacity(1);
+			x[pointCount] = px;
+			y[pointCount] = py;
+			addElement(pointCount, pointCount);
+			pointCount++;
+		}
+
+		public void addLine(int[] px, int[] py, int n) {
+			ensurePointCapacity(n);
+			System.arraycopy(px, 0, x, pointCount, n);
+			System.arraycopy(py, 0, y, pointCount, n);
+			for (int start = 0; start < n - 1; start += CHUNK_SIZE)
+				addElement(pointCount + start, pointCount + Math.min(start + CHUNK_SIZE, n - 1));
+			pointCount += n;
+		}
+
+		private void addElement(int firstPoint, int lastPoint) {
+			if (elementCount == first.length) {
+				first = grow(first);
+				last = grow(last);
+			}
+			first[elementCount] = firstPoint;
+			last[elementCount] = lastPoint;
+			elementCount++;
+		}
+
+		private void ensurePointCapacity(int n) {
+			if (pointCount + n <= x.length)
+				return;
+			int size = Math.max(x.length * 2, pointCount + n);
+			int[] newX = new int[size];
+			int[] newY = new int[size];
+			System.arraycopy(x, 0, newX, 0, pointCount);
+			System.arraycopy(y, 0, newY, 0, pointCount);
+			x = newX;
+			y = newY;
+		}
+
+		public Elements build() {
+			first = trim(first, elementCount);
+			last = trim(last, elementCount);
+			return new Elements(this);
+		}
+	}
+
+	private static int[] grow(int[] array) {
+		int[] newArray = new int[array.length * 2];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+
+	private static int[] trim(int[] array, int length) {
+		if (array.length == length)
+			return array;
+		int[] newArray = new int[length];
+		System.arraycopy(array, 0, newArray, 0, length);
+		return newArray;
+	}
+}
@@ -81,6 +81,7 @@ import mobac.program.model.ProxyType;
 import mobac.program.model.Settings;
 import mobac.program.model.UnitSystem;
 import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreType;
 import mobac.utilities.GBC;
 import mobac.utilities.GUIExceptionHandler;
 import mobac.utilities.Utilities;
@@ -625,6 +626,7 @@ public class SettingsGUI extends JDialog {
 
 		unitSystem.setSelectedItem(s.unitSystem);
 		tileStoreTab.tileStoreEnabled.setSelected(s.tileStoreEnabled);
+		tileStoreTab.tileStoreType.setSelectedItem(s.tileStoreType);
 
 		mapSize.setValue(s.maxMapSize);
 		mapOverlapTiles.setValue(s.mapOverlapTiles);
@@ -669,6 +671,7 @@ public class SettingsGUI extends JDialog {
 
 		s.unitSystem = (UnitSystem) unitSystem.getSelectedItem();
 		s.tileStoreEnabled = tileStoreTab.tileStoreEnabled.isSelected();
+		s.tileStoreType = (TileStoreType) tileStoreTab.tileStoreType.getSelectedItem();
 		s.tileDefaultExpirationTime = defaultExpirationTime.getTimeMilliValue();
 		s.tileMinExpirationTime = minExpirationTime.getTimeMilliValue();
 		s.tileMaxExpirationTime = maxExpirationTime.getTimeMilliValue();
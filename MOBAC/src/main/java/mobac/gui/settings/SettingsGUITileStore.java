@@ -18,6 +18,7 @@ package mobac.gui.settings;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.FlowLayout;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
@@ -27,9 +28,11 @@ import java.util.LinkedList;
 import java.util.List;
 
 import javax.swing.BorderFactory;
+import javax.swing.DefaultComboBoxModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
@@ -41,12 +44,14 @@ import mobac.mapsources.MapSourcesManager;
 import mobac.program.interfaces.MapSource;
 import mobac.program.tilestore.TileStore;
 import mobac.program.tilestore.TileStoreInfo;
+import mobac.program.tilestore.TileStoreType;
 import mobac.program.tilestore.berkeleydb.DelayedInterruptThread;
 import mobac.utilities.Utilities;
 
 public class SettingsGUITileStore extends JPanel {
 
 	public final JCheckBox tileStoreEnabled;
+	public final JComboBox tileStoreType;
 	private final JPanel tileStoreInfoPanel;
 
 	private List<TileSourceInfoComponents> tileStoreInfoList = new LinkedList<TileSourceInfoComponents>();
@@ -65,6 +70,13 @@ public class SettingsGUITileStore extends JPanel {
 		JPanel tileStorePanel = new JPanel(new BorderLayout());
 		tileStorePanel.setBorder(SettingsGUI.createSectionBorder("Tile store settings"));
 		tileStorePanel.add(tileStoreEnabled, BorderLayout.CENTER);
+		tileStoreType = new JComboBox(new DefaultComboBoxModel(TileStoreType.values()));
+		tileStoreType.setToolTipText("<html>Memory mapped files require a 64 bit Java runtime for large tile stores.<br>"
+				+ "Existing tiles can be migrated by starting MOBAC with the parameter <b>migrate-tilestore</b></html>");
+		JPanel tileStoreTypePanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+		tileStoreTypePanel.add(new JLabel("Tile store implementation (requires restart): "));
+		tileStoreTypePanel.add(tileStoreType);
+		tileStorePanel.add(tileStoreTypePanel, BorderLayout.SOUTH);
 		tileStoreInfoPanel = new JPanel(new GridBagLayout());
 		// tileStoreInfoPanel.setBorder(createSectionBorder("Information"));
 
@@ -29,6 +29,7 @@ import mobac.exceptions.MapSourceInitializationException;
 import mobac.exceptions.TileException;
 import mobac.gui.mapview.JMapViewer;
 import mobac.mapsources.mapspace.MercatorPower2MapSpace;
+import mobac.program.JobDispatcher;
 import mobac.program.download.TileDownLoader;
 import mobac.program.interfaces.HttpMapSource;
 import mobac.program.interfaces.MapSource;
@@ -94,7 +95,7 @@ public abstract class AbstractHttpMapSource implements HttpMapSource {
 	/**
 	 * Can be used to e.g. retrieve the url pattern before the first call
 	 */
-	protected final void initializeHttpMapSource() {
+	public final void initializeHttpMapSource() {
 		if (initialized)
 			return;
 		// Prevent multiple initializations in case of multi-threaded access
@@ -124,8 +125,9 @@ public abstract class AbstractHttpMapSource implements HttpMapSource {
 			if (entry == null)
 				return null;
 			byte[] data = entry.getData();
-			if (Thread.currentThread() instanceof MapSourceListener) {
-				((MapSourceListener) Thread.currentThread()).tileDownloaded(data.length);
+			MapSourceListener listener = JobDispatcher.getCurrentMapSourceListener();
+			if (listener != null) {
+				listener.tileDownloaded(data.length);
 			}
 			return data;
 		} else if (loadMethod == LoadMethod.SOURCE) {
@@ -20,12 +20,10 @@ import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
 
-import javax.imageio.ImageIO;
 import javax.xml.bind.annotation.XmlTransient;
 
 import mobac.exceptions.TileException;
@@ -34,6 +32,7 @@ import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSpace;
 import mobac.program.model.MapSourceLoaderInfo;
 import mobac.program.model.TileImageType;
+import mobac.program.tiledatawriter.ImageWriterPool;
 
 import org.apache.log4j.Logger;
 
@@ -103,12 +102,10 @@ public abstract class AbstractMultiLayerMapSource implements MapSource, Iterable
 
 	public byte[] getTileData(int zoom, int x, int y, LoadMethod loadMethod) throws IOException, InterruptedException,
 			TileException {
-		ByteArrayOutputStream buf = new ByteArrayOutputStream(16000);
 		BufferedImage image = getTileImage(zoom, x, y, loadMethod);
 		if (image == null)
 			return null;
-		ImageIO.write(image, tileType.getFileExt(), buf);
-		return buf.toByteArray();
+		return ImageWriterPool.writeImage(image, tileType.getFileExt());
 	}
 
 	public BufferedImage getTileImage(int zoom, int x, int y, LoadMethod loadMethod) throws IOException,
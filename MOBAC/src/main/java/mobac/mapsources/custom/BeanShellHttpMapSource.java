@@ -9,6 +9,7 @@ import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import mobac.exceptions.TileException;
 import mobac.gui.mapview.PreviewMap;
@@ -20,17 +21,44 @@ import mobac.program.jaxb.ColorAdapter;
 import mobac.program.model.TileImageType;
 import mobac.utilities.Charsets;
 import mobac.utilities.Utilities;
+import bsh.BshMethod;
 import bsh.EvalError;
 import bsh.Interpreter;
+import bsh.NameSpace;
+import bsh.Primitive;
+import bsh.UtilEvalError;
 
+/**
+ * Map source defined by a BeanShell script.
+ * <p>
+ * A BeanShell {@link Interpreter} must not be used by multiple threads at the same time. Therefore each thread
+ * generating tile URLs takes a {@link ScriptContext} (an interpreter that has evaluated the script) from a pool and
+ * returns it afterwards. New contexts are created on demand. The script methods <code>getTileUrl</code> and
+ * <code>addHeaders</code> are resolved once per context and invoked directly instead of parsing an expression for each
+ * tile.
+ * </p>
+ * <p>
+ * The script is evaluated only once. All interpreters share its global namespace, therefore global variables keep
+ * their state across all threads (e.g. a counter for rotating between several tile servers). Scripts have always been
+ * called by one thread at a time and may rely on it when updating global variables. Therefore the script methods are
+ * still invoked while holding the lock of the shared namespace - only opening the connection runs concurrently.
+ * </p>
+ */
 public class BeanShellHttpMapSource extends AbstractHttpMapSource {
 
-	private static final String AH_ERROR = "Sourced file: inline evaluation of: "
-			+ "``addHeaders(conn);'' : Command not found: addHeaders( sun.net.www.protocol.http.HttpURLConnection )";
+	private static final Class<?>[] GET_TILE_URL_SIGNATURE = new Class<?>[] { Integer.TYPE, Integer.TYPE,
+			Integer.TYPE };
+
+	private static final Class<?>[] ADD_HEADERS_SIGNATURE = new Class<?>[] { HttpURLConnection.class };
 
 	private static int NUM = 0;
 
-	private final Interpreter i;
+	/**
+	 * The global namespace of the evaluated script shared by all interpreters
+	 */
+	private final NameSpace nameSpace;
+
+	private final ConcurrentLinkedQueue<ScriptContext> contextPool = new ConcurrentLinkedQueue<ScriptContext>();
 
 	private Color backgroundColor = Color.BLACK;
 
@@ -56,12 +84,8 @@ public class BeanShellHttpMapSource extends AbstractHttpMapSource {
 	public BeanShellHttpMapSource(String code) throws EvalError {
 		super("", 0, 0, TileImageType.PNG, TileUpdate.None);
 		name = "BeanShell map source " + NUM++;
-		i = new Interpreter();
-
-		i.eval("import mobac.program.interfaces.HttpMapSource.TileUpdate;");
-		i.eval("import java.net.HttpURLConnection;");
-		i.eval("import mobac.utilities.beanshell.*;");
-		i.eval(code);
+		Interpreter i = createInterpreter(code);
+		nameSpace = i.getNameSpace();
 		Object o = i.get("name");
 		if (o != null)
 			name = (String) o;
@@ -112,31 +136,67 @@ public class BeanShellHttpMapSource extends AbstractHttpMapSource {
 			} catch (javax.xml.bind.UnmarshalException e) {
 				throw new EvalError(e.getMessage(), null, null);
 			}
+		contextPool.add(new ScriptContext(i));
+	}
+
+	protected static Interpreter createInterpreter(String code) throws EvalError {
+		Interpreter i = new Interpreter();
+		i.eval("import mobac.program.interfaces.HttpMapSource.TileUpdate;");
+		i.eval("import java.net.HttpURLConnection;");
+		i.eval("import mobac.utilities.beanshell.*;");
+		i.eval(code);
+		return i;
+	}
+
+	/**
+	 * @return a {@link ScriptContext} for exclusive use by the current thread - has to be returned via
+	 *         {@link #releaseContext(ScriptContext)}
+	 * @throws EvalError
+	 */
+	protected ScriptContext acquireContext() throws EvalError {
+		ScriptContext context = contextPool.poll();
+		if (context != null)
+			return context;
+		log.debug("Creating new BeanShell interpreter for map source \"" + name + "\"");
+		Interpreter i = new Interpreter();
+		i.setNameSpace(nameSpace);
+		return new ScriptContext(i);
+	}
+
+	protected void releaseContext(ScriptContext context) {
+		contextPool.offer(context);
 	}
 
 	@Override
-	public synchronized HttpURLConnection getTileUrlConnection(int zoom, int tilex, int tiley) throws IOException {
-		HttpURLConnection conn = null;
+	public HttpURLConnection getTileUrlConnection(int zoom, int tilex, int tiley) throws IOException {
+		ScriptContext context;
 		try {
-			String url = getTileUrl(zoom, tilex, tiley);
-			conn = (HttpURLConnection) new URL(url).openConnection();
-		} catch (IOException e) {
-			throw e;
-		} catch (Exception e) {
-			log.error("", e);
+			context = acquireContext();
+		} catch (EvalError e) {
+			log.error(e.getClass() + ": " + e.getMessage(), e);
 			throw new IOException(e);
 		}
 		try {
-			i.set("conn", conn);
-			i.eval("addHeaders(conn);");
-		} catch (EvalError e) {
-			String msg = e.getMessage();
-			if (!AH_ERROR.equals(msg)) {
+			HttpURLConnection conn = null;
+			try {
+				String url = context.getTileUrl(zoom, tilex, tiley);
+				conn = (HttpURLConnection) new URL(url).openConnection();
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				log.error("", e);
+				throw new IOException(e);
+			}
+			try {
+				context.addHeaders(conn);
+			} catch (EvalError e) {
 				log.error(e.getClass() + ": " + e.getMessage(), e);
 				throw new IOException(e);
 			}
+			return conn;
+		} finally {
+			releaseContext(context);
 		}
-		return conn;
 	}
 
 	@Override
@@ -156,11 +216,16 @@ public class BeanShellHttpMapSource extends AbstractHttpMapSource {
 	}
 
 	public String getTileUrl(int zoom, int tilex, int tiley) {
+		ScriptContext context = null;
 		try {
-			return (String) i.eval(String.format("getTileUrl(%d,%d,%d);", zoom, tilex, tiley));
+			context = acquireContext();
+			return context.getTileUrl(zoom, tilex, tiley);
 		} catch (EvalError e) {
 			log.error(e.getClass() + ": " + e.getMessage(), e);
 			throw new RuntimeException(e);
+		} finally {
+			if (context != null)
+				releaseContext(context);
 		}
 	}
 
@@ -193,4 +258,47 @@ public class BeanShellHttpMapSource extends AbstractHttpMapSource {
 		return backgroundColor;
 	}
 
+	/**
+	 * An interpreter that has evaluated the map source script and the resolved script methods.
+	 */
+	protected static class ScriptContext {
+
+		private final Interpreter interpreter;
+
+		private final BshMethod getTileUrlMethod;
+
+		/**
+		 * <code>null</code> if the script does not define <code>addHeaders</code>
+		 */
+		private final BshMethod addHeadersMethod;
+
+		public ScriptContext(Interpreter interpreter) throws EvalError {
+			this.interpreter = interpreter;
+			try {
+				getTileUrlMethod = interpreter.getNameSpace().getMethod("getTileUrl", GET_TILE_URL_SIGNATURE);
+				addHeadersMethod = interpreter.getNameSpace().getMethod("addHeaders", ADD_HEADERS_SIGNATURE);
+			} catch (UtilEvalError e) {
+				throw new EvalError(e.getMessage(), null, null);
+			}
+		}
+
+		public String getTileUrl(int zoom, int tilex, int tiley) throws EvalError {
+			synchronized (interpreter.getNameSpace()) {
+				if (getTileUrlMethod == null)
+					// Let the interpreter report the missing method
+					return (String) interpreter.eval(String.format("getTileUrl(%d,%d,%d);", zoom, tilex, tiley));
+				Object url = getTileUrlMethod.invoke(new Object[] { zoom, tilex, tiley }, interpreter);
+				return (String) Primitive.unwrap(url);
+			}
+		}
+
+		public void addHeaders(HttpURLConnection conn) throws EvalError {
+			if (addHeadersMethod == null)
+				return;
+			synchronized (interpreter.getNameSpace()) {
+				addHeadersMethod.invoke(new Object[] { conn }, interpreter);
+			}
+		}
+	}
+
 }
@@ -34,6 +34,7 @@ import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 import mobac.exceptions.UnrecoverableDownloadException;
 import mobac.mapsources.MapSourceTools;
 import mobac.mapsources.mapspace.MercatorPower2MapSpace;
+import mobac.program.JobDispatcher;
 import mobac.program.download.TileDownLoader;
 import mobac.program.interfaces.HttpMapSource;
 import mobac.program.interfaces.MapSourceListener;
@@ -147,8 +148,9 @@ public class CustomMapSource implements HttpMapSource {
 			if (entry == null)
 				return null;
 			byte[] data = entry.getData();
-			if (Thread.currentThread() instanceof MapSourceListener) {
-				((MapSourceListener) Thread.currentThread()).tileDownloaded(data.length);
+			MapSourceListener listener = JobDispatcher.getCurrentMapSourceListener();
+			if (listener != null) {
+				listener.tileDownloaded(data.length);
 			}
 			return data;
 		}
@@ -19,8 +19,12 @@ package mobac.program;
 import java.awt.Toolkit;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.awt.Point;
+import java.util.BitSet;
+import java.util.LinkedList;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -32,6 +36,7 @@ import mobac.gui.AtlasProgress.AtlasCreationController;
 import mobac.program.atlascreators.AtlasCreator;
 import mobac.program.atlascreators.tileprovider.DownloadedTileProvider;
 import mobac.program.atlascreators.tileprovider.FilteredMapSourceProvider;
+import mobac.program.atlascreators.tileprovider.StreamedTileProvider;
 import mobac.program.atlascreators.tileprovider.TileProvider;
 import mobac.program.download.DownloadJobProducerThread;
 import mobac.program.interfaces.AtlasInterface;
@@ -42,6 +47,8 @@ import mobac.program.interfaces.LayerInterface;
 import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSource.LoadMethod;
+import mobac.program.interfaces.TileSink;
+import mobac.program.interfaces.TileStreamTarget;
 import mobac.program.model.AtlasOutputFormat;
 import mobac.program.model.Settings;
 import mobac.program.tilestore.TileStore;
@@ -52,7 +59,7 @@ import mobac.utilities.tar.TarIndexedArchive;
 
 import org.apache.log4j.Logger;
 
-public class AtlasThread extends Thread implements DownloadJobListener, AtlasCreationController {
+public class AtlasThread extends Thread implements AtlasCreationController {
 
 	private static final String MSG_TILESMISSING = "Something is wrong with download of atlas tiles.\n"
 			+ "The amount of downladed tiles is not as high as it was calculated.\nTherfore tiles "
@@ -72,20 +79,29 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 
 	private File customAtlasDir = null;
 
-	private DownloadJobProducerThread djp = null;
 	private JobDispatcher downloadJobDispatcher;
 	private AtlasProgress ap; // The GUI showing the progress
+	private MapDownloadThread mapDownloadThread = null;
 
 	private AtlasInterface atlas;
 	private AtlasCreator atlasCreator = null;
 	private PauseResumeHandler pauseResumeHandler;
 
+	/**
+	 * Maps whose tiles are currently downloaded - at most one by the atlas thread and one by the
+	 * {@link MapDownloadThread}
+	 */
+	private final LinkedList<MapDownloadJobs> activeMapDownloads = new LinkedList<MapDownloadJobs>();
+
 	private int activeDownloads = 0;
-	private int jobsCompleted = 0;
-	private int jobsRetryError = 0;
-	private int jobsPermanentError = 0;
 	private int maxDownloadRetries = 1;
 
+	/**
+	 * Tiles passed to the {@link TileStreamTarget} while streaming the current map. Kept when the user retries the
+	 * map download so that tiles already written are not passed again.
+	 */
+	private StreamedTiles streamedTiles = null;
+
 	public AtlasThread(AtlasInterface atlas) throws AtlasTestException {
 		this(atlas, atlas.getOutputFormat().createAtlasCreatorInstance());
 	}
@@ -197,14 +213,32 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 
 		Settings s = Settings.getInstance();
 
-		downloadJobDispatcher = new JobDispatcher(s.downloadThreadCount, pauseResumeHandler, ap);
+		downloadJobDispatcher = new JobDispatcher(s.downloadThreadCount, s.downloadThreadCountMin,
+				s.downloadThreadCountMax, s.downloadVirtualThreads, pauseResumeHandler, ap);
+		if (s.atlasDownloadLookAhead > 0 && !AtlasOutputFormat.TILESTORE.equals(atlas.getOutputFormat())) {
+			mapDownloadThread = new MapDownloadThread(s.atlasDownloadLookAhead, s.atlasDownloadLookAheadMaxSize);
+			mapDownloadThread.start();
+		}
 		try {
 			for (LayerInterface layer : atlas) {
 				atlasCreator.initLayerCreation(layer);
 				for (MapInterface map : layer) {
 					try {
-						while (!createMap(map))
-							;
+						if (mapDownloadThread != null) {
+							MapDownload download = mapDownloadThread.takeMapDownload(map);
+							try {
+								if (download.streamed) {
+									while (!streamMap(map))
+										;
+								} else
+									createMap(download);
+							} finally {
+								mapDownloadThread.releaseMapDownload(download);
+							}
+						} else {
+							while (!createMap(map))
+								;
+						}
 					} catch (InterruptedException e) {
 						throw e; // User has aborted
 					} catch (MapDownloadSkippedException e) {
@@ -232,9 +266,10 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 			atlasCreator.abortAtlasCreation();
 			throw e;
 		} finally {
+			if (mapDownloadThread != null)
+				mapDownloadThread.shutdown();
 			// In case of an abort: Stop create new download jobs
-			if (djp != null)
-				djp.cancel();
+			cancelMapDownloads();
 			downloadJobDispatcher.terminateAllWorkerThreads();
 			if (!atlasCreator.isAborted())
 				atlasCreator.finishAtlasCreation();
@@ -244,6 +279,7 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 	}
 
 	/**
+	 * Downloads the tiles of the specified map and creates the map afterwards.
 	 * 
 	 * @param map
 	 * @return true if map creation process was finished and false if something went wrong and the user decided to retry
@@ -251,13 +287,128 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 	 * @throws Exception
 	 */
 	public boolean createMap(MapInterface map) throws Exception {
+		if (isTileStreamingEnabled(map))
+			return streamMap(map);
+		MapDownload download = downloadMap(map);
+		if (download == null)
+			return false;
+		try {
+			createMap(download);
+		} finally {
+			download.dispose();
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a map from its downloaded tiles.
+	 * 
+	 * @param download
+	 * @throws Exception
+	 */
+	protected void createMap(MapDownload download) throws Exception {
+		MapInterface map = download.map;
+		ap.startMapCreation(map);
+		if (currentThread().isInterrupted())
+			throw new InterruptedException();
+		try {
+			atlasCreator.initializeMap(map, download.tileProvider);
+			atlasCreator.createMap();
+		} catch (Error e) {
+			log.error("Error in createMap: " + e.getMessage(), e);
+			throw e;
+		}
+	}
+
+	/**
+	 * @param map
+	 * @return <code>true</code> if the downloaded tiles of the specified map are passed directly to the atlas creator
+	 *         instead of writing them to a temporary tile archive
+	 */
+	protected boolean isTileStreamingEnabled(MapInterface map) {
+		if (map.getMapSource() instanceof FileBasedMapSource)
+			return false;
+		if (AtlasOutputFormat.TILESTORE.equals(atlas.getOutputFormat()))
+			return false;
+		return atlasCreator.getTileStreamTarget(map) != null;
+	}
+
+	/**
+	 * Downloads the tiles of the specified map and passes each tile directly to the atlas creator which creates the map
+	 * while it is downloaded.
+	 * 
+	 * @param map
+	 * @return true if map creation process was finished and false if something went wrong and the user decided to retry
+	 *         map download
+	 * @throws Exception
+	 */
+	protected boolean streamMap(MapInterface map) throws Exception {
+		ap.initMapDownload(map);
+		if (currentThread().isInterrupted())
+			throw new InterruptedException();
+		ap.setZoomLevel(map.getZoom());
+		ap.startMapCreation(map);
+
+		final int tileCount = (int) map.calculateTilesToDownload();
+
+		log.debug("Streaming downloaded tiles to the atlas creator");
+		if (streamedTiles == null || streamedTiles.map != map)
+			streamedTiles = new StreamedTiles(map);
+		else
+			log.debug("Retrying map - skipping " + streamedTiles.getTileCount() + " tiles streamed before");
+		TileStreamTarget streamTarget = atlasCreator.getTileStreamTarget(map);
+		atlasCreator.initializeMap(map, new StreamedTileProvider(map));
+		CountingTileSink tileSink = new CountingTileSink(streamTarget.startTileStreaming(), streamedTiles);
+		boolean success = false;
+		try {
+			if (!downloadTiles(map, tileSink))
+				return false;
+			tileSink.close();
+			int tilesStreamed = streamedTiles.getTileCount();
+			if (tilesStreamed < tileCount && !ap.ignoreDownloadErrors()) {
+				int missing = tileCount - tilesStreamed;
+				log.debug("Expected tile count: " + tileCount + " streamed tile count: " + tilesStreamed
+						+ " missing: " + missing);
+				int answer = JOptionPane.showConfirmDialog(ap, String.format(MSG_TILESMISSING, missing),
+						"Error - tiles are missing - do you want to continue anyway?",
+						JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.ERROR_MESSAGE);
+				if (answer != JOptionPane.YES_OPTION)
+					throw new InterruptedException();
+			}
+			downloadJobDispatcher.cancelOutstandingJobs();
+			ap.mapDownloadFinished();
+			success = true;
+			streamedTiles = null;
+		} catch (Error e) {
+			log.error("Error in streamMap: " + e.getMessage(), e);
+			throw e;
+		} finally {
+			if (!success) {
+				tileSink.close();
+				try {
+					streamTarget.finishTileStreaming();
+				} catch (Exception e) {
+					log.error("Failed to finish tile streaming: " + e.getMessage(), e);
+				}
+			}
+		}
+		streamTarget.finishTileStreaming();
+		return true;
+	}
+
+	/**
+	 * Downloads the tiles of the specified map into a temporary tile archive. Maps of a {@link FileBasedMapSource} are
+	 * not downloaded.
+	 * 
+	 * @param map
+	 * @return the downloaded map or <code>null</code> if something went wrong and the user decided to retry map
+	 *         download
+	 * @throws Exception
+	 */
+	protected MapDownload downloadMap(MapInterface map) throws Exception {
 		TarIndex tileIndex = null;
 		TarIndexedArchive tileArchive = null;
 
-		jobsCompleted = 0;
-		jobsRetryError = 0;
-		jobsPermanentError = 0;
-
 		ap.initMapDownload(map);
 		if (currentThread().isInterrupted())
 			throw new InterruptedException();
@@ -274,6 +425,8 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 		final int tileCount = (int) map.calculateTilesToDownload();
 
 		ap.setZoomLevel(zoom);
+		File tileArchiveFile = null;
+		boolean success = false;
 		try {
 			tileArchive = null;
 			TileProvider mapTileProvider;
@@ -282,49 +435,20 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 				// we are sure we got all tiles
 				if (!AtlasOutputFormat.TILESTORE.equals(atlas.getOutputFormat())) {
 					String tempSuffix = "MOBAC_" + atlas.getName() + "_" + zoom + "_";
-					File tileArchiveFile = File.createTempFile(tempSuffix, ".tar", DirectoryManager.tempDir);
+					tileArchiveFile = File.createTempFile(tempSuffix, ".tar", DirectoryManager.tempDir);
 					// If something goes wrong the temp file only persists until the VM exits
 					tileArchiveFile.deleteOnExit();
 					log.debug("Writing downloaded tiles to " + tileArchiveFile.getPath());
-					tileArchive = new TarIndexedArchive(tileArchiveFile, tileCount);
+					tileArchive = new TarIndexedArchive(tileArchiveFile, tileCount,
+							Settings.getInstance().tileArchiveOffHeapIndex);
 				} else
 					log.debug("Downloading to tile store only");
 
-				djp = new DownloadJobProducerThread(this, downloadJobDispatcher, tileArchive, (DownloadableElement) map);
-
-				boolean failedMessageAnswered = false;
-
-				while (djp.isAlive() || (downloadJobDispatcher.getWaitingJobCount() > 0)
-						|| downloadJobDispatcher.isAtLeastOneWorkerActive()) {
-					Thread.sleep(500);
-					if (!failedMessageAnswered && (jobsRetryError > 50) && !ap.ignoreDownloadErrors()) {
-						pauseResumeHandler.pause();
-						String[] answers = new String[] { "Continue", "Retry", "Skip", "Abort" };
-						int answer = JOptionPane.showOptionDialog(ap, MSG_DOWNLOADERRORS,
-								"Multiple download errors - how to proceed?", 0, JOptionPane.QUESTION_MESSAGE, null,
-								answers, answers[0]);
-						failedMessageAnswered = true;
-						switch (answer) {
-						case 0: // Continue
-							pauseResumeHandler.resume();
-							break;
-						case 1: // Retry
-							djp.cancel();
-							djp = null;
-							downloadJobDispatcher.cancelOutstandingJobs();
-							return false;
-						case 2: // Skip
-							downloadJobDispatcher.cancelOutstandingJobs();
-							throw new MapDownloadSkippedException();
-						default: // Abort or close dialog
-							downloadJobDispatcher.cancelOutstandingJobs();
-							downloadJobDispatcher.terminateAllWorkerThreads();
-							throw new InterruptedException();
-						}
-					}
-				}
-				djp = null;
-				log.debug("All download jobs has been completed!");
+				TileSink tileSink = tileArchive;
+				if (tileArchive != null && currentThread() == mapDownloadThread)
+					tileSink = mapDownloadThread.limitSize(tileArchive);
+				if (!downloadTiles(map, tileSink))
+					return null;
 				if (tileArchive != null) {
 					tileArchive.writeEndofArchive();
 					tileArchive.close();
@@ -347,20 +471,107 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 				// We don't need to download anything. Everything is already stored locally therefore we can just use it
 				mapTileProvider = new FilteredMapSourceProvider(map, LoadMethod.DEFAULT);
 			}
-			atlasCreator.initializeMap(map, mapTileProvider);
-			atlasCreator.createMap();
+			ap.mapDownloadFinished();
+			long size = (tileArchiveFile != null) ? tileArchiveFile.length() : 0;
+			MapDownload download = new MapDownload(map, mapTileProvider, tileIndex, size);
+			success = true;
+			return download;
 		} catch (Error e) {
-			log.error("Error in createMap: " + e.getMessage(), e);
+			log.error("Error in downloadMap: " + e.getMessage(), e);
 			throw e;
 		} finally {
-			if (tileIndex != null)
-				tileIndex.closeAndDelete();
-			else if (tileArchive != null)
-				tileArchive.delete();
+			if (!success) {
+				if (tileIndex != null)
+					tileIndex.closeAndDelete();
+				else if (tileArchive != null)
+					tileArchive.delete();
+			}
+		}
+	}
+
+	/**
+	 * Downloads the tiles of the specified map and waits until all download jobs have been completed.
+	 * 
+	 * @param map
+	 * @param tileSink
+	 *            receives the downloaded tiles, may be <code>null</code> if the tiles are only stored in the tile store
+	 * @return <code>false</code> if something went wrong and the user decided to retry map download
+	 * @throws Exception
+	 */
+	private boolean downloadTiles(MapInterface map, TileSink tileSink) throws Exception {
+		MapDownloadJobs jobs = new MapDownloadJobs();
+		synchronized (activeMapDownloads) {
+			activeMapDownloads.add(jobs);
+		}
+		boolean completed = false;
+		try {
+			jobs.djp = new DownloadJobProducerThread(this, downloadJobDispatcher, tileSink, (DownloadableElement) map,
+					jobs);
+			completed = awaitDownloadJobs(jobs);
+			return completed;
+		} finally {
+			synchronized (activeMapDownloads) {
+				activeMapDownloads.remove(jobs);
+			}
+			// Stop creating new download jobs if the download has been aborted
+			if (!completed && jobs.djp != null)
+				jobs.djp.cancel();
+		}
+	}
+
+	/**
+	 * Waits until all download jobs of one map have been completed.
+	 * 
+	 * @param jobs
+	 * @return <code>false</code> if something went wrong and the user decided to retry map download
+	 * @throws Exception
+	 */
+	private boolean awaitDownloadJobs(MapDownloadJobs jobs) throws Exception {
+		boolean failedMessageAnswered = false;
+
+		while (!jobs.djp.awaitCompletion(500)) {
+			if (!failedMessageAnswered && (jobs.getRetryErrorCount() > 50) && !ap.ignoreDownloadErrors()) {
+				pauseResumeHandler.pause();
+				String[] answers = new String[] { "Continue", "Retry", "Skip", "Abort" };
+				int answer = JOptionPane.showOptionDialog(ap, MSG_DOWNLOADERRORS,
+						"Multiple download errors - how to proceed?", 0, JOptionPane.QUESTION_MESSAGE, null, answers,
+						answers[0]);
+				failedMessageAnswered = true;
+				switch (answer) {
+				case 0: // Continue
+					pauseResumeHandler.resume();
+					break;
+				case 1: // Retry
+					jobs.djp.cancel();
+					downloadJobDispatcher.cancelOutstandingJobs();
+					return false;
+				case 2: // Skip
+					downloadJobDispatcher.cancelOutstandingJobs();
+					throw new MapDownloadSkippedException();
+				default: // Abort or close dialog
+					downloadJobDispatcher.cancelOutstandingJobs();
+					downloadJobDispatcher.terminateAllWorkerThreads();
+					throw new InterruptedException();
+				}
+			}
 		}
+		log.debug("All download jobs has been completed!");
 		return true;
 	}
 
+	/**
+	 * Stops creating new download jobs for all maps currently downloaded.
+	 */
+	private void cancelMapDownloads() {
+		synchronized (activeMapDownloads) {
+			for (MapDownloadJobs jobs : activeMapDownloads) {
+				DownloadJobProducerThread djp = jobs.djp;
+				if (djp != null)
+					djp.cancel();
+			}
+		}
+	}
+
 	public void pauseResumeAtlasCreation() {
 		if (pauseResumeHandler.isPaused()) {
 			log.debug("Atlas creation resumed");
@@ -384,9 +595,10 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 	 */
 	public void abortAtlasCreation() {
 		try {
-			DownloadJobProducerThread djp_ = djp;
-			if (djp_ != null)
-				djp_.cancel();
+			cancelMapDownloads();
+			MapDownloadThread mapDownloadThread_ = mapDownloadThread;
+			if (mapDownloadThread_ != null)
+				mapDownloadThread_.interrupt();
 			if (downloadJobDispatcher != null)
 				downloadJobDispatcher.terminateAllWorkerThreads();
 			pauseResumeHandler.resume();
@@ -400,49 +612,422 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 		return activeDownloads;
 	}
 
-	public synchronized void jobStarted() {
-		activeDownloads++;
+	public int getMaxDownloadRetries() {
+		return maxDownloadRetries;
 	}
 
-	public void jobFinishedSuccessfully(int bytesDownloaded) {
-		synchronized (this) {
-			ap.incMapDownloadProgress();
-			activeDownloads--;
-			jobsCompleted++;
-		}
-		ap.updateGUI();
+	public AtlasProgress getAtlasProgress() {
+		return ap;
+	}
+
+	public File getCustomAtlasDir() {
+		return customAtlasDir;
 	}
 
-	public void jobFinishedWithError(boolean retry) {
-		synchronized (this) {
-			activeDownloads--;
-			if (retry)
-				jobsRetryError++;
-			else {
-				jobsPermanentError++;
+	public void setCustomAtlasDir(File customAtlasDir) {
+		this.customAtlasDir = customAtlasDir;
+	}
+
+	/**
+	 * Download job producer and error counters of one map. Each download of a map has its own instance so that the
+	 * map downloaded in advance by the {@link MapDownloadThread} and the map streamed by the atlas thread do not share
+	 * any state except the {@link JobDispatcher}.
+	 */
+	private class MapDownloadJobs implements DownloadJobListener {
+
+		private volatile DownloadJobProducerThread djp = null;
+
+		private int jobsRetryError = 0;
+		private int jobsPermanentError = 0;
+
+		public int getMaxDownloadRetries() {
+			return maxDownloadRetries;
+		}
+
+		public void jobStarted() {
+			synchronized (AtlasThread.this) {
+				activeDownloads++;
+			}
+		}
+
+		public void jobFinishedSuccessfully(int bytesDownloaded) {
+			synchronized (AtlasThread.this) {
 				ap.incMapDownloadProgress();
+				activeDownloads--;
 			}
+			ap.updateGUI();
+		}
+
+		public void jobFinishedWithError(boolean retry) {
+			int retryErrors;
+			int permanentErrors;
+			synchronized (this) {
+				if (retry)
+					jobsRetryError++;
+				else
+					jobsPermanentError++;
+				retryErrors = jobsRetryError;
+				permanentErrors = jobsPermanentError;
+			}
+			synchronized (AtlasThread.this) {
+				activeDownloads--;
+				if (!retry)
+					ap.incMapDownloadProgress();
+			}
+			if (!ap.ignoreDownloadErrors())
+				Toolkit.getDefaultToolkit().beep();
+			ap.setErrorCounter(retryErrors, permanentErrors);
+			ap.updateGUI();
+		}
+
+		public synchronized int getRetryErrorCount() {
+			return jobsRetryError;
 		}
-		if (!ap.ignoreDownloadErrors())
-			Toolkit.getDefaultToolkit().beep();
-		ap.setErrorCounter(jobsRetryError, jobsPermanentError);
-		ap.updateGUI();
 	}
 
-	public int getMaxDownloadRetries() {
-		return maxDownloadRetries;
+	/**
+	 * The downloaded tiles of one map
+	 */
+	protected static class MapDownload {
+
+		final MapInterface map;
+		final TileProvider tileProvider;
+		final TarIndex tileIndex;
+
+		/** size of the temporary tile archive in bytes */
+		final long size;
+
+		/** the exception thrown while downloading the map */
+		final Throwable error;
+
+		/** the map is not downloaded in advance - it is streamed by the atlas thread */
+		final boolean streamed;
+
+		MapDownload(MapInterface map, TileProvider tileProvider, TarIndex tileIndex, long size) {
+			this.map = map;
+			this.tileProvider = tileProvider;
+			this.tileIndex = tileIndex;
+			this.size = size;
+			this.error = null;
+			this.streamed = false;
+		}
+
+		MapDownload(MapInterface map, Throwable error) {
+			this.map = map;
+			this.tileProvider = null;
+			this.tileIndex = null;
+			this.size = 0;
+			this.error = error;
+			this.streamed = false;
+		}
+
+		MapDownload(MapInterface map) {
+			this.map = map;
+			this.tileProvider = null;
+			this.tileIndex = null;
+			this.size = 0;
+			this.error = null;
+			this.streamed = true;
+		}
+
+		/**
+		 * Deletes the temporary tile archive
+		 */
+		void dispose() {
+			if (tileIndex != null)
+				tileIndex.closeAndDelete();
+		}
 	}
 
-	public AtlasProgress getAtlasProgress() {
-		return ap;
+	/**
+	 * Downloads the maps of the atlas in advance while the {@link AtlasThread} creates the previous maps. The maps are
+	 * downloaded one after the other in atlas order and handed over to the {@link AtlasThread} in the same order. The
+	 * download of the next map is delayed if <code>lookAhead</code> maps are already downloaded but not yet created or
+	 * if their temporary tile archives exceed <code>maxSize</code> bytes. While a map is downloaded the size of its
+	 * archive is taken into account as well: the download is suspended as soon as the limit is reached and resumed
+	 * when all previously downloaded maps have been created.
+	 * <p>
+	 * Maps that support tile streaming are not downloaded by this thread. A placeholder is handed over instead and the
+	 * download is suspended until the atlas thread has streamed the map.
+	 * </p>
+	 */
+	private class MapDownloadThread extends Thread {
+
+		private final int lookAhead;
+		private final long maxSize;
+
+		/**
+		 * Guards the fields below. The thread object itself is not used as monitor because {@link Thread#join()}
+		 * waits and gets notified on it.
+		 */
+		private final Object lock = new Object();
+
+		/** downloaded maps that have not been taken by the atlas thread yet */
+		private final LinkedList<MapDownload> downloads = new LinkedList<MapDownload>();
+
+		/** number and size of the downloaded maps that have not been released yet */
+		private int pendingCount = 0;
+		private long pendingSize = 0;
+
+		/** number of streamed maps that have not been released yet */
+		private int pendingStreams = 0;
+
+		private volatile boolean shutdown = false;
+
+		public MapDownloadThread(int lookAhead, long maxSize) {
+			super("MapDownloadThread " + AtlasThread.this.getName());
+			this.lookAhead = lookAhead;
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (LayerInterface layer : atlas) {
+					for (MapInterface map : layer) {
+						waitForFreeSlot();
+						if (isTileStreamingEnabled(map)) {
+							addMapDownload(new MapDownload(map));
+							continue;
+						}
+						MapDownload download;
+						try {
+							do {
+								download = downloadMap(map);
+							} while (download == null);
+						} catch (InterruptedException e) {
+							throw e;
+						} catch (Exception e) {
+							// MapDownloadSkippedException or download error - handled by the atlas thread
+							download = new MapDownload(map, e);
+						}
+						addMapDownload(download);
+					}
+				}
+			} catch (InterruptedException e) {
+				log.debug("Map download interrupted");
+				stop(new MapDownload(null, e));
+				// The user has aborted via the download error dialog - stop the map creation as well
+				if (!shutdown)
+					AtlasThread.this.interrupt();
+			} catch (Throwable t) {
+				log.error("Map download failed: ", t);
+				stop(new MapDownload(null, t));
+			}
+		}
+
+		private void waitForFreeSlot() throws InterruptedException {
+			synchronized (lock) {
+				while (pendingStreams > 0 || (pendingCount > 0 && (pendingCount > lookAhead || pendingSize >= maxSize)))
+					lock.wait();
+			}
+		}
+
+		/**
+		 * @param tileArchive
+		 *            temporary tile archive of the map currently downloaded by this thread
+		 * @return a tile sink that blocks the download threads while the size limit is exceeded
+		 */
+		public TileSink limitSize(final TarIndexedArchive tileArchive) {
+			return new TileSink() {
+
+				public void putTile(int x, int y, byte[] data) throws IOException {
+					try {
+						waitForFreeSpace(tileArchive);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the map creation");
+					}
+					tileArchive.putTile(x, y, data);
+				}
+			};
+		}
+
+		private void waitForFreeSpace(TarIndexedArchive tileArchive) throws InterruptedException {
+			synchronized (lock) {
+				boolean waiting = false;
+				while (!shutdown && pendingCount > 0 && pendingSize + getArchiveSize(tileArchive) >= maxSize) {
+					if (!waiting)
+						log.debug("Size limit of maps downloaded in advance reached - waiting for map creation");
+					waiting = true;
+					lock.wait();
+				}
+			}
+		}
+
+		private long getArchiveSize(TarIndexedArchive tileArchive) {
+			synchronized (tileArchive) {
+				return tileArchive.getTarFilePos();
+			}
+		}
+
+		private void addMapDownload(MapDownload download) {
+			synchronized (lock) {
+				downloads.add(download);
+				pendingCount++;
+				pendingSize += download.size;
+				if (download.streamed)
+					pendingStreams++;
+				lock.notifyAll();
+			}
+		}
+
+		private void stop(MapDownload download) {
+			synchronized (lock) {
+				downloads.add(download);
+				lock.notifyAll();
+			}
+		}
+
+		/**
+		 * Waits until the download of the specified map has been finished. The returned {@link MapDownload} has to be
+		 * released via {@link #releaseMapDownload(MapDownload)} after the map has been created.
+		 * 
+		 * @param map
+		 *            the next map of the atlas
+		 * @return
+		 * @throws Exception
+		 *             the exception thrown while downloading the map
+		 */
+		public MapDownload takeMapDownload(MapInterface map) throws Exception {
+			synchronized (lock) {
+				while (downloads.isEmpty())
+					lock.wait();
+				MapDownload download = downloads.getFirst();
+				if (download.map == null) {
+					// the download has been stopped - keep the entry for the following maps
+					throwError(download.error);
+				}
+				downloads.removeFirst();
+				if (download.map != map)
+					throw new IllegalStateException("Unexpected map download: " + download.map + " expected: " + map);
+				if (download.error != null) {
+					releaseMapDownload(download);
+					throwError(download.error);
+				}
+				return download;
+			}
+		}
+
+		public void releaseMapDownload(MapDownload download) {
+			synchronized (lock) {
+				download.dispose();
+				pendingCount--;
+				pendingSize -= download.size;
+				if (download.streamed)
+					pendingStreams--;
+				lock.notifyAll();
+			}
+		}
+
+		private void throwError(Throwable t) throws Exception {
+			if (t instanceof Error)
+				throw (Error) t;
+			throw (Exception) t;
+		}
+
+		/**
+		 * Stops the download and deletes the temporary tile archives of all maps not taken by the atlas thread.
+		 */
+		public void shutdown() {
+			synchronized (lock) {
+				shutdown = true;
+				// Releases download threads waiting for free space
+				lock.notifyAll();
+			}
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException e) {
+				log.warn("Interrupted while waiting for the map download thread");
+			}
+			synchronized (lock) {
+				for (MapDownload download : downloads)
+					download.dispose();
+				downloads.clear();
+			}
+		}
 	}
 
-	public File getCustomAtlasDir() {
-		return customAtlasDir;
+	/**
+	 * Records the tiles passed to the atlas creator. Tiles of download jobs that finish after the sink has been closed
+	 * are discarded. Tiles already passed in a previous attempt of the same map are skipped, as not all tile stream
+	 * targets can write a tile twice (e.g. a zip file does not accept duplicate entries).
+	 */
+	private static class CountingTileSink implements TileSink {
+
+		private final TileSink tileSink;
+		private final StreamedTiles streamedTiles;
+		private volatile boolean closed = false;
+
+		public CountingTileSink(TileSink tileSink, StreamedTiles streamedTiles) {
+			this.tileSink = tileSink;
+			this.streamedTiles = streamedTiles;
+		}
+
+		public void putTile(int x, int y, byte[] data) throws IOException {
+			if (closed || streamedTiles.contains(x, y))
+				return;
+			tileSink.putTile(x, y, data);
+			streamedTiles.add(x, y);
+		}
+
+		public void close() {
+			closed = true;
+		}
 	}
 
-	public void setCustomAtlasDir(File customAtlasDir) {
-		this.customAtlasDir = customAtlasDir;
+	/**
+	 * The tiles of one map that have been passed to its {@link TileStreamTarget}
+	 */
+	private static class StreamedTiles {
+
+		private final MapInterface map;
+		private final int xMin;
+		private final int yMin;
+		private final int width;
+		private final int height;
+		private final BitSet tiles;
+
+		/** tiles outside of the map area - not expected but counted anyway */
+		private int otherTiles = 0;
+
+		public StreamedTiles(MapInterface map) {
+			this.map = map;
+			int tileSize = map.getMapSource().getMapSpace().getTileSize();
+			Point min = map.getMinTileCoordinate();
+			Point max = map.getMaxTileCoordinate();
+			xMin = min.x / tileSize;
+			yMin = min.y / tileSize;
+			width = max.x / tileSize - xMin + 1;
+			height = max.y / tileSize - yMin + 1;
+			tiles = new BitSet(width * height);
+		}
+
+		private int index(int x, int y) {
+			int dx = x - xMin;
+			int dy = y - yMin;
+			if (dx < 0 || dx >= width || dy < 0 || dy >= height)
+				return -1;
+			return dx * height + dy;
+		}
+
+		public synchronized boolean contains(int x, int y) {
+			int index = index(x, y);
+			return index >= 0 && tiles.get(index);
+		}
+
+		public synchronized void add(int x, int y) {
+			int index = index(x, y);
+			if (index >= 0)
+				tiles.set(index);
+			else
+				otherTiles++;
+		}
+
+		public synchronized int getTileCount() {
+			return tiles.cardinality() + otherTiles;
+		}
 	}
 
 }
@@ -17,40 +17,208 @@
 package mobac.program;
 
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 import mobac.exceptions.StopAllDownloadsException;
 import mobac.program.interfaces.MapSourceListener;
 import mobac.program.tilestore.berkeleydb.DelayedInterruptThread;
+import mobac.utilities.stream.TokenBucket;
 
 import org.apache.log4j.Logger;
 
 /**
  * Controls the worker threads that are downloading the map tiles in parallel. Additionally the job queue containing the
  * unprocessed tile download jobs can be accessed via this class.
+ * <p>
+ * The job queue is bounded: {@link #addJob(Job)} blocks until a worker has taken a job from the queue. Completion of all
+ * scheduled jobs can be awaited via {@link #awaitIdle(long)}.
+ * </p>
+ * <p>
+ * The number of active worker threads is adapted to the measured throughput and average job duration (which is
+ * dominated by the server latency). It always stays between the configured minimum and maximum thread count. Time
+ * spent waiting for a rate limiter (see {@link mobac.program.download.RateLimiter}) is not part of the job duration;
+ * if the jobs spend a considerable part of their time waiting the number of workers is reduced as more workers can
+ * not increase the throughput.
+ * </p>
+ * <p>
+ * In virtual thread mode (requires a Java runtime supporting virtual threads) each job is executed on its own virtual
+ * thread instead of a pool of {@link WorkerThread}s. The active worker count then limits the number of concurrently
+ * running virtual threads.
+ * </p>
  */
 public class JobDispatcher {
 
 	private static Logger log = Logger.getLogger(JobDispatcher.class);
 
-	protected int maxJobsInQueue = 100;
-	protected int minJobsInQueue = 50;
+	/**
+	 * Time span in milliseconds used for measuring throughput and job duration before the number of active worker
+	 * threads is adapted.
+	 */
+	protected static final long ADAPT_INTERVAL = 3000;
+
+	/**
+	 * If the average job duration exceeds the baseline job duration by this factor we assume that the server is
+	 * overloaded and reduce the number of active worker threads.
+	 */
+	protected static final double LATENCY_OVERLOAD_FACTOR = 2.0;
+
+	/**
+	 * The baseline job duration is the lowest measured average job duration. If the average job duration of a
+	 * measurement window is higher the baseline approaches it by this ratio, so that a permanently increased latency
+	 * becomes the new baseline after a few windows and does not block increasing the worker count forever.
+	 */
+	protected static final double BASELINE_DECAY = 0.2;
+
+	/**
+	 * Throughput changes below this ratio are considered as noise.
+	 */
+	protected static final double THROUGHPUT_TOLERANCE = 0.05;
+
+	/**
+	 * If the jobs spend more than this ratio of their time waiting for a rate limiter the number of active worker
+	 * threads is reduced.
+	 */
+	protected static final double RATE_LIMITED_RATIO = 0.25;
+
+	/**
+	 * {@link MapSourceListener} of threads executing jobs that are not a {@link WorkerThread}
+	 */
+	private static final ThreadLocal<MapSourceListener> CURRENT_LISTENER = new ThreadLocal<MapSourceListener>();
+
+	protected final int queueCapacity;
+
+	protected final int minWorkerCount;
+	protected final int maxWorkerCount;
+
+	/**
+	 * Number of worker threads allowed to execute jobs. Worker threads with an index greater or equal to this value
+	 * wait until the number is increased again.
+	 */
+	protected volatile int activeWorkerCount;
 
-	protected WorkerThread[] workers;
+	protected final WorkerThread[] workers;
+
+	/**
+	 * Factory for virtual threads or <code>null</code> if the virtual thread mode is not active
+	 */
+	protected final ThreadFactory virtualThreadFactory;
+
+	protected VirtualThreadDispatcher virtualThreadDispatcher = null;
+
+	/**
+	 * Virtual threads currently executing a job
+	 */
+	protected final Set<Thread> virtualThreads = Collections.synchronizedSet(new HashSet<Thread>());
 
 	protected PauseResumeHandler pauseResumeHandler;
 
 	protected MapSourceListener mapSourceListener;
 
-	protected BlockingQueue<Job> jobQueue = new LinkedBlockingQueue<Job>();
+	protected final BlockingQueue<Job> jobQueue;
+
+	/**
+	 * Error jobs that could not be added to the (full) job queue. Those jobs are moved to the job queue by the worker
+	 * threads as soon as there is space available.
+	 */
+	protected final ConcurrentLinkedQueue<Job> overflowQueue = new ConcurrentLinkedQueue<Job>();
+
+	/**
+	 * Lock object for {@link #pendingJobs}, {@link #runningJobs} and the worker count adaption.
+	 */
+	protected final Object stateLock = new Object();
+
+	/**
+	 * Number of jobs that are either queued or currently executed
+	 */
+	protected int pendingJobs = 0;
+
+	protected int runningJobs = 0;
+
+	protected boolean terminated = false;
+
+	private long windowStart = System.currentTimeMillis();
+	private int windowJobs = 0;
+	private long windowJobDuration = 0;
+	private long windowWaitTime = 0;
+	private boolean windowPaused = false;
+	private double lastThroughput = 0;
+	private double baselineJobDuration = 0;
+	private int adaptDirection = 1;
 
 	public JobDispatcher(int threadCount, PauseResumeHandler pauseResumeHandler, MapSourceListener mapSourceListener) {
+		this(threadCount, threadCount, threadCount, false, pauseResumeHandler, mapSourceListener);
+	}
+
+	/**
+	 * 
+	 * @param threadCount
+	 *            initial number of active worker threads
+	 * @param minThreadCount
+	 *            lower limit for the number of active worker threads
+	 * @param maxThreadCount
+	 *            upper limit for the number of active worker threads
+	 * @param useVirtualThreads
+	 *            execute each job on a virtual thread if supported by the Java runtime
+	 * @param pauseResumeHandler
+	 * @param mapSourceListener
+	 */
+	public JobDispatcher(int threadCount, int minThreadCount, int maxThreadCount, boolean useVirtualThreads,
+			PauseResumeHandler pauseResumeHandler, MapSourceListener mapSourceListener) {
 		this.pauseResumeHandler = pauseResumeHandler;
 		this.mapSourceListener = mapSourceListener;
-		workers = new WorkerThread[threadCount];
-		for (int i = 0; i < threadCount; i++)
-			workers[i] = new WorkerThread(i);
+		minWorkerCount = Math.max(1, Math.min(minThreadCount, threadCount));
+		maxWorkerCount = Math.max(threadCount, maxThreadCount);
+		activeWorkerCount = Math.max(minWorkerCount, threadCount);
+		queueCapacity = Math.max(100, 20 * maxWorkerCount);
+		jobQueue = new LinkedBlockingQueue<Job>(queueCapacity);
+		virtualThreadFactory = useVirtualThreads ? createVirtualThreadFactory() : null;
+		if (virtualThreadFactory != null) {
+			workers = new WorkerThread[0];
+			virtualThreadDispatcher = new VirtualThreadDispatcher();
+		} else {
+			if (useVirtualThreads)
+				log.warn("Virtual threads are not supported by this Java runtime - using platform threads");
+			workers = new WorkerThread[maxWorkerCount];
+			startWorkers(activeWorkerCount);
+		}
+		log.debug("Job dispatcher: " + activeWorkerCount + ((virtualThreadFactory != null) ? " virtual" : "")
+				+ " worker threads (min " + minWorkerCount + ", max " + maxWorkerCount + ")");
+	}
+
+	/**
+	 * Virtual threads are created via reflection as they are not available at the Java version this code is compiled
+	 * for.
+	 * 
+	 * @return a factory creating unstarted virtual threads or <code>null</code> if the Java runtime does not support
+	 *         virtual threads
+	 */
+	protected static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "VirtualWorker ", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the {@link MapSourceListener} of the current thread if it is executing a job of a {@link JobDispatcher},
+	 *         otherwise <code>null</code>
+	 */
+	public static MapSourceListener getCurrentMapSourceListener() {
+		Thread t = Thread.currentThread();
+		if (t instanceof MapSourceListener)
+			return (MapSourceListener) t;
+		return CURRENT_LISTENER.get();
 	}
 
 	@Override
@@ -59,7 +227,17 @@ public class JobDispatcher {
 		super.finalize();
 	}
 
-	public void terminateAllWorkerThreads() {
+	protected synchronized void startWorkers(int count) {
+		if (terminated)
+			return;
+		for (int i = 0; i < Math.min(count, workers.length); i++) {
+			if (workers[i] == null)
+				workers[i] = new WorkerThread(i);
+		}
+	}
+
+	public synchronized void terminateAllWorkerThreads() {
+		terminated = true;
 		cancelOutstandingJobs();
 		log.trace("Killing all worker threads");
 		for (int i = 0; i < workers.length; i++) {
@@ -73,29 +251,48 @@ public class JobDispatcher {
 				// We don't care about exception here
 			}
 		}
+		if (virtualThreadDispatcher != null) {
+			virtualThreadDispatcher.interrupt();
+			virtualThreadDispatcher = null;
+			Thread[] threads;
+			synchronized (virtualThreads) {
+				threads = virtualThreads.toArray(new Thread[virtualThreads.size()]);
+			}
+			for (Thread t : threads)
+				DelayedInterruptThread.interrupt(t);
+		}
+		synchronized (stateLock) {
+			// Interrupted jobs will never report that they have finished
+			pendingJobs = 0;
+			runningJobs = 0;
+			stateLock.notifyAll();
+		}
 	}
 
 	public void cancelOutstandingJobs() {
-		jobQueue.clear();
+		ArrayList<Job> removed = new ArrayList<Job>();
+		jobQueue.drainTo(removed);
+		int count = removed.size();
+		Job job;
+		while ((job = overflowQueue.poll()) != null)
+			count++;
+		jobsRemoved(count);
 	}
 
 	/**
-	 * Blocks if more than 100 jobs are already scheduled.
+	 * Adds the job to the job-queue. Blocks until there is space available in the job queue.
 	 * 
 	 * @param job
 	 * @throws InterruptedException
 	 */
 	public void addJob(Job job) throws InterruptedException {
-		while (jobQueue.size() > maxJobsInQueue) {
-			Thread.sleep(200);
-			if ((jobQueue.size() < minJobsInQueue) && (maxJobsInQueue < 2000)) {
-				// System and download connection is very fast - we have to
-				// increase the maximum job count in the queue
-				maxJobsInQueue *= 2;
-				minJobsInQueue *= 2;
-			}
+		jobsAdded(1);
+		try {
+			jobQueue.put(job);
+		} catch (InterruptedException e) {
+			jobsRemoved(1);
+			throw e;
 		}
-		jobQueue.put(job);
 	}
 
 	/**
@@ -104,15 +301,40 @@ public class JobDispatcher {
 	 * @param job
 	 */
 	public void addErrorJob(Job job) {
-		try {
-			jobQueue.put(job);
-		} catch (InterruptedException e) {
-			// Can never happen with LinkedBlockingQueue
-		}
+		jobsAdded(1);
+		if (!jobQueue.offer(job))
+			overflowQueue.add(job);
+	}
+
+	/**
+	 * Has to be called by a job that has started an operation completing outside of the worker threads.
+	 * {@link #awaitIdle(long)} does not return before the operation has been finished via
+	 * {@link #asyncOperationFinished()}.
+	 */
+	public void asyncOperationStarted() {
+		jobsAdded(1);
+	}
+
+	/**
+	 * @see #asyncOperationStarted()
+	 */
+	public void asyncOperationFinished() {
+		jobsRemoved(1);
 	}
 
 	public int getWaitingJobCount() {
-		return jobQueue.size();
+		return jobQueue.size() + overflowQueue.size();
+	}
+
+	/**
+	 * @return number of worker threads currently allowed to execute jobs
+	 */
+	public int getActiveWorkerCount() {
+		return activeWorkerCount;
+	}
+
+	public MapSourceListener getMapSourceListener() {
+		return mapSourceListener;
 	}
 
 	public static interface Job {
@@ -120,23 +342,212 @@ public class JobDispatcher {
 	}
 
 	public boolean isAtLeastOneWorkerActive() {
-		for (int i = 0; i < workers.length; i++) {
-			WorkerThread w = workers[i];
-			if (w != null) {
-				if ((!w.idle) && (w.getState() != Thread.State.WAITING))
-					return true;
-			}
+		synchronized (stateLock) {
+			if (runningJobs > 0)
+				return true;
 		}
 		log.debug("All worker threads are idle");
 		return false;
 	}
 
+	/**
+	 * Waits until all jobs added to this dispatcher have been processed or the specified time has elapsed.
+	 * 
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return <code>true</code> if there are no queued or running jobs left
+	 * @throws InterruptedException
+	 */
+	public boolean awaitIdle(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (stateLock) {
+			while (pendingJobs > 0) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					return false;
+				stateLock.wait(wait);
+			}
+		}
+		return true;
+	}
+
+	protected void jobsAdded(int count) {
+		synchronized (stateLock) {
+			pendingJobs += count;
+		}
+	}
+
+	protected void jobsRemoved(int count) {
+		if (count == 0)
+			return;
+		synchronized (stateLock) {
+			pendingJobs = Math.max(0, pendingJobs - count);
+			if (pendingJobs == 0)
+				stateLock.notifyAll();
+		}
+	}
+
+	protected void jobStarted() {
+		synchronized (stateLock) {
+			runningJobs++;
+		}
+	}
+
+	/**
+	 * @param duration
+	 *            duration of the job in nanoseconds without <code>waitTime</code>
+	 * @param waitTime
+	 *            time in nanoseconds the job has waited for a rate limiter
+	 */
+	protected void jobFinished(long duration, long waitTime) {
+		boolean workerCountChanged = false;
+		synchronized (stateLock) {
+			runningJobs = Math.max(0, runningJobs - 1);
+			pendingJobs = Math.max(0, pendingJobs - 1);
+			if (pendingJobs == 0)
+				stateLock.notifyAll();
+			windowJobs++;
+			windowJobDuration += duration;
+			windowWaitTime += waitTime;
+			if (pauseResumeHandler.isPaused())
+				windowPaused = true;
+			long now = System.currentTimeMillis();
+			if (now - windowStart >= ADAPT_INTERVAL) {
+				if (windowPaused || windowJobs < activeWorkerCount) {
+					// Not enough or falsified data
+					lastThroughput = 0;
+				} else
+					workerCountChanged = adaptWorkerCount(now - windowStart, windowJobs, windowJobDuration,
+							windowWaitTime);
+				windowStart = now;
+				windowJobs = 0;
+				windowJobDuration = 0;
+				windowWaitTime = 0;
+				windowPaused = false;
+			}
+		}
+		if (workerCountChanged) {
+			startWorkers(activeWorkerCount);
+			synchronized (workers) {
+				workers.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Hill climbing on the measured throughput: The number of active workers is changed by one in the current direction
+	 * as long as the throughput increases. If the throughput decreases the direction is reversed. If the average job
+	 * duration indicates an overloaded server or the jobs are slowed down by a rate limiter the worker count is
+	 * reduced and the next step tries to increase it again. At the limits of the worker count the direction is
+	 * reversed.
+	 * <p>
+	 * Has to be called while holding {@link #stateLock}.
+	 * </p>
+	 * 
+	 * @param windowLength
+	 *            length of the measurement window in milliseconds
+	 * @param jobs
+	 *            number of jobs finished within the window
+	 * @param jobDuration
+	 *            sum of the job durations in nanoseconds (without the time waited for a rate limiter)
+	 * @param waitTime
+	 *            sum of the time in nanoseconds the jobs have waited for a rate limiter
+	 * @return <code>true</code> if {@link #activeWorkerCount} has been changed
+	 */
+	protected boolean adaptWorkerCount(long windowLength, int jobs, long jobDuration, long waitTime) {
+		if (minWorkerCount == maxWorkerCount)
+			return false;
+		double throughput = jobs * 1000.0 / windowLength;
+		double avgJobDuration = ((double) jobDuration) / jobs;
+		if (baselineJobDuration == 0 || avgJobDuration < baselineJobDuration)
+			baselineJobDuration = avgJobDuration;
+		else
+			baselineJobDuration += BASELINE_DECAY * (avgJobDuration - baselineJobDuration);
+
+		int newCount = activeWorkerCount;
+		if (avgJobDuration > LATENCY_OVERLOAD_FACTOR * baselineJobDuration
+				|| waitTime > RATE_LIMITED_RATIO * (jobDuration + waitTime)) {
+			newCount--;
+			adaptDirection = 1;
+		} else if (lastThroughput == 0 || throughput > lastThroughput * (1.0 + THROUGHPUT_TOLERANCE)) {
+			newCount += adaptDirection;
+		} else if (throughput < lastThroughput * (1.0 - THROUGHPUT_TOLERANCE)) {
+			adaptDirection = -adaptDirection;
+			newCount += adaptDirection;
+		}
+		lastThroughput = throughput;
+		if (newCount <= minWorkerCount) {
+			newCount = minWorkerCount;
+			adaptDirection = 1;
+		} else if (newCount >= maxWorkerCount) {
+			newCount = maxWorkerCount;
+			adaptDirection = -1;
+		}
+		if (newCount == activeWorkerCount)
+			return false;
+		if (log.isDebugEnabled())
+			log.debug(String.format("Adapting worker count %d -> %d (throughput %.1f jobs/s, avg job duration %.0f ms)",
+					activeWorkerCount, newCount, throughput, avgJobDuration / 1000000.0));
+		activeWorkerCount = newCount;
+		return true;
+	}
+
+	/**
+	 * Executes the job on the current thread.
+	 * 
+	 * @param job
+	 * @return <code>false</code> if all downloads have been stopped and the calling thread should terminate
+	 * @throws InterruptedException
+	 */
+	protected boolean executeJob(Job job) throws InterruptedException {
+		jobStarted();
+		long start = System.nanoTime();
+		long waitStart = TokenBucket.getThreadWaitTime();
+		try {
+			job.run(this);
+		} catch (InterruptedException e) {
+		} catch (StopAllDownloadsException e) {
+			terminateAllWorkerThreads();
+			cancelOutstandingJobs();
+			log.warn("All downloads has been stoppened: " + e.getMessage());
+			return false;
+		} catch (FileNotFoundException e) {
+			log.error("Download failed: " + e.getMessage());
+		} catch (Exception e) {
+			log.error("Unknown error occured while executing the job: ", e);
+		} catch (OutOfMemoryError e) {
+			log.error("", e);
+			Thread.sleep(5000);
+			System.gc();
+		} finally {
+			long waitTime = TokenBucket.getThreadWaitTime() - waitStart;
+			jobFinished(System.nanoTime() - start - waitTime, waitTime);
+			requeueOverflowJobs();
+		}
+		return true;
+	}
+
+	/**
+	 * Moves error jobs that did not fit into the job queue back to the job queue.
+	 */
+	protected void requeueOverflowJobs() {
+		Job job;
+		while ((job = overflowQueue.peek()) != null) {
+			if (!jobQueue.offer(job))
+				return;
+			overflowQueue.remove(job);
+		}
+	}
+
 	/**
 	 * Each worker thread takes the first job from the job queue and executes it. If the queue is empty the worker
-	 * blocks, waiting for the next job.
+	 * blocks, waiting for the next job. Workers with an index beyond the current {@link #activeWorkerCount} wait until
+	 * they are activated again.
 	 */
 	protected class WorkerThread extends DelayedInterruptThread implements MapSourceListener {
 
+		final int threadNum;
+
 		Job job = null;
 
 		boolean idle = true;
@@ -145,6 +556,7 @@ public class JobDispatcher {
 
 		public WorkerThread(int threadNum) {
 			super(String.format("WorkerThread %02d", threadNum));
+			this.threadNum = threadNum;
 			setDaemon(true);
 			start();
 		}
@@ -158,36 +570,29 @@ public class JobDispatcher {
 			log.trace("Thread is terminating");
 		}
 
+		protected void waitForActivation() throws InterruptedException {
+			if (threadNum < activeWorkerCount)
+				return;
+			synchronized (workers) {
+				while (threadNum >= activeWorkerCount)
+					workers.wait();
+			}
+		}
+
 		protected void executeJobs() throws InterruptedException {
 			while (!isInterrupted()) {
 				try {
 					pauseResumeHandler.pauseWait();
+					waitForActivation();
 					idle = true;
 					job = jobQueue.take();
 					idle = false;
 				} catch (InterruptedException e) {
 					return;
 				}
-				if (job == null)
+				if (!executeJob(job))
 					return;
-				try {
-					job.run(JobDispatcher.this);
-					job = null;
-				} catch (InterruptedException e) {
-				} catch (StopAllDownloadsException e) {
-					JobDispatcher.this.terminateAllWorkerThreads();
-					JobDispatcher.this.cancelOutstandingJobs();
-					log.warn("All downloads has been stoppened: " + e.getMessage());
-					return;
-				} catch (FileNotFoundException e) {
-					log.error("Download failed: " + e.getMessage());
-				} catch (Exception e) {
-					log.error("Unknown error occured while executing the job: ", e);
-				} catch (OutOfMemoryError e) {
-					log.error("", e);
-					Thread.sleep(5000);
-					System.gc();
-				}
+				job = null;
 			}
 		}
 
@@ -201,4 +606,61 @@ public class JobDispatcher {
 
 	}
 
+	/**
+	 * Takes the jobs from the job queue and starts a virtual thread for each of them as long as the number of running
+	 * virtual threads is below the active worker count.
+	 */
+	protected class VirtualThreadDispatcher extends DelayedInterruptThread {
+
+		private Logger log = Logger.getLogger(VirtualThreadDispatcher.class);
+
+		public VirtualThreadDispatcher() {
+			super("VirtualThreadDispatcher");
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					pauseResumeHandler.pauseWait();
+					synchronized (workers) {
+						while (virtualThreads.size() >= activeWorkerCount)
+							workers.wait();
+					}
+					final Job job = jobQueue.take();
+					Thread t = virtualThreadFactory.newThread(new Runnable() {
+
+						public void run() {
+							runVirtualJob(job);
+						}
+					});
+					virtualThreads.add(t);
+					t.start();
+				}
+			} catch (InterruptedException e) {
+			}
+			log.trace("Thread is terminating");
+		}
+
+		protected void runVirtualJob(Job job) {
+			Thread t = Thread.currentThread();
+			DelayedInterruptThread.register(t);
+			CURRENT_LISTENER.set(mapSourceListener);
+			try {
+				executeJob(job);
+			} catch (InterruptedException e) {
+			} finally {
+				CURRENT_LISTENER.remove();
+				DelayedInterruptThread.unregister(t);
+				virtualThreads.remove(t);
+				synchronized (workers) {
+					workers.notifyAll();
+				}
+			}
+		}
+
+	}
+
 }
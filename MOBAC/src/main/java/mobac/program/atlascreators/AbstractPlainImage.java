@@ -21,21 +21,36 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
 import mobac.exceptions.AtlasTestException;
 import mobac.exceptions.MapCreationException;
 import mobac.mapsources.mapspace.MercatorPower2MapSpace;
+import mobac.program.atlascreators.tileprovider.TileImageCache;
 import mobac.program.interfaces.LayerInterface;
 import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSpace;
 import mobac.program.interfaces.MapSpace.ProjectionCategory;
+import mobac.program.model.Settings;
 import mobac.utilities.Utilities;
+import mobac.utilities.imageio.PngXxlWriter;
 
+/**
+ * Base class for atlas formats that render each map into one single image.
+ * <p>
+ * By default the whole map image is created in memory and passed to {@link #writeTileImage(BufferedImage)}. Formats
+ * that write the image as truecolor PNG can enable the streaming mode by returning an {@link ImageStreamTarget} from
+ * {@link #getImageStreamTarget(MapInterface)}: The image is then assembled and written one row of source tiles at a
+ * time using {@link PngXxlWriter}, therefore the memory usage does not depend on the map height.
+ * </p>
+ */
 public abstract class AbstractPlainImage extends AtlasCreator {
 
 	@Override
@@ -53,6 +68,8 @@ public abstract class AbstractPlainImage extends AtlasCreator {
 		maxMapSize = (maxMapSize / 100) * 100; // round by 100;
 		for (LayerInterface layer : atlas) {
 			for (MapInterface map : layer) {
+				if (getImageStreamTarget(map) != null)
+					continue;
 				int w = map.getMaxTileCoordinate().x - map.getMinTileCoordinate().x;
 				int h = map.getMaxTileCoordinate().y - map.getMinTileCoordinate().y;
 				if (w > maxMapSize || h > maxMapSize)
@@ -86,6 +103,15 @@ public abstract class AbstractPlainImage extends AtlasCreator {
 		return BufferedImage.TYPE_4BYTE_ABGR;
 	}
 
+	/**
+	 * @param map
+	 * @return the target the image of the specified map is written to as truecolor PNG or <code>null</code> if the
+	 *         image is created in memory and passed to {@link #writeTileImage(BufferedImage)}
+	 */
+	protected ImageStreamTarget getImageStreamTarget(MapInterface map) {
+		return null;
+	}
+
 	protected void createImage() throws InterruptedException, MapCreationException {
 
 		atlasProgress.initMapCreation((xMax - xMin + 1) * (yMax - yMin + 1));
@@ -114,6 +140,15 @@ public abstract class AbstractPlainImage extends AtlasCreator {
 		if (imageHeight < 0 || imageWidth < 0)
 			throw new MapCreationException("Invalid map size: (width/height: " + imageWidth + "/" + imageHeight + ")",
 					map);
+		ImageStreamTarget streamTarget = getImageStreamTarget(map);
+		if (streamTarget != null) {
+			try {
+				createImageStrips(streamTarget, imageWidth, imageHeight, scaleFactor);
+			} catch (IOException e) {
+				throw new MapCreationException(map, e);
+			}
+			return;
+		}
 		long imageSize = 3l * ((long) imageWidth) * ((long) imageHeight);
 		if (imageSize > Integer.MAX_VALUE)
 			throw new MapCreationException("Map image too large: (width/height: " + imageWidth + "/" + imageHeight
@@ -151,6 +186,131 @@ public abstract class AbstractPlainImage extends AtlasCreator {
 		writeTileImage(tileImage);
 	}
 
+	/**
+	 * Creates the map image strip by strip - one strip for each row of source tiles. If the image is scaled a strip
+	 * is painted using all tile rows that overlap it so that the result is the same as scaling the complete image.
+	 * 
+	 * @param streamTarget
+	 * @param imageWidth
+	 * @param imageHeight
+	 * @param scaleFactor
+	 * @throws InterruptedException
+	 * @throws MapCreationException
+	 * @throws IOException
+	 */
+	protected void createImageStrips(ImageStreamTarget streamTarget, int imageWidth, int imageHeight,
+			double scaleFactor) throws InterruptedException, MapCreationException, IOException {
+		int tileRowCount = yMax - yMin + 1;
+		int tileColCount = xMax - xMin + 1;
+		boolean scaleImage = (scaleFactor != 1.0);
+		// height of one row of source tiles in the (scaled) image
+		double tileRowHeight = tileSize * scaleFactor;
+		int maxStripHeight = Math.min(imageHeight, (int) Math.ceil(tileRowHeight) + 1);
+
+		BufferedImage strip = Utilities.safeCreateBufferedImage(imageWidth, maxStripHeight,
+				BufferedImage.TYPE_INT_RGB);
+		int[] stripData = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+
+		// If the image is scaled a strip is painted from three rows of source tiles and each row is used by three
+		// strips. The cache has to hold three complete rows (decoded tiles use up to 4 bytes per pixel) - otherwise
+		// the tiles of wide maps would be evicted before they are used again.
+		TileImageCache tileImageCache = null;
+		if (scaleImage) {
+			long rowsSize = 3l * tileColCount * tileSize * tileSize * 4;
+			long maxSize = Math.min(rowsSize, Runtime.getRuntime().maxMemory() / 4);
+			if (maxSize < rowsSize)
+				log.warn("Tile image cache too small for the map width - tiles are decoded multiple times");
+			tileImageCache = new TileImageCache(maxSize);
+		}
+
+		OutputStream out = streamTarget.openImageStream();
+		PngXxlWriter pngWriter = new PngXxlWriter(imageWidth, imageHeight, out,
+				Settings.getInstance().tileBuilderThreadCount);
+		int stripStart = 0;
+		for (int row = 0; row < tileRowCount; row++) {
+			int stripEnd = (row == tileRowCount - 1) ? imageHeight : (int) ((row + 1) * tileRowHeight);
+			stripEnd = Math.min(stripEnd, imageHeight);
+			int stripHeight = stripEnd - stripStart;
+			if (stripHeight > 0) {
+				int firstRow = row;
+				int lastRow = row;
+				if (scaleImage) {
+					firstRow = Math.max(0, (int) (stripStart / tileRowHeight) - 1);
+					lastRow = Math.min(tileRowCount - 1, (int) (stripEnd / tileRowHeight) + 1);
+				}
+				Arrays.fill(stripData, 0);
+				Graphics2D graphics = strip.createGraphics();
+				try {
+					graphics.translate(0, -stripStart);
+					if (scaleImage) {
+						graphics.scale(scaleFactor, scaleFactor);
+						graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+								RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+					}
+					for (int r = firstRow; r <= lastRow; r++) {
+						int y = yMin + r;
+						int lineY = r * tileSize;
+						int lineX = 0;
+						for (int x = xMin; x <= xMax; x++) {
+							checkUserAbort();
+							try {
+								BufferedImage tile;
+								if (tileImageCache != null)
+									tile = tileImageCache.getTileImage(mapDlTileProvider, x, y);
+								else
+									tile = mapDlTileProvider.getTileImage(x, y);
+								if (tile != null)
+									graphics.drawImage(tile, lineX, lineY, Color.WHITE, null);
+							} catch (IOException e) {
+								log.error("", e);
+							}
+							lineX += tileSize;
+						}
+					}
+				} finally {
+					graphics.dispose();
+				}
+				if (stripHeight == strip.getHeight())
+					pngWriter.writeTileLine(strip);
+				else
+					pngWriter.writeTileLine(strip.getSubimage(0, 0, imageWidth, stripHeight));
+			}
+			atlasProgress.incMapCreationProgress(tileColCount);
+			stripStart = stripEnd;
+		}
+		pngWriter.finish();
+		if (tileImageCache != null) {
+			log.debug(tileImageCache);
+			tileImageCache.clear();
+		}
+		streamTarget.closeImageStream(out);
+	}
+
 	protected abstract void writeTileImage(BufferedImage tileImage) throws MapCreationException;
 
+	/**
+	 * Destination of a map image written in streaming mode.
+	 * 
+	 * @see AbstractPlainImage#getImageStreamTarget(MapInterface)
+	 */
+	protected static interface ImageStreamTarget {
+
+		/**
+		 * Opens the stream the PNG image of the current map is written to.
+		 * 
+		 * @return
+		 * @throws IOException
+		 */
+		public OutputStream openImageStream() throws IOException;
+
+		/**
+		 * Called after the PNG image has been completely written to the stream returned by
+		 * {@link #openImageStream()}.
+		 * 
+		 * @param out
+		 * @throws MapCreationException
+		 */
+		public void closeImageStream(OutputStream out) throws MapCreationException;
+	}
+
 }
@@ -28,11 +28,13 @@ import mobac.exceptions.MapCreationException;
 import mobac.gui.AtlasProgress;
 import mobac.program.AtlasThread;
 import mobac.program.PauseResumeHandler;
+import mobac.program.atlascreators.tileprovider.StreamedTileProvider;
 import mobac.program.atlascreators.tileprovider.TileProvider;
 import mobac.program.interfaces.AtlasInterface;
 import mobac.program.interfaces.LayerInterface;
 import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
+import mobac.program.interfaces.TileStreamTarget;
 import mobac.program.model.AtlasOutputFormat;
 import mobac.program.model.Settings;
 import mobac.program.model.TileImageFormat;
@@ -50,6 +52,9 @@ import org.apache.log4j.Logger;
  * <li>AtlasCreator instantiation via {@link AtlasOutputFormat#createAtlasCreatorInstance()}</li>
  * <li>AtlasCreator atlas initialization via {@link #startAtlasCreation(AtlasInterface, File)}</li>
  * <li>1 to n times {@link #initializeMap(MapInterface, TileProvider)} followed by {@link #createMap()}</li>
+ * <li>or for maps supporting tile streaming ({@link #getTileStreamTarget(MapInterface)}):
+ * {@link #initializeMap(MapInterface, TileProvider)} with a {@link StreamedTileProvider} followed by
+ * {@link TileStreamTarget#startTileStreaming()} and {@link TileStreamTarget#finishTileStreaming()}</li>
  * <li>AtlasCreator atlas finalization via {@link #finishAtlasCreation()}</li>
  * </ol>
  */
@@ -93,6 +98,11 @@ public abstract class AtlasCreator {
 
 	protected TileProvider mapDlTileProvider;
 
+	/**
+	 * The base tile provider if the current map is created via tile streaming, otherwise <code>null</code>
+	 */
+	protected StreamedTileProvider streamedTileProvider;
+
 	private boolean aborted = false;
 
 	/**
@@ -167,6 +177,10 @@ public abstract class AtlasCreator {
 		if (mapTileProvider == null)
 			throw new NullPointerException();
 		this.mapDlTileProvider = mapTileProvider;
+		if (mapTileProvider instanceof StreamedTileProvider)
+			streamedTileProvider = (StreamedTileProvider) mapTileProvider;
+		else
+			streamedTileProvider = null;
 		this.map = map;
 		this.mapSource = map.getMapSource();
 		this.tileSize = mapSource.getMapSpace().getTileSize();
@@ -191,6 +205,36 @@ public abstract class AtlasCreator {
 	 */
 	public abstract void createMap() throws MapCreationException, InterruptedException;
 
+	/**
+	 * Returns the {@link TileStreamTarget} the specified map is created with while its tiles are downloaded.
+	 * 
+	 * @param map
+	 * @return <code>null</code> by default: the map is created from the downloaded tiles via {@link #createMap()}
+	 */
+	public TileStreamTarget getTileStreamTarget(MapInterface map) {
+		return null;
+	}
+
+	/**
+	 * Processes a streamed tile by the tile provider chain of the current map (e.g. a tile format conversion). May be
+	 * called concurrently.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param data
+	 *            the tile data as downloaded
+	 * @return the processed tile data
+	 * @throws IOException
+	 */
+	protected byte[] getStreamedTileData(int x, int y, byte[] data) throws IOException {
+		streamedTileProvider.setTile(x, y, data);
+		try {
+			return mapDlTileProvider.getTileData(x, y);
+		} finally {
+			streamedTileProvider.setTile(0, 0, null);
+		}
+	}
+
 	/**
 	 * Checks if the user has aborted atlas creation and if <code>true</code> an {@link InterruptedException} is thrown.
 	 * 
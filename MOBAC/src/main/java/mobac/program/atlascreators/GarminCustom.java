@@ -24,6 +24,7 @@ import mobac.exceptions.MapCreationException;
 import mobac.program.annotations.AtlasCreatorName;
 import mobac.program.annotations.SupportedParameters;
 import mobac.program.interfaces.LayerInterface;
+import mobac.program.interfaces.MapInterface;
 import mobac.program.model.Settings;
 import mobac.program.model.TileImageParameters.Name;
 import mobac.program.tiledatawriter.TileImageJpegDataWriter;
@@ -84,6 +85,14 @@ public class GarminCustom extends GoogleEarthOverlay {
 		}
 	}
 
+	/**
+	 * Garmin custom maps only support JPEG images.
+	 */
+	@Override
+	protected ImageStreamTarget getImageStreamTarget(MapInterface map) {
+		return null;
+	}
+
 	@Override
 	protected int getMaxImageSize() {
 		return 1024;
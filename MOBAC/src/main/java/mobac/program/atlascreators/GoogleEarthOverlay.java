@@ -20,7 +20,10 @@ import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.NumberFormat;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -41,6 +44,8 @@ import mobac.program.interfaces.LayerInterface;
 import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSpace;
 import mobac.program.interfaces.TileImageDataWriter;
+import mobac.program.model.TileImageFormat;
+import mobac.program.model.TileImageParameters;
 import mobac.program.tiledatawriter.TileImageJpegDataWriter;
 import mobac.utilities.Utilities;
 import mobac.utilities.stream.ZipStoreOutputStream;
@@ -134,6 +139,18 @@ public class GoogleEarthOverlay extends AbstractPlainImage {
 		}
 	}
 
+	/**
+	 * Plain PNG images are streamed directly into the KMZ file. As the size and CRC of the image are not known in
+	 * advance the entry is compressed instead of stored.
+	 */
+	@Override
+	protected ImageStreamTarget getImageStreamTarget(MapInterface map) {
+		TileImageParameters mapParameters = map.getParameters();
+		if (mapParameters != null && mapParameters.getFormat() == TileImageFormat.PNG)
+			return new KmzImageStreamTarget();
+		return null;
+	}
+
 	protected void addMapToKmz(String imageFileName) throws ParserConfigurationException,
 			TransformerFactoryConfigurationError, TransformerException, IOException {
 		int startX = xMin * tileSize;
@@ -223,4 +240,30 @@ public class GoogleEarthOverlay extends AbstractPlainImage {
 		groundOverlayRoot = null;
 	}
 
+	/**
+	 * Writes the PNG image of the current map as compressed entry into the KMZ file.
+	 */
+	private class KmzImageStreamTarget implements ImageStreamTarget {
+
+		private final String imageFileName = "files/" + cleanedMapName + ".png";
+
+		public OutputStream openImageStream() throws IOException {
+			ZipEntry ze = new ZipEntry(imageFileName);
+			ze.setMethod(ZipEntry.DEFLATED);
+			// The PNG data is already compressed
+			kmzOutputStream.setLevel(Deflater.BEST_SPEED);
+			kmzOutputStream.putNextEntry(ze);
+			return kmzOutputStream;
+		}
+
+		public void closeImageStream(OutputStream out) throws MapCreationException {
+			try {
+				kmzOutputStream.closeEntry();
+				addMapToKmz(imageFileName);
+			} catch (Exception e) {
+				throw new MapCreationException(map, e);
+			}
+		}
+	}
+
 }
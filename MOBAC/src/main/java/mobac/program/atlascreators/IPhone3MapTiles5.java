@@ -34,6 +34,7 @@ import mobac.program.atlascreators.impl.MapTileBuilder;
 import mobac.program.atlascreators.impl.MapTileWriter;
 import mobac.program.interfaces.LayerInterface;
 import mobac.program.interfaces.MapInterface;
+import mobac.program.interfaces.TileStreamTarget;
 import mobac.program.interfaces.MapSource;
 import mobac.program.model.TileImageFormat;
 import mobac.program.model.TileImageParameters;
@@ -120,12 +121,26 @@ public class IPhone3MapTiles5 extends RMapsSQLite {
 	protected void initializeDB() throws SQLException {
 		Statement stat = conn.createStatement();
 		stat.executeUpdate(TABLE_IMAGES);
-		stat.executeUpdate(INDEX_IMAGES);
+		if (!bulkLoad)
+			createIndexes(stat);
 		if (stat.executeUpdate(TABLE_VERSION) == 0)
 			stat.execute(TABLE_VERSION_DATA);
 		stat.close();
 	}
 
+	@Override
+	protected void createIndexes(Statement stat) throws SQLException {
+		stat.executeUpdate(INDEX_IMAGES);
+	}
+
+	/**
+	 * The 128x128 pixel tiles are built from the downloaded tiles by a {@link MapTileBuilder}
+	 */
+	@Override
+	public TileStreamTarget getTileStreamTarget(MapInterface map) {
+		return null;
+	}
+
 	@Override
 	protected void createTiles() throws InterruptedException, MapCreationException {
 
@@ -106,7 +106,8 @@ public class MBTiles extends RMapsSQLite {
 	protected void initializeDB() throws SQLException {
 		Statement stat = conn.createStatement();
 		stat.executeUpdate(TABLE_TILES);
-		stat.executeUpdate(INDEX_TILES);
+		if (!bulkLoad)
+			createIndexes(stat);
 		stat.executeUpdate(TABLE_METADATA);
 		stat.executeUpdate(INDEX_METADATA);
 		stat.close();
@@ -116,6 +117,11 @@ public class MBTiles extends RMapsSQLite {
 		boundsLonMax = Double.MIN_VALUE;
 	}
 
+	@Override
+	protected void createIndexes(Statement stat) throws SQLException {
+		stat.executeUpdate(INDEX_TILES);
+	}
+
 	@Override
 	protected void updateTileMetaInfo() throws SQLException {
 		MapSpace ms = map.getMapSource().getMapSpace();
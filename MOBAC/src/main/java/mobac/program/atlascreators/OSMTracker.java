@@ -31,6 +31,8 @@ import mobac.program.atlascreators.tileprovider.ConvertedRawTileProvider;
 import mobac.program.atlascreators.tileprovider.TileProvider;
 import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
+import mobac.program.interfaces.TileSink;
+import mobac.program.interfaces.TileStreamTarget;
 import mobac.program.model.TileImageParameters.Name;
 import mobac.utilities.Utilities;
 
@@ -39,10 +41,14 @@ import mobac.utilities.Utilities;
  * 
  * Please note that this atlas format ignores the defined atlas structure. It uses a separate directory for each used
  * map source and inside one directory for each zoom level.
+ * <p>
+ * The tiles are written independently of each other, therefore maps can be created while they are downloaded (tile
+ * streaming).
+ * </p>
  */
 @AtlasCreatorName("OSMTracker tile storage")
 @SupportedParameters(names = { Name.format })
-public class OSMTracker extends AtlasCreator {
+public class OSMTracker extends AtlasCreator implements TileStreamTarget {
 
 	protected String tileFileNamePattern = "%d/%d/%d.%s";
 
@@ -71,10 +77,46 @@ public class OSMTracker extends AtlasCreator {
 	public void createMap() throws MapCreationException, InterruptedException {
 		// This means there should not be any resizing of the tiles.
 		if (mapTileWriter == null)
-			mapTileWriter = new OSMTileWriter();
+			mapTileWriter = createMapTileWriter();
 		createTiles();
 	}
 
+	/**
+	 * Creates the tile writer used if no writer has been set before the map is created.
+	 */
+	protected MapTileWriter createMapTileWriter() {
+		return new OSMTileWriter();
+	}
+
+	@Override
+	public TileStreamTarget getTileStreamTarget(MapInterface map) {
+		return this;
+	}
+
+	public TileSink startTileStreaming() throws MapCreationException {
+		if (mapTileWriter == null)
+			mapTileWriter = createMapTileWriter();
+		atlasProgress.initMapCreation((xMax - xMin + 1) * (yMax - yMin + 1));
+		ImageIO.setUseCache(false);
+		return new TileSink() {
+
+			public void putTile(int x, int y, byte[] data) throws IOException {
+				byte[] tileData = getStreamedTileData(x, y, data);
+				if (tileData == null)
+					return;
+				// The tile writers are not thread safe (e.g. writers appending to a zip file)
+				synchronized (mapTileWriter) {
+					mapTileWriter.writeTile(x, y, tileType, tileData);
+					atlasProgress.incMapCreationProgress();
+				}
+			}
+		};
+	}
+
+	public void finishTileStreaming() throws MapCreationException {
+		atlasProgress.setMapCreationProgress((xMax - xMin + 1) * (yMax - yMin + 1));
+	}
+
 	protected void createTiles() throws InterruptedException, MapCreationException {
 		atlasProgress.initMapCreation((xMax - xMin + 1) * (yMax - yMin + 1));
 		ImageIO.setUseCache(false);
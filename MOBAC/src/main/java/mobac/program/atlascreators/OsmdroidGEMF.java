@@ -21,15 +21,24 @@ package mobac.program.atlascreators;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
 
+import mobac.exceptions.AtlasTestException;
 import mobac.program.annotations.AtlasCreatorName;
-import mobac.program.atlascreators.impl.gemf.GEMFFileCreator;
+import mobac.program.atlascreators.impl.MapTileWriter;
+import mobac.program.atlascreators.impl.gemf.GEMFArchiveWriter;
+import mobac.program.atlascreators.tileprovider.TileProvider;
+import mobac.program.interfaces.AtlasInterface;
+import mobac.program.interfaces.LayerInterface;
+import mobac.program.interfaces.MapInterface;
 
 /**
  * AtlasCreator implementation to create a GEMF archive file. For details about the format, please see the link in
- * {@link GEMFFileCreator}.
+ * {@link GEMFArchiveWriter}.
+ * <p>
+ * Each map of the atlas is stored as one tile range - parts of a map that overlap a previous map of the same source
+ * and zoom level are clipped, see {@link GEMFArchiveWriter#addRange(int, int, int, int, int, int)}. The tiles are
+ * appended to the archive directly while the maps are created, no intermediate tile files are written.
+ * </p>
  * 
  * @author M. Reiter
  * 
@@ -39,16 +48,65 @@ public class OsmdroidGEMF extends OSMTracker {
 
 	private static final String GEMF_FILE_EXTENSION = ".gemf";
 
+	private GEMFArchiveWriter gemfWriter = null;
+
+	private int sourceIndex;
+
 	@Override
-	public void finishAtlasCreation() throws IOException, InterruptedException {
-		List<File> tileFolders = new LinkedList<File>();
-		tileFolders.add(mapDir);
+	public void startAtlasCreation(AtlasInterface atlas, File customAtlasDir) throws IOException, AtlasTestException,
+			InterruptedException {
+		super.startAtlasCreation(atlas, customAtlasDir);
+		gemfWriter = new GEMFArchiveWriter(new File(atlasDir, atlas.getName() + GEMF_FILE_EXTENSION));
+		for (LayerInterface layer : atlas) {
+			for (MapInterface map : layer) {
+				int tileSize = map.getMapSource().getMapSpace().getTileSize();
+				int index = gemfWriter.getSourceIndex(map.getMapSource().getName());
+				gemfWriter.addRange(index, map.getZoom(), map.getMinTileCoordinate().x / tileSize,
+						map.getMaxTileCoordinate().x / tileSize, map.getMinTileCoordinate().y / tileSize,
+						map.getMaxTileCoordinate().y / tileSize);
+			}
+		}
+	}
 
-		String gemfLocation = new File(atlasDir, atlas.getName() + GEMF_FILE_EXTENSION).toString();
+	@Override
+	public void initializeMap(MapInterface map, TileProvider mapTileProvider) {
+		super.initializeMap(map, mapTileProvider);
+		sourceIndex = gemfWriter.getSourceIndex(map.getMapSource().getName());
+	}
 
-		new GEMFFileCreator(gemfLocation, tileFolders, log);
+	@Override
+	protected MapTileWriter createMapTileWriter() {
+		return new GEMFTileWriter();
+	}
 
+	@Override
+	public void abortAtlasCreation() throws IOException {
+		if (gemfWriter != null)
+			gemfWriter.abort();
+		gemfWriter = null;
+		super.abortAtlasCreation();
+	}
+
+	@Override
+	public void finishAtlasCreation() throws IOException, InterruptedException {
+		try {
+			gemfWriter.close();
+			log.debug("GEMF archive written to " + gemfWriter.getFileCount() + " file(s)");
+		} finally {
+			gemfWriter = null;
+		}
 		super.finishAtlasCreation();
 	}
 
-}
\ No newline at end of file
+	private class GEMFTileWriter implements MapTileWriter {
+
+		public void writeTile(int tilex, int tiley, String tileType, byte[] tileData) throws IOException {
+			if (!gemfWriter.writeTile(sourceIndex, zoom, tilex, tiley, tileData))
+				log.warn("Tile x=" + tilex + " y=" + tiley + " z=" + zoom + " is not part of the GEMF archive");
+		}
+
+		public void finalizeMap() throws IOException {
+		}
+	}
+
+}
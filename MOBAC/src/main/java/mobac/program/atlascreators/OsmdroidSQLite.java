@@ -37,20 +37,27 @@ import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSpace.ProjectionCategory;
 import mobac.program.interfaces.RequiresSQLite;
+import mobac.program.interfaces.TileSink;
+import mobac.program.interfaces.TileStreamTarget;
 import mobac.program.model.TileImageParameters.Name;
 import mobac.utilities.jdbc.SQLiteLoader;
 
 /**
  * http://sourceforge.net/tracker/?func=detail&aid=3154177&group_id=238075&atid=1105496
+ * <p>
+ * Supports tile streaming - the tiles are inserted while the map is downloaded.
+ * </p>
  */
 @AtlasCreatorName("Osmdroid SQLite")
 @SupportedParameters(names = { Name.format })
-public class OsmdroidSQLite extends AtlasCreator implements RequiresSQLite {
+public class OsmdroidSQLite extends AtlasCreator implements RequiresSQLite, TileStreamTarget {
 
 	private static final int MAX_BATCH_SIZE = 1000;
 
 	protected Connection conn = null;
 
+	private StreamingTileSink streamingTileSink = null;
+
 	public OsmdroidSQLite() {
 		super();
 		SQLiteLoader.loadSQLiteOrShowError();
@@ -140,6 +147,35 @@ public class OsmdroidSQLite extends AtlasCreator implements RequiresSQLite {
 		}
 	}
 
+	@Override
+	public TileStreamTarget getTileStreamTarget(MapInterface map) {
+		return this;
+	}
+
+	public TileSink startTileStreaming() throws MapCreationException {
+		atlasProgress.initMapCreation((xMax - xMin + 1) * (yMax - yMin + 1));
+		try {
+			conn.setAutoCommit(false);
+			PreparedStatement prep = conn.prepareStatement("INSERT or REPLACE INTO tiles VALUES (?, ?, ?);");
+			streamingTileSink = new StreamingTileSink(prep);
+		} catch (SQLException e) {
+			throw new MapCreationException(map, e);
+		}
+		return streamingTileSink;
+	}
+
+	public void finishTileStreaming() throws MapCreationException {
+		try {
+			streamingTileSink.finish();
+			conn.setAutoCommit(true);
+		} catch (SQLException e) {
+			throw new MapCreationException("Error writing tile image: " + e.getMessage(), map, e);
+		} finally {
+			streamingTileSink = null;
+		}
+		atlasProgress.setMapCreationProgress((xMax - xMin + 1) * (yMax - yMin + 1));
+	}
+
 	@Override
 	public void abortAtlasCreation() throws IOException {
 		SQLiteLoader.closeConnection(conn);
@@ -154,4 +190,55 @@ public class OsmdroidSQLite extends AtlasCreator implements RequiresSQLite {
 		super.finishAtlasCreation();
 	}
 
+	/**
+	 * Inserts the streamed tiles in batches. The tiles are converted concurrently by the calling download threads,
+	 * the database is accessed by one thread at a time.
+	 */
+	private class StreamingTileSink implements TileSink {
+
+		private final PreparedStatement prep;
+		private final String provider = map.getMapSource().getName();
+		private final Runtime r = Runtime.getRuntime();
+
+		private int batchTileCount = 0;
+
+		public StreamingTileSink(PreparedStatement prep) {
+			this.prep = prep;
+		}
+
+		public void putTile(int x, int y, byte[] data) throws IOException {
+			byte[] tileData = getStreamedTileData(x, y, data);
+			if (tileData == null)
+				return;
+			long z = zoom;
+			long index = (((z << z) + x) << z) + y;
+			synchronized (this) {
+				try {
+					prep.setLong(1, index);
+					prep.setString(2, provider);
+					prep.setBytes(3, tileData);
+					prep.addBatch();
+					batchTileCount++;
+					long heapAvailable = r.maxMemory() - r.totalMemory() + r.freeMemory();
+					if ((heapAvailable < HEAP_MIN) || (batchTileCount >= MAX_BATCH_SIZE)) {
+						log.trace("Executing batch containing " + batchTileCount + " tiles");
+						prep.executeBatch();
+						prep.clearBatch();
+						conn.commit();
+						batchTileCount = 0;
+					}
+				} catch (SQLException e) {
+					throw new IOException(e);
+				}
+				atlasProgress.incMapCreationProgress();
+			}
+		}
+
+		public synchronized void finish() throws SQLException {
+			prep.executeBatch();
+			prep.close();
+			conn.commit();
+		}
+	}
+
 }
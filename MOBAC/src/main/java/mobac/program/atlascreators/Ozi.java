@@ -37,6 +37,7 @@ import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSpace;
 import mobac.program.interfaces.MapSpace.ProjectionCategory;
+import mobac.program.model.Settings;
 import mobac.utilities.Utilities;
 import mobac.utilities.geo.GeoUtils;
 import mobac.utilities.imageio.PngXxlWriter;
@@ -211,7 +212,8 @@ public class Ozi extends AtlasCreator {
 		Color backgroundColor = mapSource.getBackgroundColor();
 		try {
 			fileOs = new FileOutputStream(new File(layerDir, mapName + ".png"));
-			PngXxlWriter pngWriter = new PngXxlWriter(width, height, fileOs);
+			PngXxlWriter pngWriter = new PngXxlWriter(width, height, fileOs,
+					Settings.getInstance().tileBuilderThreadCount);
 
 			for (int y = yMin; y <= yMax; y++) {
 				BufferedImage lineImage = new BufferedImage(width, tileLineHeight, BufferedImage.TYPE_INT_RGB);
@@ -20,8 +20,8 @@ import java.io.File;
 import java.io.IOException;
 
 import mobac.exceptions.AtlasTestException;
-import mobac.exceptions.MapCreationException;
 import mobac.program.annotations.AtlasCreatorName;
+import mobac.program.atlascreators.impl.MapTileWriter;
 import mobac.program.atlascreators.tileprovider.TileProvider;
 import mobac.program.interfaces.LayerInterface;
 import mobac.program.interfaces.MapInterface;
@@ -59,11 +59,9 @@ public class PathAway extends OSMTracker {
 			mapDir = new File(atlasDir, shortMapDir);
 	}
 
-	public void createMap() throws MapCreationException, InterruptedException {
-		// This means there should not be any resizing of the tiles.
-		if (mapTileWriter == null)
-			mapTileWriter = new PathAwayTileWriter();
-		createTiles();
+	@Override
+	protected MapTileWriter createMapTileWriter() {
+		return new PathAwayTileWriter();
 	}
 
 	@Override
@@ -32,14 +32,18 @@ import mobac.program.annotations.AtlasCreatorName;
 import mobac.program.annotations.SupportedParameters;
 import mobac.program.atlascreators.tileprovider.ConvertedRawTileProvider;
 import mobac.program.interfaces.AtlasInterface;
+import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSpace;
 import mobac.program.interfaces.MapSpace.ProjectionCategory;
 import mobac.program.interfaces.RequiresSQLite;
+import mobac.program.interfaces.TileSink;
+import mobac.program.interfaces.TileStreamTarget;
 import mobac.program.model.Settings;
 import mobac.program.model.TileImageParameters;
 import mobac.program.model.TileImageParameters.Name;
 import mobac.utilities.Utilities;
+import mobac.utilities.jdbc.SQLiteBulkLoad;
 import mobac.utilities.jdbc.SQLiteLoader;
 
 /**
@@ -55,10 +59,16 @@ import mobac.utilities.jdbc.SQLiteLoader;
  * (Database statements: {@link #RMAPS_TABLE_INFO_DDL} and {@link #RMAPS_UPDATE_INFO_SQL} ).<br>
  * Changes made by <a href="mailto:robertk506@gmail.com">Robert</a>, author of RMaps.
  * <p>
+ * Maps are created while they are downloaded (tile streaming) unless a subclass builds its own tiles.
+ * </p>
+ * <p>
+ * If {@link Settings#sqliteBulkLoad} is enabled the database is written using the {@link SQLiteBulkLoad} settings
+ * and the indexes are created when the atlas is finished.
+ * </p>
  */
 @AtlasCreatorName(value = "RMaps SQLite", type = "RMaps")
 @SupportedParameters(names = { Name.format })
-public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
+public class RMapsSQLite extends AtlasCreator implements RequiresSQLite, TileStreamTarget {
 
 	private static final int MAX_BATCH_SIZE = 1000;
 
@@ -76,6 +86,17 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 	protected Connection conn = null;
 	protected PreparedStatement prepStmt;
 
+	protected boolean bulkLoad = false;
+
+	private StreamingTileSink streamingTileSink = null;
+
+	/**
+	 * State of the current batch of tiles added via {@link #writeTile(int, int, int, byte[])}
+	 */
+	private int batchTileCount = 0;
+	private long batchBytes = 0;
+	private int tilesWritten = 0;
+
 	public RMapsSQLite() {
 		super();
 		SQLiteLoader.loadSQLiteOrShowError();
@@ -96,12 +117,18 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 		if (customAtlasDir == null)
 			customAtlasDir = Settings.getInstance().getAtlasOutputDirectory();
 		super.startAtlasCreation(atlas, customAtlasDir);
+		bulkLoad = Settings.getInstance().sqliteBulkLoad;
 		databaseFile = new File(atlasDir, getDatabaseFileName());
 		log.debug("SQLite Database file: " + databaseFile);
 	}
 
 	@Override
 	public void createMap() throws MapCreationException, InterruptedException {
+		prepareDatabase();
+		createTiles();
+	}
+
+	protected void prepareDatabase() throws MapCreationException {
 		try {
 			Utilities.mkDir(atlasDir);
 		} catch (IOException e) {
@@ -115,17 +142,52 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 		try {
 			openConnection();
 			initializeDB();
-			createTiles();
 		} catch (SQLException e) {
 			throw new MapCreationException("Error creating SQL database \"" + databaseFile + "\": " + e.getMessage(),
 					map, e);
 		}
 	}
 
+	@Override
+	public TileStreamTarget getTileStreamTarget(MapInterface map) {
+		return this;
+	}
+
+	public TileSink startTileStreaming() throws MapCreationException {
+		prepareDatabase();
+		TileImageParameters param = map.getParameters();
+		if (param != null)
+			mapDlTileProvider = new ConvertedRawTileProvider(mapDlTileProvider, param.getFormat());
+		atlasProgress.initMapCreation((xMax - xMin + 1) * (yMax - yMin + 1));
+		try {
+			conn.setAutoCommit(false);
+			prepStmt = conn.prepareStatement(getTileInsertSQL());
+		} catch (SQLException e) {
+			throw new MapCreationException(map, e);
+		}
+		resetBatch();
+		streamingTileSink = new StreamingTileSink();
+		return streamingTileSink;
+	}
+
+	public void finishTileStreaming() throws MapCreationException {
+		try {
+			streamingTileSink.finish();
+		} catch (SQLException e) {
+			throw new MapCreationException(map, e);
+		} finally {
+			streamingTileSink = null;
+		}
+		atlasProgress.setMapCreationProgress((xMax - xMin + 1) * (yMax - yMin + 1));
+	}
+
 	protected void openConnection() throws SQLException {
 		if (conn == null || conn.isClosed()) {
+			boolean newDatabase = !databaseFile.isFile();
 			String url = "jdbc:sqlite:/" + databaseFile.getAbsolutePath();
 			conn = DriverManager.getConnection(url);
+			if (bulkLoad)
+				SQLiteBulkLoad.configure(conn, newDatabase);
 		}
 	}
 
@@ -138,6 +200,18 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 
 	@Override
 	public void finishAtlasCreation() throws IOException, InterruptedException {
+		if (bulkLoad && conn != null) {
+			try {
+				log.debug("Creating indexes");
+				Statement stat = conn.createStatement();
+				createIndexes(stat);
+				stat.close();
+				if (!conn.getAutoCommit())
+					conn.commit();
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+		}
 		SQLiteLoader.closeConnection(conn);
 		conn = null;
 		super.finishAtlasCreation();
@@ -146,7 +220,8 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 	protected void initializeDB() throws SQLException {
 		Statement stat = conn.createStatement();
 		stat.executeUpdate(TABLE_DDL);
-		stat.executeUpdate(INDEX_DDL);
+		if (!bulkLoad)
+			createIndexes(stat);
 		createInfoTable(stat);
 
 		stat.executeUpdate("CREATE TABLE IF NOT EXISTS android_metadata (locale TEXT)");
@@ -157,6 +232,13 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 		stat.close();
 	}
 
+	/**
+	 * Creates the indexes of the tile table. In bulk load mode this is done after all tiles have been inserted.
+	 */
+	protected void createIndexes(Statement stat) throws SQLException {
+		stat.executeUpdate(INDEX_DDL);
+	}
+
 	protected void createInfoTable(Statement stat) throws SQLException {
 		stat.executeUpdate(RMAPS_TABLE_INFO_DDL);
 	}
@@ -169,11 +251,8 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 			mapDlTileProvider = new ConvertedRawTileProvider(mapDlTileProvider, param.getFormat());
 		try {
 			conn.setAutoCommit(false);
-			int batchTileCount = 0;
-			int tilesWritten = 0;
-			Runtime r = Runtime.getRuntime();
-			long heapMaxSize = r.maxMemory();
 			prepStmt = conn.prepareStatement(getTileInsertSQL());
+			resetBatch();
 			for (int x = xMin; x <= xMax; x++) {
 				for (int y = yMin; y <= yMax; y++) {
 					checkUserAbort();
@@ -182,18 +261,9 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 						byte[] sourceTileData = mapDlTileProvider.getTileData(x, y);
 						if (sourceTileData != null) {
 							writeTile(x, y, zoom, sourceTileData);
-							tilesWritten++;
-							long heapAvailable = heapMaxSize - r.totalMemory() + r.freeMemory();
-
-							batchTileCount++;
-							if ((heapAvailable < HEAP_MIN) || (batchTileCount >= MAX_BATCH_SIZE)) {
-								log.trace("Executing batch containing " + batchTileCount + " tiles");
-								prepStmt.executeBatch();
-								prepStmt.clearBatch();
-								System.gc();
-								conn.commit();
+							if (isBatchFull(sourceTileData.length)) {
 								atlasProgress.incMapCreationProgress(batchTileCount);
-								batchTileCount = 0;
+								commitBatch();
 							}
 						}
 					} catch (IOException e) {
@@ -201,19 +271,60 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 					}
 				}
 			}
-			prepStmt.executeBatch();
-			prepStmt.clearBatch();
-			System.gc();
-			if (tilesWritten > 0)
-				updateTileMetaInfo();
-			log.trace("Final commit containing " + batchTileCount + " tiles");
-			conn.commit();
+			finishBatch();
 			atlasProgress.setMapCreationProgress(maxMapProgress);
 		} catch (SQLException e) {
 			throw new MapCreationException(map, e);
 		}
 	}
 
+	private void resetBatch() {
+		batchTileCount = 0;
+		batchBytes = 0;
+		tilesWritten = 0;
+	}
+
+	/**
+	 * Accounts a tile added to the current batch.
+	 * 
+	 * @param tileSize
+	 * @return <code>true</code> if the batch has to be committed
+	 */
+	private boolean isBatchFull(int tileSize) {
+		tilesWritten++;
+		batchTileCount++;
+		batchBytes += tileSize;
+		if (bulkLoad) {
+			if (batchBytes >= SQLiteBulkLoad.MAX_BATCH_BYTES || batchTileCount >= SQLiteBulkLoad.MAX_BATCH_TILES)
+				return true;
+		} else if (batchTileCount >= MAX_BATCH_SIZE)
+			return true;
+		Runtime r = Runtime.getRuntime();
+		long heapAvailable = r.maxMemory() - r.totalMemory() + r.freeMemory();
+		return heapAvailable < HEAP_MIN;
+	}
+
+	private void commitBatch() throws SQLException {
+		log.trace("Executing batch containing " + batchTileCount + " tiles (" + batchBytes + " bytes)");
+		prepStmt.executeBatch();
+		prepStmt.clearBatch();
+		conn.commit();
+		batchTileCount = 0;
+		batchBytes = 0;
+	}
+
+	/**
+	 * Executes the last batch of the map, updates the meta info and commits.
+	 */
+	private void finishBatch() throws SQLException {
+		prepStmt.executeBatch();
+		prepStmt.clearBatch();
+		if (tilesWritten > 0)
+			updateTileMetaInfo();
+		log.trace("Final commit containing " + batchTileCount + " tiles");
+		conn.commit();
+	}
+
 	protected void updateTileMetaInfo() throws SQLException {
 		Statement stat = conn.createStatement();
 		ResultSet rs = stat.executeQuery(RMAPS_INFO_MAX_SQL);
@@ -252,4 +363,31 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 		return INSERT_SQL;
 	}
 
+	/**
+	 * Writes the streamed tiles in batches. The tiles are converted concurrently by the calling download threads,
+	 * the database is accessed by one thread at a time.
+	 */
+	private class StreamingTileSink implements TileSink {
+
+		public void putTile(int x, int y, byte[] data) throws IOException {
+			byte[] tileData = getStreamedTileData(x, y, data);
+			if (tileData == null)
+				return;
+			synchronized (this) {
+				try {
+					writeTile(x, y, zoom, tileData);
+					if (isBatchFull(tileData.length))
+						commitBatch();
+				} catch (SQLException e) {
+					throw new IOException(e);
+				}
+				atlasProgress.incMapCreationProgress();
+			}
+		}
+
+		public synchronized void finish() throws SQLException {
+			finishBatch();
+		}
+	}
+
 }
@@ -20,6 +20,11 @@ import mobac.exceptions.MapCreationException;
 import mobac.program.annotations.AtlasCreatorName;
 import mobac.program.interfaces.MapSource;
 
+/**
+ * Only downloads the tiles into the tile store - no tile archive is written. Tiles already present in the tile store and
+ * not expired are skipped by the {@link mobac.program.download.DownloadJobProducerThread} which reads the region of
+ * each map in one pass via {@link mobac.program.tilestore.TileStore#getTiles(int, int, int, int, int, MapSource)}.
+ */
 @AtlasCreatorName(value = "Tile store download only", type = "TILESTORE")
 public class TileStoreDownload extends AtlasCreator {
 
@@ -16,20 +16,36 @@
  ******************************************************************************/
 package mobac.program.atlascreators.impl;
 
+import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
 import mobac.exceptions.MapCreationException;
 import mobac.program.atlascreators.AtlasCreator;
+import mobac.program.atlascreators.tileprovider.CacheTileProvider;
+import mobac.program.atlascreators.tileprovider.TileImageCache;
 import mobac.program.atlascreators.tileprovider.TileProvider;
 import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.TileImageDataWriter;
+import mobac.program.model.Settings;
+import mobac.program.model.TileImageFormat;
 import mobac.program.model.TileImageParameters;
+import mobac.program.tiledatawriter.ImageWriterPool;
 import mobac.utilities.MyMath;
 
 import org.apache.log4j.Logger;
@@ -44,6 +60,12 @@ public class MapTileBuilder {
 	private final MapSource mapSource;
 	private final TileImageParameters parameters;
 	private final TileImageDataWriter tileImageDataWriter;
+
+	/**
+	 * Format of the custom tiles if they are encoded by the writers provided by {@link ImageWriterPool}.
+	 * <code>null</code> if a special {@link TileImageDataWriter} has been specified.
+	 */
+	private final TileImageFormat pooledWriterFormat;
 	private final int tileSize;
 	private final int xMin;
 	private final int xMax;
@@ -63,6 +85,13 @@ public class MapTileBuilder {
 	final int xEnd;
 	final int yEnd;
 
+	private String tileType;
+
+	/**
+	 * Cache for the decoded original map tiles. Not used if the tile provider is a {@link CacheTileProvider}.
+	 */
+	private final TileImageCache tileImageCache;
+
 	protected final MapTileWriter mapTileWriter;
 
 	/**
@@ -104,6 +133,10 @@ public class MapTileBuilder {
 		yMax = atlasCreator.getYMax();
 		yMin = atlasCreator.getYMin();
 		parameters = atlasCreator.getParameters();
+		if (tileImageDataWriter == parameters.getFormat().getDataWriter())
+			pooledWriterFormat = parameters.getFormat();
+		else
+			pooledWriterFormat = null;
 		// left upper point on the map in pixels
 		// regarding the current zoom level
 		xStart = xMin * tileSize;
@@ -128,14 +161,16 @@ public class MapTileBuilder {
 				realHeight = mergedHeight;
 		}
 		customTileCount = MyMath.divCeil(mergedWidth, realWidth) * MyMath.divCeil(mergedHeight, realHeight);
+		if (mapDlTileProvider instanceof CacheTileProvider) {
+			tileImageCache = null;
+			// The custom tiles are created row by row, therefore the original tiles are requested roughly in
+			// row-major order
+			((CacheTileProvider) mapDlTileProvider).setTileRange(xMin, xMax, yMin, yMax);
+		} else
+			tileImageCache = new TileImageCache();
 	}
 
 	public void createTiles() throws MapCreationException, InterruptedException {
-
-		// Absolute positions
-		int xAbsPos = xStart;
-		int yAbsPos = yStart;
-
 		log.trace("tile size: " + realWidth + " * " + realHeight);
 		log.trace("X: from " + xStart + " to " + xEnd);
 		log.trace("Y: from " + yStart + " to " + yEnd);
@@ -143,12 +178,21 @@ public class MapTileBuilder {
 		// We don't work with large images, therefore we can disable the (file)
 		// cache of ImageIO. This will speed up the creation process a bit
 		ImageIO.setUseCache(false);
-		ByteArrayOutputStream buf = new ByteArrayOutputStream(32768);
-		tileImageDataWriter.initialize();
-		int currentTileHeight = realHeight;
-		int currentTileWidth = realWidth;
+		tileType = tileImageDataWriter.getType().getFileExt();
+
+		int threadCount = getThreadCount();
+		log.debug("Creating " + customTileCount + " custom tiles using " + threadCount + " thread(s)");
+		CustomTileQueue queue;
+		if (threadCount > 1)
+			queue = new ParallelTileQueue(threadCount);
+		else
+			queue = new SequentialTileQueue();
 		try {
-			String tileType = tileImageDataWriter.getType().getFileExt();
+			// Absolute positions
+			int xAbsPos = xStart;
+			int yAbsPos = yStart;
+			int currentTileHeight = realHeight;
+			int currentTileWidth = realWidth;
 			int tiley = 0;
 			while (yAbsPos < yEnd) {
 				int tilex = 0;
@@ -159,110 +203,323 @@ public class MapTileBuilder {
 					if (useRealTileSize)
 						currentTileWidth = Math.min(realWidth, xEnd - xAbsPos + 1);
 					atlasCreator.checkUserAbort();
-					atlasCreator.getAtlasProgress().incMapCreationProgress();
-					BufferedImage tileImage = new BufferedImage(currentTileWidth, currentTileHeight,
-							BufferedImage.TYPE_3BYTE_BGR);
-					buf.reset();
-					try {
-						Graphics2D graphics = tileImage.createGraphics();
-						prepareTile(graphics);
-						paintCustomTile(graphics, xAbsPos, yAbsPos);
-						graphics.dispose();
-						tileImageDataWriter.processImage(tileImage, buf);
-						mapTileWriter.writeTile(tilex, tiley, tileType, buf.toByteArray());
-					} catch (IOException e) {
-						throw new MapCreationException("Error writing tile image: " + e.getMessage(), map, e);
-					}
-
+					queue.addTile(new CustomTile(tilex, tiley, xAbsPos, yAbsPos, currentTileWidth, currentTileHeight));
 					tilex++;
 					xAbsPos += realWidth;
 				}
 				tiley++;
 				yAbsPos += realHeight;
 			}
+			queue.finish();
+		} catch (IOException e) {
+			throw new MapCreationException("Error writing tile image: " + e.getMessage(), map, e);
 		} finally {
-			tileImageDataWriter.dispose();
+			queue.dispose();
+			if (tileImageCache != null) {
+				log.debug(tileImageCache);
+				tileImageCache.clear();
+			}
 		}
 	}
 
+	/**
+	 * @return number of threads to be used for painting and encoding the custom tiles
+	 * @see Settings#tileBuilderThreadCount
+	 */
+	protected int getThreadCount() {
+		int threadCount = Settings.getInstance().tileBuilderThreadCount;
+		if (threadCount <= 0)
+			threadCount = Runtime.getRuntime().availableProcessors();
+		return Math.max(1, Math.min(threadCount, customTileCount));
+	}
+
 	protected void prepareTile(Graphics2D graphics) {
 		graphics.setColor(mapSource.getBackgroundColor());
 		graphics.fillRect(0, 0, realWidth, realHeight);
 	}
 
+	public int getCustomTileCount() {
+		return customTileCount;
+	}
+
+	private BufferedImage loadOriginalMapTile(int xTile, int yTile) throws Exception {
+		if (tileImageCache == null)
+			// CacheTileProvider is thread safe and caches the decoded images itself
+			return mapDlTileProvider.getTileImage(xTile, yTile);
+		return tileImageCache.getTileImage(mapDlTileProvider, xTile, yTile);
+	}
+
 	/**
-	 * Paints the graphics of the custom tile specified by the pixel coordinates <code>xAbsPos</code> and
-	 * <code>yAbsPos</code> on the currently selected map & layer.
+	 * Returns an initialized writer to be used by the calling thread. If the tiles are encoded by the default
+	 * writer of the tile format the writer is taken from the {@link ImageWriterPool}, otherwise it is a duplicate of
+	 * the specified {@link TileImageDataWriter}.
 	 * 
-	 * @param graphics
-	 * @param xAbsPos
-	 * @param yAbsPos
+	 * @param duplicate
+	 *            only relevant if the writers are not pooled: <code>false</code> returns the specified
+	 *            {@link TileImageDataWriter} itself
+	 * @return
 	 */
-	private void paintCustomTile(Graphics2D graphics, int xAbsPos, int yAbsPos) {
-		int xTile = xAbsPos / tileSize;
-		int xTileOffset = -(xAbsPos % tileSize);
-
-		for (int x = xTileOffset; x < realWidth; x += tileSize) {
-			int yTile = yAbsPos / tileSize;
-			int yTileOffset = -(yAbsPos % tileSize);
-			for (int y = yTileOffset; y < realHeight; y += tileSize) {
-				try {
-					BufferedImage orgTileImage = loadOriginalMapTile(xTile, yTile);
-					if (orgTileImage != null) {
-						int w = orgTileImage.getWidth();
-						int h = orgTileImage.getHeight();
-						graphics.drawImage(orgTileImage, xTileOffset, yTileOffset, w, h, null);
-					}
-				} catch (Exception e) {
-					log.error("Error while painting sub-tile", e);
+	private TileImageDataWriter getWriter(boolean duplicate) {
+		TileImageDataWriter writer;
+		if (pooledWriterFormat != null)
+			writer = ImageWriterPool.getDataWriter(pooledWriterFormat);
+		else if (duplicate)
+			writer = tileImageDataWriter.duplicate();
+		else
+			writer = tileImageDataWriter;
+		// Pooled writers are already initialized - this resets the state of the previous map
+		writer.initialize();
+		return writer;
+	}
+
+	/**
+	 * Disposes a writer returned by {@link #getWriter(boolean)} unless it belongs to the {@link ImageWriterPool}.
+	 */
+	private void releaseWriter(TileImageDataWriter writer) {
+		if (pooledWriterFormat == null)
+			writer.dispose();
+	}
+
+	/**
+	 * Receives the custom tiles in the order they have to be passed to the {@link MapTileWriter}.
+	 */
+	private interface CustomTileQueue {
+
+		void addTile(CustomTile tile) throws IOException, InterruptedException;
+
+		/**
+		 * Waits until all queued tiles have been written.
+		 */
+		void finish() throws IOException, InterruptedException;
+
+		void dispose();
+	}
+
+	/**
+	 * Paints, encodes and writes each tile on the calling thread.
+	 */
+	private class SequentialTileQueue implements CustomTileQueue {
+
+		private final TileRenderer renderer;
+
+		public SequentialTileQueue() {
+			renderer = new TileRenderer(getWriter(false));
+		}
+
+		public void addTile(CustomTile tile) throws IOException {
+			atlasCreator.getAtlasProgress().incMapCreationProgress();
+			mapTileWriter.writeTile(tile.tilex, tile.tiley, tileType, renderer.renderTile(tile));
+		}
+
+		public void finish() {
+		}
+
+		public void dispose() {
+			releaseWriter(renderer.writer);
+		}
+	}
+
+	/**
+	 * Paints and encodes the tiles on a pool of worker threads, each of them using its own
+	 * {@link TileImageDataWriter} and image buffer. The encoded tiles are written by the calling thread in the same
+	 * order they have been added, therefore the {@link MapTileWriter} implementations do not have to be thread safe.
+	 * The number of tiles processed in advance is limited to bound the memory used by encoded tiles waiting to be
+	 * written.
+	 */
+	private class ParallelTileQueue implements CustomTileQueue, ThreadFactory {
+
+		private final ExecutorService executor;
+
+		private final int maxPendingTiles;
+
+		private final LinkedList<Future<CustomTile>> pendingTiles = new LinkedList<Future<CustomTile>>();
+
+		private final List<TileRenderer> renderers = new ArrayList<TileRenderer>();
+
+		private final ThreadLocal<TileRenderer> workerRenderer = new ThreadLocal<TileRenderer>() {
+
+			@Override
+			protected TileRenderer initialValue() {
+				TileImageDataWriter writer = getWriter(true);
+				TileRenderer renderer = new TileRenderer(writer);
+				synchronized (renderers) {
+					renderers.add(renderer);
 				}
-				yTile++;
-				yTileOffset += tileSize;
+				return renderer;
 			}
-			xTile++;
-			xTileOffset += tileSize;
+		};
+
+		private int threadNum = 0;
+
+		public ParallelTileQueue(int threadCount) {
+			maxPendingTiles = threadCount * 4;
+			executor = Executors.newFixedThreadPool(threadCount, this);
 		}
-	}
 
-	public int getCustomTileCount() {
-		return customTileCount;
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "MapTileBuilder-" + (threadNum++));
+			t.setDaemon(true);
+			return t;
+		}
+
+		public void addTile(final CustomTile tile) throws IOException, InterruptedException {
+			pendingTiles.add(executor.submit(new Callable<CustomTile>() {
+
+				public CustomTile call() throws Exception {
+					tile.data = workerRenderer.get().renderTile(tile);
+					return tile;
+				}
+			}));
+			if (pendingTiles.size() >= maxPendingTiles)
+				writeNextTile();
+		}
+
+		public void finish() throws IOException, InterruptedException {
+			while (!pendingTiles.isEmpty()) {
+				atlasCreator.checkUserAbort();
+				writeNextTile();
+			}
+		}
+
+		private void writeNextTile() throws IOException, InterruptedException {
+			Future<CustomTile> future = pendingTiles.removeFirst();
+			CustomTile tile;
+			try {
+				tile = future.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new IOException(cause);
+			}
+			atlasCreator.getAtlasProgress().incMapCreationProgress();
+			mapTileWriter.writeTile(tile.tilex, tile.tiley, tileType, tile.data);
+		}
+
+		public void dispose() {
+			executor.shutdownNow();
+			boolean terminated = false;
+			try {
+				terminated = executor.awaitTermination(60, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!terminated) {
+				// Do not dispose writers that may still be in use
+				log.warn("Map tile builder threads did not terminate");
+				return;
+			}
+			synchronized (renderers) {
+				for (TileRenderer renderer : renderers)
+					releaseWriter(renderer.writer);
+				renderers.clear();
+			}
+		}
 	}
 
 	/**
-	 * A simple local cache holding the last 10 loaded original tiles. If the custom tile size is smaller than 256x256
-	 * the efficiency of this cache is very high (~ 75% hit rate).
+	 * Paints and encodes custom tiles. An instance is used by one thread at a time only.
 	 */
-	private CachedTile[] cache = new CachedTile[10];
-	private int cachePos = 0;
+	private class TileRenderer {
 
-	private BufferedImage loadOriginalMapTile(int xTile, int yTile) throws Exception {
-		for (CachedTile ct : cache) {
-			if (ct == null)
-				continue;
-			if (ct.xTile == xTile && ct.yTile == yTile) {
-				// log.trace("cache hit");
-				return ct.image;
+		private final TileImageDataWriter writer;
+
+		private final ByteArrayOutputStream buf = new ByteArrayOutputStream(32768);
+
+		private BufferedImage tileImage = null;
+
+		public TileRenderer(TileImageDataWriter writer) {
+			this.writer = writer;
+		}
+
+		public byte[] renderTile(CustomTile tile) throws IOException {
+			BufferedImage image = getTileImage(tile.width, tile.height);
+			Graphics2D graphics = image.createGraphics();
+			try {
+				prepareTile(graphics);
+				paintCustomTile(graphics, tile.xAbsPos, tile.yAbsPos);
+			} finally {
+				graphics.dispose();
+			}
+			buf.reset();
+			writer.processImage(image, buf);
+			return buf.toByteArray();
+		}
+
+		/**
+		 * Returns the image buffer of the previous tile if it has the requested size, otherwise a new one is
+		 * allocated. Only the tiles at the right and bottom border of the map can have a different size. A reused
+		 * image is cleared to black like a new one: {@link MapTileBuilder#prepareTile(Graphics2D)} paints the
+		 * background color over the existing pixels, so a translucent background would let the previous tile show
+		 * through.
+		 */
+		private BufferedImage getTileImage(int width, int height) {
+			if (tileImage != null && tileImage.getWidth() == width && tileImage.getHeight() == height) {
+				Graphics2D graphics = tileImage.createGraphics();
+				graphics.setColor(Color.BLACK);
+				graphics.fillRect(0, 0, width, height);
+				graphics.dispose();
+			} else
+				tileImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+			return tileImage;
+		}
+
+		/**
+		 * Paints the graphics of the custom tile specified by the pixel coordinates <code>xAbsPos</code> and
+		 * <code>yAbsPos</code> on the currently selected map & layer.
+		 * 
+		 * @param graphics
+		 * @param xAbsPos
+		 * @param yAbsPos
+		 */
+		private void paintCustomTile(Graphics2D graphics, int xAbsPos, int yAbsPos) {
+			int xTile = xAbsPos / tileSize;
+			int xTileOffset = -(xAbsPos % tileSize);
+
+			for (int x = xTileOffset; x < realWidth; x += tileSize) {
+				int yTile = yAbsPos / tileSize;
+				int yTileOffset = -(yAbsPos % tileSize);
+				for (int y = yTileOffset; y < realHeight; y += tileSize) {
+					try {
+						BufferedImage orgTileImage = loadOriginalMapTile(xTile, yTile);
+						if (orgTileImage != null) {
+							int w = orgTileImage.getWidth();
+							int h = orgTileImage.getHeight();
+							graphics.drawImage(orgTileImage, xTileOffset, yTileOffset, w, h, null);
+						}
+					} catch (Exception e) {
+						log.error("Error while painting sub-tile", e);
+					}
+					yTile++;
+					yTileOffset += tileSize;
+				}
+				xTile++;
+				xTileOffset += tileSize;
 			}
 		}
-		// log.trace("cache miss");
-		BufferedImage image = mapDlTileProvider.getTileImage(xTile, yTile);
-		if (image == null)
-			return null;
-		cache[cachePos] = new CachedTile(image, xTile, yTile);
-		cachePos = (cachePos + 1) % cache.length;
-		return image;
 	}
 
-	private static class CachedTile {
-		BufferedImage image;
-		int xTile;
-		int yTile;
+	private static class CustomTile {
+		final int tilex;
+		final int tiley;
+		final int xAbsPos;
+		final int yAbsPos;
+		final int width;
+		final int height;
+		byte[] data = null;
 
-		public CachedTile(BufferedImage image, int tile, int tile2) {
+		public CustomTile(int tilex, int tiley, int xAbsPos, int yAbsPos, int width, int height) {
 			super();
-			this.image = image;
-			xTile = tile;
-			yTile = tile2;
+			this.tilex = tilex;
+			this.tiley = tiley;
+			this.xAbsPos = xAbsPos;
+			this.yAbsPos = yAbsPos;
+			this.width = width;
+			this.height = height;
 		}
 	}
 }
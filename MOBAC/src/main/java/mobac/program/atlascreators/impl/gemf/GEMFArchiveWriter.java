@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.atlascreators.impl.gemf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import mobac.utilities.Charsets;
+import mobac.utilities.Utilities;
+
+/**
+ * Writes a GEMF archive while the tiles are created. Reference about the GEMF format:
+ * https://sites.google.com/site/abudden/android-map-store
+ * <p>
+ * All sources and tile ranges have to be added before the first tile is written. The header and the tile index are
+ * then written at the beginning of the archive and the tile data is appended in the order the tiles are written. The
+ * index entry of each tile is updated as soon as its data has been appended, therefore tiles can be written in any
+ * order. Tiles never written remain as empty entries (length 0) in the index.
+ * </p>
+ * <p>
+ * If the archive exceeds the file size limit the data is continued in additional files with numerical suffixes, e.g.
+ * <code>test.gemf-1</code>, <code>test.gemf-2</code>. The tile offsets in the index refer to the concatenation of all
+ * files.
+ * </p>
+ */
+public class GEMFArchiveWriter {
+
+	public static final long FILE_SIZE_LIMIT = 1L * 1024 * 1024 * 1024; // 1GB
+
+	private static final int VERSION = 4;
+	private static final int TILE_SIZE = 256;
+
+	private static final int U32_SIZE = 4;
+	private static final int U64_SIZE = 8;
+
+	private static final int RANGE_SIZE = 6 * U32_SIZE + U64_SIZE;
+	private static final int INDEX_ENTRY_SIZE = U64_SIZE + U32_SIZE;
+
+	private final File file;
+	private final long fileSizeLimit;
+
+	private final List<String> sources = new ArrayList<String>();
+	private final List<GEMFRange> ranges = new ArrayList<GEMFRange>();
+
+	/**
+	 * The first archive file containing the header and the tile index
+	 */
+	private RandomAccessFile indexFile = null;
+	private FileChannel indexChannel = null;
+
+	private RandomAccessFile dataFile = null;
+	private FileChannel dataChannel = null;
+	private int dataFileCount = 0;
+
+	/**
+	 * Size of all completed archive files
+	 */
+	private long dataFileOffset = 0;
+
+	/**
+	 * Write position in the current archive file
+	 */
+	private long dataPosition = 0;
+
+	private GEMFRange lastRange = null;
+
+	private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+
+	public GEMFArchiveWriter(File file) {
+		this(file, FILE_SIZE_LIMIT);
+	}
+
+	/**
+	 * @param file
+	 *            the first archive file
+	 * @param fileSizeLimit
+	 *            maximum size of each archive file in bytes
+	 */
+	public GEMFArchiveWriter(File file, long fileSizeLimit) {
+		this.file = file;
+		this.fileSizeLimit = fileSizeLimit;
+	}
+
+	/**
+	 * @param name
+	 * @return the index of the source with the specified name - the source is added if it does not exist yet
+	 */
+	public int getSourceIndex(String name) {
+		int index = sources.indexOf(name);
+		if (index >= 0)
+			return index;
+		if (indexChannel != null)
+			throw new IllegalStateException("Archive header has already been written");
+		sources.add(name);
+		return sources.size() - 1;
+	}
+
+	/**
+	 * Adds a rectangular range of tiles (including the max values). The parts of the range that overlap ranges added
+	 * before for the same source and zoom level are clipped, therefore the range may be split into up to four smaller
+	 * ranges per overlapping range. Each tile belongs to exactly one range of the archive.
+	 */
+	public void addRange(int sourceIndex, int zoom, int xMin, int xMax, int yMin, int yMax) {
+		if (indexChannel != null)
+			throw new IllegalStateException("Archive header has already been written");
+		if (sourceIndex < 0 || sourceIndex >= sources.size())
+			throw new IllegalArgumentException("Invalid source index " + sourceIndex);
+		List<GEMFRange> parts = new ArrayList<GEMFRange>();
+		parts.add(new GEMFRange(sourceIndex, zoom, xMin, xMax, yMin, yMax));
+		for (GEMFRange r : ranges) {
+			if (r.sourceIndex != sourceIndex || r.zoom != zoom)
+				continue;
+			List<GEMFRange> clipped = new ArrayList<GEMFRange>(parts.size());
+			for (GEMFRange part : parts)
+				part.subtract(r, clipped);
+			parts = clipped;
+		}
+		ranges.addAll(parts);
+	}
+
+	/**
+	 * @return number of tile ranges of the archive
+	 */
+	public int getRangeCount() {
+		return ranges.size();
+	}
+
+	/**
+	 * Appends the tile data to the archive. If the tile has been written before the index entry is replaced.
+	 * 
+	 * @param sourceIndex
+	 * @param zoom
+	 * @param x
+	 * @param y
+	 * @param data
+	 * @return <code>false</code> if the tile is not part of any range of the archive
+	 * @throws IOException
+	 */
+	public boolean writeTile(int sourceIndex, int zoom, int x, int y, byte[] data) throws IOException {
+		GEMFRange range = findRange(sourceIndex, zoom, x, y);
+		if (range == null)
+			return false;
+		if (indexChannel == null)
+			writeHeader();
+		if (dataPosition > 0 && dataPosition + data.length > fileSizeLimit)
+			startNextDataFile();
+		long offset = dataFileOffset + dataPosition;
+		writeFully(dataChannel, ByteBuffer.wrap(data), dataPosition);
+		dataPosition += data.length;
+
+		indexEntry.clear();
+		indexEntry.putLong(offset);
+		indexEntry.putInt(data.length);
+		indexEntry.flip();
+		writeFully(indexChannel, indexEntry, range.getIndexEntryOffset(x, y));
+		return true;
+	}
+
+	/**
+	 * Closes the archive. If no tile has been written an archive containing only the header and the empty index is
+	 * created.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			if (indexChannel == null)
+				writeHeader();
+		} finally {
+			abort();
+		}
+	}
+
+	/**
+	 * Closes the archive without writing the header if it has not been written yet.
+	 */
+	public void abort() {
+		if (dataFile != indexFile)
+			Utilities.closeFile(dataFile);
+		Utilities.closeFile(indexFile);
+		indexFile = null;
+		indexChannel = null;
+		dataFile = null;
+		dataChannel = null;
+	}
+
+	/**
+	 * @return number of archive files including the additional files created because of the file size limit
+	 */
+	public int getFileCount() {
+		return dataFileCount + 1;
+	}
+
+	private GEMFRange findRange(int sourceIndex, int zoom, int x, int y) {
+		GEMFRange range = lastRange;
+		if (range != null && range.contains(sourceIndex, zoom, x, y))
+			return range;
+		for (GEMFRange r : ranges) {
+			if (r.contains(sourceIndex, zoom, x, y)) {
+				lastRange = r;
+				return r;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes header, source list, range list and an empty tile index and calculates the index offsets of the ranges.
+	 */
+	private void writeHeader() throws IOException {
+		List<byte[]> sourceNames = new ArrayList<byte[]>(sources.size());
+		int sourceListSize = 0;
+		for (String source : sources) {
+			byte[] name = source.getBytes(Charsets.UTF_8);
+			sourceNames.add(name);
+			sourceListSize += U32_SIZE + U32_SIZE + name.length;
+		}
+		int headerSize = 3 * U32_SIZE + sourceListSize + U32_SIZE + ranges.size() * RANGE_SIZE;
+		long offset = headerSize;
+		for (GEMFRange range : ranges) {
+			range.offset = offset;
+			offset += range.getTileCount() * INDEX_ENTRY_SIZE;
+		}
+
+		Utilities.mkDirs(file.getAbsoluteFile().getParentFile());
+		indexFile = new RandomAccessFile(file, "rw");
+		indexFile.setLength(0);
+		indexChannel = indexFile.getChannel();
+		dataFile = indexFile;
+		dataChannel = indexChannel;
+
+		ByteBuffer buf = ByteBuffer.allocate(headerSize);
+		buf.putInt(VERSION);
+		buf.putInt(TILE_SIZE);
+		buf.putInt(sources.size());
+		for (int i = 0; i < sourceNames.size(); i++) {
+			byte[] name = sourceNames.get(i);
+			buf.putInt(i);
+			buf.putInt(name.length);
+			buf.put(name);
+		}
+		buf.putInt(ranges.size());
+		for (GEMFRange range : ranges) {
+			buf.putInt(range.zoom);
+			buf.putInt(range.xMin);
+			buf.putInt(range.xMax);
+			buf.putInt(range.yMin);
+			buf.putInt(range.yMax);
+			buf.putInt(range.sourceIndex);
+			buf.putLong(range.offset);
+		}
+		buf.flip();
+		writeFully(indexChannel, buf, 0);
+
+		// Empty index entries for all tiles
+		ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+		long position = headerSize;
+		while (position < offset) {
+			zeros.clear();
+			zeros.limit((int) Math.min(zeros.capacity(), offset - position));
+			position += writeFully(indexChannel, zeros, position);
+		}
+		dataPosition = offset;
+	}
+
+	private void startNextDataFile() throws IOException {
+		if (dataFile != indexFile)
+			dataFile.close();
+		dataFileOffset += dataPosition;
+		dataFileCount++;
+		dataFile = new RandomAccessFile(new File(file.getPath() + "-" + dataFileCount), "rw");
+		dataFile.setLength(0);
+		dataChannel = dataFile.getChannel();
+		dataPosition = 0;
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		int written = 0;
+		while (buf.hasRemaining())
+			written += channel.write(buf, position + written);
+		return written;
+	}
+
+	/**
+	 * A range of stored tiles within the archive.
+	 */
+	private static class GEMFRange {
+		final int sourceIndex;
+		final int zoom;
+		final int xMin;
+		final int xMax;
+		final int yMin;
+		final int yMax;
+
+		/**
+		 * Offset of the first index entry of this range
+		 */
+		long offset;
+
+		public GEMFRange(int sourceIndex, int zoom, int xMin, int xMax, int yMin, int yMax) {
+			this.sourceIndex = sourceIndex;
+			this.zoom = zoom;
+			this.xMin = xMin;
+			this.xMax = xMax;
+			this.yMin = yMin;
+			this.yMax = yMax;
+		}
+
+		/**
+		 * Adds the parts of this range that are not covered by <code>r</code> to <code>result</code>.
+		 */
+		void subtract(GEMFRange r, List<GEMFRange> result) {
+			if (r.xMin > xMax || r.xMax < xMin || r.yMin > yMax || r.yMax < yMin) {
+				result.add(this);
+				return;
+			}
+			if (yMin < r.yMin)
+				result.add(new GEMFRange(sourceIndex, zoom, xMin, xMax, yMin, r.yMin - 1));
+			if (yMax > r.yMax)
+				result.add(new GEMFRange(sourceIndex, zoom, xMin, xMax, r.yMax + 1, yMax));
+			int y1 = Math.max(yMin, r.yMin);
+			int y2 = Math.min(yMax, r.yMax);
+			if (xMin < r.xMin)
+				result.add(new GEMFRange(sourceIndex, zoom, xMin, r.xMin - 1, y1, y2));
+			if (xMax > r.xMax)
+				result.add(new GEMFRange(sourceIndex, zoom, r.xMax + 1, xMax, y1, y2));
+		}
+
+		boolean contains(int sourceIndex, int zoom, int x, int y) {
+			return this.sourceIndex == sourceIndex && this.zoom == zoom && x >= xMin && x <= xMax && y >= yMin
+					&& y <= yMax;
+		}
+
+		long getTileCount() {
+			return ((long) xMax - xMin + 1) * (yMax - yMin + 1);
+		}
+
+		/**
+		 * The index entries are ordered by x and then by y
+		 */
+		long getIndexEntryOffset(int x, int y) {
+			long index = ((long) x - xMin) * (yMax - yMin + 1) + (y - yMin);
+			return offset + index * INDEX_ENTRY_SIZE;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("GEMF Range: source=%d, zoom=%d, x=%d-%d, y=%d-%d, offset=0x%08X", sourceIndex, zoom,
+					xMin, xMax, yMin, yMax, offset);
+		}
+	}
+}
@@ -19,9 +19,10 @@ package mobac.program.atlascreators.impl.rmp;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 
+import mobac.program.atlascreators.tileprovider.TileImageCache;
 import mobac.program.atlascreators.tileprovider.TileProvider;
 import mobac.program.interfaces.MapSpace;
 
@@ -32,17 +33,18 @@ public class MobacTile {
 	private static final Logger log = Logger.getLogger(MobacTile.class);
 
 	private final TileProvider tileProvider;
+	private final TileImageCache imageCache;
 	private final int tilex;
 	private final int tiley;
-	private BufferedImage image;
 
 	private BoundingRect boundingRect;
 
-	public MobacTile(TileProvider tileProvider, MapSpace mapSpace, int tilex, int tiley, int zoom) {
+	public MobacTile(TileProvider tileProvider, TileImageCache imageCache, MapSpace mapSpace, int tilex, int tiley,
+			int zoom) {
 		this.tileProvider = tileProvider;
+		this.imageCache = imageCache;
 		this.tilex = tilex;
 		this.tiley = tiley;
-		image = null;
 
 		int tileSize = mapSpace.getTileSize();
 		int x = tilex * tileSize;
@@ -57,25 +59,38 @@ public class MobacTile {
 	}
 
 	/**
-	 * Returns the image of the tile. Creates on if necessary
+	 * Returns the image of the tile from the image cache converted to {@link BufferedImage#TYPE_INT_RGB} with a size
+	 * of 256x256 pixels. Loads and converts it if necessary - the converted image replaces the original one in the
+	 * cache.
+	 * 
+	 * @return the image or <code>null</code> if the tile is not available
 	 */
 	public BufferedImage getImage() {
-
-		/* --- Load image if none is present --- */
-		if (image == null)
-			image = loadImage();
-
-		return image;
-	}
-
-	private BufferedImage loadImage() {
+		BufferedImage image;
 		try {
-			image = tileProvider.getTileImage(tilex, tiley);
+			image = imageCache.getTileImage(tileProvider, tilex, tiley);
 		} catch (IOException e) {
 			log.error("", e);
 			image = createBlack(256, 256);
+			imageCache.put(tilex, tiley, image);
+			return image;
+		}
+		if (image == null || isConverted(image))
+			return image;
+		BufferedImage converted = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+		Graphics graphics = converted.createGraphics();
+		try {
+			graphics.drawImage(image, 0, 0, null);
+		} finally {
+			graphics.dispose();
 		}
-		return image;
+		imageCache.put(tilex, tiley, converted);
+		return converted;
+	}
+
+	private static boolean isConverted(BufferedImage image) {
+		return image.getType() == BufferedImage.TYPE_INT_RGB && image.getWidth() == 256 && image.getHeight() == 256
+				&& image.getRaster().getDataBuffer() instanceof DataBufferInt;
 	}
 
 	/**
@@ -91,78 +106,74 @@ public class MobacTile {
 		return img;
 	}
 
+	/**
+	 * Draws the part of this tile covered by <code>dest_area</code> into <code>dest_image</code> which has to be of
+	 * type {@link BufferedImage#TYPE_INT_RGB}.
+	 * 
+	 * Source and destination do not have exactly the same zoom level, so the source image has to be compressed or
+	 * expanded to match the destination image. As the transformation is linear in both directions the source pixel
+	 * row of each destination row and the source pixel column of each destination column are calculated only once.
+	 * Afterwards the pixels are copied directly between the data buffers of both images.
+	 */
 	public void drawSubImage(BoundingRect dest_area, BufferedImage dest_image) {
-		BufferedImage src_image;
-		WritableRaster src_graph, dst_graph;
-		BoundingRect src_area;
-		int maxx, maxy;
-		double src_c_x, src_c_y;
-		int pix_x, pix_y;
-		BufferedImage imageBuffer;
-		Graphics graphics;
-		int[] pixel = new int[3];
-
 		/* --- Get the coordination rectangle of the source image --- */
-		src_area = boundingRect;
-
-		/* --- Get Graphics context --- */
-		src_image = getImage();
+		BoundingRect src_area = boundingRect;
 
+		BufferedImage src_image = getImage();
 		if (src_image == null)
 			return;
 
-		/* --- Convert it to RGB color space --- */
-		imageBuffer = new BufferedImage(src_image.getWidth(), src_image.getHeight(),
-				BufferedImage.TYPE_INT_RGB);
-		graphics = imageBuffer.createGraphics();
-		try {
-			graphics.drawImage(src_image, 0, 0, null);
-		} finally {
-			graphics.dispose();
-		}
-		src_graph = imageBuffer.getRaster();
-		dst_graph = dest_image.getRaster();
-
-		/*
-		 * --- Iterate over all pixels of the destination image. Unfortunately
-		 * we need this technique because source and dest do not have exactly
-		 * the same zoom level, so the source image has to be compressed or
-		 * expanded to match the destination image ---
-		 */
-		maxx = dest_image.getWidth();
-		maxy = dest_image.getHeight();
-		for (int y = 0; y < maxy; y++) {
-
-			/* --- Calculate the y-coordinate of the current line --- */
-			src_c_y = dest_area.getNorth() + (dest_area.getSouth() - dest_area.getNorth()) * y
-					/ maxy;
-
-			/* --- Calculate the pixel line of the source image --- */
-			pix_y = (int) ((src_c_y - src_area.getNorth()) * 256
-					/ (src_area.getSouth() - src_area.getNorth()) + 0.5);
+		int maxx = dest_image.getWidth();
+		int maxy = dest_image.getHeight();
 
-			/* --- Ignore line that are out of the source area --- */
+		/* --- Calculate the source pixel row of each destination line (-1 = outside of the source area) --- */
+		int[] src_rows = new int[maxy];
+		boolean rowsInside = false;
+		for (int y = 0; y < maxy; y++) {
+			double src_c_y = dest_area.getNorth() + (dest_area.getSouth() - dest_area.getNorth()) * y / maxy;
+			int pix_y = (int) ((src_c_y - src_area.getNorth()) * 256 / (src_area.getSouth() - src_area.getNorth())
+					+ 0.5);
 			if (pix_y < 0 || pix_y > 255)
-				continue;
-
-			// log.trace("scale factor y: " + (pix_y / (double) y));
-
-			for (int x = 0; x < maxx; x++) {
-				/* --- Calculate the x-coordinate of the current row --- */
-				src_c_x = dest_area.getWest() + (dest_area.getEast() - dest_area.getWest()) * x
-						/ maxx;
-
-				/* --- Calculate the pixel row of the source image --- */
-				pix_x = (int) ((src_c_x - src_area.getWest()) * 256
-						/ (src_area.getEast() - src_area.getWest()) + 0.5);
+				pix_y = -1;
+			else
+				rowsInside = true;
+			src_rows[y] = pix_y;
+		}
+		if (!rowsInside)
+			return;
 
-				/* --- Ignore the row if it is outside the source area --- */
-				if (pix_x < 0 || pix_x > 255)
-					continue;
+		/* --- Calculate the source pixel column of each destination column --- */
+		int[] src_cols = new int[maxx];
+		int xFirst = maxx;
+		int xLast = -1;
+		for (int x = 0; x < maxx; x++) {
+			double src_c_x = dest_area.getWest() + (dest_area.getEast() - dest_area.getWest()) * x / maxx;
+			int pix_x = (int) ((src_c_x - src_area.getWest()) * 256 / (src_area.getEast() - src_area.getWest())
+					+ 0.5);
+			if (pix_x < 0 || pix_x > 255)
+				pix_x = -1;
+			else {
+				xFirst = Math.min(xFirst, x);
+				xLast = x;
+			}
+			src_cols[x] = pix_x;
+		}
+		if (xLast < 0)
+			return;
 
-				/* --- Transfer the pixel --- */
-				src_graph.getPixel(pix_x, pix_y, pixel);
-				dst_graph.setPixel(x, y, pixel);
+		/* --- Transfer the pixels --- */
+		int[] src = ((DataBufferInt) src_image.getRaster().getDataBuffer()).getData();
+		int[] dst = ((DataBufferInt) dest_image.getRaster().getDataBuffer()).getData();
+		for (int y = 0; y < maxy; y++) {
+			int pix_y = src_rows[y];
+			if (pix_y < 0)
+				continue;
+			int srcOffset = pix_y * 256;
+			int dstOffset = y * maxx;
+			for (int x = xFirst; x <= xLast; x++) {
+				int pix_x = src_cols[x];
+				if (pix_x >= 0)
+					dst[dstOffset + x] = src[srcOffset + pix_x] & 0xFFFFFF;
 			}
 		}
 	}
@@ -16,21 +16,23 @@
  ******************************************************************************/
 package mobac.program.atlascreators.impl.rmp;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import mobac.exceptions.MapCreationException;
+import mobac.program.atlascreators.tileprovider.TileImageCache;
 import mobac.program.atlascreators.tileprovider.TileProvider;
 import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSpace;
-import mobac.utilities.collections.SoftHashMap;
 
 import org.apache.log4j.Logger;
 
 /**
- * CalibratedImage that gets its data from a set of other CalibratedImage2
+ * CalibratedImage that gets its data from a set of other CalibratedImage2. {@link #getSubImage(BoundingRect, int, int)}
+ * can be called by multiple threads concurrently.
  * 
  */
 public class MultiImage {
@@ -41,14 +43,28 @@ public class MultiImage {
 	private final MapSource mapSource;
 	private final int zoom;
 	private final TileProvider tileProvider;
-	private SoftHashMap<TileKey, MobacTile> cache;
+	private final TileImageCache imageCache;
+	private HashMap<TileKey, MobacTile> tiles;
 
 	public MultiImage(MapSource mapSource, TileProvider tileProvider, MapInterface map) {
+		this(mapSource, tileProvider, map, new TileImageCache());
+	}
+
+	/**
+	 * @param mapSource
+	 * @param tileProvider
+	 * @param map
+	 * @param imageCache
+	 *            cache for the decoded tile images of <code>map</code> - the images are converted to
+	 *            {@link BufferedImage#TYPE_INT_RGB} when they are used the first time
+	 */
+	public MultiImage(MapSource mapSource, TileProvider tileProvider, MapInterface map, TileImageCache imageCache) {
 		this.mapSource = mapSource;
 		this.tileProvider = tileProvider;
 		this.zoom = map.getZoom();
 		this.map = map;
-		cache = new SoftHashMap<TileKey, MobacTile>(400);
+		this.imageCache = imageCache;
+		tiles = new HashMap<TileKey, MobacTile>(400);
 	}
 
 	public BufferedImage getSubImage(BoundingRect area, int width, int height) throws MapCreationException {
@@ -64,31 +80,36 @@ public class MultiImage {
 		int yMin = mapSource.getMapSpace().cLatToY(-area.getNorth(), zoom) / tilesize;
 
 		BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Arrays.fill(((DataBufferInt) result.getRaster().getDataBuffer()).getData(), 0xFFFFFF);
 
-		Graphics2D graph = result.createGraphics();
 		try {
-			graph.setColor(Color.WHITE);
-			graph.fillRect(0, 0, width, height);
-
 			for (int x = xMin; x <= xMax; x++) {
 				for (int y = yMin; y <= yMax; y++) {
-					TileKey key = new TileKey(x, y);
-					MobacTile image = cache.get(key);
-					if (image == null) {
-						image = new MobacTile(tileProvider, mapSpace, x, y, zoom);
-						cache.put(key, image);
-					}
-					image.drawSubImage(area, result);
+					getTile(x, y).drawSubImage(area, result);
 				}
 			}
 		} catch (Throwable t) {
 			throw new MapCreationException(map, t);
-		} finally {
-			graph.dispose();
 		}
 		return result;
 	}
 
+	private MobacTile getTile(int x, int y) {
+		TileKey key = new TileKey(x, y);
+		synchronized (tiles) {
+			MobacTile tile = tiles.get(key);
+			if (tile == null) {
+				tile = new MobacTile(tileProvider, imageCache, mapSource.getMapSpace(), x, y, zoom);
+				tiles.put(key, tile);
+			}
+			return tile;
+		}
+	}
+
+	public TileImageCache getImageCache() {
+		return imageCache;
+	}
+
 	protected static class TileKey {
 		int x;
 		int y;
@@ -26,12 +26,23 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import mobac.gui.AtlasProgress;
 import mobac.program.atlascreators.AtlasCreator;
 import mobac.program.atlascreators.impl.rmp.interfaces.RmpFileEntry;
+import mobac.program.interfaces.TileImageDataWriter;
+import mobac.program.model.Settings;
 
 import org.apache.log4j.Logger;
 
@@ -280,17 +291,107 @@ public class RmpLayer {
 			/* --- Number of tiles --- */
 			RmpTools.writeValue(bos, tiles.size(), 4);
 
-			AtlasProgress atlasProgress = atlasCreator.getAtlasProgress();
 			/* --- The tiles --- */
+			int threadCount = Settings.getInstance().tileBuilderThreadCount;
+			if (threadCount <= 0)
+				threadCount = Runtime.getRuntime().availableProcessors();
+			threadCount = Math.min(threadCount, tiles.size());
+			if (threadCount > 1)
+				writeTilesParallel(bos, threadCount);
+			else {
+				AtlasProgress atlasProgress = atlasCreator.getAtlasProgress();
+				int x = 0;
+				int xMax = tiles.size();
+				for (Tiledata tile : tiles) {
+					tile.writeTileData(bos);
+					atlasCreator.checkUserAbort();
+
+					atlasProgress.setMapCreationProgress((1000 * x++ / xMax));
+				}
+			}
+			bos.flush();
+		}
+
+		/**
+		 * Paints and encodes the tiles on <code>threadCount</code> threads, each of them using its own image writer.
+		 * The tiles are written in their original order by the calling thread.
+		 */
+		private void writeTilesParallel(OutputStream out, int threadCount) throws IOException, InterruptedException {
+			final TileImageDataWriter tileWriter = tiles.get(0).getWriter();
+			final List<TileImageDataWriter> writers = new ArrayList<TileImageDataWriter>();
+			final ThreadLocal<TileImageDataWriter> threadWriter = new ThreadLocal<TileImageDataWriter>() {
+
+				@Override
+				protected TileImageDataWriter initialValue() {
+					TileImageDataWriter writer = tileWriter.duplicate();
+					writer.initialize();
+					synchronized (writers) {
+						writers.add(writer);
+					}
+					return writer;
+				}
+			};
+			ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+
+				private int threadNum = 0;
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RmpTileBuilder-" + (threadNum++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			AtlasProgress atlasProgress = atlasCreator.getAtlasProgress();
+			int maxPending = threadCount * 4;
+			LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+			Iterator<Tiledata> submitIterator = tiles.iterator();
 			int x = 0;
 			int xMax = tiles.size();
-			for (Tiledata tile : tiles) {
-				tile.writeTileData(bos);
-				atlasCreator.checkUserAbort();
-
-				atlasProgress.setMapCreationProgress((1000 * x++ / xMax));
+			try {
+				for (Tiledata tile : tiles) {
+					while (pending.size() < maxPending && submitIterator.hasNext()) {
+						final Tiledata submitTile = submitIterator.next();
+						pending.add(executor.submit(new Callable<byte[]>() {
+
+							public byte[] call() throws Exception {
+								return submitTile.createTileData(threadWriter.get());
+							}
+						}));
+					}
+					byte[] data;
+					try {
+						data = pending.removeFirst().get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof IOException)
+							throw (IOException) cause;
+						if (cause instanceof RuntimeException)
+							throw (RuntimeException) cause;
+						if (cause instanceof Error)
+							throw (Error) cause;
+						throw new IOException(cause);
+					}
+					tile.writeTileData(out, data);
+					atlasCreator.checkUserAbort();
+
+					atlasProgress.setMapCreationProgress((1000 * x++ / xMax));
+				}
+			} finally {
+				executor.shutdownNow();
+				boolean terminated = false;
+				try {
+					terminated = executor.awaitTermination(60, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				// Do not dispose writers that may still be in use
+				if (terminated) {
+					synchronized (writers) {
+						for (TileImageDataWriter writer : writers)
+							writer.dispose();
+					}
+				}
 			}
-			bos.flush();
 		}
 
 		@Override
@@ -18,7 +18,6 @@ package mobac.program.atlascreators.tileprovider;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.util.Hashtable;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -27,8 +26,10 @@ import mobac.program.interfaces.MapSource;
 import org.apache.log4j.Logger;
 
 /**
- * A tile cache with speculative loading on a separate thread. Usually this decreases map generation time on multi-core
- * systems.
+ * A tile cache with speculative loading on separate threads. Usually this decreases map generation time on multi-core
+ * systems. Decoded images are kept in a {@link TileImageCache}. The consumer is expected to request the tiles row by
+ * row, therefore the tiles following the requested tile in its row are preloaded, see
+ * {@link #setTileRange(int, int, int, int)}.
  */
 public class CacheTileProvider implements TileProvider {
 
@@ -39,16 +40,83 @@ public class CacheTileProvider implements TileProvider {
 	 */
 	private static int PRELOADER_THREAD_NUM = 1;
 
-	private Hashtable<CacheKey, SRCachedTile> cache;
+	private final TileImageCache cache;
 
-	private PreLoadThread preLoader = new PreLoadThread();
+	private final boolean sharedCache;
+
+	/**
+	 * Tiles queued for preloading or currently loaded by the preloader thread
+	 */
+	private Hashtable<CacheKey, CachedTile> pendingTiles;
+
+	private LinkedBlockingQueue<CachedTile> preloadQueue;
+
+	private PreLoadThread[] preLoaders;
+
+	/**
+	 * Number of tiles following the requested tile that are preloaded
+	 */
+	private final int lookAhead;
+
+	private int xMin = Integer.MIN_VALUE;
+	private int xMax = Integer.MAX_VALUE;
+	private int yMin = Integer.MIN_VALUE;
+	private int yMax = Integer.MAX_VALUE;
 
 	protected final TileProvider tileProvider;
 
+	/**
+	 * <code>true</code> if {@link #tileProvider} is a {@link ConcurrentTileProvider}
+	 */
+	private final boolean concurrentTileProvider;
+
 	public CacheTileProvider(TileProvider tileProvider) {
+		this(tileProvider, new TileImageCache(), false);
+	}
+
+	/**
+	 * @param tileProvider
+	 * @param cache
+	 *            image cache shared with other tile consumers - it is not cleared by {@link #cleanup()}
+	 */
+	public CacheTileProvider(TileProvider tileProvider, TileImageCache cache) {
+		this(tileProvider, cache, true);
+	}
+
+	private CacheTileProvider(TileProvider tileProvider, TileImageCache cache, boolean sharedCache) {
 		this.tileProvider = tileProvider;
-		cache = new Hashtable<CacheKey, SRCachedTile>(500);
-		preLoader.start();
+		this.cache = cache;
+		this.sharedCache = sharedCache;
+		concurrentTileProvider = (tileProvider instanceof ConcurrentTileProvider);
+		// Loading tiles from a provider that is not thread safe is serialized anyway
+		int threadCount = concurrentTileProvider ? Math.min(4, Runtime.getRuntime().availableProcessors()) : 1;
+		lookAhead = Math.max(2, 2 * threadCount);
+		pendingTiles = new Hashtable<CacheKey, CachedTile>(50);
+		// pre-loading more than 20 tiles doesn't make much sense
+		preloadQueue = new LinkedBlockingQueue<CachedTile>(Math.max(20, 2 * lookAhead));
+		preLoaders = new PreLoadThread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			preLoaders[i] = new PreLoadThread();
+			preLoaders[i].start();
+		}
+		log.debug("Image pre-loader threads started: " + threadCount);
+	}
+
+	/**
+	 * Specifies the tile range of the map. When a tile is requested the following tiles in its row are preloaded - at
+	 * the end of a row the preloading continues with the first tiles of the next row. By default tiles are preloaded
+	 * without any range limits.
+	 * 
+	 * @param xMin
+	 * @param xMax
+	 * @param yMin
+	 * @param yMax
+	 */
+	public void setTileRange(int xMin, int xMax, int yMin, int yMax) {
+		this.xMin = xMin;
+		this.xMax = xMax;
+		this.yMin = yMin;
+		this.yMax = yMax;
 	}
 
 	public boolean preferTileImageUsage() {
@@ -56,33 +124,26 @@ public class CacheTileProvider implements TileProvider {
 	}
 
 	public BufferedImage getTileImage(int x, int y) throws IOException {
-		SRCachedTile cachedTile = cache.get(new CacheKey(x, y));
-		BufferedImage image = null;
-		if (cachedTile != null) {
-			CachedTile tile = cachedTile.get();
-			if (tile != null) {
-				if (tile.loaded)
-					log.trace(String.format("Cache hit: x=%d y=%d", x, y));
-				image = tile.getImage();
-				if (!tile.nextLoadJobCreated) {
-					// log.debug(String.format("Preload job added : x=%d y=%d l=%d",
-					// x + 1, y, layer));
-					preloadTile(new CachedTile(new CacheKey(x + 1, y)));
-					tile.nextLoadJobCreated = true;
-				}
-			}
-		}
-		if (image == null) {
-			log.trace(String.format("Cache miss: x=%d y=%d", x, y));
-			// log.debug(String.format("Preload job added : x=%d y=%d l=%d", x +
-			// 1, y, layer));
-			preloadTile(new CachedTile(new CacheKey(x + 1, y)));
-			image = internalGetTileImage(x, y);
+		BufferedImage image = cache.get(x, y);
+		if (image != null) {
+			log.trace(String.format("Cache hit: x=%d y=%d", x, y));
+			preloadTiles(x, y);
+			return image;
 		}
+		CachedTile pendingTile = pendingTiles.get(new CacheKey(x, y));
+		if (pendingTile != null)
+			return pendingTile.getImage();
+		log.trace(String.format("Cache miss: x=%d y=%d", x, y));
+		preloadTiles(x, y);
+		image = internalGetTileImage(x, y);
+		if (image != null)
+			cache.put(x, y, image);
 		return image;
 	}
 
 	protected BufferedImage internalGetTileImage(int x, int y) throws IOException {
+		if (concurrentTileProvider)
+			return tileProvider.getTileImage(x, y);
 		synchronized (tileProvider) {
 			return tileProvider.getTileImage(x, y);
 		}
@@ -100,29 +161,62 @@ public class CacheTileProvider implements TileProvider {
 		return tileProvider.getMapSource();
 	}
 
-	private void preloadTile(CachedTile tile) {
-		if (preLoader.queue.remainingCapacity() < 1) {
-			// Preloader thread is too slow
+	/**
+	 * Preloads the {@link #lookAhead} tiles following the tile (<code>x</code>, <code>y</code>) in row-major order.
+	 */
+	private void preloadTiles(int x, int y) {
+		for (int i = 0; i < lookAhead; i++) {
+			if (x < xMax)
+				x++;
+			else {
+				if (y >= yMax)
+					return;
+				x = xMin;
+				y++;
+			}
+			if (!preloadTile(x, y))
+				return;
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the preload queue is full
+	 */
+	private boolean preloadTile(int x, int y) {
+		if (cache.contains(x, y))
+			return true;
+		CachedTile tile = new CachedTile(new CacheKey(x, y));
+		if (pendingTiles.get(tile.key) != null)
+			return true;
+		if (preloadQueue.remainingCapacity() < 1) {
+			// Preloader threads are too slow
 			log.trace("Preloading rejected: " + tile.key);
-			return;
+			return false;
 		}
-		if (cache.get(tile.key) != null)
-			return;
-		try {
-			preLoader.queue.add(tile);
-			cache.put(tile.key, new SRCachedTile(tile));
-		} catch (IllegalStateException e) {
+		pendingTiles.put(tile.key, tile);
+		if (!preloadQueue.offer(tile)) {
 			// Queue is "full"
+			pendingTiles.remove(tile.key);
 			log.trace("Preloading rejected: " + tile.key);
+			return false;
 		}
+		return true;
+	}
+
+	public TileImageCache getTileImageCache() {
+		return cache;
 	}
 
 	public void cleanup() {
 		try {
-			cache.clear();
-			if (preLoader != null) {
-				preLoader.interrupt();
-				preLoader = null;
+			log.debug(cache);
+			if (!sharedCache)
+				cache.clear();
+			pendingTiles.clear();
+			if (preLoaders != null) {
+				for (PreLoadThread preLoader : preLoaders)
+					preLoader.interrupt();
+				preLoaders = null;
 			}
 		} catch (Throwable t) {
 			log.error("", t);
@@ -135,23 +229,11 @@ public class CacheTileProvider implements TileProvider {
 		super.finalize();
 	}
 
-	private static class SRCachedTile extends SoftReference<CachedTile> {
-
-		public SRCachedTile(CachedTile referent) {
-			super(referent);
-		}
-
-	}
-
 	private class PreLoadThread extends Thread {
 
-		private LinkedBlockingQueue<CachedTile> queue = null;
-
 		public PreLoadThread() {
 			super("ImagePreLoadThread" + (PRELOADER_THREAD_NUM++));
-			log.debug("Image pre-loader thread started");
-			// pre-loading more than 20 tiles doesn't make much sense
-			queue = new LinkedBlockingQueue<CachedTile>(20);
+			setDaemon(true);
 		}
 
 		@Override
@@ -159,7 +241,7 @@ public class CacheTileProvider implements TileProvider {
 			CachedTile tile;
 			try {
 				while (true) {
-					tile = queue.take();
+					tile = preloadQueue.take();
 					if (tile != null && !tile.loaded) {
 						// log.trace("Loading image async: " + tile);
 						tile.loadImage();
@@ -219,8 +301,7 @@ public class CacheTileProvider implements TileProvider {
 		CacheKey key;
 		private BufferedImage image;
 		private IOException loadException = null;
-		boolean loaded = false;
-		boolean nextLoadJobCreated = false;
+		volatile boolean loaded = false;
 
 		public CachedTile(CacheKey key) {
 			super();
@@ -229,14 +310,20 @@ public class CacheTileProvider implements TileProvider {
 		}
 
 		public synchronized void loadImage() {
+			// The tile may have been loaded by the consumer while it was waiting in the preload queue
+			if (loaded)
+				return;
 			try {
 				image = internalGetTileImage(key.x, key.y);
+				if (image != null)
+					cache.put(key.x, key.y, image);
 			} catch (IOException e) {
 				loadException = e;
 			} catch (Exception e) {
 				loadException = new IOException(e);
 			}
 			loaded = true;
+			pendingTiles.remove(key);
 		}
 
 		public synchronized BufferedImage getImage() throws IOException {
@@ -249,7 +336,7 @@ public class CacheTileProvider implements TileProvider {
 
 		@Override
 		public String toString() {
-			return "CachedTile [key=" + key + ", loaded=" + loaded + ", nextLoadJobCreated=" + nextLoadJobCreated + "]";
+			return "CachedTile [key=" + key + ", loaded=" + loaded + "]";
 		}
 
 	}
@@ -17,26 +17,30 @@
 package mobac.program.atlascreators.tileprovider;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import javax.imageio.ImageIO;
 
-import mobac.program.interfaces.TileImageDataWriter;
 import mobac.program.model.TileImageFormat;
+import mobac.program.tiledatawriter.ImageWriterPool;
 
 /**
  * Loads a tile from the underlying {@link TileProvider}, loads the tile to memory, converts it to the desired
  * {@link TileImageFormat} and returns the binary representation of the image in the specified format.
+ * <p>
+ * The tiles are encoded using the writer of the calling thread provided by {@link ImageWriterPool}, therefore
+ * {@link #getTileData(int, int)} can be called concurrently if the underlying {@link TileProvider} supports this.
+ * </p>
  */
 public class ConvertedRawTileProvider extends FilterTileProvider {
 
-	private TileImageDataWriter writer;
+	private final TileImageFormat tileImageFormat;
 
 	public ConvertedRawTileProvider(TileProvider tileProvider, TileImageFormat tileImageFormat) {
 		super(tileProvider);
-		writer = tileImageFormat.getDataWriter();
-		writer.initialize();
+		this.tileImageFormat = tileImageFormat;
+		// Starts a new map - resets state like a shared palette of the writers used by all threads
+		ImageWriterPool.startNewMap();
 		ImageIO.setUseCache(false);
 	}
 
@@ -44,9 +48,7 @@ public class ConvertedRawTileProvider extends FilterTileProvider {
 		BufferedImage image = getTileImage(x, y);
 		if (image == null)
 			return null;
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream(32000);
-		writer.processImage(image, buffer);
-		return buffer.toByteArray();
+		return ImageWriterPool.encodeImage(tileImageFormat, image);
 	}
 
 	public boolean preferTileImageUsage() {
@@ -29,10 +29,18 @@ import mobac.utilities.tar.TarIndex;
 
 import org.apache.log4j.Logger;
 
-public class DownloadedTileProvider implements TileProvider {
+/**
+ * Provides the tiles of a map from the tile archive written while downloading the map. Can be used by multiple threads
+ * concurrently.
+ */
+public class DownloadedTileProvider implements ConcurrentTileProvider {
 
 	private static final Logger log = Logger.getLogger(DownloadedTileProvider.class);
 
+	/**
+	 * File name pattern of the tiles in the tile archive - tiles should be written and read via the (x,y) methods of
+	 * {@link mobac.utilities.tar.TarIndexedArchive} and {@link TarIndex} instead of formatting the name
+	 */
 	public static final String TILE_FILENAME_PATTERN = "x%dy%d";
 
 	protected final TarIndex tarIndex;
@@ -46,8 +54,9 @@ public class DownloadedTileProvider implements TileProvider {
 	}
 
 	public byte[] getTileData(int x, int y) throws IOException {
-		log.trace("Reading tile x=" + x + " y=" + y);
-		return tarIndex.getEntryContent(String.format(TILE_FILENAME_PATTERN, x, y));
+		if (log.isTraceEnabled())
+			log.trace("Reading tile x=" + x + " y=" + y);
+		return tarIndex.getEntryContent(x, y);
 	}
 
 	public BufferedImage getTileImage(int x, int y) throws IOException {
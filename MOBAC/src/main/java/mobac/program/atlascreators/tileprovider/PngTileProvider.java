@@ -17,25 +17,21 @@
 package mobac.program.atlascreators.tileprovider;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
-import mobac.program.interfaces.TileImageDataWriter;
+import mobac.program.model.TileImageFormat;
 import mobac.program.model.TileImageType;
-import mobac.program.tiledatawriter.TileImagePngDataWriter;
+import mobac.program.tiledatawriter.ImageWriterPool;
 import mobac.utilities.Utilities;
 
 /**
- * A tile provider for atlas formats that only allow PNG images. Each image processed is checked
+ * A tile provider for atlas formats that only allow PNG images. Each image processed is checked. The images are
+ * encoded using the {@link ImageWriterPool}, therefore the provider can be used by multiple threads.
  */
 public class PngTileProvider extends FilterTileProvider {
 
-	final TileImageDataWriter writer;
-
 	public PngTileProvider(TileProvider tileProvider) {
 		super(tileProvider);
-		writer = new TileImagePngDataWriter();
-		writer.initialize();
 	}
 
 	@Override
@@ -45,12 +41,10 @@ public class PngTileProvider extends FilterTileProvider {
 			if (Utilities.getImageType(data) == TileImageType.PNG)
 				return data;
 		}
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream(32000);
 		BufferedImage image = getTileImage(x, y);
 		if (image == null)
 			return null;
-		writer.processImage(image, buffer);
-		return buffer.toByteArray();
+		return ImageWriterPool.encodeImage(TileImageFormat.PNG, image);
 	}
 
 	public boolean preferTileImageUsage() {
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.atlascreators.tileprovider;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import mobac.program.atlascreators.AtlasCreator;
+import mobac.program.interfaces.MapInterface;
+import mobac.program.interfaces.MapSource;
+
+/**
+ * Base tile provider of a map that is created while its tiles are downloaded (see
+ * {@link AtlasCreator#getTileStreamTarget(MapInterface)}). Each download thread passes its current tile via
+ * {@link #setTile(int, int, byte[])} - the tile is only visible to the calling thread. Therefore the tile provider
+ * chain of the atlas creator can be used unchanged for processing the streamed tiles concurrently.
+ */
+public class StreamedTileProvider implements ConcurrentTileProvider {
+
+	private static class StreamedTile {
+		int x;
+		int y;
+		byte[] data;
+	}
+
+	private final ThreadLocal<StreamedTile> currentTile = new ThreadLocal<StreamedTile>() {
+
+		@Override
+		protected StreamedTile initialValue() {
+			return new StreamedTile();
+		}
+	};
+
+	protected final MapInterface map;
+
+	public StreamedTileProvider(MapInterface map) {
+		this.map = map;
+	}
+
+	/**
+	 * Sets the tile provided to the calling thread.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param data
+	 *            tile data or <code>null</code> for clearing the tile
+	 */
+	public void setTile(int x, int y, byte[] data) {
+		StreamedTile tile = currentTile.get();
+		tile.x = x;
+		tile.y = y;
+		tile.data = data;
+	}
+
+	/**
+	 * @return the tile data if (<code>x</code>, <code>y</code>) is the current tile of the calling thread, otherwise
+	 *         <code>null</code>
+	 */
+	public byte[] getTileData(int x, int y) throws IOException {
+		StreamedTile tile = currentTile.get();
+		if (tile.x != x || tile.y != y)
+			return null;
+		return tile.data;
+	}
+
+	public BufferedImage getTileImage(int x, int y) throws IOException {
+		byte[] data = getTileData(x, y);
+		if (data == null)
+			return null;
+		return ImageIO.read(new ByteArrayInputStream(data));
+	}
+
+	public boolean preferTileImageUsage() {
+		return false;
+	}
+
+	public MapSource getMapSource() {
+		return map.getMapSource();
+	}
+
+}
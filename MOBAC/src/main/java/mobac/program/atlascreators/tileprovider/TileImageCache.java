@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.atlascreators.tileprovider;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mobac.program.model.Settings;
+
+/**
+ * A thread safe cache for decoded tile images of one map. The memory occupied by the pixel data of the cached images
+ * is limited by a {@link Budget} which may be shared by several caches - if the limit is exceeded the least recently
+ * used images of all caches sharing the budget are evicted.
+ * <p>
+ * Looking up and adding images does not take a lock: each cache holds its images in a {@link ConcurrentHashMap} and
+ * an access only records a time stamp in the image entry. Only a thread that exceeds the limit of the budget locks the
+ * budget for evicting images. The LRU order is approximate: candidates for eviction are taken from a snapshot of all
+ * entries sorted by their last access, entries used since the snapshot has been taken are skipped.
+ * </p>
+ *
+ * @see Settings#tileImageCacheSize
+ */
+public class TileImageCache {
+
+	private static Budget globalBudget = null;
+
+	private final Budget budget;
+
+	private final ConcurrentHashMap<Long, Entry> images = new ConcurrentHashMap<Long, Entry>();
+
+	/**
+	 * Size of the pixel data of the images of this cache
+	 */
+	private final AtomicLong size = new AtomicLong();
+
+	private final AtomicInteger imageCount = new AtomicInteger();
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * Creates a cache that shares the global budget of {@link Settings#tileImageCacheSize} bytes with all other caches
+	 * created by this constructor.
+	 */
+	public TileImageCache() {
+		this(getGlobalBudget());
+	}
+
+	/**
+	 * Creates a cache with its own budget.
+	 *
+	 * @param maxSize
+	 *            maximum size of the pixel data of all cached images in bytes
+	 */
+	public TileImageCache(long maxSize) {
+		this(new Budget(maxSize));
+	}
+
+	public TileImageCache(Budget budget) {
+		this.budget = budget;
+	}
+
+	public static synchronized Budget getGlobalBudget() {
+		if (globalBudget == null)
+			globalBudget = new Budget(Settings.getInstance().tileImageCacheSize);
+		return globalBudget;
+	}
+
+	private static Long key(int x, int y) {
+		return Long.valueOf(((long) x << 32) | (y & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return the cached image or <code>null</code> if the image is not present in the cache
+	 */
+	public BufferedImage get(int x, int y) {
+		Entry entry = images.get(key(x, y));
+		if (entry == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		entry.lastAccess = budget.clock.incrementAndGet();
+		hitCount.incrementAndGet();
+		return entry.image;
+	}
+
+	/**
+	 * Checks if an image is present in the cache without updating the hit/miss counters and the LRU order.
+	 */
+	public boolean contains(int x, int y) {
+		return images.containsKey(key(x, y));
+	}
+
+	public void put(int x, int y, BufferedImage image) {
+		long imageSize = getImageSize(image);
+		if (imageSize > budget.maxSize)
+			return;
+		Entry entry = new Entry(image, imageSize, budget.clock.incrementAndGet());
+		Entry old = images.put(key(x, y), entry);
+		long delta = imageSize;
+		if (old != null)
+			delta -= old.size;
+		else {
+			imageCount.incrementAndGet();
+			budget.caches.putIfAbsent(this, Boolean.TRUE);
+		}
+		size.addAndGet(delta);
+		if (budget.size.addAndGet(delta) > budget.maxSize)
+			budget.evict();
+	}
+
+	/**
+	 * Returns the image from the cache. If it is not present it is retrieved from the specified
+	 * <code>tileProvider</code> and added to the cache. No lock of the cache is held while the image is retrieved.
+	 * Calls to the tile provider are synchronized on the tile provider instance unless it is a
+	 * {@link ConcurrentTileProvider}.
+	 *
+	 * @param tileProvider
+	 * @param x
+	 * @param y
+	 * @return
+	 * @throws IOException
+	 */
+	public BufferedImage getTileImage(TileProvider tileProvider, int x, int y) throws IOException {
+		BufferedImage image = get(x, y);
+		if (image != null)
+			return image;
+		if (tileProvider instanceof ConcurrentTileProvider)
+			image = tileProvider.getTileImage(x, y);
+		else
+			synchronized (tileProvider) {
+				image = tileProvider.getTileImage(x, y);
+			}
+		if (image != null)
+			put(x, y, image);
+		return image;
+	}
+
+	/**
+	 * Removes the entry if it is still mapped to the specified key.
+	 */
+	private boolean remove(Long key, Entry entry) {
+		if (!images.remove(key, entry))
+			return false;
+		size.addAndGet(-entry.size);
+		budget.size.addAndGet(-entry.size);
+		imageCount.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Removes all images of this cache. Images of other caches sharing the same budget are not affected.
+	 */
+	public void clear() {
+		for (Map.Entry<Long, Entry> e : images.entrySet())
+			remove(e.getKey(), e.getValue());
+		budget.removeIfEmpty(this);
+	}
+
+	/**
+	 * @return size of the pixel data of all images of this cache in bytes
+	 */
+	public long getSize() {
+		return size.get();
+	}
+
+	public long getMaxSize() {
+		return budget.maxSize;
+	}
+
+	public Budget getBudget() {
+		return budget;
+	}
+
+	public int getImageCount() {
+		return imageCount.get();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	@Override
+	public String toString() {
+		long hits = hitCount.get();
+		long requests = hits + missCount.get();
+		int hitRate = (requests > 0) ? (int) (hits * 100 / requests) : 0;
+		return String.format("TileImageCache [images=%d, size=%d KiB, hits=%d, misses=%d, hit rate=%d%%]",
+				getImageCount(), getSize() / 1024, hits, requests - hits, hitRate);
+	}
+
+	/**
+	 * Memory limit for the pixel data of the images cached by one or more {@link TileImageCache} instances. The least
+	 * recently used image is evicted regardless of the cache it belongs to.
+	 */
+	public static class Budget {
+
+		private final long maxSize;
+
+		private final AtomicLong size = new AtomicLong();
+
+		/**
+		 * Logical time of the last access of an image entry
+		 */
+		private final AtomicLong clock = new AtomicLong();
+
+		/**
+		 * Caches having images accounted in this budget
+		 */
+		private final ConcurrentHashMap<TileImageCache, Boolean> caches = new ConcurrentHashMap<TileImageCache, Boolean>();
+
+		/**
+		 * Eviction candidates ordered by their last access at the time the snapshot has been taken - guarded by this
+		 * budget
+		 */
+		private final ArrayDeque<Candidate> evictionQueue = new ArrayDeque<Candidate>();
+
+		/**
+		 * @param maxSize
+		 *            maximum size of the pixel data of all cached images in bytes
+		 */
+		public Budget(long maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		public long getMaxSize() {
+			return maxSize;
+		}
+
+		/**
+		 * @return size of the pixel data of all images cached using this budget in bytes
+		 */
+		public long getSize() {
+			return size.get();
+		}
+
+		/**
+		 * Evicts the least recently used images until the size is within the limit. Candidates used since the snapshot
+		 * has been taken are skipped. If the queue runs empty twice during one call the images are evicted in the order
+		 * of the last snapshot regardless of later accesses, so that eviction always terminates.
+		 */
+		private synchronized void evict() {
+			int refills = 0;
+			while (size.get() > maxSize) {
+				Candidate c = evictionQueue.poll();
+				if (c == null) {
+					if (refills == 2 || !refillEvictionQueue())
+						return;
+					refills++;
+					continue;
+				}
+				Entry entry = c.cache.images.get(c.key);
+				if (entry == null || (refills < 2 && entry.lastAccess != c.lastAccess))
+					continue;
+				if (c.cache.remove(c.key, entry))
+					removeIfEmpty(c.cache);
+			}
+		}
+
+		/**
+		 * Takes a snapshot of all entries sorted by their last access.
+		 * 
+		 * @return <code>true</code> if there is at least one candidate
+		 */
+		private boolean refillEvictionQueue() {
+			ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+			for (TileImageCache cache : caches.keySet()) {
+				for (Map.Entry<Long, Entry> e : cache.images.entrySet())
+					candidates.add(new Candidate(cache, e.getKey(), e.getValue().lastAccess));
+			}
+			Collections.sort(candidates, Candidate.COMPARATOR);
+			evictionQueue.clear();
+			evictionQueue.addAll(candidates);
+			return !candidates.isEmpty();
+		}
+
+		private void removeIfEmpty(TileImageCache cache) {
+			if (!cache.images.isEmpty())
+				return;
+			caches.remove(cache);
+			// an image may have been added concurrently
+			if (!cache.images.isEmpty())
+				caches.putIfAbsent(cache, Boolean.TRUE);
+		}
+	}
+
+	private static class Entry {
+
+		private final BufferedImage image;
+
+		private final long size;
+
+		private volatile long lastAccess;
+
+		public Entry(BufferedImage image, long size, long lastAccess) {
+			this.image = image;
+			this.size = size;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	/**
+	 * Does not refer to the entry itself so that the snapshot does not keep evicted or replaced images reachable.
+	 */
+	private static class Candidate {
+
+		private static final Comparator<Candidate> COMPARATOR = new Comparator<Candidate>() {
+
+			public int compare(Candidate o1, Candidate o2) {
+				return (o1.lastAccess < o2.lastAccess) ? -1 : ((o1.lastAccess == o2.lastAccess) ? 0 : 1);
+			}
+		};
+
+		private final TileImageCache cache;
+
+		private final Long key;
+
+		/**
+		 * Last access of the entry at the time the candidate has been created
+		 */
+		private final long lastAccess;
+
+		public Candidate(TileImageCache cache, Long key, long lastAccess) {
+			this.cache = cache;
+			this.key = key;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	/**
+	 * @param image
+	 * @return size of the pixel data of <code>image</code> in bytes
+	 */
+	public static long getImageSize(BufferedImage image) {
+		DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+		long bytesPerElement = DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+		return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * bytesPerElement;
+	}
+}
@@ -16,17 +16,122 @@
  ******************************************************************************/
 package mobac.program.atlascreators.tileprovider;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import mobac.mapsources.AbstractHttpMapSource;
+import mobac.program.JobDispatcher;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSource.LoadMethod;
+import mobac.program.interfaces.MapSourceListener;
+import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreCursor;
+import mobac.program.tilestore.TileStoreEntry;
 
 /**
  * A {@link TileProvider} implementation that retrieves all tiles from the tile store (if the <code>mapSource</code>
  * supports that).
+ * <p>
+ * Tiles of {@link AbstractHttpMapSource}s are read block wise via
+ * {@link TileStore#getTiles(int, int, int, int, int, MapSource)}: The first access to a tile loads the whole block of
+ * {@link #BLOCK_SIZE} x {@link #BLOCK_SIZE} tiles it belongs to. The last {@link #MAX_BLOCKS} blocks are kept in
+ * memory.
+ * </p>
  */
 public class TileStoreTileProvider extends MapSourceProvider {
 
+	private static final int BLOCK_SHIFT = 3;
+
+	public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+	public static final int MAX_BLOCKS = 16;
+
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+	private final boolean blockRead;
+
+	private final Map<Long, byte[][]> blocks;
+
 	public TileStoreTileProvider(MapSource mapSource, int zoom) {
 		super(mapSource, zoom, LoadMethod.CACHE);
+		blockRead = (mapSource instanceof AbstractHttpMapSource);
+		blocks = new LinkedHashMap<Long, byte[][]>(MAX_BLOCKS * 2, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[][]> eldest) {
+				return size() > MAX_BLOCKS;
+			}
+
+		};
+	}
+
+	@Override
+	public byte[] getTileData(int x, int y) throws IOException {
+		if (!blockRead)
+			return super.getTileData(x, y);
+		byte[] data = getBlock(x >> BLOCK_SHIFT, y >> BLOCK_SHIFT)[((x & BLOCK_MASK) << BLOCK_SHIFT) + (y & BLOCK_MASK)];
+		if (data != null) {
+			MapSourceListener listener = JobDispatcher.getCurrentMapSourceListener();
+			if (listener != null)
+				listener.tileDownloaded(data.length);
+		}
+		return data;
+	}
+
+	@Override
+	public BufferedImage getTileImage(int x, int y) throws IOException {
+		if (!blockRead)
+			return super.getTileImage(x, y);
+		byte[] data = getTileData(x, y);
+		if (data == null)
+			return null;
+		return ImageIO.read(new ByteArrayInputStream(data));
+	}
+
+	/**
+	 * @param blockX
+	 * @param blockY
+	 * @return the tile data of the block indexed by <code>(x % BLOCK_SIZE) * BLOCK_SIZE + (y % BLOCK_SIZE)</code>,
+	 *         missing tiles are <code>null</code>
+	 * @throws InterruptedIOException
+	 *             if the calling thread has been interrupted while reading the block (the interrupted status is
+	 *             restored)
+	 */
+	protected byte[][] getBlock(int blockX, int blockY) throws InterruptedIOException {
+		Long key = Long.valueOf(((long) blockX << 32) | (blockY & 0xFFFFFFFFL));
+		byte[][] block;
+		synchronized (blocks) {
+			block = blocks.get(key);
+		}
+		if (block != null)
+			return block;
+		block = new byte[BLOCK_SIZE * BLOCK_SIZE][];
+		int xMin = blockX << BLOCK_SHIFT;
+		int yMin = blockY << BLOCK_SHIFT;
+		TileStoreCursor cursor = TileStore.getInstance().getTiles(zoom, xMin, xMin + BLOCK_MASK, yMin,
+				yMin + BLOCK_MASK, mapSource);
+		try {
+			TileStoreEntry tile;
+			while ((tile = cursor.next()) != null)
+				block[((tile.getX() & BLOCK_MASK) << BLOCK_SHIFT) + (tile.getY() & BLOCK_MASK)] = tile.getData();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Reading tiles from the tile store interrupted");
+		} finally {
+			cursor.close();
+		}
+		synchronized (blocks) {
+			blocks.put(key, block);
+		}
+		return block;
 	}
 
 }
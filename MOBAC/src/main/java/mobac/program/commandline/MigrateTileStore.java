@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.commandline;
+
+import mobac.program.interfaces.CommandLineAction;
+import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreType;
+import mobac.program.tilestore.mmap.MappedTileStore;
+
+/**
+ * Copies all tiles of the Berkeley DB based tile store into the memory mapped tile store. Requires the tile store
+ * type {@link TileStoreType#MAPPED_FILES} to be selected in the settings.
+ */
+public class MigrateTileStore implements CommandLineAction {
+
+	@Override
+	public void runBeforeMainGUI() {
+		TileStore tileStore = TileStore.getInstance();
+		if (!(tileStore instanceof MappedTileStore)) {
+			System.err.println("Tile store migration requires the tile store implementation \""
+					+ TileStoreType.MAPPED_FILES + "\" to be selected in the settings.");
+			System.exit(1);
+		}
+		MappedTileStore mappedTileStore = (MappedTileStore) tileStore;
+		String[] storeNames = mappedTileStore.getBerkeleyDbStoreNames();
+		System.out.println("Migrating " + storeNames.length + " Berkeley DB tile stores");
+		long total = 0;
+		for (String storeName : storeNames) {
+			System.out.print(storeName + ": ");
+			try {
+				long count = mappedTileStore.importBerkeleyDbStore(storeName);
+				System.out.println(count + " tiles");
+				total += count;
+			} catch (Exception e) {
+				System.out.println("failed");
+				e.printStackTrace();
+			}
+		}
+		mappedTileStore.closeAll();
+		System.out.println("Migration finished: " + total + " tiles");
+	}
+
+	@Override
+	public void runMainGUI() {
+	}
+
+	@Override
+	public boolean showSplashScreen() {
+		return false;
+	}
+
+	@Override
+	public boolean showMainGUI() {
+		return false;
+	}
+
+}
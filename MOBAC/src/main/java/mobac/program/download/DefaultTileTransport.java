@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+import mobac.program.interfaces.HttpMapSource;
+import mobac.program.interfaces.TileTransport;
+
+/**
+ * Opens one connection per tile without any limitation. Reuse of sockets is left completely to the keep-alive cache of
+ * the Java runtime.
+ */
+public class DefaultTileTransport implements TileTransport {
+
+	public static final DefaultTileTransport INSTANCE = new DefaultTileTransport();
+
+	protected DefaultTileTransport() {
+	}
+
+	public HttpURLConnection openConnection(HttpMapSource mapSource, int zoom, int tilex, int tiley)
+			throws IOException, InterruptedException {
+		return mapSource.getTileUrlConnection(zoom, tilex, tiley);
+	}
+
+	public void releaseConnection(HttpURLConnection conn) {
+	}
+
+}
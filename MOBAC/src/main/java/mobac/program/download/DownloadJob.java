@@ -16,56 +16,82 @@
  ******************************************************************************/
 package mobac.program.download;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ConnectException;
+import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import mobac.exceptions.DownloadFailedException;
 import mobac.exceptions.StopAllDownloadsException;
 import mobac.exceptions.UnrecoverableDownloadException;
+import mobac.mapsources.AbstractHttpMapSource;
 import mobac.program.JobDispatcher;
 import mobac.program.JobDispatcher.Job;
-import mobac.program.atlascreators.tileprovider.DownloadedTileProvider;
+import mobac.program.download.async.AsyncHttpResponse;
+import mobac.program.download.async.AsyncTileDownloader;
+import mobac.program.download.async.AsyncTileRequest;
 import mobac.program.interfaces.DownloadJobListener;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSource.LoadMethod;
-import mobac.utilities.tar.TarIndexedArchive;
+import mobac.program.interfaces.TileSink;
+import mobac.program.model.Settings;
+import mobac.program.tilestore.TileStore;
 
 import org.apache.log4j.Logger;
 
-public class DownloadJob implements Job {
+public class DownloadJob implements Job, AsyncTileRequest.Callback {
 
 	static Logger log = Logger.getLogger(DownloadJob.class);
 
+	/**
+	 * Caches for each map source class if it uses the tile loading of {@link AbstractHttpMapSource} unmodified
+	 */
+	private static final ConcurrentHashMap<Class<?>, Boolean> ASYNC_CAPABLE = new ConcurrentHashMap<Class<?>, Boolean>();
+
 	int errorCounter = 0;
 
 	final MapSource mapSource;
 	final int xValue;
 	final int yValue;
 	final int zoomValue;
-	final TarIndexedArchive tileArchive;
+	final TileSink tileSink;
 	final DownloadJobListener listener;
 
-	public DownloadJob(MapSource mapSource, int xValue, int yValue, int zoomValue, TarIndexedArchive tileArchive,
+	/**
+	 * Set while this job has a request pending in the {@link AsyncTileDownloader}
+	 */
+	JobDispatcher asyncDispatcher = null;
+	AsyncTileRequest asyncRequest = null;
+	AsyncHttpResponse asyncResponse = null;
+	IOException asyncError = null;
+
+	public DownloadJob(MapSource mapSource, int xValue, int yValue, int zoomValue, TileSink tileSink,
 			DownloadJobListener listener) {
 		this.mapSource = mapSource;
 		this.xValue = xValue;
 		this.yValue = yValue;
 		this.zoomValue = zoomValue;
-		this.tileArchive = tileArchive;
+		this.tileSink = tileSink;
 		this.listener = listener;
 	}
 
 	public void run(JobDispatcher dispatcher) throws Exception {
 		try {
-			// Thread.sleep(1500);
-			listener.jobStarted();
-			byte[] tileData = mapSource.getTileData(zoomValue, xValue, yValue, LoadMethod.DEFAULT);
-			String tileFileName = String.format(DownloadedTileProvider.TILE_FILENAME_PATTERN, xValue, yValue);
-			if (tileArchive != null) {
-				synchronized (tileArchive) {
-					tileArchive.writeFileFromData(tileFileName, tileData);
-				}
+			byte[] tileData;
+			if (asyncRequest != null) {
+				// The job has been rescheduled by the async tile downloader
+				tileData = processAsyncResult();
+			} else {
+				// Thread.sleep(1500);
+				listener.jobStarted();
+				if (Settings.getInstance().asyncTileDownload && submitAsyncRequest(dispatcher))
+					return;
+				tileData = mapSource.getTileData(zoomValue, xValue, yValue, LoadMethod.DEFAULT);
 			}
+			if (tileSink != null)
+				tileSink.putTile(xValue, yValue, tileData);
 			listener.jobFinishedSuccessfully(tileData.length);
 		} catch (UnrecoverableDownloadException e) {
 			listener.jobFinishedWithError(false);
@@ -87,6 +113,102 @@ public class DownloadJob implements Job {
 		}
 	}
 
+	/**
+	 * Hands the tile request over to the {@link AsyncTileDownloader} if possible. Blocks if the maximum number of
+	 * requests in flight has been reached for the map source.
+	 * 
+	 * @return <code>true</code> if the request has been submitted, <code>false</code> if the tile has to be loaded
+	 *         the regular way
+	 */
+	protected boolean submitAsyncRequest(JobDispatcher dispatcher) throws Exception {
+		if (!isAsyncCapable(mapSource))
+			return false;
+		Settings s = Settings.getInstance();
+		if (s.getBandwidthLimit() > 0 || s.httpHostBandwidthLimit > 0)
+			return false;
+		AbstractHttpMapSource httpMapSource = (AbstractHttpMapSource) mapSource;
+		httpMapSource.initializeHttpMapSource();
+		// Cached tiles may require conditional requests - they are processed the regular way
+		if (s.tileStoreEnabled && TileStore.getInstance().contains(xValue, yValue, zoomValue, mapSource))
+			return false;
+		HttpURLConnection conn = httpMapSource.getTileUrlConnection(zoomValue, xValue, yValue);
+		if (conn == null || !AsyncTileDownloader.isSupported(conn.getURL()))
+			return false;
+		RateLimiter.getInstance(conn.getURL()).acquireRequest();
+		AsyncTileRequest request = new AsyncTileRequest(conn, mapSource.getName(), this);
+		asyncDispatcher = dispatcher;
+		dispatcher.asyncOperationStarted();
+		try {
+			AsyncTileDownloader.getInstance().submit(request);
+		} catch (InterruptedException e) {
+			dispatcher.asyncOperationFinished();
+			throw e;
+		}
+		return true;
+	}
+
+	protected byte[] processAsyncResult() throws Exception {
+		AsyncTileRequest request = asyncRequest;
+		AsyncHttpResponse response = asyncResponse;
+		IOException error = asyncError;
+		asyncRequest = null;
+		asyncResponse = null;
+		asyncError = null;
+		if (error != null)
+			throw error;
+		int code = response.getResponseCode();
+		if (code >= 300 && code < 400) {
+			// Redirects are followed by the regular download code
+			return mapSource.getTileData(zoomValue, xValue, yValue, LoadMethod.DEFAULT);
+		}
+		return TileDownLoader.processAsyncResponse(xValue, yValue, zoomValue, (AbstractHttpMapSource) mapSource,
+				request, response);
+	}
+
+	public void requestCompleted(AsyncTileRequest request, AsyncHttpResponse response) {
+		asyncResponse = response;
+		asyncRequestFinished(request);
+	}
+
+	public void requestFailed(AsyncTileRequest request, IOException e) {
+		asyncError = e;
+		asyncRequestFinished(request);
+	}
+
+	/**
+	 * Called by the {@link AsyncTileDownloader} thread: The result is processed by one of the dispatcher's worker
+	 * threads so that the tile store and the tile sink are not accessed by the downloader thread.
+	 */
+	private void asyncRequestFinished(AsyncTileRequest request) {
+		JobDispatcher dispatcher = asyncDispatcher;
+		asyncDispatcher = null;
+		asyncRequest = request;
+		dispatcher.addErrorJob(this);
+		dispatcher.asyncOperationFinished();
+	}
+
+	/**
+	 * @param mapSource
+	 * @return <code>true</code> if the map source loads its tiles via the unmodified code of
+	 *         {@link AbstractHttpMapSource} and therefore can be downloaded by the {@link AsyncTileDownloader}
+	 */
+	protected static boolean isAsyncCapable(MapSource mapSource) {
+		if (!(mapSource instanceof AbstractHttpMapSource))
+			return false;
+		Class<?> c = mapSource.getClass();
+		Boolean capable = ASYNC_CAPABLE.get(c);
+		if (capable == null) {
+			try {
+				Method m = c.getMethod("getTileData", int.class, int.class, int.class, LoadMethod.class);
+				capable = (m.getDeclaringClass() == AbstractHttpMapSource.class);
+			} catch (NoSuchMethodException e) {
+				capable = Boolean.FALSE;
+			}
+			ASYNC_CAPABLE.put(c, capable);
+		}
+		return capable;
+	}
+
 	private void processError(JobDispatcher dispatcher, Exception e) {
 		errorCounter++;
 		// Reschedule job to try it later again
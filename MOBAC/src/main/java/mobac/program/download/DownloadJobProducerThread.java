@@ -16,13 +16,29 @@
  ******************************************************************************/
 package mobac.program.download;
 
+import java.awt.Point;
+import java.io.IOException;
+import java.util.BitSet;
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import mobac.gui.AtlasProgress;
+import mobac.mapsources.AbstractHttpMapSource;
 import mobac.program.AtlasThread;
 import mobac.program.JobDispatcher;
 import mobac.program.JobDispatcher.Job;
+import mobac.program.interfaces.DownloadJobListener;
 import mobac.program.interfaces.DownloadableElement;
-import mobac.utilities.tar.TarIndexedArchive;
+import mobac.program.interfaces.MapInterface;
+import mobac.program.interfaces.MapSource;
+import mobac.program.interfaces.MapSourceListener;
+import mobac.program.interfaces.TileFilter;
+import mobac.program.interfaces.TileSink;
+import mobac.program.model.Settings;
+import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreCursor;
+import mobac.program.tilestore.TileStoreEntry;
+import mobac.program.tilestore.berkeleydb.DelayedInterruptThread;
 
 import org.apache.log4j.Logger;
 
@@ -30,6 +46,12 @@ import org.apache.log4j.Logger;
 /**
  * Creates the jobs for downloading tiles. If the job queue is full it will
  * block on {@link JobDispatcher#addJob(Job)}
+ * <p>
+ * Before the first job is created the region of the map is read from the tile store via
+ * {@link TileStore#getTiles(int, int, int, int, int, MapSource)} using multiple threads. Tiles that are present and not
+ * expired are passed directly to the tile sink - download jobs are only created for missing and expired tiles.
+ * The number of tiles to download is reported to the {@link AtlasProgress} before the first job is scheduled.
+ * </p>
  */
 public class DownloadJobProducerThread extends Thread {
 
@@ -39,18 +61,53 @@ public class DownloadJobProducerThread extends Thread {
 
 	final Enumeration<Job> jobEnumerator;
 
+	final DownloadableElement downloadableElement;
+
+	final TileSink tileSink;
+
+	final DownloadJobListener listener;
+
+	final AtlasThread atlasThread;
+
+	/**
+	 * Number of tile columns scanned by a {@link PreCheckThread} at once
+	 */
+	private static final int PRECHECK_STRIPE_WIDTH = 16;
+
+	/**
+	 * Tiles that have been taken from the tile store, indexed by <code>(y - yMin) * width + (x - xMin)</code>
+	 */
+	private BitSet cachedTiles = null;
+	private MapSource cachedMapSource;
+	private TileFilter tileFilter;
+	private int zoom;
+	private int xMin;
+	private int xMax;
+	private int yMin;
+	private int yMax;
+	private int width;
+	private AtomicInteger nextStripe;
+	private AtomicInteger cachedCount;
+
 	public DownloadJobProducerThread(AtlasThread atlasThread, JobDispatcher downloadJobDispatcher,
-			TarIndexedArchive tileArchive, DownloadableElement de) {
+			TileSink tileSink, DownloadableElement de, DownloadJobListener listener) {
 		this.downloadJobDispatcher = downloadJobDispatcher;
-		jobEnumerator = de.getDownloadJobs(tileArchive, atlasThread);
+		this.downloadableElement = de;
+		this.tileSink = tileSink;
+		this.listener = listener;
+		this.atlasThread = atlasThread;
+		jobEnumerator = de.getDownloadJobs(tileSink, listener);
 		start();
 	}
 
 	@Override
 	public void run() {
 		try {
+			copyCachedTiles();
 			while (jobEnumerator.hasMoreElements()) {
 				Job job = jobEnumerator.nextElement();
+				if (isCached(job))
+					continue;
 				downloadJobDispatcher.addJob(job);
 				log.trace("Job added: " + job);
 			}
@@ -61,6 +118,171 @@ public class DownloadJobProducerThread extends Thread {
 		}
 	}
 
+	/**
+	 * Reads the whole region of the map from the tile store and passes all tiles that are not expired to the tile
+	 * sink. Only possible for map sources which store their tiles directly in the tile store. The region is split
+	 * into stripes of {@link #PRECHECK_STRIPE_WIDTH} columns which are scanned in parallel by one
+	 * {@link PreCheckThread} per processor.
+	 * 
+	 * @throws InterruptedException
+	 */
+	protected void copyCachedTiles() throws InterruptedException {
+		if (!Settings.getInstance().tileStoreEnabled || !(downloadableElement instanceof MapInterface))
+			return;
+		MapInterface map = (MapInterface) downloadableElement;
+		MapSource mapSource = map.getMapSource();
+		if (!(mapSource instanceof AbstractHttpMapSource))
+			return;
+		// Same tile range as used by the DownloadJobEnumerator
+		int tileSize = mapSource.getMapSpace().getTileSize();
+		Point minCoord = map.getMinTileCoordinate();
+		Point maxCoord = map.getMaxTileCoordinate();
+		xMin = minCoord.x / tileSize;
+		yMin = minCoord.y / tileSize;
+		xMax = maxCoord.x / tileSize;
+		yMax = maxCoord.y / tileSize;
+		width = xMax - xMin + 1;
+		zoom = map.getZoom();
+		tileFilter = map.getTileFilter();
+		cachedMapSource = mapSource;
+		cachedTiles = new BitSet();
+		nextStripe = new AtomicInteger(0);
+		cachedCount = new AtomicInteger(0);
+
+		long start = System.currentTimeMillis();
+		int stripes = (width + PRECHECK_STRIPE_WIDTH - 1) / PRECHECK_STRIPE_WIDTH;
+		int threadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), stripes));
+		PreCheckThread[] threads = new PreCheckThread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new PreCheckThread(i);
+			threads[i].start();
+		}
+		try {
+			for (PreCheckThread t : threads)
+				t.join();
+		} catch (InterruptedException e) {
+			// Wait for the threads as they may still write to the tile sink
+			for (PreCheckThread t : threads)
+				t.interrupt();
+			for (PreCheckThread t : threads)
+				t.join();
+			throw e;
+		}
+		int cached = cachedCount.get();
+		int download = Math.max(0, (int) map.calculateTilesToDownload() - cached);
+		log.debug("Tile store pre-check finished in " + (System.currentTimeMillis() - start) + " ms using "
+				+ threadCount + " threads: " + cached + " tiles have been taken from the tile store, " + download
+				+ " tiles have to be downloaded");
+		atlasThread.getAtlasProgress().setMapDownloadPreCheckResult(cached, download);
+	}
+
+	/**
+	 * Scans stripes of the map region until all stripes have been processed.
+	 */
+	private class PreCheckThread extends DelayedInterruptThread {
+
+		public PreCheckThread(int num) {
+			super("TileStorePreCheck-" + num);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				int stripe;
+				while ((stripe = nextStripe.getAndIncrement()) * PRECHECK_STRIPE_WIDTH < width) {
+					int x1 = xMin + stripe * PRECHECK_STRIPE_WIDTH;
+					int x2 = Math.min(xMax, x1 + PRECHECK_STRIPE_WIDTH - 1);
+					pauseInterrupt();
+					try {
+						copyCachedTiles(x1, x2);
+					} finally {
+						resumeInterrupt();
+					}
+					if (isInterrupted())
+						return;
+				}
+			} catch (InterruptedException e) {
+			} catch (IOException e) {
+				// The remaining tiles are processed by regular download jobs
+				log.error("Failed to copy tiles from the tile store: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Copies the fresh tiles of the columns <code>x1</code> to <code>x2</code> from the tile store into the tile
+	 * sink.
+	 * 
+	 * @param x1
+	 * @param x2
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	protected void copyCachedTiles(int x1, int x2) throws IOException, InterruptedException {
+		MapSourceListener mapSourceListener = downloadJobDispatcher.getMapSourceListener();
+		TileStoreCursor cursor = TileStore.getInstance().getTiles(zoom, x1, x2, yMin, yMax, cachedMapSource);
+		try {
+			TileStoreEntry tile;
+			while ((tile = cursor.next()) != null) {
+				int x = tile.getX();
+				int y = tile.getY();
+				if (TileDownLoader.isTileExpired(tile) || !tileFilter.testTile(x, y, zoom, cachedMapSource))
+					continue;
+				byte[] data = tile.getData();
+				if (tileSink != null)
+					tileSink.putTile(x, y, data);
+				synchronized (cachedTiles) {
+					cachedTiles.set((y - yMin) * width + (x - xMin));
+				}
+				cachedCount.incrementAndGet();
+				listener.jobStarted();
+				if (mapSourceListener != null)
+					mapSourceListener.tileLoadedFromCache(data.length);
+				listener.jobFinishedSuccessfully(data.length);
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @param job
+	 * @return <code>true</code> if the tile of the download job has been copied from the tile store already
+	 */
+	protected boolean isCached(Job job) {
+		if (cachedTiles == null || !(job instanceof DownloadJob))
+			return false;
+		DownloadJob dj = (DownloadJob) job;
+		if (dj.mapSource != cachedMapSource)
+			return false;
+		int x = dj.xValue - xMin;
+		int y = dj.yValue - yMin;
+		if (x < 0 || x >= width || y < 0)
+			return false;
+		synchronized (cachedTiles) {
+			return cachedTiles.get(y * width + x);
+		}
+	}
+
+	/**
+	 * Waits until all download jobs have been generated and processed by the {@link JobDispatcher}.
+	 * 
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return <code>true</code> if all jobs have been generated and processed, <code>false</code> if the timeout has
+	 *         elapsed before
+	 * @throws InterruptedException
+	 */
+	public boolean awaitCompletion(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		join(timeout);
+		if (isAlive())
+			return false;
+		long remaining = deadline - System.currentTimeMillis();
+		return downloadJobDispatcher.awaitIdle(Math.max(0, remaining));
+	}
+
 	public void cancel() {
 		try {
 			interrupt();
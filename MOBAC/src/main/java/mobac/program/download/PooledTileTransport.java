@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import mobac.program.interfaces.HttpMapSource;
+import mobac.program.interfaces.TileTransport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the number of concurrent connections per host. The keep-alive cache of the Java runtime holds up to
+ * <code>http.maxConnections</code> idle connections per host (set at startup by
+ * {@link mobac.StartMOBAC#setHttpKeepAlive()}). As long as no more connections are in use at the same time every
+ * download can reuse an already established TCP/TLS connection instead of performing a new handshake. Connections
+ * exceeding the keep-alive cache would be closed after use.
+ * <p>
+ * The connections themselves are managed by the Java runtime - this class only limits their number.
+ * </p>
+ */
+public class PooledTileTransport implements TileTransport {
+
+	private static final Logger log = Logger.getLogger(PooledTileTransport.class);
+
+	private final int maxConnectionsPerHost;
+
+	private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+	/**
+	 * Permits acquired for the currently open connections
+	 */
+	private final ConcurrentHashMap<HttpURLConnection, Semaphore> connectionPermits = new ConcurrentHashMap<HttpURLConnection, Semaphore>();
+
+	public PooledTileTransport(int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+	}
+
+	public HttpURLConnection openConnection(HttpMapSource mapSource, int zoom, int tilex, int tiley)
+			throws IOException, InterruptedException {
+		HttpURLConnection conn = mapSource.getTileUrlConnection(zoom, tilex, tiley);
+		if (conn == null)
+			return null;
+		URL u = conn.getURL();
+		Semaphore permits = getHostPermits(u.getProtocol() + "://" + u.getHost() + ":" + u.getPort());
+		permits.acquire();
+		connectionPermits.put(conn, permits);
+		return conn;
+	}
+
+	public void releaseConnection(HttpURLConnection conn) {
+		if (conn == null)
+			return;
+		Semaphore permits = connectionPermits.remove(conn);
+		if (permits != null)
+			permits.release();
+	}
+
+	protected Semaphore getHostPermits(String host) {
+		Semaphore permits = hostPermits.get(host);
+		if (permits != null)
+			return permits;
+		permits = new Semaphore(maxConnectionsPerHost, true);
+		Semaphore old = hostPermits.putIfAbsent(host, permits);
+		if (old != null)
+			return old;
+		log.debug("Connection pool for " + host + " created: max " + maxConnectionsPerHost + " connections");
+		return permits;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+}
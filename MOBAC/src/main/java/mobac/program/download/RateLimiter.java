@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mobac.program.model.Settings;
+import mobac.utilities.stream.ThrottledInputStream;
+import mobac.utilities.stream.TokenBucket;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the requests per second and the bytes per second sent to and received from one tile server host. All map
+ * sources and all atlases downloading from the same host share one rate limiter. The limits are implemented as lock
+ * free {@link TokenBucket}s.
+ * <p>
+ * If the server responds with HTTP 429 (Too Many Requests) or 503 (Service Unavailable) the rate limiter backs off: No
+ * further request is sent to the host until the time specified by the <code>Retry-After</code> header (or an
+ * exponentially growing default delay) has elapsed and the request rate is halved. The request rate is slowly
+ * increased again while the server responds normally until the configured limit is reached.
+ * </p>
+ * 
+ * @see Settings#httpHostRequestRateLimit
+ * @see Settings#httpHostBandwidthLimit
+ * @see Settings#getBandwidthLimit()
+ */
+public class RateLimiter {
+
+	private static final Logger log = Logger.getLogger(RateLimiter.class);
+
+	public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * Back-off delay used if the server does not send a <code>Retry-After</code> header. Doubled for each consecutive
+	 * back-off.
+	 */
+	protected static final long DEFAULT_BACKOFF = TimeUnit.SECONDS.toMillis(2);
+
+	protected static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * Lower limit for the request rate reduced because of a back-off in requests per second
+	 */
+	protected static final double MIN_REQUEST_RATE = 0.2;
+
+	/**
+	 * The reduced request rate is increased by {@link #RECOVERY_FACTOR} each time this interval (in milliseconds) has
+	 * passed without a back-off.
+	 */
+	protected static final long RECOVERY_INTERVAL = TimeUnit.SECONDS.toMillis(2);
+
+	protected static final double RECOVERY_FACTOR = 1.1;
+
+	/**
+	 * Length of the window for measuring the request rate of an unlimited host in milliseconds
+	 */
+	protected static final long RATE_WINDOW = TimeUnit.SECONDS.toMillis(10);
+
+	private static final ConcurrentHashMap<String, RateLimiter> LIMITERS = new ConcurrentHashMap<String, RateLimiter>();
+
+	/**
+	 * Limits the bandwidth of all atlas downloads
+	 */
+	private static final TokenBucket GLOBAL_BANDWIDTH = new TokenBucket();
+
+	private final String host;
+
+	private final TokenBucket requests = new TokenBucket();
+	private final TokenBucket bytes = new TokenBucket();
+
+	/**
+	 * Configured request rate limit, 0 = unlimited
+	 */
+	private volatile double requestRateLimit = 0;
+	private volatile long bandwidthLimit = 0;
+
+	/**
+	 * Request rate reduced because of a back-off, 0 = not reduced
+	 */
+	private volatile double reducedRate = 0;
+
+	/**
+	 * Request rate before the first back-off, the reduced rate is dropped after it has recovered to this rate
+	 */
+	private volatile double unreducedRate = 0;
+
+	private final AtomicLong backoffUntil = new AtomicLong(0);
+	private final AtomicInteger backoffCount = new AtomicInteger(0);
+	private final AtomicLong lastRecovery = new AtomicLong(0);
+
+	private final AtomicInteger windowRequests = new AtomicInteger(0);
+	private volatile long windowStart = System.currentTimeMillis();
+
+	/**
+	 * @param url
+	 * @return the rate limiter of the host of the specified url, configured according to the current {@link Settings}
+	 */
+	public static RateLimiter getInstance(URL url) {
+		return getInstance(url.getHost());
+	}
+
+	public static RateLimiter getInstance(String host) {
+		host = host.toLowerCase(Locale.ENGLISH);
+		RateLimiter limiter = LIMITERS.get(host);
+		if (limiter == null) {
+			limiter = new RateLimiter(host);
+			RateLimiter existing = LIMITERS.putIfAbsent(host, limiter);
+			if (existing != null)
+				limiter = existing;
+		}
+		Settings s = Settings.getInstance();
+		limiter.setLimits(s.httpHostRequestRateLimit, s.httpHostBandwidthLimit);
+		return limiter;
+	}
+
+	/**
+	 * @param bandwidthLimit
+	 *            limit for all atlas downloads in bytes per second, 0 = unlimited
+	 */
+	public static void setGlobalBandwidthLimit(long bandwidthLimit) {
+		GLOBAL_BANDWIDTH.setRate(bandwidthLimit, bandwidthLimit);
+	}
+
+	protected RateLimiter(String host) {
+		this.host = host;
+	}
+
+	/**
+	 * Updates the limits if they have been changed.
+	 * 
+	 * @param requestRateLimit
+	 *            requests per second, 0 = unlimited
+	 * @param bandwidthLimit
+	 *            bytes per second, 0 = unlimited
+	 */
+	public void setLimits(double requestRateLimit, long bandwidthLimit) {
+		if (this.requestRateLimit != requestRateLimit) {
+			this.requestRateLimit = requestRateLimit;
+			reducedRate = 0;
+			updateRequestRate();
+		}
+		if (this.bandwidthLimit != bandwidthLimit) {
+			this.bandwidthLimit = bandwidthLimit;
+			bytes.setRate(bandwidthLimit, bandwidthLimit);
+		}
+	}
+
+	/**
+	 * Waits until the next request may be sent to the host.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void acquireRequest() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		if (now - windowStart > RATE_WINDOW) {
+			windowStart = now;
+			windowRequests.set(0);
+		}
+		windowRequests.incrementAndGet();
+		requests.acquire(1);
+	}
+
+	/**
+	 * Wraps the response body stream of an atlas download so that it respects the bandwidth limits.
+	 * 
+	 * @param in
+	 * @return
+	 */
+	public InputStream throttle(InputStream in) {
+		ArrayList<TokenBucket> buckets = new ArrayList<TokenBucket>(2);
+		if (GLOBAL_BANDWIDTH.isLimited())
+			buckets.add(GLOBAL_BANDWIDTH);
+		if (bytes.isLimited())
+			buckets.add(bytes);
+		if (buckets.isEmpty())
+			return in;
+		return new ThrottledInputStream(in, buckets.toArray(new TokenBucket[buckets.size()]));
+	}
+
+	/**
+	 * Has to be called for each response received from the host.
+	 * 
+	 * @param conn
+	 * @param responseCode
+	 */
+	public void responseReceived(HttpURLConnection conn, int responseCode) {
+		responseReceived(responseCode, conn.getHeaderField("Retry-After"));
+	}
+
+	/**
+	 * Has to be called for each response received from the host.
+	 * 
+	 * @param responseCode
+	 * @param retryAfter
+	 *            value of the <code>Retry-After</code> header or <code>null</code>
+	 */
+	public void responseReceived(int responseCode, String retryAfter) {
+		long now = System.currentTimeMillis();
+		if (responseCode == HTTP_TOO_MANY_REQUESTS || responseCode == HttpURLConnection.HTTP_UNAVAILABLE)
+			backOff(parseRetryAfter(retryAfter, now), now);
+		else if (responseCode > 0)
+			recover(now);
+	}
+
+	protected void backOff(long delay, long now) {
+		long until = backoffUntil.get();
+		if (until > now) {
+			// Responses of requests sent before the back-off started
+			return;
+		}
+		if (delay < 0)
+			delay = Math.min(MAX_BACKOFF, DEFAULT_BACKOFF << Math.min(backoffCount.get(), 16));
+		if (!backoffUntil.compareAndSet(until, now + delay))
+			return;
+		backoffCount.incrementAndGet();
+		double rate = reducedRate;
+		if (rate == 0) {
+			rate = (requestRateLimit > 0) ? requestRateLimit : getMeasuredRequestRate(now);
+			unreducedRate = rate;
+		}
+		reducedRate = Math.max(MIN_REQUEST_RATE, rate / 2);
+		lastRecovery.set(now + delay);
+		updateRequestRate();
+		requests.delay(TimeUnit.MILLISECONDS.toNanos(delay));
+		log.warn(String.format("Server %s is overloaded - pausing requests for %d ms, request rate reduced to %.2f/s",
+				host, delay, reducedRate));
+	}
+
+	protected void recover(long now) {
+		if (backoffUntil.get() > now)
+			return;
+		backoffCount.set(0);
+		double rate = reducedRate;
+		if (rate == 0)
+			return;
+		long last = lastRecovery.get();
+		if (now - last < RECOVERY_INTERVAL || !lastRecovery.compareAndSet(last, now))
+			return;
+		rate *= RECOVERY_FACTOR;
+		if (rate >= unreducedRate) {
+			rate = 0;
+			log.debug("Request rate of server " + host + " recovered");
+		}
+		reducedRate = rate;
+		updateRequestRate();
+	}
+
+	private void updateRequestRate() {
+		double rate = reducedRate;
+		if (rate == 0)
+			rate = requestRateLimit;
+		// Allow a burst of one second
+		requests.setRate(rate, Math.max(1, rate));
+	}
+
+	private double getMeasuredRequestRate(long now) {
+		long duration = Math.max(1000, now - windowStart);
+		return windowRequests.get() * 1000.0 / duration;
+	}
+
+	/**
+	 * @return the current request rate limit in requests per second, 0 = unlimited
+	 */
+	public double getRequestRate() {
+		return requests.getRate();
+	}
+
+	public boolean isBackingOff() {
+		return backoffUntil.get() > System.currentTimeMillis();
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Parses the value of a <code>Retry-After</code> header which is either a number of seconds or a HTTP date.
+	 * 
+	 * @param value
+	 * @param now
+	 *            current time in milliseconds
+	 * @return delay in milliseconds or -1 if the value is missing or invalid
+	 */
+	public static long parseRetryAfter(String value, long now) {
+		if (value == null)
+			return -1;
+		value = value.trim();
+		if (value.length() == 0)
+			return -1;
+		try {
+			return Math.min(MAX_BACKOFF, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+		} catch (NumberFormatException e) {
+		}
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		try {
+			long delay = format.parse(value).getTime() - now;
+			return Math.max(0, Math.min(MAX_BACKOFF, delay));
+		} catch (ParseException e) {
+			log.debug("Invalid Retry-After header: " + value);
+			return -1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RateLimiter [host=%s, request rate=%.2f/s, bandwidth=%d B/s]", host,
+				requests.getRate(), bandwidthLimit);
+	}
+}
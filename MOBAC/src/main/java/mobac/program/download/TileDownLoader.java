@@ -23,15 +23,19 @@ import java.net.ProtocolException;
 
 import mobac.exceptions.DownloadFailedException;
 import mobac.exceptions.UnrecoverableDownloadException;
+import mobac.program.JobDispatcher;
+import mobac.program.download.async.AsyncHttpResponse;
+import mobac.program.download.async.AsyncTileRequest;
 import mobac.program.interfaces.HttpMapSource;
 import mobac.program.interfaces.MapSourceListener;
 import mobac.program.interfaces.MapSpace;
+import mobac.program.interfaces.TileTransport;
+import mobac.program.interfaces.TileTransportProvider;
 import mobac.program.model.Settings;
 import mobac.program.model.TileImageType;
 import mobac.program.tilestore.TileStore;
 import mobac.program.tilestore.TileStoreEntry;
 import mobac.utilities.Utilities;
-import mobac.utilities.stream.ThrottledInputStream;
 
 import org.apache.log4j.Logger;
 
@@ -43,13 +47,42 @@ public class TileDownLoader {
 		Object defaultReadTimeout = System.getProperty("sun.net.client.defaultReadTimeout");
 		if (defaultReadTimeout == null)
 			System.setProperty("sun.net.client.defaultReadTimeout", "15000");
-		System.setProperty("http.maxConnections", "20");
+		// http.maxConnections is set at startup by StartMOBAC.setHttpKeepAlive()
 	}
 
 	private static Logger log = Logger.getLogger(TileDownLoader.class);
 
 	private static Settings settings = Settings.getInstance();
 
+	private static volatile PooledTileTransport pooledTileTransport = null;
+
+	/**
+	 * @param mapSource
+	 * @return the {@link TileTransport} provided by the map source if it implements {@link TileTransportProvider},
+	 *         otherwise the transport configured in {@link Settings}
+	 */
+	public static TileTransport getTileTransport(HttpMapSource mapSource) {
+		if (mapSource instanceof TileTransportProvider) {
+			TileTransport transport = ((TileTransportProvider) mapSource).getTileTransport();
+			if (transport != null)
+				return transport;
+		}
+		Settings s = Settings.getInstance();
+		if (!s.httpConnectionPooling)
+			return DefaultTileTransport.INSTANCE;
+		PooledTileTransport transport = pooledTileTransport;
+		if (transport != null && transport.getMaxConnectionsPerHost() == s.httpMaxConnectionsPerHost)
+			return transport;
+		synchronized (TileDownLoader.class) {
+			transport = pooledTileTransport;
+			if (transport == null || transport.getMaxConnectionsPerHost() != s.httpMaxConnectionsPerHost) {
+				transport = new PooledTileTransport(s.httpMaxConnectionsPerHost);
+				pooledTileTransport = transport;
+			}
+			return transport;
+		}
+	}
+
 	public static byte[] getImage(int x, int y, int zoom, HttpMapSource mapSource) throws IOException,
 			InterruptedException, UnrecoverableDownloadException {
 
@@ -106,15 +139,17 @@ public class TileDownLoader {
 	}
 
 	private static void notifyTileDownloaded(int size) {
-		if (Thread.currentThread() instanceof MapSourceListener) {
-			((MapSourceListener) Thread.currentThread()).tileDownloaded(size);
+		MapSourceListener listener = JobDispatcher.getCurrentMapSourceListener();
+		if (listener != null) {
+			listener.tileDownloaded(size);
 		}
 
 	}
 
 	private static void notifyCachedTileUsed(int size) {
-		if (Thread.currentThread() instanceof MapSourceListener) {
-			((MapSourceListener) Thread.currentThread()).tileLoadedFromCache(size);
+		MapSourceListener listener = JobDispatcher.getCurrentMapSourceListener();
+		if (listener != null) {
+			listener.tileLoadedFromCache(size);
 		}
 	}
 
@@ -145,18 +180,28 @@ public class TileDownLoader {
 
 		if (zoom < 0)
 			throw new UnrecoverableDownloadException("Negative zoom!");
-		HttpURLConnection conn = mapSource.getTileUrlConnection(zoom, x, y);
+		TileTransport transport = getTileTransport(mapSource);
+		HttpURLConnection conn = transport.openConnection(mapSource, zoom, x, y);
 		if (conn == null)
 			throw new UnrecoverableDownloadException("Tile x=" + x + " y=" + y + " zoom=" + zoom
 					+ " is not a valid tile in map source " + mapSource);
 
 		log.trace("Downloading " + conn.getURL());
 
-		prepareConnection(conn);
-		conn.connect();
+		RateLimiter rateLimiter = RateLimiter.getInstance(conn.getURL());
+		int code;
+		byte[] data;
+		try {
+			prepareConnection(conn);
+			rateLimiter.acquireRequest();
+			conn.connect();
 
-		int code = conn.getResponseCode();
-		byte[] data = loadBodyDataInBuffer(conn);
+			code = conn.getResponseCode();
+			rateLimiter.responseReceived(conn, code);
+			data = loadBodyDataInBuffer(conn);
+		} finally {
+			transport.releaseConnection(conn);
+		}
 
 		if (code != HttpURLConnection.HTTP_OK)
 			throw new DownloadFailedException(conn, code);
@@ -179,6 +224,38 @@ public class TileDownLoader {
 		return data;
 	}
 
+	/**
+	 * Validates a response retrieved by the {@link mobac.program.download.async.AsyncTileDownloader} and updates the
+	 * tile store the same way as {@link #downloadTileAndUpdateStore(int, int, int, HttpMapSource)}.
+	 * 
+	 * @return the tile data
+	 */
+	public static byte[] processAsyncResponse(int x, int y, int zoom, HttpMapSource mapSource,
+			AsyncTileRequest request, AsyncHttpResponse response) throws UnrecoverableDownloadException, IOException,
+			InterruptedException {
+		int code = response.getResponseCode();
+		RateLimiter.getInstance(request.getUrl()).responseReceived(code, response.getHeaderField("Retry-After"));
+		if (code != HttpURLConnection.HTTP_OK)
+			throw new DownloadFailedException(request.getUrl(), code);
+		byte[] data = response.getData();
+		if (data == null || data.length == 0)
+			throw new UnrecoverableDownloadException("The server returned no data");
+
+		checkContentType(response.getContentType(), data);
+		checkContentLength(response.getContentLength(), data);
+
+		Utilities.checkForInterruption();
+		TileImageType imageType = Utilities.getImageType(data);
+		if (imageType == null)
+			throw new UnrecoverableDownloadException("The returned image is of unknown format");
+		if (Settings.getInstance().tileStoreEnabled) {
+			TileStore.getInstance().putTileData(data, x, y, zoom, mapSource, response.getLastModified(),
+					response.getExpiration(), response.getHeaderField("ETag"));
+		}
+		notifyTileDownloaded(data.length);
+		return data;
+	}
+
 	public static byte[] updateStoredTile(TileStoreEntry tile, HttpMapSource mapSource)
 			throws UnrecoverableDownloadException, IOException, InterruptedException {
 		final int x = tile.getX();
@@ -206,7 +283,8 @@ public class TileDownLoader {
 			break;
 		}
 		}
-		HttpURLConnection conn = mapSource.getTileUrlConnection(zoom, x, y);
+		TileTransport transport = getTileTransport(mapSource);
+		HttpURLConnection conn = transport.openConnection(mapSource, zoom, x, y);
 		if (conn == null)
 			throw new UnrecoverableDownloadException("Tile x=" + x + " y=" + y + " zoom=" + zoom
 					+ " is not a valid tile in map source " + mapSource);
@@ -214,44 +292,53 @@ public class TileDownLoader {
 		if (log.isTraceEnabled())
 			log.trace(String.format("Checking %s %s", mapSource.getName(), tile));
 
-		prepareConnection(conn);
+		Settings s = Settings.getInstance();
 
-		boolean conditionalRequest = false;
+		RateLimiter rateLimiter = RateLimiter.getInstance(conn.getURL());
+		int code;
+		byte[] data;
+		try {
+			prepareConnection(conn);
 
-		switch (tileUpdate) {
-		case IfNoneMatch: {
-			if (tile.geteTag() != null) {
-				conn.setRequestProperty("If-None-Match", tile.geteTag());
-				conditionalRequest = true;
+			boolean conditionalRequest = false;
+
+			switch (tileUpdate) {
+			case IfNoneMatch: {
+				if (tile.geteTag() != null) {
+					conn.setRequestProperty("If-None-Match", tile.geteTag());
+					conditionalRequest = true;
+				}
+				break;
+			}
+			case IfModifiedSince: {
+				if (tile.getTimeLastModified() > 0) {
+					conn.setIfModifiedSince(tile.getTimeLastModified());
+					conditionalRequest = true;
+				}
+				break;
 			}
-			break;
-		}
-		case IfModifiedSince: {
-			if (tile.getTimeLastModified() > 0) {
-				conn.setIfModifiedSince(tile.getTimeLastModified());
-				conditionalRequest = true;
 			}
-			break;
-		}
-		}
-
-		conn.connect();
 
-		Settings s = Settings.getInstance();
+			rateLimiter.acquireRequest();
+			conn.connect();
 
-		int code = conn.getResponseCode();
+			code = conn.getResponseCode();
+			rateLimiter.responseReceived(conn, code);
 
-		if (conditionalRequest && code == HttpURLConnection.HTTP_NOT_MODIFIED) {
-			// Data unchanged on server
-			if (s.tileStoreEnabled) {
-				tile.update(conn.getExpiration());
-				TileStore.getInstance().putTile(tile, mapSource);
+			if (conditionalRequest && code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				// Data unchanged on server
+				if (s.tileStoreEnabled) {
+					tile.update(conn.getExpiration());
+					TileStore.getInstance().putTile(tile, mapSource);
+				}
+				if (log.isTraceEnabled())
+					log.trace("Data unchanged on server: " + mapSource + " " + tile);
+				return null;
 			}
-			if (log.isTraceEnabled())
-				log.trace("Data unchanged on server: " + mapSource + " " + tile);
-			return null;
+			data = loadBodyDataInBuffer(conn);
+		} finally {
+			transport.releaseConnection(conn);
 		}
-		byte[] data = loadBodyDataInBuffer(conn);
 
 		if (code != HttpURLConnection.HTTP_OK)
 			throw new DownloadFailedException(conn, code);
@@ -292,7 +379,8 @@ public class TileDownLoader {
 
 	/**
 	 * Reads all available data from the input stream of <code>conn</code> and returns it as byte array. If no input
-	 * data is available the method returns <code>null</code>.
+	 * data is available the method returns <code>null</code>. Atlas downloads are throttled by the {@link RateLimiter}
+	 * of the server host.
 	 * 
 	 * @param conn
 	 * @return
@@ -302,12 +390,9 @@ public class TileDownLoader {
 		InputStream input = conn.getInputStream();
 		byte[] data = null;
 		try {
-			if (Thread.currentThread() instanceof MapSourceListener) {
+			if (JobDispatcher.getCurrentMapSourceListener() != null) {
 				// We only throttle atlas downloads, not downloads for the preview map
-				long bandwidthLimit = Settings.getInstance().getBandwidthLimit();
-				if (bandwidthLimit > 0) {
-					input = new ThrottledInputStream(input);
-				}
+				input = RateLimiter.getInstance(conn.getURL()).throttle(input);
 			}
 			data = Utilities.getInputBytes(input);
 		} catch (IOException e) {
@@ -333,31 +418,47 @@ public class TileDownLoader {
 	/**
 	 * Performs a <code>HEAD</code> request for retrieving the <code>LastModified</code> header value.
 	 */
-	protected static boolean isTileNewer(TileStoreEntry tile, HttpMapSource mapSource) throws IOException {
+	protected static boolean isTileNewer(TileStoreEntry tile, HttpMapSource mapSource) throws IOException,
+			InterruptedException {
 		long oldLastModified = tile.getTimeLastModified();
 		if (oldLastModified <= 0) {
 			log.warn("Tile age comparison not possible: " + "tile in tilestore does not contain lastModified attribute");
 			return true;
 		}
-		HttpURLConnection conn = mapSource.getTileUrlConnection(tile.getZoom(), tile.getX(), tile.getY());
-		conn.setRequestMethod("HEAD");
-		conn.setRequestProperty("Accept", ACCEPT);
-		long newLastModified = conn.getLastModified();
+		TileTransport transport = getTileTransport(mapSource);
+		HttpURLConnection conn = transport.openConnection(mapSource, tile.getZoom(), tile.getX(), tile.getY());
+		long newLastModified;
+		try {
+			RateLimiter.getInstance(conn.getURL()).acquireRequest();
+			conn.setRequestMethod("HEAD");
+			conn.setRequestProperty("Accept", ACCEPT);
+			newLastModified = conn.getLastModified();
+		} finally {
+			transport.releaseConnection(conn);
+		}
 		if (newLastModified == 0)
 			return true;
 		return (newLastModified > oldLastModified);
 	}
 
-	protected static boolean hasTileETag(TileStoreEntry tile, HttpMapSource mapSource) throws IOException {
+	protected static boolean hasTileETag(TileStoreEntry tile, HttpMapSource mapSource) throws IOException,
+			InterruptedException {
 		String eTag = tile.geteTag();
 		if (eTag == null || eTag.length() == 0) {
 			log.warn("ETag check not possible: " + "tile in tilestore does not contain ETag attribute");
 			return true;
 		}
-		HttpURLConnection conn = mapSource.getTileUrlConnection(tile.getZoom(), tile.getX(), tile.getY());
-		conn.setRequestMethod("HEAD");
-		conn.setRequestProperty("Accept", ACCEPT);
-		String onlineETag = conn.getHeaderField("ETag");
+		TileTransport transport = getTileTransport(mapSource);
+		HttpURLConnection conn = transport.openConnection(mapSource, tile.getZoom(), tile.getX(), tile.getY());
+		String onlineETag;
+		try {
+			RateLimiter.getInstance(conn.getURL()).acquireRequest();
+			conn.setRequestMethod("HEAD");
+			conn.setRequestProperty("Accept", ACCEPT);
+			onlineETag = conn.getHeaderField("ETag");
+		} finally {
+			transport.releaseConnection(conn);
+		}
 		if (onlineETag == null || onlineETag.length() == 0)
 			return true;
 		return (onlineETag.equals(eTag));
@@ -375,7 +476,10 @@ public class TileDownLoader {
 	}
 
 	protected static void checkContentType(HttpURLConnection conn, byte[] data) throws UnrecoverableDownloadException {
-		String contentType = conn.getContentType();
+		checkContentType(conn.getContentType(), data);
+	}
+
+	protected static void checkContentType(String contentType, byte[] data) throws UnrecoverableDownloadException {
 		if (contentType != null) {
 			contentType = contentType.toLowerCase();
 			if (!contentType.startsWith("image/")) {
@@ -395,7 +499,10 @@ public class TileDownLoader {
 	 * @throws UnrecoverableDownloadException
 	 */
 	protected static void checkContentLength(HttpURLConnection conn, byte[] data) throws UnrecoverableDownloadException {
-		int len = conn.getContentLength();
+		checkContentLength(conn.getContentLength(), data);
+	}
+
+	protected static void checkContentLength(int len, byte[] data) throws UnrecoverableDownloadException {
 		if (len < 0)
 			return;
 		if (data.length != len)
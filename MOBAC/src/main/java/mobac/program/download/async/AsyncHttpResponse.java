@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download.async;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Response retrieved by the {@link AsyncTileDownloader}. The header accessor methods behave like their counterparts
+ * in {@link java.net.HttpURLConnection}.
+ */
+public class AsyncHttpResponse {
+
+	private static final String[] DATE_PATTERNS = { "EEE, dd MMM yyyy HH:mm:ss zzz", "EEEE, dd-MMM-yy HH:mm:ss zzz",
+			"EEE MMM d HH:mm:ss yyyy" };
+
+	protected int responseCode;
+	protected String httpVersion;
+	protected final HashMap<String, String> headers = new HashMap<String, String>();
+	protected byte[] data;
+
+	/**
+	 * The end of the body is indicated by the server closing the connection
+	 */
+	protected boolean bodyDelimitedByClose = false;
+
+	protected AsyncHttpResponse() {
+	}
+
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	/**
+	 * @param name
+	 *            case insensitive header name
+	 * @return the value of the last header with the specified name or <code>null</code>
+	 */
+	public String getHeaderField(String name) {
+		return headers.get(name.toLowerCase(Locale.ENGLISH));
+	}
+
+	public String getContentType() {
+		return getHeaderField("Content-Type");
+	}
+
+	public int getContentLength() {
+		String value = getHeaderField("Content-Length");
+		if (value == null)
+			return -1;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public long getLastModified() {
+		return getHeaderFieldDate("Last-Modified", 0);
+	}
+
+	public long getExpiration() {
+		return getHeaderFieldDate("Expires", 0);
+	}
+
+	public long getHeaderFieldDate(String name, long defaultValue) {
+		String value = getHeaderField(name);
+		if (value == null)
+			return defaultValue;
+		for (String pattern : DATE_PATTERNS) {
+			SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			try {
+				return format.parse(value.trim()).getTime();
+			} catch (ParseException e) {
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * @return <code>true</code> if the server allows to send further requests on the same connection
+	 */
+	public boolean isKeepAlive() {
+		if (bodyDelimitedByClose)
+			return false;
+		String connection = getHeaderField("Connection");
+		if (connection != null)
+			connection = connection.toLowerCase(Locale.ENGLISH);
+		if ("HTTP/1.0".equals(httpVersion))
+			return "keep-alive".equals(connection);
+		return !"close".equals(connection);
+	}
+
+	/**
+	 * @return the response body or <code>null</code> if the response does not have a body
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+}
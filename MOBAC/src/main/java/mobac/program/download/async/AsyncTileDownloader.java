@@ -0,0 +1,463 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download.async;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import mobac.program.model.Settings;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Downloads tiles via non-blocking sockets. A single thread multiplexes all connections, therefore the number of
+ * concurrent requests is not limited by the number of download threads. The number of requests in flight is limited
+ * per map source ({@link Settings#asyncMaxRequestsPerMapSource}); {@link #submit(AsyncTileRequest)} blocks if the limit
+ * has been reached. Per host at most {@link Settings#httpMaxConnectionsPerHost} keep-alive connections are opened,
+ * each one carrying up to {@link Settings#asyncPipelineDepth} pipelined requests.
+ * <p>
+ * Only plain http requests without proxy are supported, see {@link #isSupported(URL)}.
+ * </p>
+ */
+public class AsyncTileDownloader extends Thread {
+
+	private static final Logger log = Logger.getLogger(AsyncTileDownloader.class);
+
+	/**
+	 * Idle keep-alive connections are closed after this time span in milliseconds
+	 */
+	private static final long IDLE_TIMEOUT = 30000;
+
+	/**
+	 * Maximum number of times a request is sent again because the connection has been closed before any response data
+	 * was received
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+
+	private static AsyncTileDownloader INSTANCE = null;
+
+	public static synchronized AsyncTileDownloader getInstance() throws IOException {
+		if (INSTANCE == null || !INSTANCE.isAlive()) {
+			INSTANCE = new AsyncTileDownloader();
+			INSTANCE.start();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * @param url
+	 * @return <code>true</code> if the specified url can be requested by the {@link AsyncTileDownloader}
+	 */
+	public static boolean isSupported(URL url) {
+		if (!"http".equalsIgnoreCase(url.getProtocol()))
+			return false;
+		try {
+			List<Proxy> proxies = ProxySelector.getDefault().select(url.toURI());
+			for (Proxy proxy : proxies) {
+				if (proxy.type() != Proxy.Type.DIRECT)
+					return false;
+			}
+		} catch (Exception e) {
+			return false;
+		}
+		return true;
+	}
+
+	private final Selector selector;
+
+	private final ConcurrentLinkedQueue<AsyncTileRequest> newRequests = new ConcurrentLinkedQueue<AsyncTileRequest>();
+
+	private final ConcurrentHashMap<String, Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+
+	/**
+	 * Only accessed by the selector thread
+	 */
+	private final HashMap<String, HostQueue> hosts = new HashMap<String, HostQueue>();
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+	protected AsyncTileDownloader() throws IOException {
+		super("AsyncTileDownloader");
+		setDaemon(true);
+		selector = Selector.open();
+	}
+
+	/**
+	 * Schedules the request. Blocks if the maximum number of requests in flight for the request's permit key has been
+	 * reached. The result is delivered to the request's {@link AsyncTileRequest.Callback}.
+	 * 
+	 * @param request
+	 * @throws InterruptedException
+	 */
+	public void submit(AsyncTileRequest request) throws InterruptedException {
+		Semaphore s = getPermits(request.permitKey);
+		s.acquire();
+		request.permits = s;
+		newRequests.add(request);
+		selector.wakeup();
+	}
+
+	/**
+	 * @param permitKey
+	 * @return number of submitted requests of the specified key that have not been completed yet
+	 */
+	public int getRequestsInFlight(String permitKey) {
+		Semaphore s = permits.get(permitKey);
+		if (s == null)
+			return 0;
+		return Math.max(0, Settings.getInstance().asyncMaxRequestsPerMapSource - s.availablePermits());
+	}
+
+	protected Semaphore getPermits(String permitKey) {
+		Semaphore s = permits.get(permitKey);
+		if (s != null)
+			return s;
+		s = new Semaphore(Math.max(1, Settings.getInstance().asyncMaxRequestsPerMapSource), true);
+		Semaphore old = permits.putIfAbsent(permitKey, s);
+		return (old != null) ? old : s;
+	}
+
+	@Override
+	public void run() {
+		log.debug("Async tile downloader started");
+		while (true) {
+			try {
+				selector.select(1000);
+				processNewRequests();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					processKey(key);
+				}
+				checkTimeouts();
+			} catch (Exception e) {
+				log.error("Unexpected error in async tile downloader: ", e);
+			}
+		}
+	}
+
+	private void processNewRequests() {
+		ArrayList<HostQueue> modified = new ArrayList<HostQueue>();
+		AsyncTileRequest request;
+		while ((request = newRequests.poll()) != null) {
+			HostQueue host = hosts.get(request.hostKey);
+			if (host == null) {
+				host = new HostQueue(request.address);
+				hosts.put(request.hostKey, host);
+			}
+			host.pending.add(request);
+			if (!modified.contains(host))
+				modified.add(host);
+		}
+		for (HostQueue host : modified)
+			schedule(host);
+	}
+
+	/**
+	 * Assigns pending requests of the host to connections. New connections are preferred over pipelining as long as
+	 * the connection limit for the host has not been reached.
+	 */
+	private void schedule(HostQueue host) {
+		Settings s = Settings.getInstance();
+		int maxConnections = Math.max(1, s.httpMaxConnectionsPerHost);
+		int depth = Math.max(1, s.asyncPipelineDepth);
+		while (!host.pending.isEmpty()) {
+			Connection best = null;
+			for (Connection c : host.connections) {
+				if (c.closing || c.requests.size() >= depth)
+					continue;
+				if (best == null || c.requests.size() < best.requests.size())
+					best = c;
+			}
+			if ((best == null || best.requests.size() > 0) && host.connections.size() < maxConnections) {
+				try {
+					best = openConnection(host);
+				} catch (IOException e) {
+					if (best == null) {
+						failRequest(host.pending.removeFirst(), e);
+						continue;
+					}
+				}
+			}
+			if (best == null)
+				break;
+			best.assign(host.pending.removeFirst());
+		}
+	}
+
+	private Connection openConnection(HostQueue host) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection c = new Connection(host, channel);
+			c.connected = channel.connect(host.address);
+			int ops = c.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+			c.key = channel.register(selector, ops, c);
+			host.connections.add(c);
+			return c;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void processKey(SelectionKey key) {
+		Connection c = (Connection) key.attachment();
+		try {
+			if (key.isConnectable()) {
+				c.channel.finishConnect();
+				c.connected = true;
+				c.lastActivity = System.currentTimeMillis();
+				c.updateInterestOps();
+			}
+			if (key.isValid() && key.isWritable())
+				c.write();
+			if (key.isValid() && key.isReadable())
+				read(c);
+		} catch (IOException e) {
+			if (!c.connected)
+				connectionLost(c, e, true);
+			else
+				connectionLost(c, e, false);
+		}
+	}
+
+	private void read(Connection c) throws IOException {
+		while (true) {
+			readBuffer.clear();
+			int n = c.channel.read(readBuffer);
+			if (n == 0)
+				return;
+			c.lastActivity = System.currentTimeMillis();
+			if (n < 0) {
+				if (c.parser != null && c.parser.connectionClosed())
+					responseCompleted(c);
+				connectionLost(c, new IOException("Connection closed by server"), false);
+				return;
+			}
+			readBuffer.flip();
+			while (readBuffer.hasRemaining()) {
+				if (c.requests.isEmpty())
+					throw new IOException("Unexpected data received from server");
+				boolean complete = c.parser.parse(readBuffer);
+				if (c.parser.isBodyDelimitedByClose())
+					// The connection can not be reused
+					c.closing = true;
+				if (complete) {
+					if (!responseCompleted(c))
+						return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the connection remains open
+	 */
+	private boolean responseCompleted(Connection c) {
+		AsyncTileRequest request = c.requests.removeFirst();
+		AsyncHttpResponse response = c.parser.getResponse();
+		c.parser = new HttpResponseParser();
+		c.lastActivity = System.currentTimeMillis();
+		deliverResponse(request, response);
+		if (c.closing || !response.isKeepAlive()) {
+			connectionLost(c, null, false);
+			return false;
+		}
+		schedule(c.host);
+		return true;
+	}
+
+	/**
+	 * Closes the connection. Requests that have not received any response data are sent again on another connection.
+	 * If the connection has been closed regularly this does not count as a failed attempt of those requests.
+	 * 
+	 * @param c
+	 * @param e
+	 *            the reason or <code>null</code> if the connection was closed regularly
+	 * @param failAll
+	 *            fail all requests assigned to this connection instead of sending them again
+	 */
+	private void connectionLost(Connection c, IOException e, boolean failAll) {
+		if (c.closed)
+			return;
+		c.close();
+		c.host.connections.remove(c);
+		if (e != null && log.isDebugEnabled())
+			log.debug("Connection to " + c.host.address + " lost: " + e.getMessage());
+		ListIterator<AsyncTileRequest> it = c.requests.listIterator(c.requests.size());
+		LinkedList<AsyncTileRequest> requeue = new LinkedList<AsyncTileRequest>();
+		while (it.hasPrevious()) {
+			AsyncTileRequest request = it.previous();
+			boolean first = !it.hasPrevious();
+			boolean responsePending = first && c.parser != null
+					&& (c.parser.isDataReceived() || e instanceof SocketTimeoutException);
+			if (failAll || responsePending || request.attempts + 1 >= MAX_ATTEMPTS) {
+				failRequest(request, (e != null) ? e : new IOException("Connection closed by server"));
+			} else {
+				if (e != null)
+					request.attempts++;
+				requeue.addFirst(request);
+			}
+		}
+		c.requests.clear();
+		c.host.pending.addAll(0, requeue);
+		schedule(c.host);
+	}
+
+	private void checkTimeouts() {
+		long now = System.currentTimeMillis();
+		Settings s = Settings.getInstance();
+		long connectTimeout = 1000L * s.httpConnectionTimeout;
+		long readTimeout = 1000L * s.httpReadTimeout;
+		Iterator<HostQueue> hostIt = hosts.values().iterator();
+		while (hostIt.hasNext()) {
+			HostQueue host = hostIt.next();
+			for (Connection c : new ArrayList<Connection>(host.connections)) {
+				long inactive = now - c.lastActivity;
+				if (c.requests.isEmpty()) {
+					if (inactive > IDLE_TIMEOUT)
+						connectionLost(c, null, false);
+				} else if (!c.connected) {
+					if (inactive > connectTimeout)
+						connectionLost(c, new SocketTimeoutException("connect timed out"), true);
+				} else if (inactive > readTimeout) {
+					connectionLost(c, new SocketTimeoutException("Read timed out"), false);
+				}
+			}
+			if (host.connections.isEmpty() && host.pending.isEmpty())
+				hostIt.remove();
+		}
+	}
+
+	private void deliverResponse(AsyncTileRequest request, AsyncHttpResponse response) {
+		request.permits.release();
+		try {
+			request.callback.requestCompleted(request, response);
+		} catch (Throwable t) {
+			log.error("Error in async request callback: ", t);
+		}
+	}
+
+	private void failRequest(AsyncTileRequest request, IOException e) {
+		request.permits.release();
+		try {
+			request.callback.requestFailed(request, e);
+		} catch (Throwable t) {
+			log.error("Error in async request callback: ", t);
+		}
+	}
+
+	private static class HostQueue {
+
+		final InetSocketAddress address;
+
+		final LinkedList<AsyncTileRequest> pending = new LinkedList<AsyncTileRequest>();
+
+		final ArrayList<Connection> connections = new ArrayList<Connection>();
+
+		public HostQueue(InetSocketAddress address) {
+			this.address = address;
+		}
+
+	}
+
+	private static class Connection {
+
+		final HostQueue host;
+		final SocketChannel channel;
+		SelectionKey key;
+		boolean connected = false;
+		boolean closing = false;
+		boolean closed = false;
+		long lastActivity = System.currentTimeMillis();
+
+		/**
+		 * Requests sent (or to be sent) on this connection in the order of the expected responses
+		 */
+		final LinkedList<AsyncTileRequest> requests = new LinkedList<AsyncTileRequest>();
+
+		final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+
+		HttpResponseParser parser = new HttpResponseParser();
+
+		public Connection(HostQueue host, SocketChannel channel) {
+			this.host = host;
+			this.channel = channel;
+		}
+
+		void assign(AsyncTileRequest request) {
+			if (requests.isEmpty())
+				lastActivity = System.currentTimeMillis();
+			requests.add(request);
+			writeQueue.add(ByteBuffer.wrap(request.requestData));
+			updateInterestOps();
+		}
+
+		void write() throws IOException {
+			while (!writeQueue.isEmpty()) {
+				ByteBuffer buf = writeQueue.getFirst();
+				channel.write(buf);
+				if (buf.hasRemaining())
+					break;
+				writeQueue.removeFirst();
+			}
+			updateInterestOps();
+		}
+
+		void updateInterestOps() {
+			if (!connected || !key.isValid())
+				return;
+			int ops = SelectionKey.OP_READ;
+			if (!writeQueue.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+
+		void close() {
+			closing = true;
+			closed = true;
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+
+	}
+
+}
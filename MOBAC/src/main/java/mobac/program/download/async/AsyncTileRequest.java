@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download.async;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import mobac.program.download.TileDownLoader;
+import mobac.program.model.Settings;
+
+/**
+ * A tile request processed by the {@link AsyncTileDownloader}. The request line and headers are taken from a not yet
+ * connected {@link HttpURLConnection} as returned by
+ * {@link mobac.program.interfaces.HttpMapSource#getTileUrlConnection(int, int, int)}, therefore the url logic of the
+ * map source is used unchanged.
+ */
+public class AsyncTileRequest {
+
+	/**
+	 * Receives the result of an {@link AsyncTileRequest}. The methods are called by the thread of the
+	 * {@link AsyncTileDownloader} and therefore must not block.
+	 */
+	public static interface Callback {
+
+		public void requestCompleted(AsyncTileRequest request, AsyncHttpResponse response);
+
+		public void requestFailed(AsyncTileRequest request, IOException e);
+
+	}
+
+	protected final URL url;
+	protected final String hostKey;
+	protected final InetSocketAddress address;
+	protected final String permitKey;
+	protected final byte[] requestData;
+	protected final Callback callback;
+
+	protected Semaphore permits = null;
+
+	/**
+	 * Number of times the request has been sent on a connection that has been closed before the response arrived
+	 */
+	protected int attempts = 0;
+
+	/**
+	 * 
+	 * @param conn
+	 *            not connected http url connection describing the request
+	 * @param permitKey
+	 *            requests with the same key share the same in-flight limit (usually the map source name)
+	 * @param callback
+	 * @throws IOException
+	 */
+	public AsyncTileRequest(HttpURLConnection conn, String permitKey, Callback callback) throws IOException {
+		this.url = conn.getURL();
+		this.permitKey = permitKey;
+		this.callback = callback;
+		int port = url.getPort();
+		if (port < 0)
+			port = url.getDefaultPort();
+		hostKey = url.getHost() + ":" + port;
+		// Resolve the host name on the calling thread instead of the selector thread
+		address = new InetSocketAddress(url.getHost(), port);
+		if (address.isUnresolved())
+			throw new java.net.UnknownHostException(url.getHost());
+		requestData = buildRequest(conn, port);
+	}
+
+	private byte[] buildRequest(HttpURLConnection conn, int port) throws UnsupportedEncodingException {
+		String file = url.getFile();
+		if (file == null || file.length() == 0)
+			file = "/";
+		StringBuilder sb = new StringBuilder(512);
+		sb.append("GET ").append(file).append(" HTTP/1.1\r\n");
+		sb.append("Host: ").append(url.getHost());
+		if (port != url.getDefaultPort())
+			sb.append(':').append(port);
+		sb.append("\r\n");
+		boolean userAgent = false;
+		Map<String, List<String>> properties = conn.getRequestProperties();
+		for (Map.Entry<String, List<String>> entry : properties.entrySet()) {
+			String name = entry.getKey();
+			if (name == null)
+				continue;
+			String lcName = name.toLowerCase(Locale.ENGLISH);
+			if ("host".equals(lcName) || "connection".equals(lcName) || "accept".equals(lcName))
+				continue;
+			if ("user-agent".equals(lcName))
+				userAgent = true;
+			for (String value : entry.getValue())
+				sb.append(name).append(": ").append(value).append("\r\n");
+		}
+		if (!userAgent)
+			sb.append("User-Agent: ").append(Settings.getInstance().getUserAgent()).append("\r\n");
+		sb.append("Accept: ").append(TileDownLoader.ACCEPT).append("\r\n");
+		sb.append("Connection: keep-alive\r\n\r\n");
+		return sb.toString().getBytes("ISO-8859-1");
+	}
+
+	public URL getUrl() {
+		return url;
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncTileRequest " + url;
+	}
+
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download.async;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Incremental parser for HTTP/1.x responses. The received bytes are fed via {@link #parse(ByteBuffer)} as they arrive
+ * from the non-blocking socket. Supports bodies delimited by <code>Content-Length</code>, chunked transfer encoding and
+ * connection close.
+ */
+public class HttpResponseParser {
+
+	/**
+	 * Maximum size of the response header
+	 */
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+	private static enum State {
+		HEADER, BODY_LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, BODY_UNTIL_CLOSE, DONE
+	};
+
+	private final boolean headRequest;
+
+	private State state = State.HEADER;
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+	private ByteArrayOutputStream body;
+	private int remaining;
+	private AsyncHttpResponse response = new AsyncHttpResponse();
+	private boolean dataReceived = false;
+
+	public HttpResponseParser() {
+		this(false);
+	}
+
+	public HttpResponseParser(boolean headRequest) {
+		this.headRequest = headRequest;
+	}
+
+	/**
+	 * Consumes bytes from <code>buf</code> until the response is complete or <code>buf</code> is empty. Bytes
+	 * belonging to the following response remain in <code>buf</code>.
+	 * 
+	 * @param buf
+	 * @return <code>true</code> if the response is complete
+	 * @throws IOException
+	 *             if the response is malformed
+	 */
+	public boolean parse(ByteBuffer buf) throws IOException {
+		if (buf.hasRemaining())
+			dataReceived = true;
+		while (buf.hasRemaining() && state != State.DONE) {
+			switch (state) {
+			case HEADER:
+			case CHUNK_SIZE:
+			case CHUNK_END:
+			case TRAILER:
+				String l = readLine(buf);
+				if (l != null)
+					processLine(l);
+				break;
+			case BODY_LENGTH:
+			case CHUNK_DATA:
+				int len = Math.min(remaining, buf.remaining());
+				body.write(buf.array(), buf.arrayOffset() + buf.position(), len);
+				buf.position(buf.position() + len);
+				remaining -= len;
+				if (remaining == 0) {
+					if (state == State.BODY_LENGTH)
+						finish();
+					else
+						state = State.CHUNK_END;
+				}
+				break;
+			case BODY_UNTIL_CLOSE:
+				body.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+				buf.position(buf.limit());
+				break;
+			}
+		}
+		return state == State.DONE;
+	}
+
+	/**
+	 * Has to be called if the connection has been closed by the server.
+	 * 
+	 * @return <code>true</code> if the response is complete (body delimited by connection close)
+	 */
+	public boolean connectionClosed() {
+		if (state == State.BODY_UNTIL_CLOSE)
+			finish();
+		return state == State.DONE;
+	}
+
+	/**
+	 * @return <code>true</code> if the end of the response body is indicated by the server closing the connection. In
+	 *         this case no further requests can be sent on the connection.
+	 */
+	public boolean isBodyDelimitedByClose() {
+		return response.bodyDelimitedByClose;
+	}
+
+	/**
+	 * @return <code>true</code> if at least one byte of this response has been received
+	 */
+	public boolean isDataReceived() {
+		return dataReceived;
+	}
+
+	public AsyncHttpResponse getResponse() {
+		return response;
+	}
+
+	private String readLine(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			byte b = buf.get();
+			if (b == '\n') {
+				byte[] lineData = line.toByteArray();
+				line.reset();
+				int len = lineData.length;
+				if (len > 0 && lineData[len - 1] == '\r')
+					len--;
+				return new String(lineData, 0, len, "ISO-8859-1");
+			}
+			line.write(b);
+			if (line.size() > MAX_HEADER_SIZE)
+				throw new IOException("Invalid HTTP response: header line too long");
+		}
+		return null;
+	}
+
+	private void processLine(String l) throws IOException {
+		switch (state) {
+		case HEADER:
+			if (response.httpVersion == null) {
+				parseStatusLine(l);
+			} else if (l.length() == 0) {
+				headerFinished();
+			} else {
+				int colon = l.indexOf(':');
+				if (colon <= 0)
+					throw new IOException("Invalid HTTP response header: " + l);
+				String name = l.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+				response.headers.put(name, l.substring(colon + 1).trim());
+			}
+			break;
+		case CHUNK_SIZE:
+			int ext = l.indexOf(';');
+			if (ext >= 0)
+				l = l.substring(0, ext);
+			try {
+				remaining = Integer.parseInt(l.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + l);
+			}
+			state = (remaining == 0) ? State.TRAILER : State.CHUNK_DATA;
+			break;
+		case CHUNK_END:
+			if (l.length() != 0)
+				throw new IOException("Invalid chunk delimiter");
+			state = State.CHUNK_SIZE;
+			break;
+		case TRAILER:
+			if (l.length() == 0)
+				finish();
+			break;
+		}
+	}
+
+	private void parseStatusLine(String l) throws IOException {
+		if (l.length() == 0)
+			return; // tolerate empty lines before the status line
+		String[] parts = l.split(" ", 3);
+		if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+			throw new IOException("Invalid HTTP status line: " + l);
+		response.httpVersion = parts[0];
+		try {
+			response.responseCode = Integer.parseInt(parts[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid HTTP status line: " + l);
+		}
+	}
+
+	private void headerFinished() throws IOException {
+		int code = response.responseCode;
+		if (code >= 100 && code < 200) {
+			// Interim response (e.g. 100 Continue) - the real response follows
+			response = new AsyncHttpResponse();
+			return;
+		}
+		if (headRequest || code == 204 || code == 304) {
+			finish();
+			return;
+		}
+		String transferEncoding = response.getHeaderField("Transfer-Encoding");
+		if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+			body = new ByteArrayOutputStream(16 * 1024);
+			state = State.CHUNK_SIZE;
+			return;
+		}
+		int contentLength = response.getContentLength();
+		if (contentLength == 0) {
+			body = new ByteArrayOutputStream(0);
+			finish();
+		} else if (contentLength > 0) {
+			body = new ByteArrayOutputStream(contentLength);
+			remaining = contentLength;
+			state = State.BODY_LENGTH;
+		} else {
+			body = new ByteArrayOutputStream(16 * 1024);
+			response.bodyDelimitedByClose = true;
+			state = State.BODY_UNTIL_CLOSE;
+		}
+	}
+
+	private void finish() {
+		if (body != null)
+			response.data = body.toByteArray();
+		body = null;
+		state = State.DONE;
+	}
+
+}
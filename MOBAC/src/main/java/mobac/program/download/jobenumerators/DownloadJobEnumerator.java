@@ -24,8 +24,8 @@ import mobac.program.download.DownloadJob;
 import mobac.program.interfaces.DownloadJobListener;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.TileFilter;
+import mobac.program.interfaces.TileSink;
 import mobac.program.model.Map;
-import mobac.utilities.tar.TarIndexedArchive;
 
 /**
  * Enumerates / creates the download jobs for a regular rectangle single layer map.
@@ -39,7 +39,7 @@ public class DownloadJobEnumerator implements Enumeration<Job> {
 	final protected int yMax;
 	final protected int zoom;
 	final protected MapSource mapSource;
-	final protected TarIndexedArchive tileArchive;
+	final protected TileSink tileSink;
 
 	protected int x, y;
 	protected Job nextJob;
@@ -56,11 +56,10 @@ public class DownloadJobEnumerator implements Enumeration<Job> {
 	 * </pre>
 	 * 
 	 * @param map
-	 * @param tileArchive
+	 * @param tileSink
 	 * @param listener
 	 */
-	public DownloadJobEnumerator(Map map, MapSource mapSource, TarIndexedArchive tileArchive,
-			DownloadJobListener listener) {
+	public DownloadJobEnumerator(Map map, MapSource mapSource, TileSink tileSink, DownloadJobListener listener) {
 		this.tileFilter = map.getTileFilter();
 		this.listener = listener;
 		Point minCoord = map.getMinTileCoordinate();
@@ -71,12 +70,12 @@ public class DownloadJobEnumerator implements Enumeration<Job> {
 		int yMin = minCoord.y / tileSize;
 		this.yMax = maxCoord.y / tileSize;
 		this.zoom = map.getZoom();
-		this.tileArchive = tileArchive;
+		this.tileSink = tileSink;
 		this.mapSource = mapSource;
 		y = yMin;
 		x = xMin;
 
-		nextJob = new DownloadJob(mapSource, x, y, zoom, tileArchive, listener);
+		nextJob = new DownloadJob(mapSource, x, y, zoom, tileSink, listener);
 		if (!tileFilter.testTile(x, y, zoom, mapSource))
 			nextElement();
 	}
@@ -100,7 +99,7 @@ public class DownloadJobEnumerator implements Enumeration<Job> {
 			}
 			filter = tileFilter.testTile(x, y, zoom, mapSource);
 		} while (!filter);
-		nextJob = new DownloadJob(mapSource, x, y, zoom, tileArchive, listener);
+		nextJob = new DownloadJob(mapSource, x, y, zoom, tileSink, listener);
 		return job;
 	}
 }
@@ -19,7 +19,6 @@ package mobac.program.interfaces;
 import java.util.Enumeration;
 
 import mobac.program.JobDispatcher.Job;
-import mobac.utilities.tar.TarIndexedArchive;
 
 
 /**
@@ -34,13 +33,13 @@ public interface DownloadableElement {
 
 	/**
 	 * 
-	 * @param tileArchive
+	 * @param tileSink
+	 *            receives the downloaded tiles, may be <code>null</code>
 	 * @param listener
 	 * @return An enumeration that returns {@link Job} objects. Each job should
 	 *         download one map tile from the providing web server (or from the
 	 *         tile cache).
 	 */
-	public Enumeration<Job> getDownloadJobs(TarIndexedArchive tileArchive,
-			DownloadJobListener listener);
+	public Enumeration<Job> getDownloadJobs(TileSink tileSink, DownloadJobListener listener);
 	
 }
@@ -45,4 +45,12 @@ public interface TileImageDataWriter {
 	
 	public TileImageType getType();
 
+	/**
+	 * Creates a new and not yet initialized writer with the same configuration as this one. Writer instances are not
+	 * thread safe - each thread encoding images concurrently has to use its own instance.
+	 * 
+	 * @return
+	 */
+	public TileImageDataWriter duplicate();
+
 }
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.interfaces;
+
+import java.io.IOException;
+
+import mobac.utilities.tar.TarIndexedArchive;
+
+/**
+ * Receives the tiles of a map while they are downloaded or taken from the tile store. Implementations have to be
+ * thread safe: the tiles are passed by multiple download threads concurrently and in arbitrary order.
+ * 
+ * @see TarIndexedArchive
+ */
+public interface TileSink {
+
+	/**
+	 * @param x
+	 *            tile number
+	 * @param y
+	 *            tile number
+	 * @param data
+	 *            the tile data as provided by the map source
+	 * @throws IOException
+	 */
+	public void putTile(int x, int y, byte[] data) throws IOException;
+
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.interfaces;
+
+import mobac.exceptions.MapCreationException;
+import mobac.program.atlascreators.AtlasCreator;
+import mobac.program.atlascreators.tileprovider.StreamedTileProvider;
+
+/**
+ * Implemented by atlas creators that do not depend on the order of the tiles and are able to create a map while its
+ * tiles are downloaded. Such a map is initialized via {@link AtlasCreator#initializeMap(MapInterface,
+ * mobac.program.atlascreators.tileprovider.TileProvider)} with a {@link StreamedTileProvider} and then created via
+ * {@link #startTileStreaming()} and {@link #finishTileStreaming()} instead of {@link AtlasCreator#createMap()}. No
+ * temporary tile archive is written.
+ * 
+ * @see AtlasCreator#getTileStreamTarget(MapInterface)
+ */
+public interface TileStreamTarget {
+
+	/**
+	 * Starts the creation of the current map from streamed tiles. If the user retries the download of the map after
+	 * {@link #finishTileStreaming()} has been called for an incomplete map, streaming is started again and only the
+	 * tiles that have not been passed before are passed to the new sink.
+	 * 
+	 * @return a thread safe sink that receives the tiles of the map in arbitrary order
+	 * @throws MapCreationException
+	 */
+	public TileSink startTileStreaming() throws MapCreationException;
+
+	/**
+	 * Called after all tiles of the current map have been passed to the sink returned by {@link #startTileStreaming()}.
+	 * 
+	 * @throws MapCreationException
+	 */
+	public void finishTileStreaming() throws MapCreationException;
+
+}
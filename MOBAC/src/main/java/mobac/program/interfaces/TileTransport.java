@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.interfaces;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * The tile transport opens and releases the http connections used by the {@link mobac.program.download.TileDownLoader}
+ * for downloading tiles of a {@link HttpMapSource}. The url logic always stays in
+ * {@link HttpMapSource#getTileUrlConnection(int, int, int)}.
+ * 
+ * @see TileTransportProvider
+ */
+public interface TileTransport {
+
+	/**
+	 * Opens the connection for the specified tile. Each connection returned by this method has to be released via
+	 * {@link #releaseConnection(HttpURLConnection)} after the response has been processed.
+	 * 
+	 * @param mapSource
+	 * @param zoom
+	 * @param tilex
+	 * @param tiley
+	 * @return the connection or <code>null</code> if the map source does not provide an url for the specified tile
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public HttpURLConnection openConnection(HttpMapSource mapSource, int zoom, int tilex, int tiley)
+			throws IOException, InterruptedException;
+
+	/**
+	 * Releases a connection opened by {@link #openConnection(HttpMapSource, int, int, int)}. The response body has to
+	 * be read completely before so that the underlying socket can be reused.
+	 * 
+	 * @param conn
+	 *            may be <code>null</code>
+	 */
+	public void releaseConnection(HttpURLConnection conn);
+
+}
@@ -37,9 +37,9 @@ import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSpace;
 import mobac.program.interfaces.TileFilter;
+import mobac.program.interfaces.TileSink;
 import mobac.program.interfaces.ToolTipProvider;
 import mobac.program.tilefilter.DummyTileFilter;
-import mobac.utilities.tar.TarIndexedArchive;
 
 import org.apache.log4j.Logger;
 
@@ -310,8 +310,8 @@ public class Map implements MapInterface, ToolTipProvider, CapabilityDeletable,
 		calculateRuntimeValues();
 	}
 
-	public Enumeration<Job> getDownloadJobs(TarIndexedArchive tileArchive, DownloadJobListener listener) {
-		return new DownloadJobEnumerator(this, mapSource, tileArchive, listener);
+	public Enumeration<Job> getDownloadJobs(TileSink tileSink, DownloadJobListener listener) {
+		return new DownloadJobEnumerator(this, mapSource, tileSink, listener);
 	}
 
 	public TileFilter getTileFilter() {
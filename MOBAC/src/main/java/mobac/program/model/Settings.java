@@ -50,8 +50,9 @@ import mobac.gui.panels.JCoordinatesPanel;
 import mobac.mapsources.MapSourcesManager;
 import mobac.program.DirectoryManager;
 import mobac.program.ProgramInfo;
+import mobac.program.download.RateLimiter;
+import mobac.program.tilestore.TileStoreType;
 import mobac.utilities.Utilities;
-import mobac.utilities.stream.ThrottledInputStream;
 
 import org.apache.log4j.Logger;
 
@@ -78,6 +79,79 @@ public class Settings {
 
 	public boolean tileStoreEnabled = true;
 
+	/**
+	 * Implementation used for the tile store. Changes take effect after a restart.
+	 */
+	public TileStoreType tileStoreType = TileStoreType.BERKELEY_DB;
+
+	/**
+	 * Tiles are written to the tile store by a background thread. If disabled tiles are written synchronously by the
+	 * downloading thread (default).
+	 */
+	public boolean tileStoreWriteBehind = false;
+
+	/**
+	 * Maximum amount of tile data (in bytes) that is held in memory waiting for being written to the tile store.
+	 * Downloading threads block if this limit is reached.
+	 */
+	public int tileStoreWriteBufferSize = 16 * 1024 * 1024;
+
+	/**
+	 * Maximum number of tile databases (one per map source) kept open by the Berkeley DB tile store. The least
+	 * recently used database that is not in use is closed if this limit is exceeded.
+	 */
+	public int tileStoreMaxOpenDatabases = 8;
+
+	/**
+	 * Keep the tile index of the temporary tile archive written while downloading a map outside of the Java heap
+	 * (direct memory).
+	 */
+	public boolean tileArchiveOffHeapIndex = false;
+
+	/**
+	 * Number of maps whose tiles are downloaded in advance while the current map of an atlas is created. A value of
+	 * <code>0</code> (default) downloads the tiles of a map only after the previous map has been created.
+	 * <p>
+	 * The temporary tile archives of the maps downloaded in advance are kept in the temp directory until the maps
+	 * have been created (see {@link #atlasDownloadLookAheadMaxSize}) and their tile indexes are held in memory.
+	 * </p>
+	 */
+	public int atlasDownloadLookAhead = 0;
+
+	/**
+	 * Maximum size (in bytes) of the temporary tile archives of maps downloaded in advance including the map currently
+	 * downloaded. If this limit is reached the download is suspended until the previous maps have been created.
+	 */
+	public long atlasDownloadLookAheadMaxSize = 512L * 1024 * 1024;
+
+	/**
+	 * Number of threads used for painting and encoding custom tiles and for compressing large PNG images while
+	 * creating an atlas. A value of <code>0</code> uses one thread per available processor, <code>1</code> creates the
+	 * tiles sequentially.
+	 */
+	public int tileBuilderThreadCount = 0;
+
+	/**
+	 * Write the SQLite based atlas formats (RMaps, MBTiles, BigPlanet, ...) in bulk load mode: Tuned connection
+	 * settings, large transactions and indexes created after all tiles have been inserted.
+	 * 
+	 * @see mobac.utilities.jdbc.SQLiteBulkLoad
+	 */
+	public boolean sqliteBulkLoad = true;
+
+	/**
+	 * Maximum amount of memory (in bytes) used for caching decoded tile images while creating an atlas. The limit is
+	 * shared by all maps and threads.
+	 */
+	public int tileImageCacheSize = 64 * 1024 * 1024;
+
+	/**
+	 * If enabled the PNG 256 and 16 color tile formats create the color palette only for the first tile of a map and
+	 * use it for all following tiles of the map. This is faster and results in consistent colors across tile borders
+	 * but may reduce the quality of tiles with colors not present in the first tile.
+	 */
+	public boolean tilePaletteSharing = false;
+
 	/**
 	 * Mapview related settings
 	 */
@@ -101,6 +175,26 @@ public class Settings {
 	public int downloadThreadCount = 2;
 	public int downloadRetryCount = 1;
 
+	/**
+	 * Lower limit for the number of download threads. While downloading an atlas the number of active download
+	 * threads is adapted to the measured throughput and server latency, starting at {@link #downloadThreadCount}.
+	 */
+	public int downloadThreadCountMin = 1;
+
+	/**
+	 * Upper limit for the number of download threads. A value less or equal to {@link #downloadThreadCount} (default)
+	 * does not allow the number of download threads to grow beyond {@link #downloadThreadCount} - the adaptation then
+	 * only reduces the number of threads if the server is overloaded. Higher values have to be set explicitly in the
+	 * settings file as many public tile servers do not allow more connections.
+	 */
+	public int downloadThreadCountMax = 0;
+
+	/**
+	 * Execute each tile download on its own virtual thread instead of a pool of download threads. Requires a Java
+	 * runtime supporting virtual threads (Java 21 or higher), otherwise regular download threads are used.
+	 */
+	public boolean downloadVirtualThreads = false;
+
 	private boolean customTileProcessing = false;
 	private Dimension tileSize = new Dimension(256, 256);
 	private TileImageFormat tileImageFormat = TileImageFormat.PNG;
@@ -134,6 +228,51 @@ public class Settings {
 	 */
 	public int httpReadTimeout = 10;
 
+	/**
+	 * Limits the number of concurrent connections per tile server host so that established connections are reused
+	 * instead of opening new ones. Map sources implementing
+	 * {@link mobac.program.interfaces.TileTransportProvider} are not affected. Disabled by default as the reuse of
+	 * connections is left to the keep-alive cache of the Java runtime.
+	 */
+	public boolean httpConnectionPooling = false;
+
+	/**
+	 * Maximum number of concurrent connections per tile server host if {@link #httpConnectionPooling} is enabled
+	 */
+	public int httpMaxConnectionsPerHost = 8;
+
+	/**
+	 * Maximum number of tile requests per second sent to one tile server host, 0 = unlimited. The rate is reduced
+	 * automatically while the server responds with HTTP 429 or 503.
+	 * 
+	 * @see RateLimiter
+	 */
+	public double httpHostRequestRateLimit = 0;
+
+	/**
+	 * Maximum number of bytes per second downloaded from one tile server host while downloading an atlas, 0 =
+	 * unlimited. Applies in addition to the overall {@link #getBandwidthLimit() bandwidth limit}.
+	 */
+	public long httpHostBandwidthLimit = 0;
+
+	/**
+	 * Downloads tiles of http map sources via non-blocking sockets instead of blocking one download thread per
+	 * request. Tiles that can not be requested this way (https, proxy, bandwidth limit, cached tiles) are downloaded
+	 * as usual.
+	 */
+	public boolean asyncTileDownload = false;
+
+	/**
+	 * Maximum number of tile requests in flight per map source if {@link #asyncTileDownload} is enabled
+	 */
+	public int asyncMaxRequestsPerMapSource = 64;
+
+	/**
+	 * Number of requests sent on one connection without waiting for the responses (HTTP pipelining) if
+	 * {@link #asyncTileDownload} is enabled. A value of 1 disables pipelining.
+	 */
+	public int asyncPipelineDepth = 1;
+
 	/**
 	 * Maximum expiration (in milliseconds) acceptable. If a server sets an expiration time larger than this value it is
 	 * truncated to this value on next download.
@@ -433,7 +572,7 @@ public class Settings {
 
 	public void setBandwidthLimit(long bandwidthLimit) {
 		this.bandwidthLimit = bandwidthLimit;
-		ThrottledInputStream.setBandwidth(bandwidthLimit);
+		RateLimiter.setGlobalBandwidthLimit(bandwidthLimit);
 	}
 
 	@XmlElement
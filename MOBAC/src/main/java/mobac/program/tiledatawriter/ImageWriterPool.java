@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tiledatawriter;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import mobac.program.interfaces.TileImageDataWriter;
+import mobac.program.model.TileImageFormat;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of reusable image writers. Each thread gets its own {@link TileImageDataWriter} per {@link TileImageFormat}
+ * (and its own {@link ImageWriter} per image format name) which is created and initialized on first use and reused
+ * for all following images encoded by this thread. Therefore tiles can be encoded concurrently without creating or
+ * initializing a writer for each tile or map.
+ * <p>
+ * The writers returned by this pool are confined to the calling thread: they must not be passed to other threads and
+ * must not be disposed by the caller.
+ * </p>
+ * <p>
+ * State of the writers that belongs to one map (e.g. a shared palette) is reset for all threads by
+ * {@link #startNewMap()}: each thread re-initializes its writers when it requests a writer for the first time after
+ * the call.
+ * </p>
+ */
+public class ImageWriterPool {
+
+	private static final Logger log = Logger.getLogger(ImageWriterPool.class);
+
+	private static final int INITIAL_BUFFER_SIZE = 32768;
+
+	/**
+	 * Incremented by {@link #startNewMap()}
+	 */
+	private static final AtomicInteger GENERATION = new AtomicInteger();
+
+	private static final ThreadLocal<PooledWriters> WRITERS = new ThreadLocal<PooledWriters>() {
+
+		@Override
+		protected PooledWriters initialValue() {
+			return new PooledWriters();
+		}
+	};
+
+	private static class PooledWriters {
+
+		final TileImageDataWriter[] dataWriters = new TileImageDataWriter[TileImageFormat.values().length];
+
+		final HashMap<String, ImageWriter> imageWriters = new HashMap<String, ImageWriter>();
+
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+
+		/**
+		 * Value of {@link ImageWriterPool#GENERATION} the data writers have been initialized for
+		 */
+		int generation = GENERATION.get();
+	}
+
+	/**
+	 * Resets the map specific state of the pooled writers of all threads. Must be called before the tiles of a new
+	 * map are encoded.
+	 */
+	public static void startNewMap() {
+		GENERATION.incrementAndGet();
+	}
+
+	/**
+	 * @param format
+	 * @return initialized writer for the specified format, confined to the calling thread
+	 */
+	public static TileImageDataWriter getDataWriter(TileImageFormat format) {
+		PooledWriters writers = WRITERS.get();
+		int generation = GENERATION.get();
+		if (writers.generation != generation) {
+			for (TileImageDataWriter w : writers.dataWriters)
+				if (w != null)
+					w.initialize();
+			writers.generation = generation;
+		}
+		TileImageDataWriter writer = writers.dataWriters[format.ordinal()];
+		if (writer == null) {
+			writer = format.getDataWriter().duplicate();
+			writer.initialize();
+			writers.dataWriters[format.ordinal()] = writer;
+			log.trace("Created " + format + " writer for thread " + Thread.currentThread().getName());
+		}
+		return writer;
+	}
+
+	/**
+	 * Encodes the image using the pooled writer of the calling thread.
+	 * 
+	 * @param format
+	 * @param image
+	 * @return encoded image data
+	 * @throws IOException
+	 */
+	public static byte[] encodeImage(TileImageFormat format, BufferedImage image) throws IOException {
+		TileImageDataWriter writer = getDataWriter(format);
+		ByteArrayOutputStream buffer = WRITERS.get().buffer;
+		buffer.reset();
+		writer.processImage(image, buffer);
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Replacement for {@link ImageIO#write(java.awt.image.RenderedImage, String, java.io.OutputStream)} using a
+	 * pooled {@link ImageWriter} and default write parameters.
+	 * 
+	 * @param image
+	 * @param formatName
+	 *            informal image format name, e.g. "png" or "jpg"
+	 * @return encoded image data
+	 * @throws IOException
+	 */
+	public static byte[] writeImage(BufferedImage image, String formatName) throws IOException {
+		PooledWriters writers = WRITERS.get();
+		ImageWriter writer = writers.imageWriters.get(formatName);
+		if (writer == null) {
+			Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(formatName);
+			if (!it.hasNext())
+				throw new IOException("No image writer available for format " + formatName);
+			writer = it.next();
+			writer.addIIOWriteWarningListener(ImageWriterWarningListener.INSTANCE);
+			writers.imageWriters.put(formatName, writer);
+		}
+		ByteArrayOutputStream buffer = writers.buffer;
+		buffer.reset();
+		MemoryCacheImageOutputStream imageOut = new MemoryCacheImageOutputStream(buffer);
+		try {
+			writer.setOutput(imageOut);
+			writer.write(image);
+		} finally {
+			writer.setOutput(null);
+			imageOut.close();
+		}
+		return buffer.toByteArray();
+	}
+
+}
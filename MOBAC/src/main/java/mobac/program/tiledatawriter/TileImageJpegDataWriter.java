@@ -25,7 +25,7 @@ import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import mobac.program.interfaces.TileImageDataWriter;
 import mobac.program.model.TileImageType;
@@ -61,6 +61,11 @@ public class TileImageJpegDataWriter implements TileImageDataWriter {
 	}
 
 	public void initialize() {
+		if (jpegImageWriter != null) {
+			// already initialized
+			iwp.setCompressionQuality(jpegCompressionLevel);
+			return;
+		}
 		if (log.isTraceEnabled()) {
 			String s = "Available JPEG image writers:";
 			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
@@ -90,10 +95,15 @@ public class TileImageJpegDataWriter implements TileImageDataWriter {
 	}
 
 	public void processImage(BufferedImage image, OutputStream out) throws IOException {
-		ImageOutputStream imageOut = ImageIO.createImageOutputStream(out);
-		jpegImageWriter.setOutput(imageOut);
-		IIOImage ioImage = new IIOImage(image, null, null);
-		jpegImageWriter.write(null, ioImage, iwp);
+		MemoryCacheImageOutputStream imageOut = new MemoryCacheImageOutputStream(out);
+		try {
+			jpegImageWriter.setOutput(imageOut);
+			IIOImage ioImage = new IIOImage(image, null, null);
+			jpegImageWriter.write(null, ioImage, iwp);
+		} finally {
+			jpegImageWriter.setOutput(null);
+			imageOut.close();
+		}
 	}
 
 	public void dispose() {
@@ -105,6 +115,10 @@ public class TileImageJpegDataWriter implements TileImageDataWriter {
 		return TileImageType.JPG;
 	}
 
+	public TileImageDataWriter duplicate() {
+		return new TileImageJpegDataWriter(this);
+	}
+
 	public static boolean performOpenJDKJpegTest() {
 		try {
 			TileImageJpegDataWriter writer = new TileImageJpegDataWriter(0.99d);
@@ -118,4 +132,5 @@ public class TileImageJpegDataWriter implements TileImageDataWriter {
 			return false;
 		}
 	}
+
 }
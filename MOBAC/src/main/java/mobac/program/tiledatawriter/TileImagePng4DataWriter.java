@@ -17,31 +17,61 @@
 package mobac.program.tiledatawriter;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import mobac.optional.JavaAdvancedImaging;
 import mobac.program.interfaces.TileImageDataWriter;
+import mobac.program.model.Settings;
 import mobac.program.model.TileImageType;
+import mobac.utilities.imageio.ColorQuantizer;
 import mobac.utilities.imageio.Png4BitWriter;
 
 public class TileImagePng4DataWriter implements TileImageDataWriter {
 
+	private ColorQuantizer quantizer = null;
+
+	private boolean paletteSharing = false;
+
+	/**
+	 * Palette shared by all tiles of the current map if palette sharing is enabled
+	 */
+	private IndexColorModel palette = null;
+
 	public TileImagePng4DataWriter() {
 	}
 
 	public void initialize() {
+		paletteSharing = Settings.getInstance().tilePaletteSharing;
+		palette = null;
 	}
 
 	public void processImage(BufferedImage image, OutputStream out) throws IOException {
-		BufferedImage image2 = JavaAdvancedImaging.colorReduceMedianCut(image, 16);
+		if (quantizer == null)
+			quantizer = new ColorQuantizer(16);
+		BufferedImage image2;
+		if (palette != null)
+			image2 = quantizer.quantize(image, palette);
+		else {
+			image2 = quantizer.quantize(image);
+			if (paletteSharing)
+				palette = (IndexColorModel) image2.getColorModel();
+		}
 		Png4BitWriter.writeImage(out, image2);
 	}
 
 	public void dispose() {
+		quantizer = null;
+		palette = null;
 	}
 
 	public TileImageType getType() {
 		return TileImageType.PNG;
 	}
+
+	@Override
+	public TileImageDataWriter duplicate() {
+		return new TileImagePng4DataWriter();
+	}
+
 }
@@ -17,20 +17,60 @@
 package mobac.program.tiledatawriter;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import mobac.optional.JavaAdvancedImaging;
+import mobac.program.interfaces.TileImageDataWriter;
+import mobac.program.model.Settings;
+import mobac.utilities.imageio.ColorQuantizer;
 
 public class TileImagePng8DataWriter extends TileImagePngDataWriter {
 
+	private ColorQuantizer quantizer = null;
+
+	private boolean paletteSharing = false;
+
+	/**
+	 * Palette shared by all tiles of the current map if palette sharing is enabled
+	 */
+	private IndexColorModel palette = null;
+
 	public TileImagePng8DataWriter() {
 	}
 
+	@Override
+	public void initialize() {
+		super.initialize();
+		paletteSharing = Settings.getInstance().tilePaletteSharing;
+		palette = null;
+	}
+
 	@Override
 	public void processImage(BufferedImage image, OutputStream out) throws IOException {
-		BufferedImage image2 = JavaAdvancedImaging.colorReduceMedianCut(image, 256);
+		if (quantizer == null)
+			quantizer = new ColorQuantizer(256);
+		BufferedImage image2;
+		if (palette != null)
+			image2 = quantizer.quantize(image, palette);
+		else {
+			image2 = quantizer.quantize(image);
+			if (paletteSharing)
+				palette = (IndexColorModel) image2.getColorModel();
+		}
 		super.processImage(image2, out);
 	}
 
+	@Override
+	public void dispose() {
+		super.dispose();
+		quantizer = null;
+		palette = null;
+	}
+
+	@Override
+	public TileImageDataWriter duplicate() {
+		return new TileImagePng8DataWriter();
+	}
+
 }
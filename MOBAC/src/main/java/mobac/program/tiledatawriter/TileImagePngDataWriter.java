@@ -24,6 +24,7 @@ import java.util.Iterator;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import mobac.program.interfaces.TileImageDataWriter;
 import mobac.program.model.TileImageType;
@@ -41,6 +42,8 @@ public class TileImagePngDataWriter implements TileImageDataWriter {
 	}
 
 	public void initialize() {
+		if (pngImageWriter != null)
+			return; // already initialized
 		if (log.isTraceEnabled()) {
 			String s = "Available PNG image writers:";
 			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
@@ -56,9 +59,15 @@ public class TileImagePngDataWriter implements TileImageDataWriter {
 	}
 
 	public void processImage(BufferedImage image, OutputStream out) throws IOException {
-		pngImageWriter.setOutput(ImageIO.createImageOutputStream(out));
-		IIOImage ioImage = new IIOImage(image, null, null);
-		pngImageWriter.write(ioImage);
+		MemoryCacheImageOutputStream imageOut = new MemoryCacheImageOutputStream(out);
+		try {
+			pngImageWriter.setOutput(imageOut);
+			IIOImage ioImage = new IIOImage(image, null, null);
+			pngImageWriter.write(ioImage);
+		} finally {
+			pngImageWriter.setOutput(null);
+			imageOut.close();
+		}
 	}
 
 	public void dispose() {
@@ -70,4 +79,8 @@ public class TileImagePngDataWriter implements TileImageDataWriter {
 		return TileImageType.PNG;
 	}
 
+	public TileImageDataWriter duplicate() {
+		return new TileImagePngDataWriter();
+	}
+
 }
@@ -20,6 +20,9 @@ import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 
 import javax.swing.JOptionPane;
 
@@ -28,6 +31,8 @@ import mobac.program.DirectoryManager;
 import mobac.program.interfaces.MapSource;
 import mobac.program.model.Settings;
 import mobac.program.tilestore.berkeleydb.BerkeleyDbTileStore;
+import mobac.program.tilestore.mmap.MappedTileStore;
+import mobac.utilities.Utilities;
 
 import org.apache.log4j.Logger;
 
@@ -39,11 +44,16 @@ public abstract class TileStore {
 
 	protected File tileStoreDir;
 
+	private FileLock tileStoreLock = null;
+
 	public static synchronized void initialize() {
 		if (INSTANCE != null)
 			return;
 		try {
-			INSTANCE = new BerkeleyDbTileStore();
+			if (Settings.getInstance().tileStoreType == TileStoreType.MAPPED_FILES)
+				INSTANCE = new MappedTileStore();
+			else
+				INSTANCE = new BerkeleyDbTileStore();
 		} catch (TileStoreException e) {
 			String errMsg = "Multiple instances of Mobile Atlas Creator are trying "
 					+ "to access the same tile store.\n"
@@ -69,6 +79,48 @@ public abstract class TileStore {
 		log.debug("Tile store path: " + tileStoreDir);
 	}
 
+	protected void acquireTileStoreLock() throws TileStoreException {
+		try {
+			// Get a file channel for the file
+			File file = new File(tileStoreDir, "lock");
+			if (!tileStoreDir.isDirectory())
+				try {
+					Utilities.mkDirs(tileStoreDir);
+				} catch (IOException e) {
+					throw new TileStoreException("Unable to create tile store directory: \"" + tileStoreDir.getPath()
+							+ "\"");
+				}
+			FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+
+			// Use the file channel to create a lock on the file.
+			// This method blocks until it can retrieve the lock.
+
+			// Try acquiring the lock without blocking. This method returns
+			// null or throws an exception if the file is already locked.
+			tileStoreLock = channel.tryLock();
+			if (tileStoreLock == null)
+				throw new TileStoreException("Unable to obtain tile store lock - "
+						+ "another instance of Mobile Atlas Creator is running!");
+
+			// // Release the lock
+			// lock.release();
+			//
+			// // Close the file
+			// channel.close();
+		} catch (Exception e) {
+			log.error("", e);
+			throw new TileStoreException(e.getMessage(), e.getCause());
+		}
+	}
+
+	protected void releaseTileStoreLock() {
+		try {
+			tileStoreLock.release();
+		} catch (IOException e) {
+			log.error("", e);
+		}
+	}
+
 	public abstract void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource) throws IOException;
 
 	public abstract void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource,
@@ -86,6 +138,21 @@ public abstract class TileStore {
 
 	public abstract boolean contains(int x, int y, int zoom, MapSource mapSource);
 
+	/**
+	 * Opens a cursor over all stored tiles in the tile number range [<code>xMin</code>..<code>xMax</code>] x [
+	 * <code>yMin</code>..<code>yMax</code>] of the specified zoom level. Reading a block of tiles this way is much
+	 * faster than retrieving each tile via {@link #getTile(int, int, int, MapSource)}.
+	 *
+	 * @param zoom
+	 * @param xMin
+	 * @param xMax
+	 * @param yMin
+	 * @param yMax
+	 * @param mapSource
+	 * @return cursor that has to be closed by the caller
+	 */
+	public abstract TileStoreCursor getTiles(int zoom, int xMin, int xMax, int yMin, int yMax, MapSource mapSource);
+
 	public abstract void prepareTileStore(MapSource mapSource);
 
 	public abstract void clearStore(String storeName);
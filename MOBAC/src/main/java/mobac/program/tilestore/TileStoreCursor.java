@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore;
+
+/**
+ * Sequential read access to a rectangular block of tiles of one zoom level, see
+ * {@link TileStore#getTiles(int, int, int, int, int, mobac.program.interfaces.MapSource)}. The tiles are returned
+ * column by column (ascending x, and for each column ascending y). Tiles not present in the tile store are skipped.
+ * <p>
+ * A cursor may only be used by one thread at a time and has to be closed after use.
+ * </p>
+ */
+public interface TileStoreCursor {
+
+	/**
+	 * @return the next tile or <code>null</code> if there are no more tiles in the requested region
+	 * @throws InterruptedException
+	 */
+	public TileStoreEntry next() throws InterruptedException;
+
+	/**
+	 * Releases all resources held by the cursor. Calling <code>close()</code> more than once has no effect.
+	 */
+	public void close();
+
+}
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore;
+
+import mobac.program.tilestore.berkeleydb.BerkeleyDbTileStore;
+import mobac.program.tilestore.mmap.MappedTileStore;
+
+/**
+ * Available {@link TileStore} implementations
+ */
+public enum TileStoreType {
+
+	/**
+	 * {@link BerkeleyDbTileStore}
+	 */
+	BERKELEY_DB("Berkeley DB"), //
+
+	/**
+	 * {@link MappedTileStore}
+	 */
+	MAPPED_FILES("Memory mapped files");
+
+	private final String displayName;
+
+	private TileStoreType(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	@Override
+	public String toString() {
+		return displayName;
+	}
+
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.berkeleydb;
+
+import java.io.File;
+
+import mobac.program.tilestore.berkeleydb.TileDbEntry.TileDbKey;
+
+import org.apache.log4j.Logger;
+
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.persist.EntityCursor;
+import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.StoreConfig;
+
+/**
+ * Read-only access to a tile database created by {@link BerkeleyDbTileStore}. Used for migrating the tiles to another
+ * tile store implementation while the {@link BerkeleyDbTileStore} is not active.
+ */
+public class BerkeleyDbStoreReader {
+
+	private static final Logger log = Logger.getLogger(BerkeleyDbStoreReader.class);
+
+	private final Environment env;
+	private final EntityStore store;
+	private final PrimaryIndex<TileDbKey, TileDbEntry> tileIndex;
+
+	/**
+	 * @param storeDir
+	 *            directory of the tile database (<code>db-&lt;map source name&gt;</code>)
+	 * @throws DatabaseException
+	 */
+	public BerkeleyDbStoreReader(File storeDir) throws DatabaseException {
+		log.debug("Opening tile store db read-only: \"" + storeDir + "\"");
+		EnvironmentConfig envConfig = new EnvironmentConfig();
+		envConfig.setReadOnly(true);
+		envConfig.setTransactional(false);
+		envConfig.setSharedCache(true);
+		env = new Environment(storeDir, envConfig);
+		try {
+			StoreConfig storeConfig = new StoreConfig();
+			storeConfig.setReadOnly(true);
+			storeConfig.setTransactional(false);
+			storeConfig.setMutations(BerkeleyDbTileStore.createMutations());
+			store = new EntityStore(env, "TilesEntityStore", storeConfig);
+			tileIndex = store.getPrimaryIndex(TileDbKey.class, TileDbEntry.class);
+		} catch (DatabaseException e) {
+			env.close();
+			throw e;
+		}
+	}
+
+	public long getTileCount() throws DatabaseException {
+		return tileIndex.count();
+	}
+
+	/**
+	 * @return a cursor iterating over all tiles in key order. The cursor has to be closed by the caller.
+	 * @throws DatabaseException
+	 */
+	public EntityCursor<TileDbEntry> openCursor() throws DatabaseException {
+		return tileIndex.entities();
+	}
+
+	public void close() {
+		try {
+			store.close();
+		} catch (Exception e) {
+			log.error("", e);
+		}
+		try {
+			env.close();
+		} catch (Exception e) {
+			log.error("", e);
+		}
+	}
+
+}
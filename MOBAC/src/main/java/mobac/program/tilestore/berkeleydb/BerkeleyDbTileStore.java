@@ -22,23 +22,21 @@ import java.awt.image.IndexColorModel;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.TreeMap;
 
 import mobac.exceptions.TileStoreException;
 import mobac.program.interfaces.MapSource;
 import mobac.program.model.Settings;
 import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreCursor;
 import mobac.program.tilestore.TileStoreEntry;
 import mobac.program.tilestore.TileStoreInfo;
 import mobac.program.tilestore.berkeleydb.TileDbEntry.TileDbKey;
+import mobac.program.tilestore.berkeleydb.TileWriteBuffer.Batch;
 import mobac.utilities.GUIExceptionHandler;
 import mobac.utilities.Utilities;
 import mobac.utilities.file.DeleteFileFilter;
@@ -58,26 +56,69 @@ import com.sleepycat.persist.evolve.Renamer;
 
 /**
  * The new database based tile store implementation.
+ * <p>
+ * If write-behind is enabled ({@link Settings#tileStoreWriteBehind}) new tiles are collected in a
+ * {@link TileWriteBuffer} and written in batches per map source by the {@link TileWriterThread}. Therefore the
+ * downloading threads do not have to wait for the disk I/O. Buffered tiles are visible to
+ * {@link #getTile(int, int, int, MapSource)} and {@link #contains(int, int, int, MapSource)} and are flushed before
+ * the databases are closed.
+ * </p>
+ * <p>
+ * Open tile databases are kept in a pool limited to {@link Settings#tileStoreMaxOpenDatabases} entries. Each access
+ * acquires the database and releases it afterwards - the least recently used database that is not in use is closed
+ * when the limit is exceeded. A database in use is never closed: Closing all databases or clearing a store waits up
+ * to {@link #CLOSE_TIMEOUT} milliseconds until the database has been released.
+ * </p>
  */
 public class BerkeleyDbTileStore extends TileStore {
 
 	/**
-	 * Max count of tile stores opened
+	 * Max count of tiles written to the database while the interrupt is paused
 	 */
-	private static final int MAX_CONCURRENT_ENVIRONMENTS = 5;
+	private static final int MAX_BATCH_SIZE = 256;
+
+	/**
+	 * Max time in milliseconds to wait for a database in use to be released before it is closed
+	 */
+	private static final long CLOSE_TIMEOUT = 10000;
 
 	private EnvironmentConfig envConfig;
 
-	private Map<String, TileDatabase> tileDbMap;
+	/**
+	 * Pool of open tile databases in least recently used order
+	 */
+	private final Map<String, TileDatabase> tileDbMap;
 
-	private FileLock tileStoreLock = null;
+	/**
+	 * The tile store has been shut down - no database can be acquired any more
+	 */
+	private volatile boolean poolClosed = false;
+
+	/**
+	 * Pool statistics (guarded by {@link #tileDbMap})
+	 */
+	private long poolHits = 0;
+	private long poolMisses = 0;
+	private long poolEvictions = 0;
 
 	private Mutations mutations;
 
+	/**
+	 * Tiles waiting for being written or <code>null</code> if write-behind is disabled
+	 */
+	private final TileWriteBuffer writeBuffer;
+
+	private TileWriterThread writerThread = null;
+
+	/**
+	 * Held while a batch is taken from the {@link #writeBuffer} and written to the database
+	 */
+	private final Object writeLock = new Object();
+
 	public BerkeleyDbTileStore() throws TileStoreException {
 		super();
 		acquireTileStoreLock();
-		tileDbMap = new TreeMap<String, TileDatabase>();
+		tileDbMap = new LinkedHashMap<String, TileDatabase>(16, 0.75f, true);
 
 		envConfig = new EnvironmentConfig();
 		envConfig.setTransactional(false);
@@ -87,7 +128,23 @@ public class BerkeleyDbTileStore extends TileStore {
 		envConfig.setSharedCache(true);
 		envConfig.setCachePercent(50);
 
-		mutations = new Mutations();
+		mutations = createMutations();
+
+		Settings s = Settings.getInstance();
+		if (s.tileStoreWriteBehind) {
+			writeBuffer = new TileWriteBuffer(Math.max(1024 * 1024, s.tileStoreWriteBufferSize), MAX_BATCH_SIZE);
+			writerThread = new TileWriterThread();
+		} else
+			writeBuffer = null;
+
+		Runtime.getRuntime().addShutdownHook(new ShutdownThread(true));
+	}
+
+	/**
+	 * @return the mutations required for opening tile databases created by older versions
+	 */
+	static Mutations createMutations() {
+		Mutations mutations = new Mutations();
 
 		String oldPackage1 = "tac.tilestore.berkeleydb";
 		String oldPackage2 = "tac.program.tilestore.berkeleydb";
@@ -102,41 +159,7 @@ public class BerkeleyDbTileStore extends TileStore {
 
 		// for (Renamer r : mutations.getRenamers())
 		// log.debug(r.toString());
-		Runtime.getRuntime().addShutdownHook(new ShutdownThread(true));
-	}
-
-	protected void acquireTileStoreLock() throws TileStoreException {
-		try {
-			// Get a file channel for the file
-			File file = new File(tileStoreDir, "lock");
-			if (!tileStoreDir.isDirectory())
-				try {
-					Utilities.mkDirs(tileStoreDir);
-				} catch (IOException e) {
-					throw new TileStoreException("Unable to create tile store directory: \"" + tileStoreDir.getPath()
-							+ "\"");
-				}
-			FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
-
-			// Use the file channel to create a lock on the file.
-			// This method blocks until it can retrieve the lock.
-
-			// Try acquiring the lock without blocking. This method returns
-			// null or throws an exception if the file is already locked.
-			tileStoreLock = channel.tryLock();
-			if (tileStoreLock == null)
-				throw new TileStoreException("Unable to obtain tile store lock - "
-						+ "another instance of Mobile Atlas Creator is running!");
-
-			// // Release the lock
-			// lock.release();
-			//
-			// // Close the file
-			// channel.close();
-		} catch (Exception e) {
-			log.error("", e);
-			throw new TileStoreException(e.getMessage(), e.getCause());
-		}
+		return mutations;
 	}
 
 	@Override
@@ -153,62 +176,129 @@ public class BerkeleyDbTileStore extends TileStore {
 		return new TileDbEntry(x, y, zoom, new byte[] {}, time, timeExpires, "");
 	}
 
-	private TileDatabase getTileDatabase(MapSource mapSource) throws DatabaseException {
-		TileDatabase db;
-		if (tileDbMap == null)
-			// Tile store has been closed already
-			return null;
-		String storeName = mapSource.getName();
+	/**
+	 * Returns the open tile database of the specified map source. The database has to be released via
+	 * {@link #releaseTileDatabase(TileDatabase)} after use.
+	 * 
+	 * @param mapSource
+	 * @return the database or <code>null</code> if the tile store has been closed
+	 * @throws DatabaseException
+	 */
+	private TileDatabase acquireTileDatabase(MapSource mapSource) throws DatabaseException {
+		return acquireTileDatabase(mapSource.getName());
+	}
+
+	private TileDatabase acquireTileDatabase(String storeName) throws DatabaseException {
 		if (storeName == null)
 			return null;
-		synchronized (tileDbMap) {
-			db = tileDbMap.get(storeName);
-		}
-		if (db != null)
-			return db;
-		try {
-			synchronized (tileDbMap) {
-				cleanupDatabases();
-				db = tileDbMap.get(storeName);
-				if (db == null) {
-					db = new TileDatabase(storeName);
-					db.lastAccess = System.currentTimeMillis();
-					tileDbMap.put(mapSource.getName(), db);
-				}
+		Map<String, TileDatabase> pool = tileDbMap;
+		synchronized (pool) {
+			if (poolClosed)
+				// Tile store has been closed already
+				return null;
+			TileDatabase db = pool.get(storeName);
+			if (db != null) {
+				poolHits++;
+				db.refCount++;
 				return db;
 			}
-		} catch (Exception e) {
-			log.error("Error creating tile store db \"" + mapSource.getName() + "\"", e);
-			throw new TileStoreException(e);
+			poolMisses++;
+			try {
+				db = new TileDatabase(storeName);
+			} catch (Exception e) {
+				log.error("Error creating tile store db \"" + storeName + "\"", e);
+				throw new TileStoreException(e);
+			}
+			db.refCount = 1;
+			pool.put(storeName, db);
+			evictDatabases(pool);
+			return db;
 		}
 	}
 
-	private TileDatabase getTileDatabase(String storeName) throws DatabaseException {
-		TileDatabase db;
-		if (tileDbMap == null)
-			// Tile store has been closed already
-			return null;
-		if (storeName == null)
-			return null;
-		synchronized (tileDbMap) {
-			db = tileDbMap.get(storeName);
-		}
-		if (db != null)
-			return db;
+	/**
+	 * @param db
+	 *            database acquired via {@link #acquireTileDatabase(String)} or <code>null</code>
+	 */
+	private void releaseTileDatabase(TileDatabase db) {
+		if (db == null)
+			return;
+		Map<String, TileDatabase> pool = tileDbMap;
+		boolean close;
+		synchronized (pool) {
+			db.refCount--;
+			if (db.refCount == 0)
+				// wake up threads waiting in closeTileDatabase()
+				pool.notifyAll();
+			close = (db.refCount == 0 && db.closePending);
+			if (!close && !poolClosed)
+				evictDatabases(pool);
+		}
+		if (close)
+			db.close(false);
+	}
+
+	/**
+	 * Closes the database as soon as it is not in use anymore. Waits up to {@link #CLOSE_TIMEOUT} milliseconds for the
+	 * database to be released. If it is still in use afterwards it is closed on release. Has to be called while holding
+	 * the lock of {@link #tileDbMap}.
+	 * 
+	 * @param db
+	 * @return <code>true</code> if the database has been closed
+	 */
+	private boolean closeTileDatabase(TileDatabase db) {
+		long end = System.currentTimeMillis() + CLOSE_TIMEOUT;
 		try {
-			synchronized (tileDbMap) {
-				cleanupDatabases();
-				db = tileDbMap.get(storeName);
-				if (db == null) {
-					db = new TileDatabase(storeName);
-					db.lastAccess = System.currentTimeMillis();
-					tileDbMap.put(storeName, db);
-				}
-				return db;
+			while (db.refCount > 0) {
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				tileDbMap.wait(remaining);
 			}
-		} catch (Exception e) {
-			log.error("Error creating tile store db \"" + storeName + "\"", e);
-			throw new TileStoreException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (db.refCount > 0) {
+			log.warn("Tile store db \"" + db.mapSourceName + "\" is still in use - closing it on release");
+			db.closePending = true;
+			return false;
+		}
+		db.close(false);
+		return true;
+	}
+
+	/**
+	 * Closes the least recently used databases that are not in use until the pool limit is reached. Has to be called
+	 * while holding the lock of <code>pool</code>.
+	 * 
+	 * @param pool
+	 */
+	private void evictDatabases(Map<String, TileDatabase> pool) {
+		int maxOpen = Math.max(1, Settings.getInstance().tileStoreMaxOpenDatabases);
+		if (pool.size() <= maxOpen)
+			return;
+		Iterator<TileDatabase> it = pool.values().iterator();
+		while (pool.size() > maxOpen && it.hasNext()) {
+			TileDatabase db = it.next();
+			if (db.refCount > 0)
+				continue;
+			it.remove();
+			poolEvictions++;
+			log.debug("Evicting tile store db \"" + db.mapSourceName + "\" from pool");
+			db.close(false);
+		}
+	}
+
+	/**
+	 * @return hit/miss/eviction statistics of the pool of open tile databases
+	 */
+	public String getPoolStatistics() {
+		Map<String, TileDatabase> pool = tileDbMap;
+		if (poolClosed)
+			return "Tile database pool closed";
+		synchronized (pool) {
+			return String.format("Tile database pool: %d open, %d hits, %d misses, %d evictions", pool.size(),
+					poolHits, poolMisses, poolEvictions);
 		}
 	}
 
@@ -228,32 +318,123 @@ public class BerkeleyDbTileStore extends TileStore {
 	public void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource, long timeLastModified,
 			long timeExpires, String eTag) throws IOException {
 		TileDbEntry tile = new TileDbEntry(x, y, zoom, tileData, timeLastModified, timeExpires, eTag);
+		if (writeBuffer != null) {
+			enqueueTile(tile, mapSource);
+			return;
+		}
 		TileDatabase db = null;
 		try {
 			if (log.isTraceEnabled())
 				log.trace("Saved " + mapSource.getName() + " " + tile);
-			db = getTileDatabase(mapSource);
+			db = acquireTileDatabase(mapSource);
 			if (db != null)
 				db.put(tile);
 		} catch (Exception e) {
 			if (db != null)
 				db.close();
 			log.error("Faild to write tile to tile store \"" + mapSource.getName() + "\"", e);
+		} finally {
+			releaseTileDatabase(db);
 		}
 	}
 
 	@Override
 	public void putTile(TileStoreEntry tile, MapSource mapSource) {
+		if (writeBuffer != null) {
+			enqueueTile((TileDbEntry) tile, mapSource);
+			return;
+		}
 		TileDatabase db = null;
 		try {
 			if (log.isTraceEnabled())
 				log.trace("Saved " + mapSource.getName() + " " + tile);
-			db = getTileDatabase(mapSource);
+			db = acquireTileDatabase(mapSource);
 			db.put((TileDbEntry) tile);
 		} catch (Exception e) {
 			if (db != null)
 				db.close();
 			log.error("Faild to write tile to tile store \"" + mapSource.getName() + "\"", e);
+		} finally {
+			releaseTileDatabase(db);
+		}
+	}
+
+	/**
+	 * Adds the tile to the {@link #writeBuffer}. Blocks if the buffer is full.
+	 * 
+	 * @param tile
+	 * @param mapSource
+	 */
+	protected void enqueueTile(TileDbEntry tile, MapSource mapSource) {
+		String storeName = mapSource.getName();
+		if (storeName == null || poolClosed)
+			return;
+		if (log.isTraceEnabled())
+			log.trace("Queued " + storeName + " " + tile);
+		writeBuffer.put(storeName, tile);
+	}
+
+	/**
+	 * @param key
+	 * @param mapSource
+	 * @return the tile if it is waiting in the {@link #writeBuffer}, otherwise <code>null</code>
+	 */
+	protected TileDbEntry getBufferedTile(TileDbKey key, MapSource mapSource) {
+		if (writeBuffer == null)
+			return null;
+		String storeName = mapSource.getName();
+		if (storeName == null)
+			return null;
+		return writeBuffer.get(storeName, key);
+	}
+
+	/**
+	 * Writes all tiles waiting in the write buffer to the database. Blocks until all tiles queued before have been
+	 * written.
+	 */
+	public void flush() {
+		if (writeBuffer == null)
+			return;
+		synchronized (writeLock) {
+			Batch batch;
+			while ((batch = writeBuffer.pollBatch()) != null)
+				writeBatch(batch);
+		}
+	}
+
+	/**
+	 * @return the write buffer providing queue depth statistics or <code>null</code> if write-behind is disabled
+	 */
+	public TileWriteBuffer getWriteBuffer() {
+		return writeBuffer;
+	}
+
+	/**
+	 * Takes the next batch from the {@link #writeBuffer} and writes it to the database.
+	 */
+	protected void writeNextBatch() {
+		synchronized (writeLock) {
+			Batch batch = writeBuffer.pollBatch();
+			if (batch != null)
+				writeBatch(batch);
+		}
+	}
+
+	private void writeBatch(Batch batch) {
+		TileDatabase db = null;
+		try {
+			if (log.isTraceEnabled())
+				log.trace("Writing " + batch.size() + " tiles to " + batch.storeName);
+			db = acquireTileDatabase(batch.storeName);
+			if (db != null)
+				db.put(batch.getTiles());
+		} catch (Exception e) {
+			if (db != null)
+				db.close();
+			log.error("Faild to write " + batch.size() + " tiles to tile store \"" + batch.storeName + "\"", e);
+		} finally {
+			releaseTileDatabase(db);
+			writeBuffer.batchWritten(batch);
 		}
 	}
 
@@ -261,10 +442,14 @@ public class BerkeleyDbTileStore extends TileStore {
 	public TileStoreEntry getTile(int x, int y, int zoom, MapSource mapSource) {
 		TileDatabase db = null;
 		try {
-			db = getTileDatabase(mapSource);
+			TileDbKey key = new TileDbKey(x, y, zoom);
+			TileStoreEntry tile = getBufferedTile(key, mapSource);
+			if (tile != null)
+				return tile;
+			db = acquireTileDatabase(mapSource);
 			if (db == null)
 				return null;
-			TileStoreEntry tile = db.get(new TileDbKey(x, y, zoom));
+			tile = db.get(key);
 			if (log.isTraceEnabled()) {
 				if (tile == null)
 					log.trace("Tile store cache miss: (x,y,z)" + x + "/" + y + "/" + zoom + " " + mapSource.getName());
@@ -277,21 +462,46 @@ public class BerkeleyDbTileStore extends TileStore {
 				db.close();
 			log.error("failed to retrieve tile from tile store \"" + mapSource.getName() + "\"", e);
 			return null;
+		} finally {
+			releaseTileDatabase(db);
 		}
 	}
 
 	public boolean contains(int x, int y, int zoom, MapSource mapSource) {
+		TileDatabase db = null;
 		try {
-			return getTileDatabase(mapSource).contains(new TileDbKey(x, y, zoom));
+			TileDbKey key = new TileDbKey(x, y, zoom);
+			if (getBufferedTile(key, mapSource) != null)
+				return true;
+			db = acquireTileDatabase(mapSource);
+			return (db != null) && db.contains(key);
 		} catch (DatabaseException e) {
 			log.error("", e);
 			return false;
+		} finally {
+			releaseTileDatabase(db);
+		}
+	}
+
+	/**
+	 * Tiles waiting in the write buffer are flushed first, afterwards the region is read column by column via a
+	 * database cursor - the keys are ordered by (zoom, x, y).
+	 */
+	public TileStoreCursor getTiles(int zoom, int xMin, int xMax, int yMin, int yMax, MapSource mapSource) {
+		if (writeBuffer != null && writeBuffer.isDirty(mapSource.getName()))
+			flush();
+		TileDatabase db = null;
+		try {
+			db = acquireTileDatabase(mapSource);
+		} catch (DatabaseException e) {
+			log.error("", e);
 		}
+		return new TileRangeCursor(db, zoom, xMin, xMax, yMin, yMax);
 	}
 
 	public void prepareTileStore(MapSource mapSource) {
 		try {
-			getTileDatabase(mapSource);
+			releaseTileDatabase(acquireTileDatabase(mapSource));
 		} catch (DatabaseException e) {
 		}
 	}
@@ -299,18 +509,25 @@ public class BerkeleyDbTileStore extends TileStore {
 	public void clearStore(String storeName) {
 		File databaseDir = getStoreDir(storeName);
 
-		TileDatabase db;
-		synchronized (tileDbMap) {
-			db = tileDbMap.get(storeName);
-			if (db != null)
-				db.close(false);
-			if (databaseDir.exists()) {
-				DeleteFileFilter dff = new DeleteFileFilter();
-				databaseDir.listFiles(dff);
-				databaseDir.delete();
-				log.debug("Tilestore " + storeName + " cleared: " + dff);
+		synchronized (writeLock) {
+			if (writeBuffer != null)
+				writeBuffer.discard(storeName);
+			TileDatabase db;
+			synchronized (tileDbMap) {
+				db = tileDbMap.get(storeName);
+				if (db != null && !closeTileDatabase(db)) {
+					tileDbMap.remove(storeName);
+					log.error("Tilestore " + storeName + " not cleared: database still in use");
+					return;
+				}
+				if (databaseDir.exists()) {
+					DeleteFileFilter dff = new DeleteFileFilter();
+					databaseDir.listFiles(dff);
+					databaseDir.delete();
+					log.debug("Tilestore " + storeName + " cleared: " + dff);
+				}
+				tileDbMap.remove(storeName);
 			}
-			tileDbMap.remove(storeName);
 		}
 	}
 
@@ -325,12 +542,15 @@ public class BerkeleyDbTileStore extends TileStore {
 	public int getNrOfTiles(String mapSourceName) throws InterruptedException {
 		try {
 			File storeDir = getStoreDir(mapSourceName);
+			flush();
 			if (!storeDir.isDirectory())
 				return 0;
-			TileDatabase db = getTileDatabase(mapSourceName);
-			int tileCount = (int) db.entryCount();
-			db.close();
-			return tileCount;
+			TileDatabase db = acquireTileDatabase(mapSourceName);
+			try {
+				return (int) db.entryCount();
+			} finally {
+				releaseTileDatabase(db);
+			}
 		} catch (DatabaseException e) {
 			log.error("", e);
 			return -1;
@@ -354,31 +574,16 @@ public class BerkeleyDbTileStore extends TileStore {
 
 	public BufferedImage getCacheCoverage(MapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax)
 			throws InterruptedException {
-		TileDatabase db;
+		TileDatabase db = null;
 		try {
-			db = getTileDatabase(mapSource);
+			flush();
+			db = acquireTileDatabase(mapSource);
 			return db.getCacheCoverage(zoom, tileNumMin, tileNumMax);
 		} catch (DatabaseException e) {
 			log.error("", e);
 			return null;
-		}
-	}
-
-	protected void cleanupDatabases() {
-		if (tileDbMap.size() < MAX_CONCURRENT_ENVIRONMENTS)
-			return;
-		synchronized (tileDbMap) {
-			List<TileDatabase> list = new ArrayList<TileDatabase>(tileDbMap.values());
-			Collections.sort(list, new Comparator<TileDatabase>() {
-
-				public int compare(TileDatabase o1, TileDatabase o2) {
-					if (o1.lastAccess == o2.lastAccess)
-						return 0;
-					return (o1.lastAccess < o2.lastAccess) ? -1 : 1;
-				}
-			});
-			for (int i = 0; i < list.size() - 2; i++)
-				list.get(i).close();
+		} finally {
+			releaseTileDatabase(db);
 		}
 	}
 
@@ -448,23 +653,120 @@ public class BerkeleyDbTileStore extends TileStore {
 
 		@Override
 		public void run() {
+			if (writeBuffer != null) {
+				log.debug("Flushing tile store write buffer...");
+				flush();
+				log.debug(writeBuffer);
+				if (shutdown && writerThread != null)
+					writerThread.interrupt();
+			}
+			log.debug(getPoolStatistics());
 			log.debug("Closing all tile databases...");
 			synchronized (tileDbMap) {
-				for (TileDatabase db : tileDbMap.values()) {
-					db.close(false);
+				if (shutdown)
+					poolClosed = true;
+				for (TileDatabase db : new ArrayList<TileDatabase>(tileDbMap.values())) {
+					closeTileDatabase(db);
+					if (tileDbMap.get(db.mapSourceName) == db)
+						tileDbMap.remove(db.mapSourceName);
+				}
+				if (shutdown)
+					releaseTileStoreLock();
+			}
+			log.debug("All tile databases has been closed");
+		}
+	}
+
+	/**
+	 * Writes the tiles collected in the {@link BerkeleyDbTileStore#writeBuffer} to the databases.
+	 */
+	private class TileWriterThread extends DelayedInterruptThread {
+
+		public TileWriterThread() {
+			super("TileStoreWriter");
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					if (writeBuffer.awaitPending(60000))
+						writeNextBatch();
 				}
-				tileDbMap.clear();
-				if (shutdown) {
-					tileDbMap = null;
-					try {
-						tileStoreLock.release();
-					} catch (IOException e) {
-						log.error("", e);
+			} catch (InterruptedException e) {
+			}
+			log.debug("Tile store writer terminated");
+		}
+	}
+
+	/**
+	 * Reads a rectangular region column by column. The {@link TileDatabase} stays acquired until the cursor is
+	 * closed.
+	 */
+	private class TileRangeCursor implements TileStoreCursor {
+
+		private TileDatabase db;
+		private final int zoom;
+		private final int xMax;
+		private final int yMin;
+		private final int yMax;
+		private int x;
+		private EntityCursor<TileDbEntry> cursor = null;
+
+		public TileRangeCursor(TileDatabase db, int zoom, int xMin, int xMax, int yMin, int yMax) {
+			this.db = db;
+			this.zoom = zoom;
+			this.x = xMin;
+			this.xMax = xMax;
+			this.yMin = yMin;
+			this.yMax = yMax;
+		}
+
+		public TileStoreEntry next() throws InterruptedException {
+			if (db == null)
+				return null;
+			try {
+				while (true) {
+					if (cursor == null) {
+						if (x > xMax) {
+							close();
+							return null;
+						}
+						TileDbKey fromKey = new TileDbKey(x, yMin, zoom);
+						TileDbKey toKey = new TileDbKey(x, yMax, zoom);
+						cursor = db.getTileIndex().entities(fromKey, true, toKey, true);
+						x++;
 					}
+					TileDbEntry tile = cursor.next();
+					if (tile != null)
+						return tile;
+					cursor.close();
+					cursor = null;
+					if (Thread.currentThread().isInterrupted())
+						throw new InterruptedException();
 				}
+			} catch (DatabaseException e) {
+				log.error("Failed to read tiles from tile store \"" + db.mapSourceName + "\"", e);
+				close();
+				return null;
 			}
-			log.debug("All tile databases has been closed");
 		}
+
+		public void close() {
+			if (cursor != null) {
+				try {
+					cursor.close();
+				} catch (DatabaseException e) {
+					log.error("", e);
+				}
+				cursor = null;
+			}
+			releaseTileDatabase(db);
+			db = null;
+		}
+
 	}
 
 	protected class TileDatabase {
@@ -475,7 +777,15 @@ public class BerkeleyDbTileStore extends TileStore {
 		final PrimaryIndex<TileDbKey, TileDbEntry> tileIndex;
 		boolean dbClosed = false;
 
-		long lastAccess;
+		/**
+		 * Number of threads currently using this database (guarded by {@link BerkeleyDbTileStore#tileDbMap})
+		 */
+		int refCount = 0;
+
+		/**
+		 * The database has been removed from the pool and is closed as soon as it is released
+		 */
+		boolean closePending = false;
 
 		public TileDatabase(String mapSourceName) throws IOException, EnvironmentLockedException, DatabaseException {
 			this(mapSourceName, getStoreDir(mapSourceName));
@@ -485,11 +795,10 @@ public class BerkeleyDbTileStore extends TileStore {
 				EnvironmentLockedException, DatabaseException {
 			log.debug("Opening tile store db: \"" + databaseDirectory + "\"");
 			File storeDir = databaseDirectory;
-			DelayedInterruptThread t = (DelayedInterruptThread) Thread.currentThread();
+			DelayedInterrupt t = DelayedInterruptThread.getDelayedInterrupt();
 			try {
 				t.pauseInterrupt();
 				this.mapSourceName = mapSourceName;
-				lastAccess = System.currentTimeMillis();
 
 				Utilities.mkDirs(storeDir);
 
@@ -518,7 +827,7 @@ public class BerkeleyDbTileStore extends TileStore {
 		}
 
 		public void put(TileDbEntry tile) throws DatabaseException {
-			DelayedInterruptThread t = (DelayedInterruptThread) Thread.currentThread();
+			DelayedInterrupt t = DelayedInterruptThread.getDelayedInterrupt();
 			try {
 				t.pauseInterrupt();
 				tileIndex.put(tile);
@@ -529,6 +838,25 @@ public class BerkeleyDbTileStore extends TileStore {
 			}
 		}
 
+		/**
+		 * Writes all tiles while the interrupt is paused only once.
+		 * 
+		 * @param tiles
+		 * @throws DatabaseException
+		 */
+		public void put(Collection<TileDbEntry> tiles) throws DatabaseException {
+			DelayedInterrupt t = DelayedInterruptThread.getDelayedInterrupt();
+			try {
+				t.pauseInterrupt();
+				for (TileDbEntry tile : tiles)
+					tileIndex.put(tile);
+			} finally {
+				if (t.interruptedWhilePaused())
+					close();
+				t.resumeInterrupt();
+			}
+		}
+
 		public boolean contains(TileDbKey key) throws DatabaseException {
 			return tileIndex.contains(key);
 		}
@@ -544,7 +872,6 @@ public class BerkeleyDbTileStore extends TileStore {
 		public BufferedImage getCacheCoverage(int zoom, Point tileNumMin, Point tileNumMax) throws DatabaseException,
 				InterruptedException {
 			log.debug("Loading cache coverage for region " + tileNumMin + " " + tileNumMax + " of zoom level " + zoom);
-			DelayedInterruptThread t = (DelayedInterruptThread) Thread.currentThread();
 			int width = tileNumMax.x - tileNumMin.x + 1;
 			int height = tileNumMax.y - tileNumMin.y + 1;
 			byte ff = (byte) 0xFF;
@@ -576,7 +903,7 @@ public class BerkeleyDbTileStore extends TileStore {
 						int pixely = key.y - tileNumMin.y;
 						raster.setSample(pixelx, pixely, 0, 1);
 						key = cursor.next();
-						if (t.isInterrupted()) {
+						if (Thread.currentThread().isInterrupted()) {
 							log.debug("Cache coverage loading aborted");
 							throw new InterruptedException();
 						}
@@ -604,14 +931,20 @@ public class BerkeleyDbTileStore extends TileStore {
 		public void close(boolean removeFromMap) {
 			if (dbClosed)
 				return;
+			Map<String, TileDatabase> pool = tileDbMap;
 			if (removeFromMap) {
-				synchronized (tileDbMap) {
-					TileDatabase db2 = tileDbMap.get(mapSourceName);
+				synchronized (pool) {
+					TileDatabase db2 = pool.get(mapSourceName);
 					if (db2 == this)
-						tileDbMap.remove(mapSourceName);
+						pool.remove(mapSourceName);
+					if (refCount > 0) {
+						// still in use - closed on release
+						closePending = true;
+						return;
+					}
 				}
 			}
-			DelayedInterruptThread t = (DelayedInterruptThread) Thread.currentThread();
+			DelayedInterrupt t = DelayedInterruptThread.getDelayedInterrupt();
 			try {
 				t.pauseInterrupt();
 				try {
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.berkeleydb;
+
+/**
+ * Control of the delayed interrupt behavior of a thread.
+ * 
+ * @see DelayedInterruptThread
+ * @see DelayedInterruptThread#getDelayedInterrupt()
+ */
+public interface DelayedInterrupt {
+
+	/**
+	 * Disables interrupting the thread until {@link #resumeInterrupt()} is called.
+	 */
+	public void pauseInterrupt();
+
+	/**
+	 * Restores the regular interrupt behavior. If the thread has been interrupted while interrupt was disabled the
+	 * interrupt is performed now.
+	 */
+	public void resumeInterrupt();
+
+	public boolean interruptedWhilePaused();
+
+}
@@ -16,6 +16,7 @@
  ******************************************************************************/
 package mobac.program.tilestore.berkeleydb;
 
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadFactory;
 
 /**
@@ -23,8 +24,27 @@ import java.util.concurrent.ThreadFactory;
  * Therefore before executing any DB we allow to disable the {@link #interrupt()} method via {@link #pauseInterrupt()}.
  * After the "interrupt sensitive section" {@link #resumeInterrupt()} restores the regular behavior. If the thread has
  * been interrupted while interrupt was disabled {@link #resumeInterrupt()} catches up this.
+ * <p>
+ * Threads that can not extend this class (e.g. virtual threads) get the same behavior by registering themselves via
+ * {@link #register(Thread)}. Such threads have to be interrupted via {@link #interrupt(Thread)}.
+ * </p>
  */
-public class DelayedInterruptThread extends Thread {
+public class DelayedInterruptThread extends Thread implements DelayedInterrupt {
+
+	private static final ConcurrentHashMap<Thread, DelayedInterruptHandle> REGISTERED_THREADS = new ConcurrentHashMap<Thread, DelayedInterruptHandle>();
+
+	private static final DelayedInterrupt NO_DELAYED_INTERRUPT = new DelayedInterrupt() {
+
+		public void pauseInterrupt() {
+		}
+
+		public void resumeInterrupt() {
+		}
+
+		public boolean interruptedWhilePaused() {
+			return false;
+		}
+	};
 
 	private boolean interruptPaused = false;
 	private boolean interruptedWhilePaused = false;
@@ -63,6 +83,82 @@ public class DelayedInterruptThread extends Thread {
 		return interruptedWhilePaused;
 	}
 
+	/**
+	 * @return the {@link DelayedInterrupt} control of the current thread. For threads that are neither a
+	 *         {@link DelayedInterruptThread} nor registered a control without any effect is returned.
+	 */
+	public static DelayedInterrupt getDelayedInterrupt() {
+		Thread t = Thread.currentThread();
+		if (t instanceof DelayedInterruptThread)
+			return (DelayedInterruptThread) t;
+		DelayedInterruptHandle handle = REGISTERED_THREADS.get(t);
+		if (handle != null)
+			return handle;
+		return NO_DELAYED_INTERRUPT;
+	}
+
+	/**
+	 * Enables the delayed interrupt behavior for a thread that is not a {@link DelayedInterruptThread}. The
+	 * registration has to be removed via {@link #unregister(Thread)} before the thread terminates.
+	 * 
+	 * @param thread
+	 */
+	public static void register(Thread thread) {
+		if (thread instanceof DelayedInterruptThread)
+			return;
+		REGISTERED_THREADS.put(thread, new DelayedInterruptHandle(thread));
+	}
+
+	public static void unregister(Thread thread) {
+		REGISTERED_THREADS.remove(thread);
+	}
+
+	/**
+	 * Interrupts the specified thread respecting the delayed interrupt behavior of registered threads.
+	 * 
+	 * @param thread
+	 */
+	public static void interrupt(Thread thread) {
+		DelayedInterruptHandle handle = REGISTERED_THREADS.get(thread);
+		if (handle != null)
+			handle.interrupt();
+		else
+			thread.interrupt();
+	}
+
+	private static class DelayedInterruptHandle implements DelayedInterrupt {
+
+		private final Thread thread;
+		private boolean interruptPaused = false;
+		private boolean interruptedWhilePaused = false;
+
+		public DelayedInterruptHandle(Thread thread) {
+			this.thread = thread;
+		}
+
+		public synchronized void interrupt() {
+			if (interruptPaused)
+				interruptedWhilePaused = true;
+			else
+				thread.interrupt();
+		}
+
+		public synchronized void pauseInterrupt() {
+			interruptPaused = true;
+		}
+
+		public synchronized void resumeInterrupt() {
+			interruptPaused = false;
+			if (interruptedWhilePaused)
+				thread.interrupt();
+		}
+
+		public synchronized boolean interruptedWhilePaused() {
+			return interruptedWhilePaused;
+		}
+
+	}
+
 	public static ThreadFactory createThreadFactory() {
 		return new DIThreadFactory();
 	}
@@ -129,6 +129,21 @@ public class TileDbEntry implements TileStoreEntry {
 			this.zoom = zoom;
 		}
 
+		@Override
+		public int hashCode() {
+			return (31 * (31 * zoom + x)) + y;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TileDbKey))
+				return false;
+			TileDbKey other = (TileDbKey) obj;
+			return (x == other.x) && (y == other.y) && (zoom == other.zoom);
+		}
+
 		@Override
 		public String toString() {
 			return "[x=" + x + ", y=" + y + ", zoom=" + zoom + "]";
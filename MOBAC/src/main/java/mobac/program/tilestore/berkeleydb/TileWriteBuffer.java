@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.berkeleydb;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mobac.program.tilestore.berkeleydb.TileDbEntry.TileDbKey;
+
+/**
+ * Memory bounded buffer holding the tiles waiting for being written to the tile store. Tiles are grouped per map
+ * source so that they can be written in batches. A tile that is put again before it has been written replaces the
+ * pending one.
+ * <p>
+ * Tiles stay accounted until the batch containing them has been written, therefore the buffer never holds more than
+ * the configured amount of tile data (plus one tile).
+ * </p>
+ * <p>
+ * At most one batch per map source is in flight: {@link #pollBatch()} does not hand out tiles of a map source until the
+ * previous batch of that map source has been released via {@link #batchWritten(Batch)}. Therefore batches of the same
+ * map source are always written in the order they have been taken, independent of the number of writing threads.
+ * </p>
+ */
+public class TileWriteBuffer {
+
+	/**
+	 * Estimated memory overhead per tile (key, entry and map entry objects)
+	 */
+	protected static final int TILE_OVERHEAD = 128;
+
+	protected final long maxBytes;
+
+	protected final int maxBatchSize;
+
+	/**
+	 * Tiles waiting for being written per map source name in order of insertion
+	 */
+	protected final Map<String, Map<TileDbKey, TileDbEntry>> pending = new LinkedHashMap<String, Map<TileDbKey, TileDbEntry>>();
+
+	/**
+	 * Batches that have been taken for writing but are not yet written
+	 */
+	protected final Map<String, Batch> writing = new HashMap<String, Batch>();
+
+	protected int tileCount = 0;
+	protected long byteCount = 0;
+	protected int peakTileCount = 0;
+	protected long writtenTileCount = 0;
+	protected long writtenBatchCount = 0;
+	protected long blockedPutCount = 0;
+
+	/**
+	 * @param maxBytes
+	 *            maximum amount of tile data held by this buffer
+	 * @param maxBatchSize
+	 *            maximum number of tiles in one batch
+	 */
+	public TileWriteBuffer(long maxBytes, int maxBatchSize) {
+		this.maxBytes = maxBytes;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Adds a tile to the buffer. Blocks while the buffer is full. If the calling thread is interrupted while waiting the
+	 * tile is added anyway and the interrupted status is restored.
+	 * 
+	 * @param storeName
+	 * @param tile
+	 */
+	public synchronized void put(String storeName, TileDbEntry tile) {
+		if (byteCount >= maxBytes) {
+			blockedPutCount++;
+			try {
+				while (byteCount >= maxBytes)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Map<TileDbKey, TileDbEntry> tiles = pending.get(storeName);
+		if (tiles == null) {
+			tiles = new LinkedHashMap<TileDbKey, TileDbEntry>();
+			pending.put(storeName, tiles);
+		}
+		TileDbEntry old = tiles.put(tile.tileKey, tile);
+		if (old != null) {
+			byteCount -= size(old);
+			tileCount--;
+		}
+		byteCount += size(tile);
+		tileCount++;
+		peakTileCount = Math.max(peakTileCount, tileCount);
+		notifyAll();
+	}
+
+	/**
+	 * @param storeName
+	 * @param key
+	 * @return the most recent buffered tile or <code>null</code> if the tile is not buffered
+	 */
+	public synchronized TileDbEntry get(String storeName, TileDbKey key) {
+		if (tileCount == 0)
+			return null;
+		Map<TileDbKey, TileDbEntry> tiles = pending.get(storeName);
+		if (tiles != null) {
+			TileDbEntry tile = tiles.get(key);
+			if (tile != null)
+				return tile;
+		}
+		Batch batch = writing.get(storeName);
+		if (batch != null)
+			return batch.tiles.get(key);
+		return null;
+	}
+
+	/**
+	 * @param storeName
+	 * @return <code>true</code> if tiles of the specified map source are waiting for being written or are currently
+	 *         written
+	 */
+	public synchronized boolean isDirty(String storeName) {
+		return pending.containsKey(storeName) || writing.containsKey(storeName);
+	}
+
+	/**
+	 * Waits until tiles are pending that can be taken via {@link #pollBatch()}, i.e. tiles of a map source that has no
+	 * batch in flight.
+	 * 
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return <code>true</code> if a batch is available, <code>false</code> if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitPending(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while (nextStoreName() == null) {
+			long remaining = end - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the oldest batch of a map source that has no batch in flight. The batch has to be released via
+	 * {@link #batchWritten(Batch)} after it has been written. Tiles of a map source with a batch in flight are not
+	 * handed out before that batch has been released - otherwise a later batch could overtake an earlier one and
+	 * {@link #get(String, TileDbKey)} could miss tiles of the first one.
+	 * 
+	 * @return the batch or <code>null</code> if no tiles are pending or all map sources with pending tiles have a
+	 *         batch in flight
+	 */
+	public synchronized Batch pollBatch() {
+		String storeName = nextStoreName();
+		if (storeName == null)
+			return null;
+		Map<TileDbKey, TileDbEntry> tiles = pending.remove(storeName);
+		Map<TileDbKey, TileDbEntry> batchTiles;
+		if (tiles.size() <= maxBatchSize) {
+			batchTiles = tiles;
+		} else {
+			batchTiles = new LinkedHashMap<TileDbKey, TileDbEntry>();
+			Iterator<Map.Entry<TileDbKey, TileDbEntry>> tileIt = tiles.entrySet().iterator();
+			while (batchTiles.size() < maxBatchSize) {
+				Map.Entry<TileDbKey, TileDbEntry> tileEntry = tileIt.next();
+				batchTiles.put(tileEntry.getKey(), tileEntry.getValue());
+				tileIt.remove();
+			}
+			// re-insert the remaining tiles of this store at the end so that other stores are not starved
+			pending.put(storeName, tiles);
+		}
+		Batch batch = new Batch(storeName, batchTiles);
+		assert !writing.containsKey(storeName);
+		writing.put(storeName, batch);
+		return batch;
+	}
+
+	/**
+	 * @return name of the oldest map source with pending tiles and without a batch in flight or <code>null</code>
+	 */
+	protected String nextStoreName() {
+		for (String storeName : pending.keySet()) {
+			if (!writing.containsKey(storeName))
+				return storeName;
+		}
+		return null;
+	}
+
+	/**
+	 * Releases the memory of a batch taken via {@link #pollBatch()}.
+	 * 
+	 * @param batch
+	 */
+	public synchronized void batchWritten(Batch batch) {
+		if (writing.get(batch.storeName) != batch)
+			throw new IllegalStateException("Batch of \"" + batch.storeName + "\" is not in flight");
+		writing.remove(batch.storeName);
+		for (TileDbEntry tile : batch.tiles.values())
+			byteCount -= size(tile);
+		tileCount -= batch.tiles.size();
+		writtenTileCount += batch.tiles.size();
+		writtenBatchCount++;
+		notifyAll();
+	}
+
+	/**
+	 * Drops all pending tiles of the specified map source
+	 * 
+	 * @param storeName
+	 */
+	public synchronized void discard(String storeName) {
+		Map<TileDbKey, TileDbEntry> tiles = pending.remove(storeName);
+		if (tiles == null)
+			return;
+		for (TileDbEntry tile : tiles.values())
+			byteCount -= size(tile);
+		tileCount -= tiles.size();
+		notifyAll();
+	}
+
+	/**
+	 * Waits until all tiles put before have been taken and written.
+	 * 
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return <code>true</code> if the buffer is empty
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitEmpty(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while (tileCount > 0) {
+			long remaining = end - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	protected static int size(TileDbEntry tile) {
+		return tile.getData().length + TILE_OVERHEAD;
+	}
+
+	/**
+	 * @return number of tiles currently waiting for being written (queue depth)
+	 */
+	public synchronized int getTileCount() {
+		return tileCount;
+	}
+
+	/**
+	 * @return estimated memory used by the buffered tiles
+	 */
+	public synchronized long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * @return maximum queue depth since creation of this buffer
+	 */
+	public synchronized int getPeakTileCount() {
+		return peakTileCount;
+	}
+
+	public synchronized long getWrittenTileCount() {
+		return writtenTileCount;
+	}
+
+	public synchronized long getWrittenBatchCount() {
+		return writtenBatchCount;
+	}
+
+	/**
+	 * @return number of times a thread had to wait because the buffer was full
+	 */
+	public synchronized long getBlockedPutCount() {
+		return blockedPutCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("TileWriteBuffer: %d tiles (%d KiB) queued, peak %d, %d tiles written in %d batches, "
+				+ "%d blocked puts", tileCount, byteCount / 1024, peakTileCount, writtenTileCount, writtenBatchCount,
+				blockedPutCount);
+	}
+
+	public static class Batch {
+
+		public final String storeName;
+
+		protected final Map<TileDbKey, TileDbEntry> tiles;
+
+		protected Batch(String storeName, Map<TileDbKey, TileDbEntry> tiles) {
+			this.storeName = storeName;
+			this.tiles = tiles;
+		}
+
+		public Collection<TileDbEntry> getTiles() {
+			return tiles.values();
+		}
+
+		public int size() {
+			return tiles.size();
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.mmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import mobac.program.tilestore.berkeleydb.DelayedInterrupt;
+import mobac.program.tilestore.berkeleydb.DelayedInterruptThread;
+import mobac.utilities.Utilities;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One append-only segment file of a {@link MappedTileDatabase}. Records are appended via {@link RandomAccessFile} and
+ * read from a read-only {@link MappedByteBuffer}. Records appended after the segment has been mapped are read via the
+ * file until the unmapped part is large enough for remapping the segment.
+ */
+class MappedSegment {
+
+	private static final Logger log = Logger.getLogger(MappedSegment.class);
+
+	private static final int REMAP_THRESHOLD = 4 * 1024 * 1024;
+
+	final int number;
+
+	final File file;
+
+	/**
+	 * Amount of bytes in this segment that belong to outdated records (guarded by the owning
+	 * {@link MappedTileDatabase})
+	 */
+	long garbage = 0;
+
+	private RandomAccessFile raf;
+
+	private long size;
+
+	private MappedByteBuffer mapping = null;
+
+	/**
+	 * Mappings replaced by a remap. Buffers handed out by {@link #read(int, int)} may still refer to them, therefore
+	 * they are not unmapped immediately but left to the garbage collector. Only those still existing when the segment
+	 * is closed are unmapped explicitly.
+	 */
+	private final List<WeakReference<MappedByteBuffer>> oldMappings = new ArrayList<WeakReference<MappedByteBuffer>>();
+
+	MappedSegment(int number, File file) throws IOException {
+		this.number = number;
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		size = raf.length();
+	}
+
+	synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * @param data
+	 * @param off
+	 * @param len
+	 * @return offset of the appended data in this segment
+	 * @throws IOException
+	 */
+	synchronized int append(byte[] data, int off, int len) throws IOException {
+		ensureOpen();
+		long pos = size;
+		raf.seek(pos);
+		raf.write(data, off, len);
+		size += len;
+		return (int) pos;
+	}
+
+	/**
+	 * Reads an int without creating a record buffer.
+	 * 
+	 * @param offset
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized int readInt(int offset) throws IOException {
+		if (offset + 4 <= mappedSize() || remapIfRequired(offset + 4))
+			return mapping.getInt(offset);
+		ensureOpen();
+		raf.seek(offset);
+		return raf.readInt();
+	}
+
+	/**
+	 * @param offset
+	 * @param length
+	 * @return a buffer containing the bytes <code>[offset, offset + length)</code> starting at position 0. If possible
+	 *         it is a slice of the mapped segment.
+	 * @throws IOException
+	 */
+	synchronized ByteBuffer read(int offset, int length) throws IOException {
+		long end = (long) offset + length;
+		if (end > size)
+			throw new IOException("Record [" + offset + ", " + end + ") beyond the end of segment " + file);
+		if (end <= mappedSize() || remapIfRequired(end)) {
+			ByteBuffer buf = mapping.duplicate();
+			buf.position(offset);
+			buf.limit((int) end);
+			return buf.slice();
+		}
+		ensureOpen();
+		byte[] data = new byte[length];
+		raf.seek(offset);
+		raf.readFully(data);
+		return ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * Maps the whole segment.
+	 * 
+	 * @return the mapping
+	 * @throws IOException
+	 */
+	synchronized ByteBuffer map() throws IOException {
+		if (mappedSize() < size)
+			remap();
+		if (mapping == null)
+			return ByteBuffer.allocate(0);
+		return mapping.duplicate();
+	}
+
+	private int mappedSize() {
+		return (mapping == null) ? 0 : mapping.capacity();
+	}
+
+	private boolean remapIfRequired(long end) throws IOException {
+		if (size - mappedSize() < REMAP_THRESHOLD && end - mappedSize() < REMAP_THRESHOLD)
+			return false;
+		remap();
+		return true;
+	}
+
+	private void remap() throws IOException {
+		ensureOpen();
+		// FileChannel.map() is interruptible and would close the file
+		DelayedInterrupt t = DelayedInterruptThread.getDelayedInterrupt();
+		try {
+			t.pauseInterrupt();
+			MappedByteBuffer newMapping = raf.getChannel().map(MapMode.READ_ONLY, 0, size);
+			if (mapping != null) {
+				Iterator<WeakReference<MappedByteBuffer>> it = oldMappings.iterator();
+				while (it.hasNext()) {
+					if (it.next().get() == null)
+						it.remove();
+				}
+				oldMappings.add(new WeakReference<MappedByteBuffer>(mapping));
+			}
+			mapping = newMapping;
+		} finally {
+			t.resumeInterrupt();
+		}
+	}
+
+	/**
+	 * Discards everything beyond <code>newSize</code>. Only allowed as long as no record of this segment has been
+	 * handed out.
+	 * 
+	 * @param newSize
+	 * @throws IOException
+	 */
+	synchronized void truncate(long newSize) throws IOException {
+		unmapAll();
+		ensureOpen();
+		raf.setLength(newSize);
+		size = newSize;
+	}
+
+	synchronized void force() throws IOException {
+		ensureOpen();
+		DelayedInterrupt t = DelayedInterruptThread.getDelayedInterrupt();
+		try {
+			t.pauseInterrupt();
+			raf.getChannel().force(false);
+		} finally {
+			t.resumeInterrupt();
+		}
+	}
+
+	/**
+	 * Reopens the file in case the underlying channel has been closed by an interrupted thread.
+	 * 
+	 * @throws IOException
+	 */
+	private void ensureOpen() throws IOException {
+		if (raf.getChannel().isOpen())
+			return;
+		log.debug("Reopening segment " + file);
+		raf = new RandomAccessFile(file, "rw");
+	}
+
+	synchronized void close() {
+		unmapAll();
+		try {
+			raf.close();
+		} catch (IOException e) {
+			log.error("", e);
+		}
+	}
+
+	synchronized void delete() {
+		close();
+		if (!file.delete())
+			log.warn("Unable to delete segment " + file);
+	}
+
+	private void unmapAll() {
+		if (mapping != null)
+			unmap(mapping);
+		mapping = null;
+		for (WeakReference<MappedByteBuffer> ref : oldMappings) {
+			MappedByteBuffer buf = ref.get();
+			if (buf != null)
+				unmap(buf);
+		}
+		oldMappings.clear();
+	}
+
+	/**
+	 * Releases the mapping immediately instead of waiting for the garbage collector (required for deleting the file
+	 * on Windows). The buffer must not be accessed afterwards.
+	 * 
+	 * @param buffer
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		Utilities.freeDirectBuffer(buffer);
+	}
+
+	@Override
+	public String toString() {
+		return file.getName() + " (" + size + " bytes, " + garbage + " garbage)";
+	}
+
+}
@@ -0,0 +1,604 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.mmap;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import mobac.program.tilestore.TileStoreEntry;
+import mobac.utilities.Charsets;
+import mobac.utilities.Utilities;
+import mobac.utilities.collections.LongLongHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tile database of one map source used by the {@link MappedTileStore}.
+ * <p>
+ * Tiles are appended as records to segment files ({@link MappedSegment}). An in-memory {@link LongLongHashMap} maps
+ * the tile coordinate (zoom, x, y) to the location (segment number, offset) of the most recent record of the tile.
+ * When the database is closed the index is saved, on opening it is loaded and deleted. If the index file is missing
+ * (e.g. after a crash) it is rebuilt by scanning all segments - incomplete or corrupted records at the end of a
+ * segment are discarded.
+ * </p>
+ * <p>
+ * Replaced tiles leave garbage in the segments. {@link #compact(double)} moves the still referenced records of a
+ * segment to the active segment, forces them to disk and deletes the compacted segment afterwards.
+ * </p>
+ * 
+ * Record format (big endian):
+ * 
+ * <pre>
+ * int    magic
+ * int    record length (including magic and checksum)
+ * int    zoom
+ * int    x
+ * int    y
+ * long   time downloaded
+ * long   time last modified
+ * long   time expires
+ * short  eTag length in bytes (-1 = no eTag)
+ * byte[] eTag (UTF-8)
+ * int    data length
+ * byte[] data
+ * int    CRC32 checksum of all bytes after the record length
+ * </pre>
+ */
+public class MappedTileDatabase {
+
+	private static final Logger log = Logger.getLogger(MappedTileDatabase.class);
+
+	static final int RECORD_MAGIC = 0x4D544C52;
+
+	private static final int INDEX_MAGIC = 0x4D544C49;
+
+	private static final int HEADER_SIZE = 46;
+
+	private static final int MIN_RECORD_SIZE = HEADER_SIZE + 8;
+
+	private static final long NO_LOCATION = -1;
+
+	private static final String INDEX_FILE = "index.dat";
+
+	private static final Pattern SEGMENT_FILE_PATTERN = Pattern.compile("segment-(\\d{5})\\.dat");
+
+	final String storeName;
+
+	private final File dir;
+
+	private final int maxSegmentSize;
+
+	private LongLongHashMap index;
+
+	/**
+	 * Segments by segment number, <code>null</code> for deleted segments
+	 */
+	private final ArrayList<MappedSegment> segments = new ArrayList<MappedSegment>();
+
+	private MappedSegment activeSegment = null;
+
+	/**
+	 * The read lock is held while data is read from mapped segments, the write lock while segments are unmapped.
+	 */
+	private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param storeName
+	 * @param dir
+	 *            directory containing the segment files
+	 * @param maxSegmentSize
+	 *            size in bytes at which a new segment is started
+	 * @throws IOException
+	 */
+	public MappedTileDatabase(String storeName, File dir, int maxSegmentSize) throws IOException {
+		this.storeName = storeName;
+		this.dir = dir;
+		this.maxSegmentSize = maxSegmentSize;
+		log.debug("Opening tile store \"" + dir + "\"");
+		Utilities.mkDirs(dir);
+		TreeMap<Integer, File> segmentFiles = new TreeMap<Integer, File>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("Unable to list " + dir);
+		for (File f : files) {
+			Matcher m = SEGMENT_FILE_PATTERN.matcher(f.getName());
+			if (m.matches())
+				segmentFiles.put(Integer.parseInt(m.group(1)), f);
+		}
+		for (Integer number : segmentFiles.keySet()) {
+			while (segments.size() < number)
+				segments.add(null);
+			segments.add(new MappedSegment(number, segmentFiles.get(number)));
+		}
+		if (!loadIndex())
+			rebuildIndex();
+		if (!segments.isEmpty()) {
+			MappedSegment last = segments.get(segments.size() - 1);
+			if (last.size() < maxSegmentSize)
+				activeSegment = last;
+		}
+	}
+
+	static long key(int x, int y, int zoom) {
+		return ((long) zoom << 58) | ((long) x << 29) | y;
+	}
+
+	private static long location(int segment, int offset) {
+		return ((long) segment << 32) | offset;
+	}
+
+	private static int segmentNumber(long location) {
+		return (int) (location >>> 32);
+	}
+
+	private static int offset(long location) {
+		return (int) location;
+	}
+
+	/**
+	 * Loads the index saved by {@link #close()}. The index file is deleted afterwards so that the index is rebuilt if
+	 * the database is not closed properly.
+	 * 
+	 * @return <code>true</code> if the index is valid
+	 */
+	private boolean loadIndex() {
+		File indexFile = new File(dir, INDEX_FILE);
+		if (!indexFile.isFile())
+			return false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536));
+			if (in.readInt() != INDEX_MAGIC)
+				return false;
+			int segmentCount = in.readInt();
+			int existingSegments = 0;
+			for (MappedSegment seg : segments)
+				if (seg != null)
+					existingSegments++;
+			if (segmentCount != existingSegments)
+				return false;
+			for (int i = 0; i < segmentCount; i++) {
+				int number = in.readInt();
+				long size = in.readLong();
+				long garbage = in.readLong();
+				MappedSegment seg = (number < segments.size()) ? segments.get(number) : null;
+				if (seg == null || seg.size() != size)
+					return false;
+				seg.garbage = garbage;
+			}
+			int entryCount = in.readInt();
+			index = new LongLongHashMap(entryCount, NO_LOCATION);
+			for (int i = 0; i < entryCount; i++)
+				index.put(in.readLong(), in.readLong());
+			log.debug("Loaded index of \"" + storeName + "\": " + entryCount + " tiles");
+			return true;
+		} catch (IOException e) {
+			log.warn("Unable to load index of \"" + storeName + "\": " + e);
+			return false;
+		} finally {
+			Utilities.closeStream(in);
+			if (!indexFile.delete())
+				log.warn("Unable to delete " + indexFile);
+		}
+	}
+
+	private void saveIndex() throws IOException {
+		File tmpFile = new File(dir, INDEX_FILE + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			int segmentCount = 0;
+			for (MappedSegment seg : segments)
+				if (seg != null)
+					segmentCount++;
+			out.writeInt(segmentCount);
+			for (MappedSegment seg : segments) {
+				if (seg == null)
+					continue;
+				out.writeInt(seg.number);
+				out.writeLong(seg.size());
+				out.writeLong(seg.garbage);
+			}
+			out.writeInt(index.size());
+			for (int slot = index.nextSlot(0); slot >= 0; slot = index.nextSlot(slot + 1)) {
+				out.writeLong(index.keyAt(slot));
+				out.writeLong(index.valueAt(slot));
+			}
+		} finally {
+			out.close();
+		}
+		File indexFile = new File(dir, INDEX_FILE);
+		if (!tmpFile.renameTo(indexFile))
+			throw new IOException("Unable to rename " + tmpFile + " to " + indexFile);
+	}
+
+	private void rebuildIndex() throws IOException {
+		log.debug("Rebuilding index of \"" + storeName + "\"");
+		index = new LongLongHashMap(1024, NO_LOCATION);
+		for (MappedSegment seg : segments) {
+			if (seg == null)
+				continue;
+			seg.garbage = 0;
+			scanSegment(seg);
+		}
+		log.debug("Index of \"" + storeName + "\" rebuilt: " + index.size() + " tiles");
+	}
+
+	/**
+	 * Adds all valid records of the segment to the index. The segment is truncated at the first invalid record.
+	 * 
+	 * @param seg
+	 * @throws IOException
+	 */
+	private void scanSegment(MappedSegment seg) throws IOException {
+		ByteBuffer buf = seg.map();
+		int size = buf.capacity();
+		int offset = 0;
+		CRC32 crc = new CRC32();
+		byte[] tmp = new byte[65536];
+		while (size - offset >= MIN_RECORD_SIZE) {
+			if (buf.getInt(offset) != RECORD_MAGIC)
+				break;
+			int length = buf.getInt(offset + 4);
+			if (length < MIN_RECORD_SIZE || length > size - offset)
+				break;
+			int checkLength = length - 12;
+			if (tmp.length < checkLength)
+				tmp = new byte[checkLength];
+			buf.position(offset + 8);
+			buf.get(tmp, 0, checkLength);
+			crc.reset();
+			crc.update(tmp, 0, checkLength);
+			if ((int) crc.getValue() != buf.getInt(offset + length - 4))
+				break;
+			long key = key(buf.getInt(offset + 12), buf.getInt(offset + 16), buf.getInt(offset + 8));
+			long old = index.put(key, location(seg.number, offset));
+			if (old != NO_LOCATION)
+				addGarbage(old);
+			offset += length;
+		}
+		if (offset < size) {
+			log.warn("Discarding " + (size - offset) + " bytes of incomplete or corrupted data at the end of "
+					+ seg.file);
+			seg.truncate(offset);
+		}
+	}
+
+	private void addGarbage(long location) throws IOException {
+		MappedSegment seg = segments.get(segmentNumber(location));
+		seg.garbage += seg.readInt(offset(location) + 4);
+	}
+
+	/**
+	 * @param recordLength
+	 * @return the segment new records are appended to
+	 * @throws IOException
+	 */
+	private MappedSegment getActiveSegment(int recordLength) throws IOException {
+		if (activeSegment == null || (activeSegment.size() > 0 && activeSegment.size() + recordLength > maxSegmentSize)) {
+			int number = segments.size();
+			activeSegment = new MappedSegment(number, new File(dir, String.format("segment-%05d.dat", number)));
+			segments.add(activeSegment);
+		}
+		return activeSegment;
+	}
+
+	static byte[] encode(TileStoreEntry tile) {
+		byte[] data = tile.getData();
+		byte[] eTag = null;
+		if (tile.geteTag() != null) {
+			eTag = tile.geteTag().getBytes(Charsets.UTF_8);
+			if (eTag.length > Short.MAX_VALUE)
+				eTag = null;
+		}
+		int eTagLength = (eTag != null) ? eTag.length : 0;
+		int length = HEADER_SIZE + eTagLength + 4 + data.length + 4;
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		buf.putInt(RECORD_MAGIC);
+		buf.putInt(length);
+		buf.putInt(tile.getZoom());
+		buf.putInt(tile.getX());
+		buf.putInt(tile.getY());
+		buf.putLong(tile.getTimeDownloaded());
+		buf.putLong(tile.getTimeLastModified());
+		buf.putLong(tile.getTimeExpires());
+		if (eTag != null) {
+			buf.putShort((short) eTag.length);
+			buf.put(eTag);
+		} else
+			buf.putShort((short) -1);
+		buf.putInt(data.length);
+		buf.put(data);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 8, length - 12);
+		buf.putInt((int) crc.getValue());
+		return buf.array();
+	}
+
+	static MappedTileStoreEntry decode(ByteBuffer record) {
+		int zoom = record.getInt(8);
+		int x = record.getInt(12);
+		int y = record.getInt(16);
+		long timeDownloaded = record.getLong(20);
+		long timeLastModified = record.getLong(28);
+		long timeExpires = record.getLong(36);
+		int eTagLength = record.getShort(44);
+		String eTag = null;
+		int pos = HEADER_SIZE;
+		if (eTagLength >= 0) {
+			byte[] eTagBytes = new byte[eTagLength];
+			record.position(pos);
+			record.get(eTagBytes);
+			eTag = new String(eTagBytes, Charsets.UTF_8);
+			pos += eTagLength;
+		}
+		byte[] data = new byte[record.getInt(pos)];
+		record.position(pos + 4);
+		record.get(data);
+		return new MappedTileStoreEntry(x, y, zoom, data, timeDownloaded, timeLastModified, timeExpires, eTag);
+	}
+
+	/**
+	 * The tile data is copied directly from the mapped segment into the returned entry (one bulk copy, no intermediate
+	 * buffer). The entry can not refer to the mapping itself: segments are unmapped explicitly when they are compacted
+	 * or closed and accessing a buffer of an unmapped segment crashes the JVM.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param zoom
+	 * @return the tile or <code>null</code> if the tile is not present
+	 * @throws IOException
+	 */
+	public MappedTileStoreEntry get(int x, int y, int zoom) throws IOException {
+		segmentLock.readLock().lock();
+		try {
+			MappedSegment seg;
+			int offset;
+			synchronized (this) {
+				if (closed)
+					return null;
+				long location = index.get(key(x, y, zoom));
+				if (location == NO_LOCATION)
+					return null;
+				seg = segments.get(segmentNumber(location));
+				offset = offset(location);
+			}
+			int length = seg.readInt(offset + 4);
+			return decode(seg.read(offset, length));
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+	}
+
+	public synchronized boolean contains(int x, int y, int zoom) {
+		return !closed && index.containsKey(key(x, y, zoom));
+	}
+
+	public void put(TileStoreEntry tile) throws IOException {
+		byte[] record = encode(tile);
+		long key = key(tile.getX(), tile.getY(), tile.getZoom());
+		synchronized (this) {
+			if (closed)
+				throw new IOException("Tile store \"" + storeName + "\" has been closed");
+			MappedSegment seg = getActiveSegment(record.length);
+			int offset = seg.append(record, 0, record.length);
+			long old = index.put(key, location(seg.number, offset));
+			if (old != NO_LOCATION)
+				addGarbage(old);
+		}
+	}
+
+	public synchronized int getTileCount() {
+		return index.size();
+	}
+
+	/**
+	 * @return total size of all segments in bytes
+	 */
+	public synchronized long getSize() {
+		long size = 0;
+		for (MappedSegment seg : segments)
+			if (seg != null)
+				size += seg.size();
+		return size;
+	}
+
+	/**
+	 * @return size of all outdated records in bytes
+	 */
+	public synchronized long getGarbageSize() {
+		long garbage = 0;
+		for (MappedSegment seg : segments)
+			if (seg != null)
+				garbage += seg.garbage;
+		return garbage;
+	}
+
+	public synchronized BufferedImage getCacheCoverage(int zoom, Point tileNumMin, Point tileNumMax)
+			throws InterruptedException {
+		log.debug("Loading cache coverage for region " + tileNumMin + " " + tileNumMax + " of zoom level " + zoom);
+		int width = tileNumMax.x - tileNumMin.x + 1;
+		int height = tileNumMax.y - tileNumMin.y + 1;
+		byte ff = (byte) 0xFF;
+		byte[] colors = new byte[] { 120, 120, 120, 120, // alpha-gray
+				10, ff, 0, 120 // alpha-green
+		};
+		IndexColorModel colorModel = new IndexColorModel(2, 2, colors, 0, true);
+		BufferedImage image = null;
+		try {
+			image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+		} catch (Throwable e) {
+			log.error("Failed to create coverage image: " + e.toString());
+			return null;
+		}
+		WritableRaster raster = image.getRaster();
+		int count = 0;
+		for (int slot = index.nextSlot(0); slot >= 0; slot = index.nextSlot(slot + 1)) {
+			long key = index.keyAt(slot);
+			if ((int) (key >>> 58) != zoom)
+				continue;
+			int x = (int) ((key >>> 29) & 0x1FFFFFFF);
+			int y = (int) (key & 0x1FFFFFFF);
+			if (x >= tileNumMin.x && x <= tileNumMax.x && y >= tileNumMin.y && y <= tileNumMax.y)
+				raster.setSample(x - tileNumMin.x, y - tileNumMin.y, 0, 1);
+			if (++count % 100000 == 0 && Thread.currentThread().isInterrupted()) {
+				log.debug("Cache coverage loading aborted");
+				throw new InterruptedException();
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Compacts the segment with the highest amount of garbage.
+	 * 
+	 * @param minGarbageRatio
+	 *            minimum ratio of garbage in a segment for being compacted
+	 * @return <code>true</code> if a segment has been compacted
+	 * @throws IOException
+	 */
+	public boolean compact(double minGarbageRatio) throws IOException {
+		MappedSegment seg = null;
+		synchronized (this) {
+			if (closed)
+				return false;
+			double maxRatio = minGarbageRatio;
+			for (MappedSegment s : segments) {
+				if (s == null || s == activeSegment)
+					continue;
+				double ratio = (s.size() == 0) ? 1.0 : (double) s.garbage / s.size();
+				if (ratio >= maxRatio) {
+					maxRatio = ratio;
+					seg = s;
+				}
+			}
+		}
+		if (seg == null)
+			return false;
+		log.debug("Compacting " + seg + " of \"" + storeName + "\"");
+		int moved = 0;
+		ArrayList<MappedSegment> targets = new ArrayList<MappedSegment>();
+		segmentLock.readLock().lock();
+		try {
+			ByteBuffer buf = seg.map();
+			int size = buf.capacity();
+			int offset = 0;
+			byte[] tmp = new byte[65536];
+			while (offset < size) {
+				int length = buf.getInt(offset + 4);
+				long key = key(buf.getInt(offset + 12), buf.getInt(offset + 16), buf.getInt(offset + 8));
+				synchronized (this) {
+					if (closed)
+						return false;
+					if (index.get(key) == location(seg.number, offset)) {
+						if (tmp.length < length)
+							tmp = new byte[length];
+						buf.position(offset);
+						buf.get(tmp, 0, length);
+						MappedSegment target = getActiveSegment(length);
+						if (!targets.contains(target))
+							targets.add(target);
+						int newOffset = target.append(tmp, 0, length);
+						index.put(key, location(target.number, newOffset));
+						moved++;
+					}
+				}
+				offset += length;
+			}
+			// the moved records have to be on disk before their only other copy is deleted
+			for (MappedSegment target : targets)
+				target.force();
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+		segmentLock.writeLock().lock();
+		try {
+			synchronized (this) {
+				if (closed)
+					return false;
+				segments.set(seg.number, null);
+			}
+			seg.delete();
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+		log.debug("Compaction of " + seg + " finished: " + moved + " tiles moved");
+		return true;
+	}
+
+	/**
+	 * Forces all appended data to be written to the storage device.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (!closed && activeSegment != null)
+			activeSegment.force();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Saves the index and closes all segments.
+	 */
+	public void close() {
+		segmentLock.writeLock().lock();
+		try {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				log.debug("Closing tile store \"" + storeName + "\"");
+				try {
+					for (MappedSegment seg : segments)
+						if (seg != null)
+							seg.force();
+					saveIndex();
+				} catch (IOException e) {
+					log.error("Failed to save index of \"" + storeName + "\"", e);
+				}
+				for (MappedSegment seg : segments)
+					if (seg != null)
+						seg.close();
+			}
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+	}
+
+}
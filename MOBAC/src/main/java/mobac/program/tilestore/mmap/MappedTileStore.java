@@ -0,0 +1,457 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.mmap;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import mobac.exceptions.TileStoreException;
+import mobac.program.interfaces.MapSource;
+import mobac.program.model.Settings;
+import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreCursor;
+import mobac.program.tilestore.TileStoreEntry;
+import mobac.program.tilestore.TileStoreInfo;
+import mobac.program.tilestore.berkeleydb.BerkeleyDbStoreReader;
+import mobac.program.tilestore.berkeleydb.TileDbEntry;
+import mobac.utilities.file.DeleteFileFilter;
+import mobac.utilities.file.DirInfoFileFilter;
+import mobac.utilities.file.DirectoryFileFilter;
+
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.persist.EntityCursor;
+
+/**
+ * Tile store implementation based on append-only segment files which are read via memory mapping (see
+ * {@link MappedTileDatabase}). Compared to the Berkeley DB based tile store there is no log overhead and no cleaner
+ * I/O. Garbage left by replaced tiles is removed by a background thread.
+ * <p>
+ * As the segments are mapped into the address space of the Java process this tile store should only be used with
+ * large tile stores on a 64 bit Java runtime.
+ * </p>
+ */
+public class MappedTileStore extends TileStore {
+
+	/**
+	 * Size at which a new segment file is started
+	 */
+	private static final int MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+	/**
+	 * Minimum ratio of outdated data in a segment for being compacted
+	 */
+	private static final double COMPACTION_GARBAGE_RATIO = 0.5;
+
+	private static final long COMPACTION_INTERVAL = 60 * 1000;
+
+	private static final String STORE_DIR_PREFIX = "mm-";
+
+	private static final String BERKELEY_DB_DIR_PREFIX = "db-";
+
+	private Map<String, MappedTileDatabase> tileDbMap;
+
+	/**
+	 * Set by the shutdown hook - afterwards no tile database is opened anymore
+	 */
+	private boolean shutdown = false;
+
+	/**
+	 * Held shared while a tile database is in use and exclusively while the tile databases are closed. Therefore
+	 * {@link #closeAll()} waits for tiles currently written or read instead of closing the database underneath them -
+	 * later accesses reopen the database. Has to be acquired before the lock of {@link #tileDbMap}.
+	 */
+	private final ReentrantReadWriteLock usageLock = new ReentrantReadWriteLock();
+
+	public MappedTileStore() throws TileStoreException {
+		super();
+		acquireTileStoreLock();
+		tileDbMap = new TreeMap<String, MappedTileDatabase>();
+		new CompactionThread().start();
+		Runtime.getRuntime().addShutdownHook(new Thread("TileStoreShutdown") {
+
+			@Override
+			public void run() {
+				usageLock.writeLock().lock();
+				try {
+					synchronized (tileDbMap) {
+						shutdown = true;
+						closeDatabases();
+						releaseTileStoreLock();
+					}
+				} finally {
+					usageLock.writeLock().unlock();
+				}
+			}
+		});
+	}
+
+	private MappedTileDatabase getTileDatabase(MapSource mapSource) {
+		return getTileDatabase(mapSource.getName());
+	}
+
+	private MappedTileDatabase getTileDatabase(String storeName) {
+		if (storeName == null)
+			return null;
+		synchronized (tileDbMap) {
+			if (shutdown)
+				return null;
+			MappedTileDatabase db = tileDbMap.get(storeName);
+			if (db != null)
+				return db;
+			try {
+				db = new MappedTileDatabase(storeName, getStoreDir(storeName), MAX_SEGMENT_SIZE);
+				tileDbMap.put(storeName, db);
+				return db;
+			} catch (IOException e) {
+				log.error("Error opening tile store \"" + storeName + "\"", e);
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public TileStoreEntry createNewEntry(int x, int y, int zoom, byte[] data, long timeLastModified, long timeExpires,
+			String eTag) {
+		return new MappedTileStoreEntry(x, y, zoom, data, System.currentTimeMillis(), timeLastModified, timeExpires,
+				eTag);
+	}
+
+	@Override
+	public TileStoreEntry createNewEmptyEntry(int x, int y, int zoom) {
+		long time = System.currentTimeMillis();
+		long timeExpires = time + Settings.getInstance().tileDefaultExpirationTime;
+		return new MappedTileStoreEntry(x, y, zoom, new byte[] {}, time, time, timeExpires, "");
+	}
+
+	@Override
+	public void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource) throws IOException {
+		putTileData(tileData, x, y, zoom, mapSource, -1, -1, null);
+	}
+
+	@Override
+	public void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource, long timeLastModified,
+			long timeExpires, String eTag) throws IOException {
+		putTile(createNewEntry(x, y, zoom, tileData, timeLastModified, timeExpires, eTag), mapSource);
+	}
+
+	@Override
+	public void putTile(TileStoreEntry tile, MapSource mapSource) {
+		usageLock.readLock().lock();
+		try {
+			MappedTileDatabase db = getTileDatabase(mapSource);
+			if (db == null)
+				return;
+			db.put(tile);
+			if (log.isTraceEnabled())
+				log.trace("Saved " + mapSource.getName() + " " + tile);
+		} catch (IOException e) {
+			log.error("Failed to write tile to tile store \"" + mapSource.getName() + "\"", e);
+		} finally {
+			usageLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public TileStoreEntry getTile(int x, int y, int zoom, MapSource mapSource) {
+		usageLock.readLock().lock();
+		try {
+			MappedTileDatabase db = getTileDatabase(mapSource);
+			if (db == null)
+				return null;
+			TileStoreEntry tile = db.get(x, y, zoom);
+			if (log.isTraceEnabled()) {
+				if (tile == null)
+					log.trace("Tile store cache miss: (x,y,z)" + x + "/" + y + "/" + zoom + " " + mapSource.getName());
+				else
+					log.trace("Loaded " + mapSource.getName() + " " + tile);
+			}
+			return tile;
+		} catch (IOException e) {
+			log.error("failed to retrieve tile from tile store \"" + mapSource.getName() + "\"", e);
+			return null;
+		} finally {
+			usageLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(int x, int y, int zoom, MapSource mapSource) {
+		usageLock.readLock().lock();
+		try {
+			MappedTileDatabase db = getTileDatabase(mapSource);
+			return (db != null) && db.contains(x, y, zoom);
+		} finally {
+			usageLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The index is held in memory, therefore the region is simply probed tile by tile.
+	 */
+	@Override
+	public TileStoreCursor getTiles(int zoom, int xMin, int xMax, int yMin, int yMax, MapSource mapSource) {
+		return new TileRangeCursor(getTileDatabase(mapSource), zoom, xMin, xMax, yMin, yMax);
+	}
+
+	@Override
+	public void prepareTileStore(MapSource mapSource) {
+		getTileDatabase(mapSource);
+	}
+
+	@Override
+	public void clearStore(String storeName) {
+		File storeDir = getStoreDir(storeName);
+		usageLock.writeLock().lock();
+		try {
+			synchronized (tileDbMap) {
+				MappedTileDatabase db = tileDbMap.remove(storeName);
+				if (db != null)
+					db.close();
+				if (storeDir.exists()) {
+					DeleteFileFilter dff = new DeleteFileFilter();
+					storeDir.listFiles(dff);
+					storeDir.delete();
+					log.debug("Tilestore " + storeName + " cleared: " + dff);
+				}
+			}
+		} finally {
+			usageLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String[] getAllStoreNames() {
+		return getStoreNames(STORE_DIR_PREFIX);
+	}
+
+	/**
+	 * @return names of all map sources having a tile database in the {@link mobac.program.tilestore.berkeleydb.BerkeleyDbTileStore}
+	 */
+	public String[] getBerkeleyDbStoreNames() {
+		return getStoreNames(BERKELEY_DB_DIR_PREFIX);
+	}
+
+	private String[] getStoreNames(String prefix) {
+		File[] dirs = tileStoreDir.listFiles(new DirectoryFileFilter());
+		ArrayList<String> storeNames = new ArrayList<String>(dirs.length);
+		for (File d : dirs) {
+			String name = d.getName();
+			if (name.startsWith(prefix))
+				storeNames.add(name.substring(prefix.length()));
+		}
+		String[] result = new String[storeNames.size()];
+		storeNames.toArray(result);
+		return result;
+	}
+
+	@Override
+	public boolean storeExists(MapSource mapSource) {
+		return getStoreDir(mapSource.getName()).isDirectory();
+	}
+
+	protected File getStoreDir(String mapSourceName) {
+		return new File(tileStoreDir, STORE_DIR_PREFIX + mapSourceName);
+	}
+
+	@Override
+	public TileStoreInfo getStoreInfo(String storeName) throws InterruptedException {
+		if (!getStoreDir(storeName).isDirectory())
+			return new TileStoreInfo(0, 0);
+		MappedTileDatabase db = getTileDatabase(storeName);
+		if (db == null)
+			return new TileStoreInfo(0, -1);
+		DirInfoFileFilter diff = new DirInfoFileFilter();
+		try {
+			getStoreDir(storeName).listFiles(diff);
+		} catch (RuntimeException e) {
+			throw new InterruptedException();
+		}
+		return new TileStoreInfo(diff.getDirSize(), db.getTileCount());
+	}
+
+	@Override
+	public BufferedImage getCacheCoverage(MapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax)
+			throws InterruptedException {
+		MappedTileDatabase db = getTileDatabase(mapSource);
+		if (db == null)
+			return null;
+		return db.getCacheCoverage(zoom, tileNumMin, tileNumMax);
+	}
+
+	/**
+	 * Waits until tiles currently written or read have been processed and closes all tile databases afterwards.
+	 */
+	@Override
+	public void closeAll() {
+		usageLock.writeLock().lock();
+		try {
+			synchronized (tileDbMap) {
+				closeDatabases();
+			}
+		} finally {
+			usageLock.writeLock().unlock();
+		}
+	}
+
+	private void closeDatabases() {
+		log.debug("Closing all tile databases...");
+		for (MappedTileDatabase db : tileDbMap.values())
+			db.close();
+		tileDbMap.clear();
+		log.debug("All tile databases has been closed");
+	}
+
+	/**
+	 * Copies all tiles of a tile database created by the {@link mobac.program.tilestore.berkeleydb.BerkeleyDbTileStore}
+	 * into this tile store. The tiles are streamed from the Berkeley DB in key order, existing tiles are replaced.
+	 * 
+	 * @param storeName
+	 *            name of the map source
+	 * @return number of tiles copied
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public long importBerkeleyDbStore(String storeName) throws IOException, InterruptedException {
+		File dbDir = new File(tileStoreDir, BERKELEY_DB_DIR_PREFIX + storeName);
+		MappedTileDatabase db = getTileDatabase(storeName);
+		if (db == null)
+			throw new IOException("Unable to open tile store \"" + storeName + "\"");
+		long count = 0;
+		try {
+			BerkeleyDbStoreReader reader = new BerkeleyDbStoreReader(dbDir);
+			try {
+				long total = reader.getTileCount();
+				log.info("Migrating " + total + " tiles of \"" + storeName + "\"");
+				EntityCursor<TileDbEntry> cursor = reader.openCursor();
+				try {
+					for (TileDbEntry tile : cursor) {
+						db.put(tile);
+						if (++count % 10000 == 0) {
+							log.debug("Migrated " + count + " of " + total + " tiles of \"" + storeName + "\"");
+							if (Thread.currentThread().isInterrupted())
+								throw new InterruptedException();
+						}
+					}
+				} finally {
+					cursor.close();
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (DatabaseException e) {
+			throw new IOException("Failed to read Berkeley DB tile store \"" + storeName + "\": " + e.getMessage());
+		}
+		db.flush();
+		log.info("Migrated " + count + " tiles of \"" + storeName + "\"");
+		return count;
+	}
+
+	private class TileRangeCursor implements TileStoreCursor {
+
+		private MappedTileDatabase db;
+		private final int zoom;
+		private final int xMax;
+		private final int yMin;
+		private final int yMax;
+		private int x;
+		private int y;
+
+		public TileRangeCursor(MappedTileDatabase db, int zoom, int xMin, int xMax, int yMin, int yMax) {
+			this.db = db;
+			this.zoom = zoom;
+			this.x = xMin;
+			this.xMax = xMax;
+			this.yMin = yMin;
+			this.yMax = yMax;
+			this.y = yMin;
+		}
+
+		public TileStoreEntry next() throws InterruptedException {
+			while (db != null && x <= xMax) {
+				if (y > yMax) {
+					x++;
+					y = yMin;
+					if (Thread.currentThread().isInterrupted())
+						throw new InterruptedException();
+					continue;
+				}
+				usageLock.readLock().lock();
+				try {
+					if (db.isClosed())
+						// closed by closeAll() in the meantime
+						db = getTileDatabase(db.storeName);
+					TileStoreEntry tile = (db != null) ? db.get(x, y++, zoom) : null;
+					if (tile != null)
+						return tile;
+				} catch (IOException e) {
+					log.error("Failed to read tiles from tile store \"" + db.storeName + "\"", e);
+					close();
+				} finally {
+					usageLock.readLock().unlock();
+				}
+			}
+			return null;
+		}
+
+		public void close() {
+			db = null;
+		}
+
+	}
+
+	/**
+	 * Periodically forces written data to disk and compacts the segments of the open tile databases.
+	 */
+	private class CompactionThread extends Thread {
+
+		public CompactionThread() {
+			super("TileStoreCompaction");
+			setDaemon(true);
+			setPriority(MIN_PRIORITY);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Thread.sleep(COMPACTION_INTERVAL);
+					ArrayList<MappedTileDatabase> databases;
+					synchronized (tileDbMap) {
+						databases = new ArrayList<MappedTileDatabase>(tileDbMap.values());
+					}
+					for (MappedTileDatabase db : databases) {
+						try {
+							db.flush();
+							while (db.compact(COMPACTION_GARBAGE_RATIO))
+								;
+						} catch (IOException e) {
+							log.error("Compaction of tile store \"" + db.storeName + "\" failed", e);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+}
@@ -30,9 +30,12 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.CodeSource;
 import java.security.ProtectionDomain;
@@ -342,6 +345,41 @@ public class Utilities {
 		}
 	}
 
+	/**
+	 * Releases the memory of a direct or memory mapped buffer immediately instead of waiting for the garbage collector.
+	 * The buffer and all views on it must not be accessed afterwards. Has no effect on heap buffers.
+	 * 
+	 * @param buffer
+	 *            a buffer created via {@link ByteBuffer#allocateDirect(int)} or
+	 *            {@link FileChannel#map(java.nio.channels.FileChannel.MapMode, long, long)} - not a slice or duplicate
+	 */
+	public static void freeDirectBuffer(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect())
+			return;
+		try {
+			// Java 9 and higher
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			invokeCleaner.invoke(f.get(null), buffer);
+			return;
+		} catch (NoSuchMethodException e) {
+			// Java 8 and lower
+		} catch (Exception e) {
+			return;
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null)
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (Exception e) {
+			// released by the garbage collector
+		}
+	}
+
 	public static double parseLocaleDouble(String text) throws ParseException {
 		ParsePosition pos = new ParsePosition(0);
 		Number n = Utilities.FORMAT_6_DEC.parse(text, pos);
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.utilities.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import mobac.utilities.Utilities;
+
+/**
+ * Open addressing hash map with primitive <code>long</code> keys and <code>int</code> values (linear probing). The
+ * table can either be held on the Java heap or in direct (off-heap) memory - in the second case the map does not
+ * increase the heap usage and does not add work for the garbage collector at all.
+ * <p>
+ * {@link #EMPTY_KEY} ({@link Long#MIN_VALUE}) can not be used as key. The map is not thread safe. Entries can not be
+ * removed individually.
+ * </p>
+ * 
+ * @see LongLongHashMap
+ */
+public class LongIntHashMap {
+
+	public static final long EMPTY_KEY = Long.MIN_VALUE;
+
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private final int noValue;
+
+	private final boolean direct;
+
+	private LongBuffer keys;
+	private IntBuffer values;
+
+	/**
+	 * The direct buffers backing {@link #keys} and {@link #values} or <code>null</code> if the table is on the heap
+	 */
+	private ByteBuffer directKeys = null;
+	private ByteBuffer directValues = null;
+
+	private int capacity;
+	private int mask;
+	private int size = 0;
+	private int resizeThreshold;
+
+	/**
+	 * @param expectedSize
+	 * @param noValue
+	 *            value returned by {@link #get(long)} and {@link #put(long, int)} if the key is not present
+	 * @param direct
+	 *            <code>true</code>: the table is allocated outside of the Java heap
+	 */
+	public LongIntHashMap(int expectedSize, int noValue, boolean direct) {
+		this.noValue = noValue;
+		this.direct = direct;
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		if (direct) {
+			directKeys = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder());
+			directValues = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder());
+			keys = directKeys.asLongBuffer();
+			values = directValues.asIntBuffer();
+		} else {
+			keys = LongBuffer.allocate(capacity);
+			values = IntBuffer.allocate(capacity);
+		}
+		for (int i = 0; i < capacity; i++)
+			keys.put(i, EMPTY_KEY);
+		this.capacity = capacity;
+		mask = capacity - 1;
+		resizeThreshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static int hash(long key) {
+		// finalizer of MurmurHash3
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private int slot(long key) {
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = keys.get(slot);
+			if (k == key || k == EMPTY_KEY)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the value or the <code>noValue</code> specified in the constructor
+	 */
+	public int get(long key) {
+		int slot = slot(key);
+		return (keys.get(slot) == EMPTY_KEY) ? noValue : values.get(slot);
+	}
+
+	public boolean containsKey(long key) {
+		return keys.get(slot(key)) != EMPTY_KEY;
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return the previous value or the <code>noValue</code> specified in the constructor
+	 */
+	public int put(long key, int value) {
+		if (key == EMPTY_KEY)
+			throw new IllegalArgumentException("Invalid key");
+		int slot = slot(key);
+		if (keys.get(slot) != EMPTY_KEY) {
+			int old = values.get(slot);
+			values.put(slot, value);
+			return old;
+		}
+		keys.put(slot, key);
+		values.put(slot, value);
+		if (++size > resizeThreshold)
+			resize();
+		return noValue;
+	}
+
+	private void resize() {
+		LongBuffer oldKeys = keys;
+		IntBuffer oldValues = values;
+		ByteBuffer oldDirectKeys = directKeys;
+		ByteBuffer oldDirectValues = directValues;
+		int oldCapacity = capacity;
+		allocate(oldCapacity * 2);
+		for (int i = 0; i < oldCapacity; i++) {
+			long k = oldKeys.get(i);
+			if (k != EMPTY_KEY) {
+				int slot = slot(k);
+				keys.put(slot, k);
+				values.put(slot, oldValues.get(i));
+			}
+		}
+		Utilities.freeDirectBuffer(oldDirectKeys);
+		Utilities.freeDirectBuffer(oldDirectValues);
+	}
+
+	/**
+	 * Removes all entries and releases the direct memory of the table immediately. The map remains usable (empty)
+	 * afterwards.
+	 */
+	public void close() {
+		ByteBuffer oldDirectKeys = directKeys;
+		ByteBuffer oldDirectValues = directValues;
+		keys = LongBuffer.allocate(16);
+		values = IntBuffer.allocate(16);
+		directKeys = null;
+		directValues = null;
+		for (int i = 0; i < 16; i++)
+			keys.put(i, EMPTY_KEY);
+		capacity = 16;
+		mask = 15;
+		size = 0;
+		resizeThreshold = (int) (16 * LOAD_FACTOR);
+		Utilities.freeDirectBuffer(oldDirectKeys);
+		Utilities.freeDirectBuffer(oldDirectValues);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.utilities.collections;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map with primitive <code>long</code> keys and values (linear probing). Compared to a
+ * {@link java.util.HashMap} no objects are created per entry, therefore it is suitable for holding millions of
+ * entries.
+ * <p>
+ * {@link #EMPTY_KEY} ({@link Long#MIN_VALUE}) can not be used as key. The map is not thread safe. Entries can not be
+ * removed individually.
+ * </p>
+ */
+public class LongLongHashMap {
+
+	public static final long EMPTY_KEY = Long.MIN_VALUE;
+
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private final long noValue;
+
+	private long[] keys;
+	private long[] values;
+	private int mask;
+	private int size = 0;
+	private int resizeThreshold;
+
+	/**
+	 * @param expectedSize
+	 * @param noValue
+	 *            value returned by {@link #get(long)} and {@link #put(long, long)} if the key is not present
+	 */
+	public LongLongHashMap(int expectedSize, long noValue) {
+		this.noValue = noValue;
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY_KEY);
+		values = new long[capacity];
+		mask = capacity - 1;
+		resizeThreshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static int hash(long key) {
+		// finalizer of MurmurHash3
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private int slot(long key) {
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = keys[slot];
+			if (k == key || k == EMPTY_KEY)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the value or the <code>noValue</code> specified in the constructor
+	 */
+	public long get(long key) {
+		int slot = slot(key);
+		return (keys[slot] == EMPTY_KEY) ? noValue : values[slot];
+	}
+
+	public boolean containsKey(long key) {
+		return keys[slot(key)] != EMPTY_KEY;
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return the previous value or the <code>noValue</code> specified in the constructor
+	 */
+	public long put(long key, long value) {
+		if (key == EMPTY_KEY)
+			throw new IllegalArgumentException("Invalid key");
+		int slot = slot(key);
+		if (keys[slot] != EMPTY_KEY) {
+			long old = values[slot];
+			values[slot] = value;
+			return old;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > resizeThreshold)
+			resize();
+		return noValue;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			long k = oldKeys[i];
+			if (k != EMPTY_KEY) {
+				int slot = slot(k);
+				keys[slot] = k;
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, EMPTY_KEY);
+		size = 0;
+	}
+
+	/**
+	 * Iteration over all entries:
+	 * 
+	 * <pre>
+	 * for (int slot = map.nextSlot(0); slot &gt;= 0; slot = map.nextSlot(slot + 1))
+	 * 	process(map.keyAt(slot), map.valueAt(slot));
+	 * </pre>
+	 * 
+	 * @param slot
+	 * @return the first used slot beginning at <code>slot</code> or <code>-1</code> if there is none
+	 */
+	public int nextSlot(int slot) {
+		for (; slot < keys.length; slot++) {
+			if (keys[slot] != EMPTY_KEY)
+				return slot;
+		}
+		return -1;
+	}
+
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	public long valueAt(int slot) {
+		return values[slot];
+	}
+
+}
@@ -0,0 +1,490 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.utilities.imageio;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
+/**
+ * Reduces the colors of an image to a palette of at most <code>maxColors</code> colors (median cut algorithm).
+ * <p>
+ * Images that do not contain more than <code>maxColors</code> different colors are converted without any loss.
+ * Otherwise the colors are counted in a histogram with 5 bits per color component. The histogram is divided into
+ * boxes: The box with the largest product of squared color range and pixel count is split at the median of its
+ * widest color component until the requested number of colors is reached. Each palette color is the average color of
+ * the pixels in its box, each histogram entry is mapped to the nearest palette color.
+ * </p>
+ * <p>
+ * An existing palette can be applied to further images via {@link #quantize(BufferedImage, IndexColorModel)}. Each
+ * pixel is then mapped to the nearest palette color using an inverse color map that is filled on demand.
+ * </p>
+ * <p>
+ * All buffers are allocated once and reused for the following images, therefore an instance must not be used by
+ * more than one thread at a time.
+ * </p>
+ */
+public class ColorQuantizer {
+
+	private static final int HIST_BITS = 5;
+	private static final int HIST_SIZE = 1 << (3 * HIST_BITS);
+
+	/**
+	 * Size of the hash table used for detecting images with only a few colors (at least twice the maximum palette
+	 * size)
+	 */
+	private static final int HASH_SIZE = 1024;
+	private static final int HASH_EMPTY = -1;
+
+	private final int maxColors;
+
+	private int[] pixels = new int[0];
+
+	private final int[] histogram = new int[HIST_SIZE];
+	private final long[] histSumR = new long[HIST_SIZE];
+	private final long[] histSumG = new long[HIST_SIZE];
+	private final long[] histSumB = new long[HIST_SIZE];
+
+	/**
+	 * Histogram entries with a count &gt; 0 - during median cut the boxes are consecutive ranges of this array
+	 */
+	private final int[] usedBins = new int[HIST_SIZE];
+	private final int[] sortBuffer = new int[HIST_SIZE];
+	private int usedBinCount = 0;
+
+	private final int[] boxStart;
+	private final int[] boxEnd;
+	private final long[] boxPixelCount;
+
+	/**
+	 * Palette index for each histogram entry
+	 */
+	private final byte[] inverseColorMap = new byte[HIST_SIZE];
+	private final boolean[] inverseColorMapValid = new boolean[HIST_SIZE];
+	private IndexColorModel inverseColorMapPalette = null;
+
+	private final int[] hashColors = new int[HASH_SIZE];
+	private final byte[] hashIndices = new byte[HASH_SIZE];
+
+	private final byte[] red;
+	private final byte[] green;
+	private final byte[] blue;
+
+	/**
+	 * @param maxColors
+	 *            maximum number of palette colors (2..256)
+	 */
+	public ColorQuantizer(int maxColors) {
+		if (maxColors < 2 || maxColors > 256)
+			throw new IllegalArgumentException("Invalid number of colors: " + maxColors);
+		this.maxColors = maxColors;
+		boxStart = new int[maxColors];
+		boxEnd = new int[maxColors];
+		boxPixelCount = new long[maxColors];
+		red = new byte[maxColors];
+		green = new byte[maxColors];
+		blue = new byte[maxColors];
+	}
+
+	public int getMaxColors() {
+		return maxColors;
+	}
+
+	/**
+	 * Creates a palette for the specified image and converts the image using this palette.
+	 * 
+	 * @param image
+	 * @return image of type {@link BufferedImage#TYPE_BYTE_INDEXED}
+	 */
+	public BufferedImage quantize(BufferedImage image) {
+		int pixelCount = readPixels(image);
+		int colorCount = collectExactColors(pixelCount);
+		if (colorCount >= 0) {
+			IndexColorModel palette = new IndexColorModel(8, colorCount, red, green, blue);
+			return createIndexedImage(image.getWidth(), image.getHeight(), palette, true);
+		}
+		buildHistogram(pixelCount);
+		colorCount = medianCut(pixelCount);
+		mapBinsToNearestColor(colorCount);
+		clearHistogram();
+		// The inverse color map now belongs to a palette that is not known to the caller
+		inverseColorMapPalette = null;
+		IndexColorModel palette = new IndexColorModel(8, colorCount, red, green, blue);
+		return createIndexedImage(image.getWidth(), image.getHeight(), palette, false);
+	}
+
+	/**
+	 * Converts the image using an existing palette (e.g. created by a previous call of
+	 * {@link #quantize(BufferedImage)}).
+	 * 
+	 * @param image
+	 * @param palette
+	 * @return image of type {@link BufferedImage#TYPE_BYTE_INDEXED}
+	 */
+	public BufferedImage quantize(BufferedImage image, IndexColorModel palette) {
+		int pixelCount = readPixels(image);
+		int colorCount = Math.min(palette.getMapSize(), 256);
+		if (palette != inverseColorMapPalette) {
+			Arrays.fill(inverseColorMapValid, false);
+			inverseColorMapPalette = palette;
+		}
+		// Colors contained in the palette are mapped directly
+		Arrays.fill(hashColors, HASH_EMPTY);
+		for (int i = 0; i < colorCount; i++)
+			hashPut(palette.getRGB(i) & 0xFFFFFF, (byte) i);
+		BufferedImage result = createImage(image.getWidth(), image.getHeight(), palette);
+		byte[] indices = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < pixelCount; i++) {
+			int rgb = pixels[i];
+			int slot = hashFind(rgb);
+			if (hashColors[slot] == rgb) {
+				indices[i] = hashIndices[slot];
+				continue;
+			}
+			int bin = bin(rgb);
+			if (!inverseColorMapValid[bin]) {
+				inverseColorMap[bin] = findNearestColor(palette, colorCount, bin);
+				inverseColorMapValid[bin] = true;
+			}
+			indices[i] = inverseColorMap[bin];
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the pixels of the image into {@link #pixels}. Translucent pixels are composed on black background.
+	 * 
+	 * @return number of pixels
+	 */
+	private int readPixels(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int pixelCount = width * height;
+		if (pixels.length < pixelCount)
+			pixels = new int[pixelCount];
+		int type = image.getType();
+		if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB
+				&& type != BufferedImage.TYPE_3BYTE_BGR && type != BufferedImage.TYPE_4BYTE_ABGR) {
+			BufferedImage rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = rgbImage.createGraphics();
+			g.drawImage(image, 0, 0, null);
+			g.dispose();
+			image = rgbImage;
+		}
+		image.getRGB(0, 0, width, height, pixels, 0, width);
+		if (image.getColorModel().hasAlpha()) {
+			for (int i = 0; i < pixelCount; i++) {
+				int argb = pixels[i];
+				int a = argb >>> 24;
+				if (a == 255)
+					continue;
+				int r = ((argb >> 16) & 0xFF) * a / 255;
+				int g = ((argb >> 8) & 0xFF) * a / 255;
+				int b = (argb & 0xFF) * a / 255;
+				pixels[i] = (r << 16) | (g << 8) | b;
+			}
+		}
+		for (int i = 0; i < pixelCount; i++)
+			pixels[i] &= 0xFFFFFF;
+		return pixelCount;
+	}
+
+	/**
+	 * Collects the different colors of the image as long as there are not more than {@link #maxColors}.
+	 * 
+	 * @return number of colors or <code>-1</code> if the image contains more colors than {@link #maxColors}
+	 */
+	private int collectExactColors(int pixelCount) {
+		Arrays.fill(hashColors, HASH_EMPTY);
+		int colorCount = 0;
+		int lastRgb = HASH_EMPTY;
+		for (int i = 0; i < pixelCount; i++) {
+			int rgb = pixels[i];
+			if (rgb == lastRgb)
+				continue;
+			lastRgb = rgb;
+			int slot = hashFind(rgb);
+			if (hashColors[slot] == rgb)
+				continue;
+			if (colorCount == maxColors)
+				return -1;
+			hashColors[slot] = rgb;
+			hashIndices[slot] = (byte) colorCount;
+			red[colorCount] = (byte) (rgb >> 16);
+			green[colorCount] = (byte) (rgb >> 8);
+			blue[colorCount] = (byte) rgb;
+			colorCount++;
+		}
+		return colorCount;
+	}
+
+	private void buildHistogram(int pixelCount) {
+		usedBinCount = 0;
+		for (int i = 0; i < pixelCount; i++) {
+			int rgb = pixels[i];
+			int bin = bin(rgb);
+			if (histogram[bin]++ == 0)
+				usedBins[usedBinCount++] = bin;
+			histSumR[bin] += (rgb >> 16) & 0xFF;
+			histSumG[bin] += (rgb >> 8) & 0xFF;
+			histSumB[bin] += rgb & 0xFF;
+		}
+	}
+
+	/**
+	 * Resets the histogram entries used by the last image
+	 */
+	private void clearHistogram() {
+		for (int i = 0; i < usedBinCount; i++) {
+			int bin = usedBins[i];
+			histogram[bin] = 0;
+			histSumR[bin] = 0;
+			histSumG[bin] = 0;
+			histSumB[bin] = 0;
+		}
+		usedBinCount = 0;
+	}
+
+	/**
+	 * Splits the used histogram entries into boxes and calculates the palette colors.
+	 * 
+	 * @return number of boxes / palette colors
+	 */
+	private int medianCut(int pixelCount) {
+		int boxCount = 1;
+		boxStart[0] = 0;
+		boxEnd[0] = usedBinCount;
+		boxPixelCount[0] = pixelCount;
+		int[] range = new int[2]; // [channel shift, range]
+		while (boxCount < maxColors) {
+			// Select the box with the largest product of squared color range and number of pixels
+			int splitBox = -1;
+			int splitShift = 0;
+			long maxScore = 0;
+			for (int box = 0; box < boxCount; box++) {
+				if (boxEnd[box] - boxStart[box] < 2)
+					continue;
+				getLargestRange(box, range);
+				long score = (long) range[1] * range[1] * boxPixelCount[box];
+				if (score > maxScore) {
+					maxScore = score;
+					splitShift = range[0];
+					splitBox = box;
+				}
+			}
+			if (splitBox < 0)
+				break; // each box contains only one histogram entry
+			int start = boxStart[splitBox];
+			int end = boxEnd[splitBox];
+			sortBins(start, end, splitShift);
+
+			// Split at the median pixel
+			long total = boxPixelCount[splitBox];
+			long half = total / 2;
+			long sum = 0;
+			int split = start + 1;
+			for (int i = start; i < end - 1; i++) {
+				sum += histogram[usedBins[i]];
+				split = i + 1;
+				if (sum >= half)
+					break;
+			}
+			boxEnd[splitBox] = split;
+			boxPixelCount[splitBox] = sum;
+			boxStart[boxCount] = split;
+			boxEnd[boxCount] = end;
+			boxPixelCount[boxCount] = total - sum;
+			boxCount++;
+		}
+		for (int box = 0; box < boxCount; box++) {
+			long count = 0, r = 0, g = 0, b = 0;
+			for (int i = boxStart[box]; i < boxEnd[box]; i++) {
+				int bin = usedBins[i];
+				count += histogram[bin];
+				r += histSumR[bin];
+				g += histSumG[bin];
+				b += histSumB[bin];
+			}
+			red[box] = (byte) ((r + count / 2) / count);
+			green[box] = (byte) ((g + count / 2) / count);
+			blue[box] = (byte) ((b + count / 2) / count);
+		}
+		return boxCount;
+	}
+
+	/**
+	 * Determines the color component with the largest range of the histogram entries in the specified box.
+	 * 
+	 * @param box
+	 * @param result
+	 *            [0] bit shift of the color component in the histogram index, [1] range
+	 */
+	private void getLargestRange(int box, int[] result) {
+		int mask = (1 << HIST_BITS) - 1;
+		int minR = mask, minG = mask, minB = mask;
+		int maxR = 0, maxG = 0, maxB = 0;
+		for (int i = boxStart[box]; i < boxEnd[box]; i++) {
+			int bin = usedBins[i];
+			int r = bin >> (2 * HIST_BITS);
+			int g = (bin >> HIST_BITS) & mask;
+			int b = bin & mask;
+			minR = Math.min(minR, r);
+			maxR = Math.max(maxR, r);
+			minG = Math.min(minG, g);
+			maxG = Math.max(maxG, g);
+			minB = Math.min(minB, b);
+			maxB = Math.max(maxB, b);
+		}
+		// Green is preferred as the human eye is most sensitive to it
+		result[0] = HIST_BITS;
+		result[1] = maxG - minG;
+		if (maxR - minR > result[1]) {
+			result[0] = 2 * HIST_BITS;
+			result[1] = maxR - minR;
+		}
+		if (maxB - minB > result[1]) {
+			result[0] = 0;
+			result[1] = maxB - minB;
+		}
+	}
+
+	/**
+	 * Sorts the histogram entries <code>usedBins[start..end-1]</code> by the color component at the specified bit
+	 * shift (counting sort).
+	 */
+	private void sortBins(int start, int end, int shift) {
+		int mask = (1 << HIST_BITS) - 1;
+		int[] offsets = new int[(1 << HIST_BITS) + 1];
+		for (int i = start; i < end; i++)
+			offsets[((usedBins[i] >> shift) & mask) + 1]++;
+		for (int i = 1; i < offsets.length; i++)
+			offsets[i] += offsets[i - 1];
+		for (int i = start; i < end; i++) {
+			int bin = usedBins[i];
+			sortBuffer[start + offsets[(bin >> shift) & mask]++] = bin;
+		}
+		System.arraycopy(sortBuffer, start, usedBins, start, end - start);
+	}
+
+	/**
+	 * Maps each used histogram entry (represented by the average color of its pixels) to the nearest palette color.
+	 * Starting with the color of the box containing the entry allows to skip most palette colors early.
+	 */
+	private void mapBinsToNearestColor(int colorCount) {
+		int[] pr = new int[colorCount];
+		int[] pg = new int[colorCount];
+		int[] pb = new int[colorCount];
+		for (int i = 0; i < colorCount; i++) {
+			pr[i] = red[i] & 0xFF;
+			pg[i] = green[i] & 0xFF;
+			pb[i] = blue[i] & 0xFF;
+		}
+		for (int box = 0; box < colorCount; box++) {
+			for (int j = boxStart[box]; j < boxEnd[box]; j++) {
+				int bin = usedBins[j];
+				int count = histogram[bin];
+				int r = (int) ((histSumR[bin] + count / 2) / count);
+				int g = (int) ((histSumG[bin] + count / 2) / count);
+				int b = (int) ((histSumB[bin] + count / 2) / count);
+				int nearest = box;
+				int dr = pr[box] - r, dg = pg[box] - g, db = pb[box] - b;
+				int minDist = dr * dr + dg * dg + db * db;
+				for (int i = 0; i < colorCount && minDist > 0; i++) {
+					dr = pr[i] - r;
+					int dist = dr * dr;
+					if (dist >= minDist)
+						continue;
+					dg = pg[i] - g;
+					dist += dg * dg;
+					if (dist >= minDist)
+						continue;
+					db = pb[i] - b;
+					dist += db * db;
+					if (dist < minDist) {
+						minDist = dist;
+						nearest = i;
+					}
+				}
+				inverseColorMap[bin] = (byte) nearest;
+			}
+		}
+	}
+
+	private static byte findNearestColor(IndexColorModel palette, int colorCount, int bin) {
+		int mask = (1 << HIST_BITS) - 1;
+		int shift = 8 - HIST_BITS;
+		int center = 1 << (shift - 1);
+		int r = ((bin >> (2 * HIST_BITS)) << shift) + center;
+		int g = (((bin >> HIST_BITS) & mask) << shift) + center;
+		int b = ((bin & mask) << shift) + center;
+		int nearest = 0;
+		int minDist = Integer.MAX_VALUE;
+		for (int i = 0; i < colorCount; i++) {
+			int dr = palette.getRed(i) - r;
+			int dg = palette.getGreen(i) - g;
+			int db = palette.getBlue(i) - b;
+			int dist = dr * dr + dg * dg + db * db;
+			if (dist < minDist) {
+				minDist = dist;
+				nearest = i;
+			}
+		}
+		return (byte) nearest;
+	}
+
+	private BufferedImage createIndexedImage(int width, int height, IndexColorModel palette, boolean exactColors) {
+		int pixelCount = width * height;
+		BufferedImage result = createImage(width, height, palette);
+		byte[] indices = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+		if (exactColors) {
+			for (int i = 0; i < pixelCount; i++)
+				indices[i] = hashIndices[hashFind(pixels[i])];
+		} else {
+			for (int i = 0; i < pixelCount; i++)
+				indices[i] = inverseColorMap[bin(pixels[i])];
+		}
+		return result;
+	}
+
+	private static BufferedImage createImage(int width, int height, IndexColorModel palette) {
+		return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, palette);
+	}
+
+	private static int bin(int rgb) {
+		return ((rgb >> 9) & 0x7C00) | ((rgb >> 6) & 0x03E0) | ((rgb >> 3) & 0x001F);
+	}
+
+	private int hashFind(int rgb) {
+		int slot = (rgb * 0x9E3779B1) >>> 22; // 10 bit hash for HASH_SIZE 1024
+		while (true) {
+			int c = hashColors[slot];
+			if (c == rgb || c == HASH_EMPTY)
+				return slot;
+			slot = (slot + 1) & (HASH_SIZE - 1);
+		}
+	}
+
+	private void hashPut(int rgb, byte index) {
+		int slot = hashFind(rgb);
+		if (hashColors[slot] == HASH_EMPTY) {
+			hashColors[slot] = rgb;
+			hashIndices[slot] = index;
+		}
+	}
+}
@@ -69,7 +69,7 @@ public class PngConstants {
 	public static final byte FILTER_TYPE_NONE = 0;
 	public static final byte FILTER_TYPE_SUB = 1;
 	public static final byte FILTER_TYPE_UP = 2;
-	public static final byte FILTER_TYPE_AVERAGE = 0;
+	public static final byte FILTER_TYPE_AVERAGE = 3;
 	public static final byte FILTER_TYPE_PAETH = 4;
 
 }
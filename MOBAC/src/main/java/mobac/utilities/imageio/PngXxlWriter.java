@@ -51,15 +51,31 @@ import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
 import javax.activation.UnsupportedDataTypeException;
 
+import org.apache.log4j.Logger;
+
 /**
  * A PNG writer that is able to write extra large PNG images using incremental
  * writing.
@@ -72,6 +88,16 @@ import javax.activation.UnsupportedDataTypeException;
  * information into the {@link OutputStream}.
  * </p>
  * <p>
+ * For each image row the PNG filter type is selected adaptively (minimum sum of
+ * absolute differences). If more than one thread is used the filtered image
+ * data is split into blocks which are compressed in parallel (like pigz does):
+ * Each block is compressed as raw deflate data using the end of the previous
+ * block as dictionary and is terminated by a sync flush so that the compressed
+ * blocks can be concatenated to one zlib stream. Parallel compression requires
+ * Java 7 or higher - on older runtimes the image data is compressed by one
+ * thread.
+ * </p>
+ * <p>
  * Please note that this writer creates 24bit/truecolor PNGs. Transparency and
  * alpha masks are not supported.
  * </p>
@@ -81,17 +107,70 @@ import javax.activation.UnsupportedDataTypeException;
  */
 public class PngXxlWriter {
 
+	private static final Logger log = Logger.getLogger(PngXxlWriter.class);
+
 	private static final int BUFFER_SIZE = 128 * 1024;
 
+	/**
+	 * Minimum size of the filtered image data compressed as one block in parallel mode
+	 */
+	private static final int BLOCK_SIZE = 512 * 1024;
+
+	/**
+	 * Size of the deflate window - the maximum useful dictionary size
+	 */
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private static final int COMPRESSION_LEVEL = Deflater.BEST_COMPRESSION;
+
+	/**
+	 * <code>Deflater.deflate(byte[], int, int, int)</code> - available since Java 7
+	 */
+	private static final Method DEFLATE_FLUSH_METHOD;
+
+	/**
+	 * <code>Deflater.SYNC_FLUSH</code> - available since Java 7
+	 */
+	private static final Object SYNC_FLUSH;
+
+	static {
+		Method method = null;
+		Object syncFlush = null;
+		try {
+			method = Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+			syncFlush = Deflater.class.getField("SYNC_FLUSH").get(null);
+		} catch (Exception e) {
+			method = null;
+			log.debug("Parallel PNG compression is not supported by this Java runtime");
+		}
+		DEFLATE_FLUSH_METHOD = method;
+		SYNC_FLUSH = syncFlush;
+	}
+
 	private int width;
 	private int height;
 	private DataOutputStream dos;
 
 	ImageDataChunkWriter imageDataChunkWriter;
 
+	private final int bytesPerRow;
+
+	/**
+	 * Unfiltered data of the current and the previous image row
+	 */
+	private byte[] curRow;
+	private byte[] prevRow;
+
+	/**
+	 * Filtered image data of the current row including the filter type byte
+	 */
+	private final byte[] filteredRow;
+
+	private final RowCompressor compressor;
+
 	/**
 	 * Creates an PNG writer instance for an image with the specified width and
-	 * height.
+	 * height. The image data is compressed by the calling thread.
 	 * 
 	 * @param width
 	 *            width of the PNG image to be written
@@ -102,10 +181,34 @@ public class PngXxlWriter {
 	 * @throws IOException
 	 */
 	public PngXxlWriter(int width, int height, OutputStream os) throws IOException {
+		this(width, height, os, 1);
+	}
+
+	/**
+	 * Creates an PNG writer instance for an image with the specified width and
+	 * height.
+	 * 
+	 * @param width
+	 *            width of the PNG image to be written
+	 * @param height
+	 *            height of the PNG image to be written
+	 * @param os
+	 *            destination to write the PNG image data to
+	 * @param threadCount
+	 *            number of threads used for compressing the image data,
+	 *            <code>0</code> uses one thread per available processor
+	 * @throws IOException
+	 */
+	public PngXxlWriter(int width, int height, OutputStream os, int threadCount) throws IOException {
 		this.width = width;
 		this.height = height;
 		this.dos = new DataOutputStream(os);
 
+		bytesPerRow = width * 3;
+		curRow = new byte[bytesPerRow];
+		prevRow = new byte[bytesPerRow];
+		filteredRow = new byte[bytesPerRow + 1];
+
 		dos.write(SIGNATURE);
 
 		PngChunk cIHDR = new PngChunk(IHDR);
@@ -118,6 +221,14 @@ public class PngXxlWriter {
 		cIHDR.writeByte(INTERLACE_NONE);
 		cIHDR.writeTo(dos);
 		imageDataChunkWriter = new ImageDataChunkWriter(dos);
+
+		if (threadCount <= 0)
+			threadCount = Runtime.getRuntime().availableProcessors();
+		long imageDataSize = (long) (bytesPerRow + 1) * height;
+		if (threadCount > 1 && DEFLATE_FLUSH_METHOD != null && imageDataSize > BLOCK_SIZE)
+			compressor = new ParallelRowCompressor(imageDataChunkWriter.getStream(), threadCount);
+		else
+			compressor = new SequentialRowCompressor(imageDataChunkWriter.getStream());
 	}
 
 	/**
@@ -142,34 +253,36 @@ public class PngXxlWriter {
 		// We process the image line by line, from head to bottom
 		Rectangle rect = new Rectangle(0, 0, tileLineWidth, 1);
 
-		DataOutputStream imageDataStream = imageDataChunkWriter.getStream();
-
-		byte[] curLine = new byte[width * 3];
 		for (int line = 0; line < tileLineHeight; line++) {
 			rect.y = line;
 			DataBuffer db = tileLineImage.getData(rect).getDataBuffer();
 			if (db.getNumBanks() > 1)
 				throw new UnsupportedDataTypeException("Image data has more than one data bank");
 			if (db instanceof DataBufferByte)
-				curLine = ((DataBufferByte) db).getData();
+				System.arraycopy(((DataBufferByte) db).getData(), 0, curRow, 0, bytesPerRow);
 			else if (db instanceof DataBufferInt) {
 				int[] intLine = ((DataBufferInt) db).getData();
 				int c = 0;
-				for (int i = 0; i < intLine.length; i++) {
+				for (int i = 0; i < width; i++) {
 					int pixel = intLine[i];
-					curLine[c++] = (byte) (pixel >> 16 & 0xFF);
-					curLine[c++] = (byte) (pixel >> 8 & 0xFF);
-					curLine[c++] = (byte) (pixel & 0xFF);
+					curRow[c++] = (byte) (pixel >> 16 & 0xFF);
+					curRow[c++] = (byte) (pixel >> 8 & 0xFF);
+					curRow[c++] = (byte) (pixel & 0xFF);
 				}
 			} else
 				throw new UnsupportedDataTypeException(db.getClass().getName());
 
-			imageDataStream.write(FILTER_TYPE_NONE);
-			imageDataStream.write(curLine);
+			filterRow(curRow, prevRow, filteredRow);
+			compressor.write(filteredRow);
+
+			byte[] tmp = prevRow;
+			prevRow = curRow;
+			curRow = tmp;
 		}
 	}
 
 	public void finish() throws IOException {
+		compressor.finish();
 		imageDataChunkWriter.finish();
 		PngChunk cIEND = new PngChunk(IEND);
 		cIEND.writeTo(dos);
@@ -177,29 +290,277 @@ public class PngXxlWriter {
 		dos.flush();
 	}
 
+	/**
+	 * Filters one image row using the filter type that results in the minimum
+	 * sum of absolute differences (interpreted as signed bytes) - the heuristic
+	 * recommended by the PNG specification.
+	 * 
+	 * @param row
+	 *            unfiltered data of the row to filter
+	 * @param prev
+	 *            unfiltered data of the previous row (all zero for the first
+	 *            row)
+	 * @param filtered
+	 *            destination - first byte is the filter type followed by the
+	 *            filtered row data
+	 */
+	static void filterRow(byte[] row, byte[] prev, byte[] filtered) {
+		final int bpp = 3;
+		int len = row.length;
+		int sumNone = 0, sumSub = 0, sumUp = 0, sumAvg = 0, sumPaeth = 0;
+		for (int i = 0; i < len; i++) {
+			int x = row[i] & 0xFF;
+			int a = (i >= bpp) ? row[i - bpp] & 0xFF : 0;
+			int b = prev[i] & 0xFF;
+			int c = (i >= bpp) ? prev[i - bpp] & 0xFF : 0;
+			sumNone += Math.abs((byte) x);
+			sumSub += Math.abs((byte) (x - a));
+			sumUp += Math.abs((byte) (x - b));
+			sumAvg += Math.abs((byte) (x - ((a + b) >> 1)));
+			sumPaeth += Math.abs((byte) (x - paethPredictor(a, b, c)));
+		}
+		byte filterType = FILTER_TYPE_NONE;
+		int min = sumNone;
+		if (sumSub < min) {
+			min = sumSub;
+			filterType = FILTER_TYPE_SUB;
+		}
+		if (sumUp < min) {
+			min = sumUp;
+			filterType = FILTER_TYPE_UP;
+		}
+		if (sumAvg < min) {
+			min = sumAvg;
+			filterType = FILTER_TYPE_AVERAGE;
+		}
+		if (sumPaeth < min) {
+			min = sumPaeth;
+			filterType = FILTER_TYPE_PAETH;
+		}
+		filtered[0] = filterType;
+		for (int i = 0; i < len; i++) {
+			int x = row[i] & 0xFF;
+			int a = (i >= bpp) ? row[i - bpp] & 0xFF : 0;
+			int b = prev[i] & 0xFF;
+			int p;
+			switch (filterType) {
+			case FILTER_TYPE_SUB:
+				p = a;
+				break;
+			case FILTER_TYPE_UP:
+				p = b;
+				break;
+			case FILTER_TYPE_AVERAGE:
+				p = (a + b) >> 1;
+				break;
+			case FILTER_TYPE_PAETH:
+				p = paethPredictor(a, b, (i >= bpp) ? prev[i - bpp] & 0xFF : 0);
+				break;
+			default:
+				p = 0;
+			}
+			filtered[i + 1] = (byte) (x - p);
+		}
+	}
+
+	private static int paethPredictor(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		if (pb <= pc)
+			return b;
+		return c;
+	}
+
+	/**
+	 * Compresses the filtered image rows into the zlib stream stored in the IDAT
+	 * chunks.
+	 */
+	private static interface RowCompressor {
+
+		public void write(byte[] filteredRow) throws IOException;
+
+		public void finish() throws IOException;
+	}
+
+	private static class SequentialRowCompressor implements RowCompressor {
+
+		private final Deflater deflater;
+		private final DeflaterOutputStream dfos;
+
+		public SequentialRowCompressor(OutputStream out) {
+			deflater = new Deflater(COMPRESSION_LEVEL);
+			dfos = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+		}
+
+		public void write(byte[] filteredRow) throws IOException {
+			dfos.write(filteredRow);
+		}
+
+		public void finish() throws IOException {
+			dfos.finish();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Collects the filtered rows into blocks of at least {@link #BLOCK_SIZE}
+	 * bytes which are compressed in parallel. The compressed blocks are written
+	 * in their original order.
+	 */
+	private static class ParallelRowCompressor implements RowCompressor {
+
+		private static final AtomicInteger THREAD_NUM = new AtomicInteger(1);
+
+		private final OutputStream out;
+		private final ExecutorService executor;
+		private final int maxPendingBlocks;
+		private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+		private final Adler32 adler32 = new Adler32();
+
+		private ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + BUFFER_SIZE);
+
+		/**
+		 * The last {@link #DICTIONARY_SIZE} bytes of the previous block
+		 */
+		private byte[] dictionary = null;
+
+		public ParallelRowCompressor(OutputStream out, int threadCount) throws IOException {
+			this.out = out;
+			maxPendingBlocks = threadCount * 2;
+			ThreadPoolExecutor tpe = new ThreadPoolExecutor(threadCount, threadCount, 5, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "PngXxlWriter-" + THREAD_NUM.getAndIncrement());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			// Idle threads terminate - even if the writer is not finished
+			tpe.allowCoreThreadTimeOut(true);
+			executor = tpe;
+			// zlib header: deflate with 32K window, maximum compression
+			out.write(0x78);
+			out.write(0xDA);
+		}
+
+		public void write(byte[] filteredRow) throws IOException {
+			adler32.update(filteredRow);
+			block.write(filteredRow);
+			if (block.size() >= BLOCK_SIZE)
+				submitBlock(false);
+		}
+
+		public void finish() throws IOException {
+			try {
+				submitBlock(true);
+				while (!pendingBlocks.isEmpty())
+					writeNextBlock();
+				int adler = (int) adler32.getValue();
+				out.write(adler >>> 24);
+				out.write(adler >>> 16);
+				out.write(adler >>> 8);
+				out.write(adler);
+			} finally {
+				executor.shutdown();
+			}
+		}
+
+		private void submitBlock(boolean lastBlock) throws IOException {
+			byte[] data = block.toByteArray();
+			block.reset();
+			pendingBlocks.add(executor.submit(new BlockCompressor(data, dictionary, lastBlock)));
+			int dictSize = Math.min(DICTIONARY_SIZE, data.length);
+			dictionary = new byte[dictSize];
+			System.arraycopy(data, data.length - dictSize, dictionary, 0, dictSize);
+			while (pendingBlocks.size() >= maxPendingBlocks)
+				writeNextBlock();
+		}
+
+		private void writeNextBlock() throws IOException {
+			try {
+				out.write(pendingBlocks.removeFirst().get());
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compressing the PNG image data");
+			} catch (ExecutionException e) {
+				executor.shutdownNow();
+				throw new IOException("Compression of the PNG image data failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Compresses one block of the image data as raw deflate data. All blocks
+	 * except the last one are terminated by a sync flush (byte aligned, not
+	 * final).
+	 */
+	private static class BlockCompressor implements Callable<byte[]> {
+
+		private final byte[] data;
+		private final byte[] dictionary;
+		private final boolean lastBlock;
+
+		public BlockCompressor(byte[] data, byte[] dictionary, boolean lastBlock) {
+			this.data = data;
+			this.dictionary = dictionary;
+			this.lastBlock = lastBlock;
+		}
+
+		public byte[] call() throws Exception {
+			Deflater deflater = new Deflater(COMPRESSION_LEVEL, true);
+			try {
+				if (dictionary != null)
+					deflater.setDictionary(dictionary);
+				deflater.setInput(data);
+				ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 2);
+				byte[] buf = new byte[BUFFER_SIZE];
+				if (lastBlock) {
+					deflater.finish();
+					while (!deflater.finished()) {
+						int len = deflater.deflate(buf);
+						result.write(buf, 0, len);
+					}
+				} else {
+					int len;
+					do {
+						len = (Integer) DEFLATE_FLUSH_METHOD.invoke(deflater, buf, 0, buf.length, SYNC_FLUSH);
+						result.write(buf, 0, len);
+					} while (len == buf.length);
+				}
+				return result.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
 	static class ImageDataChunkWriter extends OutputStream {
 
-		DeflaterOutputStream dfos;
-		DataOutputStream stream;
+		BufferedOutputStream stream;
 		DataOutputStream out;
 		CRC32 crc = new CRC32();
 
 		public ImageDataChunkWriter(DataOutputStream out) throws IOException {
 			this.out = out;
-			dfos = new DeflaterOutputStream(new BufferedOutputStream(this, BUFFER_SIZE),
-					new Deflater(Deflater.BEST_COMPRESSION));
-			stream = new DataOutputStream(dfos);
+			stream = new BufferedOutputStream(this, BUFFER_SIZE);
 		}
 
-		public DataOutputStream getStream() {
+		/**
+		 * @return stream for writing the compressed image data
+		 */
+		public OutputStream getStream() {
 			return stream;
 		}
 
 		public void finish() throws IOException {
 			stream.flush();
-			stream.close();
-			dfos.finish();
-			dfos = null;
+			stream = null;
 		}
 
 		@Override
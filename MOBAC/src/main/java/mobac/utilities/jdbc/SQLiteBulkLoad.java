@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.utilities.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import mobac.utilities.Utilities;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Connection settings and batch sizes for writing large amounts of tile data into an SQLite database as fast as
+ * possible.
+ * <p>
+ * The disk is not synchronized after each transaction and a large page cache is used. For a new database additionally
+ * the page size is increased from 1024 to 4096 bytes (fewer overflow pages per tile blob) and the rollback journal
+ * is kept in memory. An interrupted bulk load therefore may leave a new database in a corrupt state - the atlas has
+ * to be created again anyway in that case. Existing databases keep their rollback journal on disk.
+ * </p>
+ * <p>
+ * Indexes should be created after the data has been loaded: Building an index at once is much faster than
+ * maintaining it while inserting.
+ * </p>
+ */
+public class SQLiteBulkLoad {
+
+	private static final Logger log = Logger.getLogger(SQLiteBulkLoad.class);
+
+	/**
+	 * Page size of new databases in bytes
+	 */
+	public static final int PAGE_SIZE = 4096;
+
+	/**
+	 * Size of the page cache in bytes
+	 */
+	public static final long CACHE_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * A batch is executed and committed when the tile data added exceeds this number of bytes
+	 */
+	public static final long MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * Upper limit for the number of tiles in one batch (many small or empty tiles)
+	 */
+	public static final int MAX_BATCH_TILES = 20000;
+
+	/**
+	 * Applies the bulk load settings. Has to be called directly after opening the connection - before any table is
+	 * created and outside of a transaction.
+	 * 
+	 * @param conn
+	 * @param newDatabase
+	 *            <code>true</code> if the database file did not exist before opening the connection
+	 * @throws SQLException
+	 */
+	public static void configure(Connection conn, boolean newDatabase) throws SQLException {
+		Statement stat = conn.createStatement();
+		try {
+			int pageSize = PAGE_SIZE;
+			if (newDatabase) {
+				// only effective as long as the database is empty
+				stat.execute("PRAGMA page_size = " + PAGE_SIZE);
+				stat.execute("PRAGMA journal_mode = MEMORY");
+			} else {
+				pageSize = queryInt(stat, "PRAGMA page_size", PAGE_SIZE);
+			}
+			// sqlite versions prior to 3.7.10 do not support a cache size in KiB
+			stat.execute("PRAGMA cache_size = " + (CACHE_SIZE / pageSize));
+			stat.execute("PRAGMA synchronous = OFF");
+			stat.execute("PRAGMA temp_store = MEMORY");
+			log.debug("SQLite bulk load settings applied (page size " + pageSize + ", new database: " + newDatabase
+					+ ")");
+		} finally {
+			Utilities.closeStatement(stat);
+		}
+	}
+
+	private static int queryInt(Statement stat, String sql, int defaultValue) throws SQLException {
+		ResultSet rs = stat.executeQuery(sql);
+		try {
+			return rs.next() ? rs.getInt(1) : defaultValue;
+		} finally {
+			rs.close();
+		}
+	}
+}
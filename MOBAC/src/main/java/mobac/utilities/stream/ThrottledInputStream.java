@@ -22,40 +22,71 @@ package mobac.utilities.stream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 
 /**
- * The global throtteled InputStream. All downloads should pipe their data through this stream.
+ * An {@link InputStream} limiting the read throughput. For each byte read one token is taken from each of the
+ * specified {@link TokenBucket}s. The stream stalls the reading thread until the consumed tokens have been refilled.
  */
 public class ThrottledInputStream extends FilterInputStream {
 
+	// --- Constant(s) ---
+
+	/**
+	 * Maximum number of bytes read at once - smooths the throughput of large reads
+	 */
+	protected static final int MAX_CHUNK_SIZE = 8192;
+
 	// --- Data Field(s) ---
 
-	private static ThrottleSupport ts = new ThrottleSupport();
-	private int unused = 0;
+	private final TokenBucket[] buckets;
 
 	// --- Constructor(s) ---
 
 	/**
 	 * @param in
-	 *            {@link InputStream} with implemented/working {@link InputStream#available()} method.
+	 * @param buckets
+	 *            the buckets limiting the throughput, e.g. a global and a per server limit
 	 */
-	public ThrottledInputStream(InputStream in) {
+	public ThrottledInputStream(InputStream in, TokenBucket... buckets) {
 		super(in);
+		this.buckets = buckets;
 	}
 
 	// --- Method(s) ---
 
-	public static void setBandwidth(long newValue) {
-		ts.setBandwidth(newValue);
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0)
+			consume(1);
+		return b;
 	}
 
+	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
-		int allowedlen = ts.allocate(len);
-		if (allowedlen < len) {
-			allowedlen = Math.min(allowedlen + unused, len);
-		}
-		int read = in.read(b, off, allowedlen);
-		unused = len - read;
+		int read = in.read(b, off, Math.min(len, MAX_CHUNK_SIZE));
+		if (read > 0)
+			consume(read);
 		return read;
 	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(Math.min(n, MAX_CHUNK_SIZE));
+		if (skipped > 0)
+			consume(skipped);
+		return skipped;
+	}
+
+	protected void consume(long bytes) throws IOException {
+		long wait = 0;
+		for (TokenBucket bucket : buckets)
+			wait = Math.max(wait, bucket.reserve(bytes));
+		try {
+			TokenBucket.sleep(wait);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Throttled read interrupted");
+		}
+	}
 }
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.utilities.stream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free token bucket. Instead of the number of available tokens the bucket stores the point in time at which all
+ * tokens taken so far have been refilled (virtual scheduling). Tokens are taken by advancing this point in time via
+ * compare-and-set, therefore concurrent threads never block each other.
+ * <p>
+ * Taking more tokens than available is allowed - the caller has to wait the returned time before using them. This way
+ * a thread can take the exact number of tokens it has consumed, e.g. the number of bytes actually read.
+ * </p>
+ */
+public class TokenBucket {
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Total time each thread has waited for tokens in nanoseconds
+	 */
+	private static final ThreadLocal<long[]> WAIT_TIME = new ThreadLocal<long[]>() {
+
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	/**
+	 * Time in nanoseconds for refilling one token, 0 = unlimited
+	 */
+	private volatile long tokenInterval = 0;
+
+	/**
+	 * Capacity of the bucket expressed as the time for refilling it completely
+	 */
+	private volatile long capacityTime = 0;
+
+	/**
+	 * Point in time ({@link System#nanoTime()}) at which all tokens taken so far have been refilled
+	 */
+	private final AtomicLong refillTime = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Creates an unlimited bucket
+	 */
+	public TokenBucket() {
+	}
+
+	/**
+	 * @see #setRate(double, double)
+	 */
+	public TokenBucket(double rate, double capacity) {
+		setRate(rate, capacity);
+	}
+
+	/**
+	 * @param rate
+	 *            tokens per second, a value less or equal to 0 disables the limit
+	 * @param capacity
+	 *            maximum number of tokens that can be taken at once without waiting
+	 */
+	public void setRate(double rate, double capacity) {
+		if (rate <= 0) {
+			tokenInterval = 0;
+			return;
+		}
+		long interval = Math.max(1, (long) (NANOS_PER_SECOND / rate));
+		capacityTime = (long) (Math.max(1.0, capacity) * interval);
+		tokenInterval = interval;
+	}
+
+	/**
+	 * @return tokens per second or 0 if the bucket is unlimited
+	 */
+	public double getRate() {
+		long interval = tokenInterval;
+		return (interval == 0) ? 0 : ((double) NANOS_PER_SECOND) / interval;
+	}
+
+	public boolean isLimited() {
+		return tokenInterval > 0;
+	}
+
+	/**
+	 * Takes the specified number of tokens.
+	 * 
+	 * @param tokens
+	 * @return time in nanoseconds the caller has to wait before it may use the tokens
+	 */
+	public long reserve(long tokens) {
+		long interval = tokenInterval;
+		if (interval == 0 || tokens <= 0)
+			return 0;
+		long cost = tokens * interval;
+		long capacity = capacityTime;
+		while (true) {
+			long now = System.nanoTime();
+			long refill = refillTime.get();
+			// An idle bucket does not hold more than its capacity
+			long start = (refill - now > 0) ? refill : now;
+			long newRefill = start + cost;
+			if (refillTime.compareAndSet(refill, newRefill))
+				return Math.max(0, newRefill - now - capacity);
+		}
+	}
+
+	/**
+	 * Takes the specified number of tokens and waits until they may be used.
+	 * 
+	 * @param tokens
+	 * @throws InterruptedException
+	 */
+	public void acquire(long tokens) throws InterruptedException {
+		sleep(reserve(tokens));
+	}
+
+	/**
+	 * Empties the bucket so that no tokens are available for the specified time. Does not shorten a longer delay
+	 * caused by previously taken tokens. Has no effect on an unlimited bucket.
+	 * 
+	 * @param delay
+	 *            delay in nanoseconds
+	 */
+	public void delay(long delay) {
+		while (true) {
+			long refill = refillTime.get();
+			long newRefill = System.nanoTime() + delay + capacityTime;
+			if (newRefill - refill <= 0 || refillTime.compareAndSet(refill, newRefill))
+				return;
+		}
+	}
+
+	/**
+	 * Sleeps the specified time and adds it to the wait time of the current thread.
+	 * 
+	 * @param nanos
+	 * @throws InterruptedException
+	 * @see #getThreadWaitTime()
+	 */
+	public static void sleep(long nanos) throws InterruptedException {
+		if (nanos <= 0)
+			return;
+		long start = System.nanoTime();
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} finally {
+			WAIT_TIME.get()[0] += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * @return total time in nanoseconds the current thread has waited for tokens
+	 */
+	public static long getThreadWaitTime() {
+		return WAIT_TIME.get()[0];
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TokenBucket [rate=%.2f/s]", getRate());
+	}
+}
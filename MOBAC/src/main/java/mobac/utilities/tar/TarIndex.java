@@ -39,18 +39,52 @@ public class TarIndex {
 	}
 
 	public byte[] getEntryContent(String entryName) throws IOException {
-		long off = tarIndex.getEntryOffset(entryName);
+		return readEntry(tarIndex.getEntryOffset(entryName));
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return the content of the tile written via {@link TarIndexedArchive#writeFileFromData(int, int, byte[])} or
+	 *         <code>null</code> if the tile is not present
+	 * @throws IOException
+	 */
+	public byte[] getEntryContent(int x, int y) throws IOException {
+		return readEntry(tarIndex.getEntryOffset(x, y));
+	}
+
+	/**
+	 * @param key
+	 *            tile key, see {@link TarIndexTable#key(int, int)}
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] getEntryContent(long key) throws IOException {
+		return readEntry(tarIndex.getEntryOffset(key));
+	}
+
+	/**
+	 * Reads the entry at the specified offset. Entries can be read by multiple threads concurrently.
+	 * 
+	 * @param off
+	 * @return
+	 * @throws IOException
+	 */
+	protected byte[] readEntry(long off) throws IOException {
 		if (off < 0)
 			return null;
-		tarRAFile.seek(off);
 		byte[] buf = new byte[512];
-		tarRAFile.readFully(buf);
 		TarHeader th = new TarHeader();
-		th.read(buf);
-		int fileSize = th.getFileSizeInt();
-		log.trace("reading file " + entryName + " off=" + off + " size=" + fileSize);
-		byte[] data = new byte[fileSize];
-		tarRAFile.readFully(data);
+		byte[] data;
+		synchronized (tarRAFile) {
+			tarRAFile.seek(off);
+			tarRAFile.readFully(buf);
+			th.read(buf);
+			data = new byte[th.getFileSizeInt()];
+			tarRAFile.readFully(data);
+		}
+		if (log.isTraceEnabled())
+			log.trace("reading file " + th.getFileName() + " off=" + off + " size=" + data.length);
 		return data;
 	}
 
@@ -58,11 +92,15 @@ public class TarIndex {
 		return tarIndex.size();
 	}
 
+	/**
+	 * Closes the TAR file and releases the index.
+	 */
 	public void close() {
 		try {
 			tarRAFile.close();
 		} catch (IOException e) {
 		}
+		tarIndex.close();
 	}
 
 	public void closeAndDelete() {
@@ -18,24 +18,78 @@ package mobac.utilities.tar;
 
 import java.util.Hashtable;
 
+import mobac.utilities.collections.LongIntHashMap;
+
+/**
+ * Maps the archived files to their TAR block index (each block has 512 bytes).
+ * <p>
+ * Tiles are indexed by their (x,y) coordinate in a primitive hash table ({@link LongIntHashMap}) that can optionally
+ * be held off-heap. File names following the tile file name pattern <code>x%dy%d</code> are mapped to the same
+ * primitive index. Only other names are stored in a {@link Hashtable}.
+ * </p>
+ */
 public class TarIndexTable {
 
 	/**
-	 * Maps tile name to TAR block index (each block has 512 bytes).
+	 * Maps the tile key (see {@link #key(int, int)}) to TAR block index.
 	 */
-	private Hashtable<String, Integer> hashTable;
+	private final LongIntHashMap tileTable;
+
+	/**
+	 * Maps file names that are not tile names to TAR block index - created on first usage
+	 */
+	private Hashtable<String, Integer> hashTable = null;
 
 	public TarIndexTable(int initialCapacity) {
-		hashTable = new Hashtable<String, Integer>(initialCapacity);
+		this(initialCapacity, false);
+	}
+
+	/**
+	 * @param initialCapacity
+	 * @param offHeap
+	 *            <code>true</code>: the tile index is held in direct memory outside of the Java heap
+	 */
+	public TarIndexTable(int initialCapacity, boolean offHeap) {
+		tileTable = new LongIntHashMap(initialCapacity, -1, offHeap);
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return the key of the tile (x,y) used by the <code>long</code> overloads
+	 */
+	public static long key(int x, int y) {
+		return (((long) x) << 32) | (y & 0xFFFFFFFFL);
 	}
 
 	public void addTarEntry(String filename, long streamPos) {
+		long key = parseTileKey(filename);
+		if (key >= 0) {
+			addTarEntry(key, streamPos);
+			return;
+		}
 		assert ((streamPos & 0x1F) == 0);
 		int tarBlockIndex = (int) (streamPos >> 9);
+		if (hashTable == null)
+			hashTable = new Hashtable<String, Integer>();
 		hashTable.put(filename, new Integer(tarBlockIndex));
 	}
 
+	public void addTarEntry(int x, int y, long streamPos) {
+		addTarEntry(key(x, y), streamPos);
+	}
+
+	public void addTarEntry(long key, long streamPos) {
+		assert ((streamPos & 0x1F) == 0);
+		tileTable.put(key, (int) (streamPos >> 9));
+	}
+
 	public long getEntryOffset(String filename) {
+		long key = parseTileKey(filename);
+		if (key >= 0)
+			return getEntryOffset(key);
+		if (hashTable == null)
+			return -1;
 		Integer tarBlockIndex = hashTable.get(filename);
 		if (tarBlockIndex == null)
 			return -1;
@@ -43,7 +97,67 @@ public class TarIndexTable {
 		return offset;
 	}
 
+	public long getEntryOffset(int x, int y) {
+		return getEntryOffset(key(x, y));
+	}
+
+	public long getEntryOffset(long key) {
+		int tarBlockIndex = tileTable.get(key);
+		if (tarBlockIndex < 0)
+			return -1;
+		return ((long) tarBlockIndex) << 9;
+	}
+
 	public int size() {
-		return hashTable.size();
+		int size = tileTable.size();
+		if (hashTable != null)
+			size += hashTable.size();
+		return size;
+	}
+
+	/**
+	 * Removes all entries and releases the memory of an off-heap index immediately.
+	 */
+	public void close() {
+		tileTable.close();
+		hashTable = null;
+	}
+
+	/**
+	 * Parses tile names of the pattern <code>x%dy%d</code> without creating any objects.
+	 * 
+	 * @param filename
+	 * @return the tile key or <code>-1</code> if <code>filename</code> does not match the pattern
+	 */
+	protected static long parseTileKey(String filename) {
+		int len = filename.length();
+		if (len < 4 || filename.charAt(0) != 'x')
+			return -1;
+		long x = 0;
+		int i = 1;
+		for (; i < len; i++) {
+			char c = filename.charAt(i);
+			if (c == 'y')
+				break;
+			if (c < '0' || c > '9' || x > Integer.MAX_VALUE / 10)
+				return -1;
+			x = x * 10 + (c - '0');
+		}
+		// at least one digit for x and y, no leading zeros
+		if (i == 1 || i >= len - 1 || (filename.charAt(1) == '0' && i > 2))
+			return -1;
+		int yStart = ++i;
+		if (filename.charAt(yStart) == '0' && len > yStart + 1)
+			return -1;
+		long y = 0;
+		for (; i < len; i++) {
+			char c = filename.charAt(i);
+			if (c < '0' || c > '9' || y > Integer.MAX_VALUE / 10)
+				return -1;
+			y = y * 10 + (c - '0');
+		}
+		if (x > Integer.MAX_VALUE || y > Integer.MAX_VALUE)
+			return -1;
+		return key((int) x, (int) y);
 	}
 }
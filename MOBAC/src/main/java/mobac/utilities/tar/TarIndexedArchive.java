@@ -19,19 +19,60 @@ package mobac.utilities.tar;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Hashtable;
+
+import mobac.program.interfaces.TileSink;
 
 /**
- * Extended version of {@link TarArchive} that automatically creates
- * {@link Hashtable} with the starting offsets of every archived file.
+ * Extended version of {@link TarArchive} that automatically creates an index ({@link TarIndexTable}) with the starting
+ * offsets of every archived file.
+ * <p>
+ * Tiles should be written via {@link #writeFileFromData(int, int, byte[])} - they are indexed by their (x,y)
+ * coordinate without creating any objects for the index.
+ * </p>
  */
-public class TarIndexedArchive extends TarArchive {
+public class TarIndexedArchive extends TarArchive implements TileSink {
 
 	private TarIndexTable tarIndex;
 
 	public TarIndexedArchive(File tarFile, int approxFileCount) throws IOException {
+		this(tarFile, approxFileCount, false);
+	}
+
+	/**
+	 * @param tarFile
+	 * @param approxFileCount
+	 * @param offHeapIndex
+	 *            <code>true</code>: the tile index is held outside of the Java heap
+	 * @throws IOException
+	 */
+	public TarIndexedArchive(File tarFile, int approxFileCount, boolean offHeapIndex) throws IOException {
 		super(tarFile, null);
-		tarIndex = new TarIndexTable(approxFileCount);
+		tarIndex = new TarIndexTable(approxFileCount, offHeapIndex);
+	}
+
+	/**
+	 * Writes the tile (x,y) using the tile file name pattern <code>x%dy%d</code>. The tile can be retrieved via
+	 * {@link TarIndex#getEntryContent(int, int)}. Thread safe.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param data
+	 * @throws IOException
+	 */
+	public synchronized void writeFileFromData(int x, int y, byte[] data) throws IOException {
+		long streamPos = getTarFilePos();
+		TarHeader th = new TarHeader("x" + x + "y" + y, data.length, false);
+		super.writeTarHeader(th);
+		tarIndex.addTarEntry(x, y, streamPos);
+		TarRecord tr = new TarRecord(data, 0, data.length);
+		tarFileStream.write(tr.getRecordContent());
+	}
+
+	/**
+	 * Same as {@link #writeFileFromData(int, int, byte[])}
+	 */
+	public void putTile(int x, int y, byte[] data) throws IOException {
+		writeFileFromData(x, y, data);
 	}
 
 	@Override
@@ -41,7 +82,12 @@ public class TarIndexedArchive extends TarArchive {
 		super.writeTarHeader(th);
 	}
 
+	/**
+	 * Deletes the TAR file and releases the index. Used if the archive is discarded without creating a
+	 * {@link TarIndex}.
+	 */
 	public void delete() {
+		tarIndex.close();
 		if (tarFile != null) {
 			boolean b = tarFile.delete();
 			if (!b && tarFile.isFile())
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.tools;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mobac.mapsources.custom.BeanShellHttpMapSource;
+import mobac.program.Logging;
+import bsh.Interpreter;
+
+/**
+ * Measures the tile URL generation throughput of {@link BeanShellHttpMapSource} for different thread counts. As
+ * reference the former implementation (one interpreter per map source, expression evaluated for each tile while
+ * holding the map source lock) is measured as well.
+ */
+public class BeanShellUrlBenchmark {
+
+	private static final String SCRIPT = "name = \"Benchmark\";\n" //
+			+ "tileType = \"png\";\n" //
+			+ "String getTileUrl(int zoom, int x, int y) {\n" //
+			+ "  String server = \"abc\".substring(x % 3, x % 3 + 1);\n" //
+			+ "  return \"http://\" + server + \".tile.example.org/\" + zoom + \"/\" + x + \"/\" + y + \".png\";\n" //
+			+ "}\n";
+
+	private static final long DURATION = 3000;
+
+	private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+	private interface UrlGenerator {
+		public String getTileUrl(int zoom, int x, int y) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Logging.configureConsoleLogging();
+		final BeanShellHttpMapSource mapSource = new BeanShellHttpMapSource(SCRIPT);
+		final Interpreter legacyInterpreter = new Interpreter();
+		legacyInterpreter.eval(SCRIPT);
+
+		UrlGenerator legacy = new UrlGenerator() {
+
+			public String getTileUrl(int zoom, int x, int y) throws Exception {
+				synchronized (legacyInterpreter) {
+					return (String) legacyInterpreter.eval(String.format("getTileUrl(%d,%d,%d);", zoom, x, y));
+				}
+			}
+		};
+		UrlGenerator pooled = new UrlGenerator() {
+
+			public String getTileUrl(int zoom, int x, int y) throws Exception {
+				return mapSource.getTileUrl(zoom, x, y);
+			}
+		};
+		// warm up
+		run(legacy, 2, 1000);
+		run(pooled, 2, 1000);
+
+		System.out.println(String.format("%8s %16s %16s", "threads", "legacy URLs/s", "pooled URLs/s"));
+		for (int threadCount : THREAD_COUNTS) {
+			long legacyRate = run(legacy, threadCount, DURATION);
+			long pooledRate = run(pooled, threadCount, DURATION);
+			System.out.println(String.format("%8d %16d %16d", threadCount, legacyRate, pooledRate));
+		}
+	}
+
+	/**
+	 * @return generated URLs per second
+	 */
+	private static long run(final UrlGenerator generator, int threadCount, long duration) throws Exception {
+		final AtomicLong counter = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final long end[] = new long[1];
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int offset = t * 1000000;
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						int n = 0;
+						while (System.currentTimeMillis() < end[0]) {
+							String url = generator.getTileUrl(15, offset + n, n);
+							if (url == null)
+								throw new RuntimeException("No URL generated");
+							n++;
+						}
+						counter.addAndGet(n);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		long startTime = System.currentTimeMillis();
+		end[0] = startTime + duration;
+		start.countDown();
+		for (Thread t : threads)
+			t.join();
+		return counter.get() * 1000 / duration;
+	}
+
+}
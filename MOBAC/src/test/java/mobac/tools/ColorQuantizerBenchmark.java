@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.tools;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.Random;
+
+import mobac.optional.JavaAdvancedImaging;
+import mobac.utilities.imageio.ColorQuantizer;
+
+/**
+ * Compares the color reduction of {@link ColorQuantizer} with the former implementation based on Java Advanced
+ * Imaging ({@link JavaAdvancedImaging#colorReduceMedianCut(BufferedImage, int)}) for 256 and 16 colors: Processed
+ * tiles per second and root mean square error of the resulting images. Two kinds of synthetic tiles are used: map
+ * like tiles (areas, anti-aliased roads and labels) and photo like tiles (gradients with noise).
+ * The tiles are of type {@link BufferedImage#TYPE_3BYTE_BGR} like most decoded tile images.
+ */
+public class ColorQuantizerBenchmark {
+
+	private static final int TILE_COUNT = 200;
+
+	private static final long DURATION = 3000;
+
+	private interface Quantizer {
+		public BufferedImage quantize(BufferedImage image);
+	}
+
+	public static void main(String[] args) {
+		BufferedImage[] mapTiles = new BufferedImage[TILE_COUNT];
+		BufferedImage[] photoTiles = new BufferedImage[TILE_COUNT];
+		Random random = new Random(0);
+		for (int i = 0; i < TILE_COUNT; i++) {
+			mapTiles[i] = createMapTile(random);
+			photoTiles[i] = createPhotoTile(random);
+		}
+		System.out.println(String.format("%-7s %-7s %-16s %12s %10s", "colors", "tiles", "method", "tiles/s", "RMSE"));
+		for (final int colors : new int[] { 256, 16 }) {
+			final ColorQuantizer colorQuantizer = new ColorQuantizer(colors);
+			final ColorQuantizer sharedQuantizer = new ColorQuantizer(colors);
+			Quantizer jai = new Quantizer() {
+
+				public BufferedImage quantize(BufferedImage image) {
+					return JavaAdvancedImaging.colorReduceMedianCut(image, colors);
+				}
+			};
+			Quantizer quantizer = new Quantizer() {
+
+				public BufferedImage quantize(BufferedImage image) {
+					return colorQuantizer.quantize(image);
+				}
+			};
+			Quantizer shared = new Quantizer() {
+
+				IndexColorModel palette = null;
+
+				public BufferedImage quantize(BufferedImage image) {
+					if (palette != null)
+						return sharedQuantizer.quantize(image, palette);
+					BufferedImage result = sharedQuantizer.quantize(image);
+					palette = (IndexColorModel) result.getColorModel();
+					return result;
+				}
+			};
+			for (int kind = 0; kind < 2; kind++) {
+				BufferedImage[] tiles = (kind == 0) ? mapTiles : photoTiles;
+				String tileKind = (kind == 0) ? "map" : "photo";
+				run(jai, tiles, 500); // warm up
+				run(quantizer, tiles, 500);
+				print(colors, tileKind, "JAI median cut", run(jai, tiles, DURATION), rmse(jai, tiles));
+				print(colors, tileKind, "ColorQuantizer", run(quantizer, tiles, DURATION), rmse(quantizer, tiles));
+				print(colors, tileKind, "shared palette", run(shared, tiles, DURATION), rmse(shared, tiles));
+			}
+		}
+	}
+
+	private static void print(int colors, String tileKind, String method, double rate, double rmse) {
+		System.out.println(String.format("%-7d %-7s %-16s %12.1f %10.2f", colors, tileKind, method, rate, rmse));
+	}
+
+	/**
+	 * @return processed tiles per second
+	 */
+	private static double run(Quantizer quantizer, BufferedImage[] tiles, long duration) {
+		long start = System.currentTimeMillis();
+		long end = start + duration;
+		int count = 0;
+		while (System.currentTimeMillis() < end) {
+			quantizer.quantize(tiles[count % tiles.length]);
+			count++;
+		}
+		return count * 1000d / (System.currentTimeMillis() - start);
+	}
+
+	private static double rmse(Quantizer quantizer, BufferedImage[] tiles) {
+		double sum = 0;
+		long n = 0;
+		for (BufferedImage tile : tiles) {
+			BufferedImage result = quantizer.quantize(tile);
+			for (int y = 0; y < tile.getHeight(); y++) {
+				for (int x = 0; x < tile.getWidth(); x++) {
+					int c1 = tile.getRGB(x, y);
+					int c2 = result.getRGB(x, y);
+					for (int shift = 0; shift < 24; shift += 8) {
+						int d = ((c1 >> shift) & 0xFF) - ((c2 >> shift) & 0xFF);
+						sum += d * d;
+					}
+					n += 3;
+				}
+			}
+		}
+		return Math.sqrt(sum / n);
+	}
+
+	private static BufferedImage createMapTile(Random random) {
+		BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setColor(new Color(242, 239, 233));
+		g.fillRect(0, 0, 256, 256);
+		Color[] areaColors = { new Color(200, 250, 204), new Color(181, 208, 208), new Color(224, 223, 223),
+				new Color(173, 209, 158) };
+		for (int i = 0; i < 4; i++) {
+			g.setColor(areaColors[random.nextInt(areaColors.length)]);
+			g.fillOval(random.nextInt(256) - 64, random.nextInt(256) - 64, 64 + random.nextInt(128),
+					64 + random.nextInt(128));
+		}
+		Color[] roadColors = { Color.WHITE, new Color(252, 214, 164), new Color(249, 178, 156),
+				new Color(232, 146, 162) };
+		for (int i = 0; i < 12; i++) {
+			g.setColor(roadColors[random.nextInt(roadColors.length)]);
+			g.setStroke(new BasicStroke(2 + random.nextInt(6), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+			g.drawLine(random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256));
+		}
+		g.setColor(Color.DARK_GRAY);
+		g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 11));
+		for (int i = 0; i < 4; i++)
+			g.drawString("Street " + random.nextInt(100), random.nextInt(200), random.nextInt(256));
+		g.dispose();
+		return image;
+	}
+
+	private static BufferedImage createPhotoTile(Random random) {
+		BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = image.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()), 256, 256, new Color(random.nextInt())));
+		g.fillRect(0, 0, 256, 256);
+		g.dispose();
+		for (int y = 0; y < 256; y++) {
+			for (int x = 0; x < 256; x++) {
+				int rgb = image.getRGB(x, y);
+				int noise = random.nextInt(32) - 16;
+				int r = Math.max(0, Math.min(255, ((rgb >> 16) & 0xFF) + noise));
+				int gr = Math.max(0, Math.min(255, ((rgb >> 8) & 0xFF) + noise));
+				int b = Math.max(0, Math.min(255, (rgb & 0xFF) + noise));
+				image.setRGB(x, y, (r << 16) | (gr << 8) | b);
+			}
+		}
+		return image;
+	}
+
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.tools;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+import mobac.utilities.jdbc.SQLiteBulkLoad;
+
+/**
+ * Compares the former way of writing tiles into an SQLite database (default connection settings, index maintained
+ * while inserting, commit every 1000 tiles followed by a forced garbage collection) with the {@link SQLiteBulkLoad}
+ * profile. The tiles are written into an MBTiles like table using the bundled sqlite-jdbc driver.
+ * 
+ * Usage: <code>SQLiteBulkLoadBenchmark [tile count] [tile size in bytes]</code>
+ */
+public class SQLiteBulkLoadBenchmark {
+
+	private static final int DEFAULT_TILE_COUNT = 50000;
+
+	private static final int DEFAULT_TILE_SIZE = 12 * 1024;
+
+	private static final int LEGACY_BATCH_SIZE = 1000;
+
+	private static final String TABLE_DDL = "CREATE TABLE IF NOT EXISTS tiles (zoom_level integer, "
+			+ "tile_column integer, tile_row integer, tile_data blob)";
+
+	private static final String INDEX_DDL = "CREATE INDEX IF NOT EXISTS tiles_idx on tiles "
+			+ "(zoom_level, tile_column, tile_row)";
+
+	private static final String INSERT_SQL = "INSERT or REPLACE INTO tiles "
+			+ "(tile_column,tile_row,zoom_level,tile_data) VALUES (?,?,?,?)";
+
+	public static void main(String[] args) throws Exception {
+		int tileCount = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_TILE_COUNT;
+		int tileSize = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_TILE_SIZE;
+		Class.forName("org.sqlite.JDBC");
+
+		// A small set of tiles with random content (not compressible) is reused for all inserts
+		byte[][] tiles = new byte[64][];
+		Random random = new Random(0);
+		for (int i = 0; i < tiles.length; i++) {
+			// tile sizes vary between 50% and 150% of the specified size
+			tiles[i] = new byte[tileSize / 2 + random.nextInt(tileSize + 1)];
+			random.nextBytes(tiles[i]);
+		}
+
+		File dir = File.createTempFile("mobac", "sqlitebench");
+		dir.delete();
+		dir.mkdir();
+		try {
+			System.out.println(String.format("%d tiles, average size %d bytes", tileCount, tileSize));
+			System.out.println(String.format("%-8s %10s %10s %10s %12s", "method", "time [s]", "tiles/s", "MiB/s",
+					"file [MiB]"));
+			// run each method twice - the first run warms up the JVM and the file system cache
+			for (int run = 0; run < 2; run++) {
+				print("legacy", new File(dir, "legacy" + run + ".sqlite"), tileCount, tiles, false);
+				print("bulk", new File(dir, "bulk" + run + ".sqlite"), tileCount, tiles, true);
+			}
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null)
+				for (File f : files)
+					f.delete();
+			dir.delete();
+		}
+	}
+
+	private static void print(String method, File dbFile, int tileCount, byte[][] tiles, boolean bulkLoad)
+			throws SQLException {
+		long start = System.nanoTime();
+		long bytes = load(dbFile, tileCount, tiles, bulkLoad);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%-8s %10.2f %10.0f %10.2f %12.2f", method, seconds, tileCount / seconds,
+				bytes / seconds / 1048576d, dbFile.length() / 1048576d));
+	}
+
+	private static long load(File dbFile, int tileCount, byte[][] tiles, boolean bulkLoad) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:/" + dbFile.getAbsolutePath());
+		try {
+			if (bulkLoad)
+				SQLiteBulkLoad.configure(conn, true);
+			Statement stat = conn.createStatement();
+			stat.executeUpdate(TABLE_DDL);
+			if (!bulkLoad)
+				stat.executeUpdate(INDEX_DDL);
+			conn.setAutoCommit(false);
+			PreparedStatement prepStmt = conn.prepareStatement(INSERT_SQL);
+			int zoom = 16;
+			int width = (int) Math.ceil(Math.sqrt(tileCount));
+			long bytes = 0;
+			long batchBytes = 0;
+			int batchTileCount = 0;
+			for (int i = 0; i < tileCount; i++) {
+				byte[] data = tiles[i % tiles.length];
+				prepStmt.setInt(1, i % width);
+				prepStmt.setInt(2, i / width);
+				prepStmt.setInt(3, zoom);
+				prepStmt.setBytes(4, data);
+				prepStmt.addBatch();
+				bytes += data.length;
+				batchBytes += data.length;
+				batchTileCount++;
+				boolean commit;
+				if (bulkLoad)
+					commit = batchBytes >= SQLiteBulkLoad.MAX_BATCH_BYTES
+							|| batchTileCount >= SQLiteBulkLoad.MAX_BATCH_TILES;
+				else
+					commit = batchTileCount >= LEGACY_BATCH_SIZE;
+				if (commit) {
+					prepStmt.executeBatch();
+					prepStmt.clearBatch();
+					if (!bulkLoad)
+						System.gc();
+					conn.commit();
+					batchBytes = 0;
+					batchTileCount = 0;
+				}
+			}
+			prepStmt.executeBatch();
+			prepStmt.clearBatch();
+			conn.commit();
+			if (bulkLoad) {
+				stat.executeUpdate(INDEX_DDL);
+				conn.commit();
+			}
+			stat.close();
+			return bytes;
+		} finally {
+			conn.close();
+		}
+	}
+}
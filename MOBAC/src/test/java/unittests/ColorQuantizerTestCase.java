@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import junit.framework.TestCase;
+import mobac.utilities.imageio.ColorQuantizer;
+
+public class ColorQuantizerTestCase extends TestCase {
+
+	public void testExactColors() {
+		BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_3BYTE_BGR);
+		for (int y = 0; y < 64; y++)
+			for (int x = 0; x < 64; x++)
+				image.setRGB(x, y, ((x / 4) * 0x100F01 + (y / 4) * 0x0A0B0C) & 0xFFFFFF);
+		ColorQuantizer quantizer = new ColorQuantizer(256);
+		BufferedImage result = quantizer.quantize(image);
+		assertEquals(BufferedImage.TYPE_BYTE_INDEXED, result.getType());
+		assertEquals(256, ((IndexColorModel) result.getColorModel()).getMapSize());
+		assertEqualImages(image, result, 0);
+	}
+
+	public void testReduceColors() {
+		BufferedImage image = createGradientImage(Color.RED, Color.BLUE);
+		for (int colors : new int[] { 256, 16 }) {
+			ColorQuantizer quantizer = new ColorQuantizer(colors);
+			BufferedImage result = quantizer.quantize(image);
+			assertTrue(((IndexColorModel) result.getColorModel()).getMapSize() <= colors);
+			assertEqualImages(image, result, (colors == 256) ? 8 : 24);
+			// buffers are reused - the second image must not be influenced by the first one
+			BufferedImage image2 = createGradientImage(Color.GREEN, Color.YELLOW);
+			assertEqualImages(image2, quantizer.quantize(image2), (colors == 256) ? 8 : 24);
+		}
+	}
+
+	public void testSharedPalette() {
+		BufferedImage image = createGradientImage(Color.RED, Color.BLUE);
+		ColorQuantizer quantizer = new ColorQuantizer(256);
+		BufferedImage result = quantizer.quantize(image);
+		IndexColorModel palette = (IndexColorModel) result.getColorModel();
+
+		// Applying the palette to the same image must give the same result
+		BufferedImage result2 = quantizer.quantize(image, palette);
+		assertSame(palette, result2.getColorModel());
+		assertEqualImages(result, result2, 0);
+
+		// Palette colors are mapped exactly
+		BufferedImage image2 = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+		for (int i = 0; i < 16; i++)
+			image2.setRGB(i % 4, i / 4, palette.getRGB(i * 3));
+		assertEqualImages(image2, quantizer.quantize(image2, palette), 0);
+	}
+
+	private BufferedImage createGradientImage(Color c1, Color c2) {
+		BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = image.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, c1, 256, 256, c2));
+		g.fillRect(0, 0, 256, 256);
+		g.dispose();
+		return image;
+	}
+
+	private void assertEqualImages(BufferedImage expected, BufferedImage actual, int maxDelta) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				int c1 = expected.getRGB(x, y);
+				int c2 = actual.getRGB(x, y);
+				for (int shift = 0; shift < 24; shift += 8) {
+					int delta = Math.abs(((c1 >> shift) & 0xFF) - ((c2 >> shift) & 0xFF));
+					if (delta > maxDelta)
+						fail("Pixel " + x + "/" + y + " differs by " + delta);
+				}
+			}
+		}
+	}
+}
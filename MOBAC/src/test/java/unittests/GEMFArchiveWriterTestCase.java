@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import mobac.program.atlascreators.impl.gemf.GEMFArchiveWriter;
+import mobac.utilities.file.DeleteFileFilter;
+
+public class GEMFArchiveWriterTestCase extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("gemftest", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dir.listFiles(new DeleteFileFilter());
+		dir.delete();
+	}
+
+	public void testWriteShuffledTiles() throws Exception {
+		File file = new File(dir, "test.gemf");
+		// Small file size limit to force additional data files
+		GEMFArchiveWriter writer = new GEMFArchiveWriter(file, 4000);
+		int s0 = writer.getSourceIndex("Source A");
+		int s1 = writer.getSourceIndex("Source B");
+		assertEquals(s0, writer.getSourceIndex("Source A"));
+		writer.addRange(s0, 3, 2, 4, 5, 6);
+		writer.addRange(s1, 3, 0, 1, 0, 1);
+
+		List<int[]> tiles = new ArrayList<int[]>();
+		for (int x = 2; x <= 4; x++)
+			for (int y = 5; y <= 6; y++)
+				tiles.add(new int[] { s0, x, y });
+		for (int x = 0; x <= 1; x++)
+			for (int y = 0; y <= 1; y++)
+				if (x != 1 || y != 1) // one missing tile
+					tiles.add(new int[] { s1, x, y });
+		Collections.shuffle(tiles, new Random(1));
+		for (int[] t : tiles)
+			assertTrue(writer.writeTile(t[0], 3, t[1], t[2], tileData(t[0], t[1], t[2])));
+		assertFalse(writer.writeTile(s0, 4, 2, 5, new byte[10]));
+		writer.close();
+		assertTrue(writer.getFileCount() > 1);
+
+		List<File> files = new ArrayList<File>();
+		files.add(file);
+		for (int i = 1; i < writer.getFileCount(); i++)
+			files.add(new File(dir, "test.gemf-" + i));
+		for (File f : files)
+			assertTrue(f.length() <= 4000);
+
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			assertEquals(4, in.readInt());
+			assertEquals(256, in.readInt());
+			assertEquals(2, in.readInt());
+			assertEquals("Source A", readSource(in, 0));
+			assertEquals("Source B", readSource(in, 1));
+			assertEquals(2, in.readInt());
+			int[][] ranges = new int[2][];
+			long[] offsets = new long[2];
+			for (int i = 0; i < 2; i++) {
+				ranges[i] = new int[6];
+				for (int j = 0; j < 6; j++)
+					ranges[i][j] = in.readInt();
+				offsets[i] = in.readLong();
+			}
+			assertEquals(3, ranges[1][0]);
+			assertEquals(1, ranges[1][5]);
+			for (int i = 0; i < 2; i++) {
+				int[] r = ranges[i];
+				long entry = offsets[i];
+				for (int x = r[1]; x <= r[2]; x++) {
+					for (int y = r[3]; y <= r[4]; y++) {
+						byte[] data = readTile(files, entry);
+						entry += 12;
+						if (r[5] == s1 && x == 1 && y == 1)
+							assertEquals(0, data.length);
+						else
+							assertEquals(new String(tileData(r[5], x, y)), new String(data));
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testOverlappingRanges() throws Exception {
+		File file = new File(dir, "overlap.gemf");
+		GEMFArchiveWriter writer = new GEMFArchiveWriter(file);
+		int s0 = writer.getSourceIndex("A");
+		int s1 = writer.getSourceIndex("B");
+		writer.addRange(s0, 5, 0, 3, 0, 3);
+		// overlaps the first range at the right bottom corner
+		writer.addRange(s0, 5, 2, 5, 2, 5);
+		// completely covered by the first range
+		writer.addRange(s0, 5, 1, 2, 1, 2);
+		// other zoom level and source are not clipped
+		writer.addRange(s0, 6, 1, 2, 1, 2);
+		writer.addRange(s1, 5, 1, 2, 1, 2);
+		// first range + bottom and right part of the second range
+		assertEquals(5, writer.getRangeCount());
+		for (int x = 0; x <= 5; x++)
+			for (int y = 0; y <= 5; y++)
+				assertEquals((x <= 3 && y <= 3) || (x >= 2 && y >= 2),
+						writer.writeTile(s0, 5, x, y, tileData(s0, x, y)));
+		writer.close();
+
+		// every tile of the union of both ranges has exactly one non-empty index entry
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		List<File> files = Collections.singletonList(file);
+		try {
+			in.skipBytes(12);
+			readSource(in, 0);
+			readSource(in, 1);
+			int rangeCount = in.readInt();
+			int[] tileCount = new int[6 * 6];
+			for (int i = 0; i < rangeCount; i++) {
+				int[] r = new int[6];
+				for (int j = 0; j < 6; j++)
+					r[j] = in.readInt();
+				long entry = in.readLong();
+				if (r[0] != 5 || r[5] != s0)
+					continue;
+				for (int x = r[1]; x <= r[2]; x++) {
+					for (int y = r[3]; y <= r[4]; y++) {
+						assertEquals(new String(tileData(s0, x, y)), new String(readTile(files, entry)));
+						entry += 12;
+						tileCount[x * 6 + y]++;
+					}
+				}
+			}
+			for (int x = 0; x <= 5; x++)
+				for (int y = 0; y <= 5; y++)
+					assertEquals(((x <= 3 && y <= 3) || (x >= 2 && y >= 2)) ? 1 : 0, tileCount[x * 6 + y]);
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testEmptyArchive() throws Exception {
+		File file = new File(dir, "empty.gemf");
+		GEMFArchiveWriter writer = new GEMFArchiveWriter(file);
+		writer.addRange(writer.getSourceIndex("A"), 1, 0, 1, 0, 1);
+		writer.close();
+		// header + source + range + 4 empty index entries
+		assertEquals(12 + 9 + 4 + 32 + 4 * 12, file.length());
+	}
+
+	private static String readSource(DataInputStream in, int index) throws IOException {
+		assertEquals(index, in.readInt());
+		byte[] name = new byte[in.readInt()];
+		in.readFully(name);
+		return new String(name, "UTF-8");
+	}
+
+	/**
+	 * Reads the tile the same way a GEMF reader does: the offset refers to the concatenation of all files.
+	 */
+	private static byte[] readTile(List<File> files, long entryOffset) throws IOException {
+		RandomAccessFile index = new RandomAccessFile(files.get(0), "r");
+		long offset;
+		int length;
+		try {
+			index.seek(entryOffset);
+			offset = index.readLong();
+			length = index.readInt();
+		} finally {
+			index.close();
+		}
+		byte[] data = new byte[length];
+		if (length == 0)
+			return data;
+		int i = 0;
+		while (offset >= files.get(i).length()) {
+			offset -= files.get(i).length();
+			i++;
+		}
+		RandomAccessFile f = new RandomAccessFile(files.get(i), "r");
+		try {
+			f.seek(offset);
+			f.readFully(data);
+		} finally {
+			f.close();
+		}
+		return data;
+	}
+
+	private static byte[] tileData(int source, int x, int y) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			sb.append("tile s" + source + " x" + x + " y" + y + ";");
+		return sb.toString().getBytes();
+	}
+}
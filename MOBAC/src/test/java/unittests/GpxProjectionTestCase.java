@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.math.BigDecimal;
+
+import junit.framework.TestCase;
+import mobac.data.gpx.gpx11.Gpx;
+import mobac.data.gpx.gpx11.TrkType;
+import mobac.data.gpx.gpx11.TrksegType;
+import mobac.data.gpx.gpx11.WptType;
+import mobac.gui.mapview.layer.GpxProjection;
+import mobac.mapsources.mapspace.MercatorPower2MapSpace;
+import mobac.program.interfaces.MapSpace;
+
+public class GpxProjectionTestCase extends TestCase {
+
+	private final MapSpace mapSpace = MercatorPower2MapSpace.INSTANCE_256;
+
+	private static WptType wpt(double lat, double lon) {
+		WptType wpt = new WptType();
+		wpt.setLat(new BigDecimal(lat));
+		wpt.setLon(new BigDecimal(lon));
+		return wpt;
+	}
+
+	/**
+	 * A track along the equator from 0 to 90 degrees longitude with one point every 0.001 degrees
+	 */
+	private static Gpx createGpx() {
+		Gpx gpx = Gpx.createGpx();
+		TrksegType seg = new TrksegType();
+		for (int i = 0; i <= 90000; i++)
+			seg.getTrkpt().add(wpt(0, i * 0.001));
+		TrkType trk = new TrkType();
+		trk.getTrkseg().add(seg);
+		gpx.getTrk().add(trk);
+		gpx.getWpt().add(wpt(10, 10));
+		gpx.getWpt().add(wpt(-10, 80));
+		return gpx;
+	}
+
+	public void testSimplification() {
+		GpxProjection projection = new GpxProjection(createGpx(), mapSpace, 10);
+		GpxProjection.Elements tracks = projection.getTracks();
+		// a straight line is reduced to its end points
+		assertEquals(1, tracks.getElementCount());
+		int first = tracks.getFirstPoint(0);
+		int last = tracks.getLastPoint(0);
+		assertEquals(1, last - first);
+		assertEquals(mapSpace.cLonToX(0, 10), tracks.getX(first));
+		assertEquals(mapSpace.cLonToX(90, 10), tracks.getX(last));
+		assertEquals(mapSpace.cLatToY(0, 10), tracks.getY(last));
+	}
+
+	public void testQuery() {
+		Gpx gpx = createGpx();
+		// add a zig zag track that can not be simplified
+		TrksegType seg = new TrksegType();
+		for (int i = 0; i <= 1000; i++)
+			seg.getTrkpt().add(wpt((i % 2) * 0.1, i * 0.1));
+		gpx.getTrk().get(0).getTrkseg().add(seg);
+
+		int zoom = 12;
+		GpxProjection projection = new GpxProjection(gpx, mapSpace, zoom);
+		GpxProjection.Elements tracks = projection.getTracks();
+		assertTrue(tracks.getElementCount() > 10);
+
+		int x = mapSpace.cLonToX(50, zoom);
+		int y = mapSpace.cLatToY(0, zoom);
+		int count = tracks.query(x - 100, y - 100, x + 100, y + 100);
+		assertTrue(count > 0);
+		assertTrue(count < tracks.getElementCount());
+		// every element that has a point in the region has to be found
+		int expected = 0;
+		for (int e = 0; e < tracks.getElementCount(); e++) {
+			boolean inside = false;
+			for (int p = tracks.getFirstPoint(e); p <= tracks.getLastPoint(e); p++) {
+				if (Math.abs(tracks.getX(p) - x) <= 100 && Math.abs(tracks.getY(p) - y) <= 100)
+					inside = true;
+			}
+			if (inside) {
+				expected++;
+				boolean found = false;
+				for (int i = 0; i < count; i++)
+					found |= tracks.getQueryResult()[i] == e;
+				assertTrue(found);
+			}
+		}
+		assertTrue(expected > 0);
+
+		GpxProjection.Elements wpts = projection.getWaypoints();
+		assertEquals(2, wpts.getElementCount());
+		x = mapSpace.cLonToX(80, zoom);
+		y = mapSpace.cLatToY(-10, zoom);
+		assertEquals(1, wpts.query(x - 1, y - 1, x + 1, y + 1));
+		assertSame(gpx.getWpt().get(1), projection.getWaypoint(wpts.getQueryResult()[0]));
+		assertEquals(0, wpts.query(0, 0, 10, 10));
+	}
+
+}
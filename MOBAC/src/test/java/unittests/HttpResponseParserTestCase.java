@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import mobac.program.download.async.AsyncHttpResponse;
+import mobac.program.download.async.HttpResponseParser;
+
+public class HttpResponseParserTestCase extends TestCase {
+
+	private static ByteBuffer buffer(String s) throws Exception {
+		return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+	}
+
+	public void testContentLength() throws Exception {
+		HttpResponseParser p = new HttpResponseParser();
+		ByteBuffer buf = buffer("HTTP/1.1 200 OK\r\nContent-Type: image/png\r\nContent-Length: 5\r\n\r\nhelloHTTP/1.1");
+		assertTrue(p.parse(buf));
+		AsyncHttpResponse r = p.getResponse();
+		assertEquals(200, r.getResponseCode());
+		assertEquals("image/png", r.getContentType());
+		assertEquals("hello", new String(r.getData(), "ISO-8859-1"));
+		assertTrue(r.isKeepAlive());
+		// The bytes of the next response remain in the buffer
+		assertEquals(8, buf.remaining());
+	}
+
+	public void testChunkedSplit() throws Exception {
+		String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nConnection: close\r\n\r\n"
+				+ "3\r\nabc\r\n4;ext=1\r\ndefg\r\n0\r\n\r\n";
+		HttpResponseParser p = new HttpResponseParser();
+		// Feed the response byte by byte
+		for (int i = 0; i < response.length() - 1; i++)
+			assertFalse(p.parse(buffer(response.substring(i, i + 1))));
+		assertTrue(p.parse(buffer(response.substring(response.length() - 1))));
+		AsyncHttpResponse r = p.getResponse();
+		assertEquals("abcdefg", new String(r.getData(), "ISO-8859-1"));
+		assertFalse(r.isKeepAlive());
+	}
+
+	public void testBodyUntilClose() throws Exception {
+		HttpResponseParser p = new HttpResponseParser();
+		assertFalse(p.parse(buffer("HTTP/1.0 200 OK\r\n\r\nsome data")));
+		assertTrue(p.connectionClosed());
+		AsyncHttpResponse r = p.getResponse();
+		assertEquals("some data", new String(r.getData(), "ISO-8859-1"));
+		assertFalse(r.isKeepAlive());
+	}
+
+	/**
+	 * A HTTP/1.1 response without content length and transfer encoding can not be followed by another response
+	 */
+	public void testBodyUntilCloseKeepAlive() throws Exception {
+		HttpResponseParser p = new HttpResponseParser();
+		assertFalse(p.parse(buffer("HTTP/1.1 200 OK\r\nContent-Type: image/png\r\n\r\nsome data")));
+		assertTrue(p.isBodyDelimitedByClose());
+		assertTrue(p.connectionClosed());
+		assertFalse(p.getResponse().isKeepAlive());
+	}
+
+	public void testNotModified() throws Exception {
+		HttpResponseParser p = new HttpResponseParser();
+		assertTrue(p.parse(buffer("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 304 Not Modified\r\n"
+				+ "Expires: Thu, 01 Dec 2033 16:00:00 GMT\r\n\r\n")));
+		AsyncHttpResponse r = p.getResponse();
+		assertEquals(304, r.getResponseCode());
+		assertNull(r.getData());
+		assertEquals(2017065600000L, r.getExpiration());
+	}
+
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+import mobac.program.interfaces.TileImageDataWriter;
+import mobac.program.model.Settings;
+import mobac.program.model.TileImageFormat;
+import mobac.program.tiledatawriter.ImageWriterPool;
+
+public class ImageWriterPoolTestCase extends TestCase {
+
+	public void testThreadConfinement() throws Exception {
+		final TileImageDataWriter writer = ImageWriterPool.getDataWriter(TileImageFormat.PNG);
+		assertSame(writer, ImageWriterPool.getDataWriter(TileImageFormat.PNG));
+		assertNotSame(TileImageFormat.PNG.getDataWriter(), writer);
+		assertNotSame(writer, ImageWriterPool.getDataWriter(TileImageFormat.JPEG90));
+		final TileImageDataWriter[] otherThreadWriter = new TileImageDataWriter[1];
+		Thread t = new Thread() {
+
+			@Override
+			public void run() {
+				otherThreadWriter[0] = ImageWriterPool.getDataWriter(TileImageFormat.PNG);
+			}
+		};
+		t.start();
+		t.join();
+		assertNotNull(otherThreadWriter[0]);
+		assertNotSame(writer, otherThreadWriter[0]);
+	}
+
+	public void testEncodeImage() throws Exception {
+		BufferedImage image = createImage(1);
+		byte[] data = ImageWriterPool.encodeImage(TileImageFormat.PNG, image);
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(data));
+		assertEquals(image.getRGB(10, 10), decoded.getRGB(10, 10));
+		assertEquals(image.getRGB(200, 100), decoded.getRGB(200, 100));
+
+		// the output buffer is reused - a previous result must not be affected
+		byte[] data2 = ImageWriterPool.encodeImage(TileImageFormat.PNG, createImage(2));
+		assertTrue(Arrays.equals(data, ImageWriterPool.encodeImage(TileImageFormat.PNG, image)));
+		assertFalse(Arrays.equals(data, data2));
+
+		data = ImageWriterPool.writeImage(image, "png");
+		decoded = ImageIO.read(new ByteArrayInputStream(data));
+		assertEquals(image.getRGB(200, 100), decoded.getRGB(200, 100));
+		assertNotNull(ImageIO.read(new ByteArrayInputStream(ImageWriterPool.writeImage(image, "jpg"))));
+	}
+
+	public void testConcurrentEncoding() throws Exception {
+		final int imageCount = 40;
+		List<byte[]> expected = new ArrayList<byte[]>();
+		for (int i = 0; i < imageCount; i++)
+			expected.add(ImageWriterPool.encodeImage(TileImageFormat.JPEG90, createImage(i)));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < imageCount; i++) {
+				final int n = i;
+				results.add(executor.submit(new Callable<byte[]>() {
+
+					public byte[] call() throws Exception {
+						return ImageWriterPool.encodeImage(TileImageFormat.JPEG90, createImage(n));
+					}
+				}));
+			}
+			for (int i = 0; i < imageCount; i++)
+				assertTrue(Arrays.equals(expected.get(i), results.get(i).get()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testStartNewMap() throws Exception {
+		Settings settings = Settings.getInstance();
+		boolean paletteSharing = settings.tilePaletteSharing;
+		settings.tilePaletteSharing = true;
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Callable<byte[]> encode = new Callable<byte[]>() {
+
+				public byte[] call() throws Exception {
+					return ImageWriterPool.encodeImage(TileImageFormat.PNG8Bit, createImage(7));
+				}
+			};
+			// the first image of a map defines the palette
+			ImageWriterPool.startNewMap();
+			byte[] expected = executor.submit(encode).get();
+			ImageWriterPool.startNewMap();
+			executor.submit(new Callable<byte[]>() {
+
+				public byte[] call() throws Exception {
+					return ImageWriterPool.encodeImage(TileImageFormat.PNG8Bit, createImage(3));
+				}
+			}).get();
+			assertFalse(Arrays.equals(expected, executor.submit(encode).get()));
+			// a new map started on another thread resets the palette of the executor thread
+			ImageWriterPool.startNewMap();
+			assertTrue(Arrays.equals(expected, executor.submit(encode).get()));
+		} finally {
+			executor.shutdown();
+			settings.tilePaletteSharing = paletteSharing;
+		}
+	}
+
+	private static BufferedImage createImage(int n) {
+		BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = image.createGraphics();
+		g.setColor(new Color(n * 20 % 256, 100, 200));
+		g.fillRect(0, 0, 256, 256);
+		g.setColor(Color.WHITE);
+		g.fillRect(128, 64, 100, 100);
+		g.drawString("Tile " + n, 20, 30);
+		g.dispose();
+		return image;
+	}
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import mobac.program.JobDispatcher;
+import mobac.program.JobDispatcher.Job;
+import mobac.program.PauseResumeHandler;
+import mobac.program.interfaces.MapSourceListener;
+
+public class JobDispatcherTestCase extends TestCase {
+
+	private JobDispatcher dispatcher;
+
+	@Override
+	protected void setUp() throws Exception {
+		dispatcher = new JobDispatcher(4, 1, 8, false, new PauseResumeHandler(), new MapSourceListener() {
+
+			public void tileLoadedFromCache(int size) {
+			}
+
+			public void tileDownloaded(int size) {
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dispatcher.terminateAllWorkerThreads();
+	}
+
+	public void testAwaitIdle() throws Exception {
+		final AtomicInteger counter = new AtomicInteger();
+		Job job = new Job() {
+
+			public void run(JobDispatcher dispatcher) throws Exception {
+				Thread.sleep(1);
+				counter.incrementAndGet();
+			}
+		};
+		for (int i = 0; i < 1000; i++)
+			dispatcher.addJob(job);
+		assertTrue(dispatcher.awaitIdle(10000));
+		assertEquals(1000, counter.get());
+		assertEquals(0, dispatcher.getWaitingJobCount());
+	}
+
+	public void testErrorJobs() throws Exception {
+		final AtomicInteger counter = new AtomicInteger();
+		Job job = new Job() {
+
+			int tries = 0;
+
+			public void run(JobDispatcher dispatcher) throws Exception {
+				synchronized (this) {
+					tries++;
+					if (tries % 2 == 1) {
+						// Reschedule every second execution
+						dispatcher.addErrorJob(this);
+						return;
+					}
+				}
+				counter.incrementAndGet();
+			}
+		};
+		for (int i = 0; i < 500; i++)
+			dispatcher.addJob(job);
+		assertTrue(dispatcher.awaitIdle(10000));
+		assertEquals(500, counter.get());
+	}
+
+	public void testCancelOutstandingJobs() throws Exception {
+		final PauseResumeHandler prh = new PauseResumeHandler();
+		JobDispatcher d = new JobDispatcher(2, prh, null);
+		try {
+			prh.pause();
+			Job job = new Job() {
+
+				public void run(JobDispatcher dispatcher) throws Exception {
+				}
+			};
+			for (int i = 0; i < 50; i++)
+				d.addJob(job);
+			assertFalse(d.awaitIdle(100));
+			d.cancelOutstandingJobs();
+			prh.resume();
+			assertTrue(d.awaitIdle(5000));
+		} finally {
+			d.terminateAllWorkerThreads();
+		}
+	}
+
+	/**
+	 * Feeds measurement windows of a slow stretch (server overloaded) followed by fast windows. The worker count has to
+	 * be reduced during the slow stretch and has to grow again after the throughput has recovered.
+	 */
+	public void testWorkerCountRecovers() throws Exception {
+		AdaptiveDispatcher d = new AdaptiveDispatcher(4, 1, 8);
+		try {
+			d.window(400, 10);
+			assertEquals(5, d.getActiveWorkerCount());
+			for (int i = 0; i < 5; i++)
+				d.window(100, 40);
+			int slowCount = d.getActiveWorkerCount();
+			assertTrue(slowCount < 5);
+			d.window(300, 10);
+			d.window(400, 10);
+			d.window(500, 10);
+			assertTrue(d.getActiveWorkerCount() > slowCount);
+		} finally {
+			d.terminateAllWorkerThreads();
+		}
+	}
+
+	/**
+	 * Falls back to platform worker threads if the Java runtime does not support virtual threads
+	 */
+	public void testVirtualThreads() throws Exception {
+		final AtomicInteger counter = new AtomicInteger();
+		final AtomicInteger downloaded = new AtomicInteger();
+		JobDispatcher d = new JobDispatcher(4, 1, 4, true, new PauseResumeHandler(), new MapSourceListener() {
+
+			public void tileLoadedFromCache(int size) {
+			}
+
+			public void tileDownloaded(int size) {
+				downloaded.addAndGet(size);
+			}
+		});
+		try {
+			Job job = new Job() {
+
+				public void run(JobDispatcher dispatcher) throws Exception {
+					JobDispatcher.getCurrentMapSourceListener().tileDownloaded(1);
+					Thread.sleep(1);
+					counter.incrementAndGet();
+				}
+			};
+			for (int i = 0; i < 500; i++)
+				d.addJob(job);
+			assertTrue(d.awaitIdle(10000));
+			assertEquals(500, counter.get());
+			assertEquals(500, downloaded.get());
+		} finally {
+			d.terminateAllWorkerThreads();
+		}
+	}
+
+	private static class AdaptiveDispatcher extends JobDispatcher {
+
+		public AdaptiveDispatcher(int threadCount, int minThreadCount, int maxThreadCount) {
+			super(threadCount, minThreadCount, maxThreadCount, false, new PauseResumeHandler(), null);
+		}
+
+		/**
+		 * Simulates a measurement window of {@link JobDispatcher#ADAPT_INTERVAL} milliseconds
+		 * 
+		 * @param jobs
+		 *            number of jobs finished within the window
+		 * @param jobDuration
+		 *            average job duration in milliseconds
+		 */
+		public void window(int jobs, long jobDuration) {
+			synchronized (stateLock) {
+				adaptWorkerCount(ADAPT_INTERVAL, jobs, jobs * jobDuration * 1000000L, 0);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+import mobac.program.tilestore.TileStoreEntry;
+import mobac.program.tilestore.mmap.MappedTileDatabase;
+import mobac.program.tilestore.mmap.MappedTileStoreEntry;
+import mobac.utilities.file.DeleteFileFilter;
+
+public class MappedTileDatabaseTestCase extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("mmtest", "");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dir.listFiles(new DeleteFileFilter());
+		dir.delete();
+	}
+
+	private static TileStoreEntry tile(int x, int y, int zoom, int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++)
+			data[i] = (byte) (x + y + i);
+		return new MappedTileStoreEntry(x, y, zoom, data, 1000, 2000, 3000, "etag" + x);
+	}
+
+	private static void assertTile(TileStoreEntry expected, TileStoreEntry actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getX(), actual.getX());
+		assertEquals(expected.getY(), actual.getY());
+		assertEquals(expected.getZoom(), actual.getZoom());
+		assertEquals(expected.getTimeLastModified(), actual.getTimeLastModified());
+		assertEquals(expected.getTimeExpires(), actual.getTimeExpires());
+		assertEquals(expected.geteTag(), actual.geteTag());
+		assertTrue(java.util.Arrays.equals(expected.getData(), actual.getData()));
+	}
+
+	public void testPutGetReopen() throws Exception {
+		MappedTileDatabase db = new MappedTileDatabase("test", dir, 64 * 1024);
+		for (int i = 0; i < 500; i++)
+			db.put(tile(i, i * 2, 17, 300 + i));
+		db.put(new MappedTileStoreEntry(1, 1, 22, new byte[0], 1, 2, 3, null));
+		assertEquals(501, db.getTileCount());
+		assertTile(tile(123, 246, 17, 423), db.get(123, 246, 17));
+		assertNull(db.get(123, 246, 16));
+		assertNull(db.get(1, 1, 22).geteTag());
+		db.close();
+
+		// index file is used
+		db = new MappedTileDatabase("test", dir, 64 * 1024);
+		assertEquals(501, db.getTileCount());
+		assertTile(tile(499, 998, 17, 799), db.get(499, 998, 17));
+		// simulate a crash: the index has been deleted on opening and is rebuilt
+		db = new MappedTileDatabase("test", dir, 64 * 1024);
+		assertEquals(501, db.getTileCount());
+		assertTile(tile(0, 0, 17, 300), db.get(0, 0, 17));
+		db.close();
+	}
+
+	public void testIncompleteRecord() throws Exception {
+		MappedTileDatabase db = new MappedTileDatabase("test", dir, 1024 * 1024);
+		for (int i = 0; i < 10; i++)
+			db.put(tile(i, 0, 10, 1000));
+		db.close();
+		new File(dir, "index.dat").delete();
+		File segment = new File(dir, "segment-00000.dat");
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.setLength(raf.length() - 10);
+		raf.close();
+
+		db = new MappedTileDatabase("test", dir, 1024 * 1024);
+		assertEquals(9, db.getTileCount());
+		assertNull(db.get(9, 0, 10));
+		db.put(tile(9, 0, 10, 1000));
+		assertTile(tile(9, 0, 10, 1000), db.get(9, 0, 10));
+		db.close();
+	}
+
+	public void testCompaction() throws Exception {
+		MappedTileDatabase db = new MappedTileDatabase("test", dir, 32 * 1024);
+		for (int round = 0; round < 5; round++)
+			for (int i = 0; i < 100; i++)
+				db.put(tile(i, round == 4 ? 1 : 0, 12, 1000));
+		// 500 records, 300 outdated
+		assertEquals(200, db.getTileCount());
+		long size = db.getSize();
+		while (db.compact(0.5))
+			;
+		assertTrue(db.getSize() < size);
+		assertEquals(200, db.getTileCount());
+		for (int i = 0; i < 100; i++) {
+			assertTile(tile(i, 0, 12, 1000), db.get(i, 0, 12));
+			assertTile(tile(i, 1, 12, 1000), db.get(i, 1, 12));
+		}
+		db.close();
+		db = new MappedTileDatabase("test", dir, 32 * 1024);
+		assertEquals(200, db.getTileCount());
+		assertTile(tile(42, 0, 12, 1000), db.get(42, 0, 12));
+		db.close();
+	}
+
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+import mobac.utilities.imageio.PngXxlWriter;
+
+public class PngXxlWriterTestCase extends TestCase {
+
+	private static final int WIDTH = 1000;
+	private static final int HEIGHT = 1200;
+	private static final int TILE_LINE_HEIGHT = 100;
+
+	public void testSequential() throws IOException {
+		BufferedImage image = createTestImage();
+		assertEqualImages(image, writeAndRead(image, 1));
+	}
+
+	public void testParallel() throws IOException {
+		BufferedImage image = createTestImage();
+		assertEqualImages(image, writeAndRead(image, 4));
+	}
+
+	private BufferedImage writeAndRead(BufferedImage image, int threadCount) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PngXxlWriter writer = new PngXxlWriter(WIDTH, HEIGHT, out, threadCount);
+		for (int y = 0; y < HEIGHT; y += TILE_LINE_HEIGHT)
+			writer.writeTileLine(image.getSubimage(0, y, WIDTH, TILE_LINE_HEIGHT));
+		writer.finish();
+		return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	/**
+	 * Gradients (favor the Sub/Up/Paeth filters) mixed with noise (favors no filter)
+	 */
+	private BufferedImage createTestImage() {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, Color.RED, WIDTH, HEIGHT, Color.BLUE));
+		g.fillRect(0, 0, WIDTH, HEIGHT);
+		g.dispose();
+		Random random = new Random(0);
+		for (int y = HEIGHT / 2; y < HEIGHT / 2 + 100; y++)
+			for (int x = 0; x < WIDTH; x++)
+				image.setRGB(x, y, random.nextInt());
+		return image;
+	}
+
+	private void assertEqualImages(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++)
+			for (int x = 0; x < expected.getWidth(); x++)
+				assertEquals((expected.getRGB(x, y) & 0xFFFFFF), (actual.getRGB(x, y) & 0xFFFFFF));
+	}
+}
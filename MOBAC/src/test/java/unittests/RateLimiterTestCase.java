@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import mobac.program.download.RateLimiter;
+import mobac.utilities.Utilities;
+import mobac.utilities.stream.ThrottledInputStream;
+import mobac.utilities.stream.TokenBucket;
+
+public class RateLimiterTestCase extends TestCase {
+
+	public void testTokenBucket() throws Exception {
+		TokenBucket bucket = new TokenBucket();
+		assertFalse(bucket.isLimited());
+		assertEquals(0, bucket.reserve(1000));
+
+		// 100 tokens per second, burst of 10 tokens
+		bucket.setRate(100, 10);
+		assertTrue(bucket.isLimited());
+		assertEquals(100.0, bucket.getRate(), 0.01);
+		for (int i = 0; i < 10; i++)
+			assertEquals(0, bucket.reserve(1));
+		// The bucket is empty - the next tokens have to be waited for
+		long wait = bucket.reserve(5);
+		assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(40));
+		assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(50));
+
+		bucket.delay(TimeUnit.SECONDS.toNanos(2));
+		assertTrue(bucket.reserve(1) > TimeUnit.SECONDS.toNanos(1));
+	}
+
+	public void testConcurrentReservation() throws Exception {
+		final TokenBucket bucket = new TokenBucket(1000, 1);
+		final long[] waits = new long[4];
+		Thread[] threads = new Thread[waits.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++)
+						waits[index] = Math.max(waits[index], bucket.reserve(1));
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		long maxWait = 0;
+		for (long w : waits)
+			maxWait = Math.max(maxWait, w);
+		// 4000 tokens reserved at 1000 tokens/s - the last reservation has to wait almost 4 seconds
+		assertTrue(maxWait > TimeUnit.MILLISECONDS.toNanos(3000));
+		assertTrue(maxWait < TimeUnit.MILLISECONDS.toNanos(4000));
+	}
+
+	public void testThrottledInputStream() throws Exception {
+		byte[] data = new byte[20000];
+		TokenBucket bucket = new TokenBucket(100000, 10000);
+		InputStream in = new ThrottledInputStream(new ByteArrayInputStream(data), bucket);
+		long waitStart = TokenBucket.getThreadWaitTime();
+		long start = System.currentTimeMillis();
+		assertEquals(data.length, Utilities.getInputBytes(in).length);
+		long duration = System.currentTimeMillis() - start;
+		// 10000 bytes are available immediately, the remaining 10000 bytes take 100 ms
+		assertTrue("duration " + duration, duration >= 90);
+		assertTrue(TokenBucket.getThreadWaitTime() - waitStart >= TimeUnit.MILLISECONDS.toNanos(90));
+	}
+
+	public void testParseRetryAfter() {
+		long now = System.currentTimeMillis();
+		assertEquals(-1, RateLimiter.parseRetryAfter(null, now));
+		assertEquals(-1, RateLimiter.parseRetryAfter("soon", now));
+		assertEquals(120000, RateLimiter.parseRetryAfter(" 120 ", now));
+		assertEquals(30000, RateLimiter.parseRetryAfter("Wed, 21 Oct 2015 07:28:30 GMT", 1445412480000L));
+		assertEquals(0, RateLimiter.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", 1445412490000L));
+	}
+
+	public void testBackOff() throws Exception {
+		RateLimiter limiter = RateLimiter.getInstance("backoff.example.com");
+		assertEquals(0.0, limiter.getRequestRate(), 0.0);
+		for (int i = 0; i < 20; i++)
+			limiter.acquireRequest();
+		limiter.responseReceived(RateLimiter.HTTP_TOO_MANY_REQUESTS, "1");
+		assertTrue(limiter.isBackingOff());
+		double rate = limiter.getRequestRate();
+		assertTrue(rate > 0);
+
+		// Responses of requests sent before the back-off do not reduce the rate again
+		limiter.responseReceived(503, null);
+		assertEquals(rate, limiter.getRequestRate(), 0.0);
+
+		long start = System.currentTimeMillis();
+		limiter.acquireRequest();
+		assertTrue(System.currentTimeMillis() - start >= 900);
+		assertFalse(limiter.isBackingOff());
+		assertSame(limiter, RateLimiter.getInstance("BACKOFF.example.com"));
+	}
+}
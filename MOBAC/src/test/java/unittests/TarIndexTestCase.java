@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import mobac.utilities.tar.TarIndex;
+import mobac.utilities.tar.TarIndexTable;
+import mobac.utilities.tar.TarIndexedArchive;
+
+public class TarIndexTestCase extends TestCase {
+
+	public void testTileIndex() throws Exception {
+		runArchiveTest(false);
+		runArchiveTest(true);
+	}
+
+	public void testConcurrentRead() throws Exception {
+		File tarFile = File.createTempFile("mobac-tarindex", ".tar");
+		TarIndexedArchive archive = new TarIndexedArchive(tarFile, 10, false);
+		for (int x = 0; x < 20; x++)
+			for (int y = 0; y < 20; y++)
+				archive.writeFileFromData(x, y, new byte[x * 20 + y + 1]);
+		archive.writeEndofArchive();
+		archive.close();
+		final TarIndex index = archive.getTarIndex();
+		final AtomicInteger errors = new AtomicInteger();
+		try {
+			Thread[] threads = new Thread[4];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							for (int n = 0; n < 20; n++)
+								for (int x = 0; x < 20; x++)
+									for (int y = 0; y < 20; y++)
+										if (index.getEntryContent(x, y).length != x * 20 + y + 1)
+											errors.incrementAndGet();
+						} catch (Exception e) {
+							errors.incrementAndGet();
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (Thread t : threads)
+				t.join();
+			assertEquals(0, errors.get());
+		} finally {
+			index.closeAndDelete();
+		}
+	}
+
+	/**
+	 * Tiles written concurrently via {@link TarIndexedArchive#writeFileFromData(int, int, byte[])} and
+	 * {@link TarIndexedArchive#putTile(int, int, byte[])} must not interleave. Closing the index releases the
+	 * off-heap table.
+	 */
+	public void testConcurrentWrite() throws Exception {
+		File tarFile = File.createTempFile("mobac-tarindex", ".tar");
+		final TarIndexedArchive archive = new TarIndexedArchive(tarFile, 10, true);
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final int column = i;
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int y = 0; y < 200; y++) {
+							byte[] data = new byte[column * 200 + y + 1];
+							if (column % 2 == 0)
+								archive.writeFileFromData(column, y, data);
+							else
+								archive.putTile(column, y, data);
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		archive.writeEndofArchive();
+		archive.close();
+		TarIndex index = archive.getTarIndex();
+		try {
+			assertEquals(0, errors.get());
+			assertEquals(800, index.size());
+			for (int x = 0; x < threads.length; x++)
+				for (int y = 0; y < 200; y++)
+					assertEquals(x * 200 + y + 1, index.getEntryContent(x, y).length);
+		} finally {
+			index.closeAndDelete();
+		}
+		assertEquals(0, index.size());
+	}
+
+	private void runArchiveTest(boolean offHeap) throws Exception {
+		File tarFile = File.createTempFile("mobac-tarindex", ".tar");
+		TarIndexedArchive archive = new TarIndexedArchive(tarFile, 10, offHeap);
+		TarIndex index = null;
+		try {
+			for (int x = 0; x < 50; x++)
+				for (int y = 0; y < 50; y++)
+					archive.writeFileFromData(x, y, new byte[] { (byte) x, (byte) y, 1 });
+			// legacy string based access
+			archive.writeFileFromData(String.format("x%dy%d", 50, 7), new byte[] { 50, 7 });
+			archive.writeFileFromData("info.txt", new byte[] { 42 });
+			archive.writeEndofArchive();
+			archive.close();
+			index = archive.getTarIndex();
+			assertEquals(2502, index.size());
+			assertTrue(Arrays.equals(new byte[] { 3, 49, 1 }, index.getEntryContent(3, 49)));
+			assertTrue(Arrays.equals(new byte[] { 3, 49, 1 }, index.getEntryContent("x3y49")));
+			assertTrue(Arrays.equals(new byte[] { 50, 7 }, index.getEntryContent(50, 7)));
+			assertTrue(Arrays.equals(new byte[] { 50, 7 }, index.getEntryContent(TarIndexTable.key(50, 7))));
+			assertTrue(Arrays.equals(new byte[] { 42 }, index.getEntryContent("info.txt")));
+			assertNull(index.getEntryContent(51, 7));
+			assertNull(index.getEntryContent("x03y49"));
+			assertNull(index.getEntryContent("other.txt"));
+		} finally {
+			if (index != null)
+				index.closeAndDelete();
+			else
+				archive.delete();
+		}
+	}
+
+}
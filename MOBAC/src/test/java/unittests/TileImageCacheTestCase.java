@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+import mobac.program.atlascreators.tileprovider.TileImageCache;
+
+public class TileImageCacheTestCase extends TestCase {
+
+	public void testImageSize() {
+		assertEquals(256 * 256 * 4, TileImageCache.getImageSize(new BufferedImage(256, 256,
+				BufferedImage.TYPE_INT_RGB)));
+		assertEquals(256 * 256 * 3, TileImageCache.getImageSize(new BufferedImage(256, 256,
+				BufferedImage.TYPE_3BYTE_BGR)));
+		assertEquals(256 * 256, TileImageCache.getImageSize(new BufferedImage(256, 256,
+				BufferedImage.TYPE_BYTE_INDEXED)));
+	}
+
+	public void testLruEviction() {
+		// room for three 10x10 INT_RGB images
+		TileImageCache cache = new TileImageCache(3 * 400);
+		BufferedImage[] images = new BufferedImage[4];
+		for (int i = 0; i < images.length; i++)
+			images[i] = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+		cache.put(0, 0, images[0]);
+		cache.put(1, 0, images[1]);
+		cache.put(-1, -5, images[2]);
+		assertEquals(1200, cache.getSize());
+		// touch image 0 - image 1 is now the least recently used one
+		assertSame(images[0], cache.get(0, 0));
+		cache.put(2, 0, images[3]);
+		assertEquals(3, cache.getImageCount());
+		assertEquals(1200, cache.getSize());
+		assertNull(cache.get(1, 0));
+		assertSame(images[2], cache.get(-1, -5));
+		assertSame(images[3], cache.get(2, 0));
+		assertEquals(3, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		// replacing an image must not change the size
+		cache.put(2, 0, images[1]);
+		assertEquals(1200, cache.getSize());
+		assertTrue(cache.contains(2, 0));
+
+		// images larger than the cache are not cached at all
+		cache.put(5, 5, new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB));
+		assertFalse(cache.contains(5, 5));
+		assertEquals(3, cache.getImageCount());
+
+		cache.clear();
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getImageCount());
+	}
+
+	public void testSharedBudget() {
+		// room for three 10x10 INT_RGB images in both caches together
+		TileImageCache.Budget budget = new TileImageCache.Budget(3 * 400);
+		TileImageCache cache1 = new TileImageCache(budget);
+		TileImageCache cache2 = new TileImageCache(budget);
+		BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+		cache1.put(0, 0, image);
+		cache1.put(1, 0, image);
+		cache2.put(0, 0, image);
+		assertEquals(1200, budget.getSize());
+		assertEquals(800, cache1.getSize());
+		assertEquals(400, cache2.getSize());
+
+		// the same coordinates in different caches are different entries
+		cache2.put(1, 0, image);
+		assertEquals(1200, budget.getSize());
+		assertFalse(cache1.contains(0, 0));
+		assertTrue(cache1.contains(1, 0));
+		assertEquals(1, cache1.getImageCount());
+		assertEquals(2, cache2.getImageCount());
+
+		// clearing one cache does not affect the other one
+		cache2.clear();
+		assertEquals(0, cache2.getImageCount());
+		assertEquals(400, budget.getSize());
+		assertTrue(cache1.contains(1, 0));
+	}
+
+	public void testConcurrentAccess() throws Exception {
+		// room for 50 10x10 INT_RGB images
+		final TileImageCache.Budget budget = new TileImageCache.Budget(50 * 400);
+		final BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+		Thread[] threads = new Thread[4];
+		final TileImageCache[] caches = new TileImageCache[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			final TileImageCache cache = new TileImageCache(budget);
+			caches[i] = cache;
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for (int n = 0; n < 10000; n++) {
+						int x = n % 100;
+						if (cache.get(x, 0) == null)
+							cache.put(x, 0, image);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		long size = 0;
+		for (TileImageCache cache : caches) {
+			assertEquals(cache.getImageCount() * 400, cache.getSize());
+			size += cache.getSize();
+		}
+		assertEquals(size, budget.getSize());
+		assertTrue(budget.getSize() <= budget.getMaxSize());
+	}
+
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import junit.framework.TestCase;
+import mobac.program.tilestore.berkeleydb.TileDbEntry;
+import mobac.program.tilestore.berkeleydb.TileDbEntry.TileDbKey;
+import mobac.program.tilestore.berkeleydb.TileWriteBuffer;
+import mobac.program.tilestore.berkeleydb.TileWriteBuffer.Batch;
+
+public class TileWriteBufferTestCase extends TestCase {
+
+	private static TileDbEntry tile(int x, int y, int size) {
+		return new TileDbEntry(x, y, 10, new byte[size]);
+	}
+
+	public void testReplaceAndGet() {
+		TileWriteBuffer buffer = new TileWriteBuffer(1024 * 1024, 100);
+		TileDbEntry t1 = tile(1, 2, 100);
+		TileDbEntry t2 = tile(1, 2, 200);
+		buffer.put("A", t1);
+		buffer.put("A", t2);
+		buffer.put("B", tile(1, 2, 50));
+		assertEquals(2, buffer.getTileCount());
+		assertSame(t2, buffer.get("A", new TileDbKey(1, 2, 10)));
+		assertNull(buffer.get("A", new TileDbKey(2, 2, 10)));
+
+		Batch batch = buffer.pollBatch();
+		assertEquals("A", batch.storeName);
+		assertEquals(1, batch.size());
+		// tiles of a batch being written are still visible
+		assertSame(t2, buffer.get("A", new TileDbKey(1, 2, 10)));
+		assertTrue(buffer.isDirty("A"));
+		buffer.batchWritten(batch);
+		assertNull(buffer.get("A", new TileDbKey(1, 2, 10)));
+		assertFalse(buffer.isDirty("A"));
+		assertTrue(buffer.isDirty("B"));
+		assertEquals(1, buffer.getTileCount());
+
+		buffer.discard("B");
+		assertEquals(0, buffer.getTileCount());
+		assertEquals(0, buffer.getByteCount());
+		assertNull(buffer.pollBatch());
+	}
+
+	public void testBatchSize() {
+		TileWriteBuffer buffer = new TileWriteBuffer(1024 * 1024, 10);
+		for (int i = 0; i < 25; i++)
+			buffer.put("A", tile(i, 0, 10));
+		buffer.put("B", tile(0, 0, 10));
+		Batch batch = buffer.pollBatch();
+		assertEquals("A", batch.storeName);
+		assertEquals(10, batch.size());
+		buffer.batchWritten(batch);
+		// remaining tiles of A are queued behind B
+		batch = buffer.pollBatch();
+		assertEquals("B", batch.storeName);
+		buffer.batchWritten(batch);
+		batch = buffer.pollBatch();
+		assertEquals(10, batch.size());
+		buffer.batchWritten(batch);
+		batch = buffer.pollBatch();
+		assertEquals(5, batch.size());
+		buffer.batchWritten(batch);
+		assertEquals(0, buffer.getTileCount());
+		assertEquals(26, buffer.getWrittenTileCount());
+		assertEquals(4, buffer.getWrittenBatchCount());
+	}
+
+	public void testOneBatchInFlightPerStore() throws Exception {
+		TileWriteBuffer buffer = new TileWriteBuffer(1024 * 1024, 10);
+		for (int i = 0; i < 15; i++)
+			buffer.put("A", tile(i, 0, 10));
+		Batch first = buffer.pollBatch();
+		assertEquals(10, first.size());
+		// the remaining tiles of A must not overtake the batch in flight
+		assertNull(buffer.pollBatch());
+		assertFalse(buffer.awaitPending(50));
+		buffer.put("B", tile(0, 0, 10));
+		assertTrue(buffer.awaitPending(50));
+		Batch batch = buffer.pollBatch();
+		assertEquals("B", batch.storeName);
+		buffer.batchWritten(batch);
+		buffer.batchWritten(first);
+		batch = buffer.pollBatch();
+		assertEquals("A", batch.storeName);
+		assertEquals(5, batch.size());
+		buffer.batchWritten(batch);
+		try {
+			buffer.batchWritten(batch);
+			fail("releasing a batch twice has to fail");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	public void testBoundedMemory() throws Exception {
+		final TileWriteBuffer buffer = new TileWriteBuffer(11000, 100);
+		for (int i = 0; i < 10; i++)
+			buffer.put("A", tile(i, 0, 1000));
+		Thread t = new Thread() {
+
+			@Override
+			public void run() {
+				buffer.put("A", tile(100, 0, 1000));
+			}
+		};
+		t.start();
+		t.join(200);
+		assertTrue("put has to block while the buffer is full", t.isAlive());
+		assertEquals(1, buffer.getBlockedPutCount());
+		buffer.batchWritten(buffer.pollBatch());
+		t.join(5000);
+		assertFalse(t.isAlive());
+		assertEquals(1, buffer.getTileCount());
+		assertEquals(10, buffer.getPeakTileCount());
+	}
+
+}
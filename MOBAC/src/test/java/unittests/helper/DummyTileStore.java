@@ -22,6 +22,7 @@ import java.io.IOException;
 
 import mobac.program.interfaces.MapSource;
 import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreCursor;
 import mobac.program.tilestore.TileStoreEntry;
 import mobac.program.tilestore.TileStoreInfo;
 
@@ -79,6 +80,19 @@ public class DummyTileStore extends TileStore {
 		return null;
 	}
 
+	@Override
+	public TileStoreCursor getTiles(int zoom, int xMin, int xMax, int yMin, int yMax, MapSource mapSource) {
+		return new TileStoreCursor() {
+
+			public TileStoreEntry next() {
+				return null;
+			}
+
+			public void close() {
+			}
+		};
+	}
+
 	@Override
 	public void prepareTileStore(MapSource mapSource) {
 	}